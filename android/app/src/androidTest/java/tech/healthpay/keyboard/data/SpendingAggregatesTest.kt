@@ -0,0 +1,123 @@
+package tech.healthpay.keyboard.data
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import java.util.Locale
+import kotlin.random.Random
+
+/**
+ * Property test: after random pages of inserts and in-place updates, every
+ * aggregate cell equals a brute-force sum over the rows in the store.
+ */
+@RunWith(AndroidJUnit4::class)
+class SpendingAggregatesTest {
+
+    private val types = listOf("credit", "debit", "received", "sent", "Debit")
+    private val statuses = listOf("completed", "pending", "failed", "Rejected", "cancelled")
+    private val counterparties = listOf(
+        "+201001234567" to "Ahmed",
+        "01001234567" to "Ahmed H.",
+        "01119876543" to "Mona",
+        "" to "Corner Shop",
+        "" to " corner shop "
+    )
+
+    private lateinit var store: TransactionStore
+
+    @Before
+    fun setUp() {
+        // In memory, so the app's own history is left alone
+        store = TransactionStore(InstrumentationRegistry.getInstrumentation().targetContext, null)
+    }
+
+    @After
+    fun tearDown() {
+        store.close()
+    }
+
+    private fun randomTransaction(random: Random, id: String): Transaction {
+        val (mobile, name) = counterparties.random(random)
+        return Transaction(
+            id = id,
+            type = types.random(random),
+            status = statuses.random(random),
+            amount = Money(random.nextLong(1, 10_000_000)),
+            fee = Money(random.nextLong(0, 500)),
+            currency = "EGP",
+            counterpartyName = name,
+            counterpartyMobile = mobile,
+            description = "",
+            referenceNumber = "",
+            createdAt = String.format(
+                Locale.US, "2024-%02d-%02dT%02d:30:00Z",
+                random.nextInt(1, 13), random.nextInt(1, 29), random.nextInt(0, 24)
+            )
+        )
+    }
+
+    @Test
+    fun cellsMatchBruteForceSums() {
+        val random = Random(35)
+        repeat(40) { page ->
+            val items = List(random.nextInt(1, 60)) {
+                // Roughly a third revisit earlier ids: status changes, edits
+                val id = if (page > 0 && random.nextInt(3) == 0) "tx${random.nextInt(page * 30)}" else "tx${page * 30 + it}"
+                randomTransaction(random, id)
+            }.distinctBy { it.id }
+            store.applyPage(items, "cursor$page")
+            if (page % 10 == 9) assertMatchesBruteForce()
+        }
+    }
+
+    @Test
+    fun clearResetsEveryCell() {
+        val random = Random(36)
+        store.applyPage(List(50) { randomTransaction(random, "tx$it") }, "cursor")
+        store.clear()
+        assertEquals(SpendingSummary.EMPTY, store.aggregates.summary())
+        assertMatchesBruteForce()
+    }
+
+    private fun assertMatchesBruteForce() {
+        val rows = ArrayList<Transaction>()
+        store.forEachTransaction { rows.add(it) }
+        val counted = rows.filter {
+            it.status.lowercase(Locale.US) !in setOf("failed", "rejected", "cancelled", "canceled")
+        }
+
+        val months = counted.map { SpendingAggregates.monthOf(TransactionStore.parseCreatedAt(it.createdAt)) }.toSet()
+        val typeKeys = counted.map { SpendingAggregates.typeOf(it) }.toSet()
+        val counterpartyKeys = counted.map { SpendingAggregates.counterpartyOf(it) }.toSet()
+
+        for (month in months + SpendingAggregates.ALL) {
+            for (type in typeKeys + SpendingAggregates.ALL) {
+                for (counterparty in counterpartyKeys + SpendingAggregates.ALL) {
+                    val cell = counted.filter {
+                        (month == SpendingAggregates.ALL ||
+                            SpendingAggregates.monthOf(TransactionStore.parseCreatedAt(it.createdAt)) == month) &&
+                            (type == SpendingAggregates.ALL || SpendingAggregates.typeOf(it) == type) &&
+                            (counterparty == SpendingAggregates.ALL || SpendingAggregates.counterpartyOf(it) == counterparty)
+                    }
+                    val expected = if (cell.isEmpty()) {
+                        SpendingSummary.EMPTY
+                    } else {
+                        SpendingSummary(
+                            count = cell.size,
+                            creditTotal = Money(cell.filter { it.isCredit }.sumOf { it.amount.minorUnits }),
+                            debitTotal = Money(cell.filterNot { it.isCredit }.sumOf { it.amount.minorUnits }),
+                            feeTotal = Money(cell.sumOf { it.fee.minorUnits })
+                        )
+                    }
+                    assertEquals("$month/$type/$counterparty", expected, store.aggregates.summary(month, type, counterparty))
+                }
+            }
+        }
+    }
+}
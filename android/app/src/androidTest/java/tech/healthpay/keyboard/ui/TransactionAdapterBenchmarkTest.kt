@@ -0,0 +1,104 @@
+package tech.healthpay.keyboard.ui
+
+import android.view.ContextThemeWrapper
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import tech.healthpay.keyboard.R
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import java.util.Locale
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Bind time and retained memory of the history list over 10k rows, bound
+ * through [TransactionAdapter] into real row views
+ */
+@RunWith(AndroidJUnit4::class)
+class TransactionAdapterBenchmarkTest {
+
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val context = ContextThemeWrapper(instrumentation.targetContext, R.style.Theme_HealthPayKeyboard)
+    private val statuses = listOf("completed", "pending", "failed")
+
+    private fun transaction(index: Int) = Transaction(
+        id = "tx$index",
+        type = if (index % 3 == 0) "credit" else "debit",
+        status = statuses[index % statuses.size],
+        amount = Money(1_000L + index * 37L % 10_000_000),
+        fee = Money.ZERO,
+        currency = "EGP",
+        counterpartyName = "Recipient ${index % 500}",
+        counterpartyMobile = "",
+        description = "",
+        referenceNumber = "",
+        createdAt = String.format(Locale.US, "2024-%02d-%02dT%02d:30:00Z", index % 12 + 1, index % 28 + 1, index % 24),
+        counterpartyAvatar = ""
+    )
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) {
+            System.gc()
+            System.runFinalization()
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    @Test
+    fun benchmarkBindAndMemoryFor10kRows() {
+        val mapper = TransactionDisplayMapper(context)
+        val transactions = List(ROWS) { transaction(it) }
+
+        val before = usedHeap()
+        val displays = mapper.map(transactions)
+        val retainedPerRow = (usedHeap() - before) / ROWS
+
+        var shown = 0
+        val adapter = TransactionAdapter(AvatarLoader(context), onRowShown = { shown++ }, onNearEnd = {})
+        val committed = CountDownLatch(1)
+        lateinit var recycler: RecyclerView
+        instrumentation.runOnMainSync {
+            recycler = RecyclerView(context).apply {
+                layoutManager = LinearLayoutManager(context)
+                this.adapter = adapter
+            }
+            adapter.submitList(displays) { committed.countDown() }
+        }
+        // The first diff runs on a background thread
+        assertTrue(committed.await(30, TimeUnit.SECONDS))
+        assertEquals(ROWS, adapter.itemCount)
+
+        var bindNanos = 0L
+        instrumentation.runOnMainSync {
+            // One view holder per row shown on a phone screen, recycled as a scroll would
+            val holders = List(VISIBLE_ROWS) { adapter.onCreateViewHolder(recycler, 0) }
+            for (position in 0 until WARMUP_ROWS) adapter.onBindViewHolder(holders[position % VISIBLE_ROWS], position)
+
+            val start = System.nanoTime()
+            for (position in 0 until ROWS) adapter.onBindViewHolder(holders[position % VISIBLE_ROWS], position)
+            bindNanos = System.nanoTime() - start
+        }
+
+        val bindMicros = bindNanos / 1_000.0 / ROWS
+        println("TransactionAdapter $ROWS rows: %.1f µs per bind, %d bytes retained per row".format(bindMicros, retainedPerRow))
+        assertEquals(WARMUP_ROWS + ROWS, shown)
+        // Well inside one frame for the handful of rows a fling binds at once
+        assertTrue("%.1f µs per bind".format(bindMicros), bindMicros < MAX_BIND_MICROS)
+        assertTrue("$retainedPerRow bytes per row", retainedPerRow < MAX_BYTES_PER_ROW)
+    }
+
+    private companion object {
+        const val ROWS = 10_000
+        const val VISIBLE_ROWS = 12
+        const val WARMUP_ROWS = 500
+        const val MAX_BIND_MICROS = 500.0
+        const val MAX_BYTES_PER_ROW = 2_048L
+    }
+}
@@ -7,10 +7,24 @@ import android.util.Log
 import androidx.security.crypto.EncryptedSharedPreferences
 import androidx.security.crypto.MasterKey
 import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.WalletSubscriptionClient
+import tech.healthpay.keyboard.data.MutationOutbox
+import tech.healthpay.keyboard.data.NotificationStore
+import tech.healthpay.keyboard.data.PaymentLinkCache
+import tech.healthpay.keyboard.data.PaymentPipeline
+import tech.healthpay.keyboard.data.RecipientRanker
+import tech.healthpay.keyboard.data.TransactionSearchIndex
+import tech.healthpay.keyboard.data.TransactionStore
+import tech.healthpay.keyboard.data.TransactionSyncManager
+import tech.healthpay.keyboard.data.TransferJournal
+import tech.healthpay.keyboard.data.WalletRepository
+import tech.healthpay.keyboard.data.WalletSnapshotStore
+import tech.healthpay.keyboard.qr.QrCodeRenderer
 import tech.healthpay.keyboard.security.AuthenticationManager
 import tech.healthpay.keyboard.security.BiometricHelper
 import tech.healthpay.keyboard.security.EncryptionManager
 import tech.healthpay.keyboard.security.TokenManager
+import tech.healthpay.keyboard.ui.AvatarLoader
 
 /**
  * HealthPay Keyboard Application
@@ -45,10 +59,58 @@ class HealthPayKeyboardApplication : Application() {
         val biometricHelper: BiometricHelper
             get() = _biometricHelper ?: throw IllegalStateException("BiometricHelper not initialized")
 
+        private var _transferJournal: TransferJournal? = null
+        val transferJournal: TransferJournal
+            get() = _transferJournal ?: throw IllegalStateException("TransferJournal not initialized")
+
         private var _apiClient: HealthPayApiClient? = null
         val apiClient: HealthPayApiClient
             get() = _apiClient ?: throw IllegalStateException("ApiClient not initialized")
 
+        private var _transactionStore: TransactionStore? = null
+        val transactionStore: TransactionStore
+            get() = _transactionStore ?: throw IllegalStateException("TransactionStore not initialized")
+
+        private var _transactionSync: TransactionSyncManager? = null
+        val transactionSync: TransactionSyncManager
+            get() = _transactionSync ?: throw IllegalStateException("TransactionSyncManager not initialized")
+
+        private var _transactionSearchIndex: TransactionSearchIndex? = null
+        val transactionSearchIndex: TransactionSearchIndex
+            get() = _transactionSearchIndex ?: throw IllegalStateException("TransactionSearchIndex not initialized")
+
+        private var _recipientRanker: RecipientRanker? = null
+        val recipientRanker: RecipientRanker
+            get() = _recipientRanker ?: throw IllegalStateException("RecipientRanker not initialized")
+
+        private var _notificationStore: NotificationStore? = null
+        val notificationStore: NotificationStore
+            get() = _notificationStore ?: throw IllegalStateException("NotificationStore not initialized")
+
+        private var _mutationOutbox: MutationOutbox? = null
+        val mutationOutbox: MutationOutbox
+            get() = _mutationOutbox ?: throw IllegalStateException("MutationOutbox not initialized")
+
+        private var _walletRepository: WalletRepository? = null
+        val walletRepository: WalletRepository
+            get() = _walletRepository ?: throw IllegalStateException("WalletRepository not initialized")
+
+        private var _paymentLinkCache: PaymentLinkCache? = null
+        val paymentLinkCache: PaymentLinkCache
+            get() = _paymentLinkCache ?: throw IllegalStateException("PaymentLinkCache not initialized")
+
+        private var _paymentPipeline: PaymentPipeline? = null
+        val paymentPipeline: PaymentPipeline
+            get() = _paymentPipeline ?: throw IllegalStateException("PaymentPipeline not initialized")
+
+        private var _avatarLoader: AvatarLoader? = null
+        val avatarLoader: AvatarLoader
+            get() = _avatarLoader ?: throw IllegalStateException("AvatarLoader not initialized")
+
+        private var _qrCodeRenderer: QrCodeRenderer? = null
+        val qrCodeRenderer: QrCodeRenderer
+            get() = _qrCodeRenderer ?: throw IllegalStateException("QrCodeRenderer not initialized")
+
         private var _authenticationManager: AuthenticationManager? = null
         val authenticationManager: AuthenticationManager
             get() = _authenticationManager ?: throw IllegalStateException("AuthenticationManager not initialized")
@@ -80,7 +142,35 @@ class HealthPayKeyboardApplication : Application() {
             _encryptionManager = EncryptionManager(this)
             _tokenManager = TokenManager(_sharedPreferences!!)
             _biometricHelper = BiometricHelper(this)
-            _apiClient = HealthPayApiClient(_tokenManager!!)
+            _transferJournal = TransferJournal(_sharedPreferences!!)
+            _apiClient = HealthPayApiClient(_tokenManager!!, _transferJournal!!)
+            _mutationOutbox = MutationOutbox(this, _sharedPreferences!!, _apiClient!!)
+            _transactionStore = TransactionStore(this)
+            _transactionSync = TransactionSyncManager(_apiClient!!, _transactionStore!!)
+            _transactionSearchIndex = TransactionSearchIndex(_transactionStore!!).also { index ->
+                _transactionSync!!.addListener(index)
+                index.load()
+            }
+            _recipientRanker = RecipientRanker(_transactionStore!!, _transferJournal!!).also { ranker ->
+                _transactionSync!!.addListener(ranker)
+                ranker.load()
+            }
+            _notificationStore = NotificationStore(this).also { it.load() }
+            _walletRepository = WalletRepository(
+                apiClient = _apiClient!!,
+                subscriptionClient = WalletSubscriptionClient(_tokenManager!!),
+                transactionSync = _transactionSync!!,
+                notificationStore = _notificationStore!!,
+                snapshotStore = WalletSnapshotStore(
+                    context = this,
+                    encryptionManager = _encryptionManager!!
+                ),
+                outbox = _mutationOutbox!!
+            )
+            _paymentLinkCache = PaymentLinkCache(_apiClient!!, _mutationOutbox!!)
+            _paymentPipeline = PaymentPipeline(_apiClient!!, _walletRepository!!)
+            _avatarLoader = AvatarLoader(this)
+            _qrCodeRenderer = QrCodeRenderer()
             _authenticationManager = AuthenticationManager(
                 context = this,
                 tokenManager = _tokenManager!!,
@@ -88,12 +178,23 @@ class HealthPayKeyboardApplication : Application() {
             )
 
             Log.d(TAG, "All dependencies initialized successfully")
+
+            if (isUserLoggedIn()) {
+                _apiClient?.reconcilePendingTransfers()
+            }
+            // Replays mutations a previous process did not get to deliver
+            _mutationOutbox?.start()
         } catch (e: Exception) {
             Log.e(TAG, "Failed to initialize dependencies", e)
             throw e
         }
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        _avatarLoader?.onTrimMemory(level)
+    }
+
     fun isUserLoggedIn(): Boolean {
         return _tokenManager?.hasValidToken() == true
     }
@@ -101,6 +202,16 @@ class HealthPayKeyboardApplication : Application() {
     fun logout() {
         _tokenManager?.clearTokens()
         _authenticationManager?.clearSession()
+        _transferJournal?.clear()
+        _mutationOutbox?.clear()
+        _walletRepository?.clear()
+        _transactionSync?.clear()
+        _transactionStore?.clear()
+        _transactionSearchIndex?.clear()
+        _recipientRanker?.clear()
+        _notificationStore?.clear()
+        _paymentLinkCache?.clear()
+        _avatarLoader?.clear()
         Log.d(TAG, "User logged out")
     }
 }
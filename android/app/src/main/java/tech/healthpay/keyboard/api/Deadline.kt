@@ -0,0 +1,58 @@
+package tech.healthpay.keyboard.api
+
+import android.os.SystemClock
+import okhttp3.Call
+
+/**
+ * Deadline - Absolute time budget for an API operation
+ *
+ * Created by the UI when an operation starts and handed down to
+ * [HealthPayApiClient], which turns the remaining budget into the OkHttp
+ * call timeout. Follow-up calls (e.g. the alternative OTP mutation) share
+ * the same deadline instead of starting a fresh 30 s window.
+ */
+class Deadline private constructor(private val expiresAtMs: Long) {
+
+    companion object {
+        fun after(timeoutMs: Long): Deadline = Deadline(SystemClock.elapsedRealtime() + timeoutMs)
+    }
+
+    fun remainingMs(): Long = (expiresAtMs - SystemClock.elapsedRealtime()).coerceAtLeast(0)
+
+    fun isExpired(): Boolean = remainingMs() == 0L
+}
+
+/**
+ * Cancellation handle for an in-flight API operation
+ *
+ * An operation may span several OkHttp calls, so the handle tracks whichever
+ * call is current. Once cancelled, no callback is delivered for the operation.
+ */
+class ApiCall {
+
+    private var call: Call? = null
+
+    @Volatile
+    var isCanceled: Boolean = false
+        private set
+
+    /**
+     * Binds the next OkHttp call to this handle. Returns false (and cancels
+     * the call) if the operation was already cancelled.
+     */
+    @Synchronized
+    internal fun attach(next: Call): Boolean {
+        if (isCanceled) {
+            next.cancel()
+            return false
+        }
+        call = next
+        return true
+    }
+
+    @Synchronized
+    fun cancel() {
+        isCanceled = true
+        call?.cancel()
+    }
+}
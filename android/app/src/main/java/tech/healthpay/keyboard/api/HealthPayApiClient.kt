@@ -1,20 +1,42 @@
 package tech.healthpay.keyboard.api
 
+import android.os.SystemClock
 import android.util.Log
 import okhttp3.*
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.RequestBody.Companion.toRequestBody
 import org.json.JSONObject
+import tech.healthpay.keyboard.data.TransferJournal
 import tech.healthpay.keyboard.security.TokenManager
 import java.io.IOException
+import java.util.Locale
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
 
 /**
  * HealthPay API Client - GraphQL Implementation
  * 
  * v1.2.3 - Uses GraphQL endpoint at sword.beta.healthpay.tech
+ * v1.2.4 - Callers may pass a [Deadline]; the remaining budget becomes the OkHttp
+ *          call timeout and the returned [ApiCall] cancels the socket on UI timeout
+ * v1.2.5 - Per-operation [RequestPolicy] with timeouts from [NetworkQualityEstimator]
+ *          and automatic retries classified by [NetworkFailure]
+ * v1.2.6 - Transfers carry a client idempotency key, are journaled in [TransferJournal]
+ *          and reconciled by key when the outcome is unknown
+ * v1.2.7 - Calls are released through a priority-aware [RequestScheduler]
+ * v1.2.8 - Transfers can be prepared ahead of submission and the connection
+ *          warmed, so a payment is sent the moment it is authorized
+ * v1.2.9 - Payment requests and prepared transfers accept a caller's idempotency
+ *          key, so the mutation outbox can replay them after a restart
+ * v1.3.0 - [findTransfer] lets the outbox ask about a transfer before giving up
+ *          on it; the endpoint can be overridden for tests
  */
-class HealthPayApiClient(private val tokenManager: TokenManager) {
+class HealthPayApiClient(
+    private val tokenManager: TokenManager,
+    private val transferJournal: TransferJournal,
+    private val graphqlUrl: String = GRAPHQL_URL
+) {
 
     companion object {
         private const val TAG = "HealthPayApiClient"
@@ -22,9 +44,33 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
         private const val CONNECT_TIMEOUT = 30L
         private const val READ_TIMEOUT = 30L
         private const val WRITE_TIMEOUT = 30L
+        private const val IDEMPOTENCY_HEADER = "Idempotency-Key"
+
+        // Failures after which a transfer may or may not have been applied
+        private val AMBIGUOUS_TRANSFER_ERRORS = setOf(
+            ApiErrorCode.TIMEOUT, ApiErrorCode.NETWORK_ERROR, ApiErrorCode.SERVER_ERROR, ApiErrorCode.PARSE_ERROR
+        )
+        private val FAILED_TRANSFER_STATUSES = setOf("failed", "rejected", "cancelled", "canceled")
+
+        // A transfer the server may still be processing is looked up again
+        private const val LOOKUP_ATTEMPTS = 3
+        private const val LOOKUP_BACKOFF_MS = 2_000L
+        // Not found this long after it was journaled, a transfer was never applied
+        private const val TRANSFER_SETTLE_MS = 10 * 60 * 1000L // 10 minutes
     }
 
+    val networkQuality = NetworkQualityEstimator()
+
+    private val retryExecutor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+
+    private val scheduler = RequestScheduler()
+
     private val client: OkHttpClient = OkHttpClient.Builder()
+        // The scheduler decides ordering; OkHttp must never queue behind it
+        .dispatcher(Dispatcher().apply {
+            maxRequests = RequestScheduler.MAX_CONCURRENT * 2
+            maxRequestsPerHost = RequestScheduler.MAX_CONCURRENT * 2
+        })
         .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
         .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
         .writeTimeout(WRITE_TIMEOUT, TimeUnit.SECONDS)
@@ -38,7 +84,16 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
                 requestBuilder.header("Authorization", "Bearer $token")
             }
             
-            chain.proceed(requestBuilder.build())
+            val timeouts = original.tag(CallTimeouts::class.java)
+            val timedChain = if (timeouts != null) {
+                chain.withConnectTimeout(timeouts.connectMs.toInt(), TimeUnit.MILLISECONDS)
+                    .withReadTimeout(timeouts.readMs.toInt(), TimeUnit.MILLISECONDS)
+                    .withWriteTimeout(timeouts.writeMs.toInt(), TimeUnit.MILLISECONDS)
+            } else {
+                chain
+            }
+
+            timedChain.proceed(requestBuilder.build())
         }
         .build()
 
@@ -52,8 +107,17 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
         query: String,
         variables: Map<String, Any?>,
         operationName: String,
+        policy: RequestPolicy,
+        handle: ApiCall,
+        deadline: Deadline?,
+        idempotencyKey: String? = null,
         callback: (JSONObject?, ApiError?) -> Unit
     ) {
+        val body = graphQLBody(query, variables, operationName)
+        executeAttempt(body, operationName, policy, handle, deadline, idempotencyKey, 1, callback)
+    }
+
+    private fun graphQLBody(query: String, variables: Map<String, Any?>, operationName: String): RequestBody {
         val graphqlBody = JSONObject().apply {
             put("query", query)
             put("variables", JSONObject(variables))
@@ -63,23 +127,153 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
         Log.d(TAG, "GraphQL Request: $operationName")
         Log.d(TAG, "Variables: $variables")
 
+        return graphqlBody.toString().toRequestBody(jsonMediaType)
+    }
+
+    /**
+     * Opens a pooled connection to the API host ahead of a request, so that
+     * request skips DNS, TCP and TLS setup. [onDone] receives false if a
+     * connection was already idle in the pool or the host was unreachable.
+     */
+    fun warmConnection(onDone: (Boolean) -> Unit = {}) {
+        if (client.connectionPool.idleConnectionCount() > 0) {
+            onDone(false)
+            return
+        }
         val request = Request.Builder()
-            .url(GRAPHQL_URL)
-            .post(graphqlBody.toString().toRequestBody(jsonMediaType))
+            .url(graphqlUrl)
+            .head()
+            .tag(CallTimeouts::class.java, RequestPolicy.PREFETCH.timeoutsFor(networkQuality))
             .build()
 
         client.newCall(request).enqueue(object : Callback {
             override fun onFailure(call: Call, e: IOException) {
-                Log.e(TAG, "GraphQL network failure: ${e.message}", e)
-                callback(null, parseNetworkError(e))
+                Log.d(TAG, "Connection warm-up failed: ${e.message}")
+                onDone(false)
             }
 
             override fun onResponse(call: Call, response: Response) {
+                // Any status will do; the connection is what we came for
+                response.close()
+                onDone(true)
+            }
+        })
+    }
+
+    private fun executeAttempt(
+        body: RequestBody,
+        operationName: String,
+        policy: RequestPolicy,
+        handle: ApiCall,
+        deadline: Deadline?,
+        idempotencyKey: String?,
+        attempt: Int,
+        callback: (JSONObject?, ApiError?) -> Unit
+    ) {
+        if (handle.isCanceled) {
+            Log.d(TAG, "$operationName skipped, operation cancelled")
+            return
+        }
+        if (deadline?.isExpired() == true) {
+            Log.w(TAG, "$operationName skipped, deadline already expired")
+            callback(null, NetworkFailure.DEADLINE_EXCEEDED.toApiError())
+            return
+        }
+
+        val request = Request.Builder()
+            .url(graphqlUrl)
+            .post(body)
+            .tag(CallTimeouts::class.java, policy.timeoutsFor(networkQuality))
+            .apply { idempotencyKey?.let { header(IDEMPOTENCY_HEADER, it) } }
+            .build()
+
+        val call = client.newCall(request)
+        if (!handle.attach(call)) return
+
+        val retry = { failure: NetworkFailure ->
+            scheduleRetry(failure, body, operationName, policy, handle, deadline, idempotencyKey, attempt, callback)
+        }
+
+        scheduler.submit(
+            policy.priority,
+            start = {
+                // Time spent queued in the scheduler counts against the deadline
+                deadline?.let { call.timeout().timeout(it.remainingMs(), TimeUnit.MILLISECONDS) }
+                enqueue(call, operationName, policy, handle, attempt, retry, callback)
+            },
+            onDropped = {
+                call.cancel()
+                if (!handle.isCanceled) {
+                    callback(null, ApiError(ApiErrorCode.CANCELLED, "Request dropped for higher priority work", null))
+                }
+            }
+        )
+    }
+
+    private fun enqueue(
+        call: Call,
+        operationName: String,
+        policy: RequestPolicy,
+        handle: ApiCall,
+        attempt: Int,
+        retry: (NetworkFailure) -> Boolean,
+        callback: (JSONObject?, ApiError?) -> Unit
+    ) {
+        val startedAt = SystemClock.elapsedRealtime()
+
+        call.enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                scheduler.finished(policy.priority)
+                onNetworkFailure(e)
+            }
+
+            private fun onNetworkFailure(e: IOException) {
+                if (handle.isCanceled) {
+                    Log.d(TAG, "$operationName cancelled")
+                    return
+                }
+                val failure = NetworkFailure.classify(e)
+                Log.e(TAG, "GraphQL network failure ($failure, attempt $attempt): ${e.message}", e)
+                if (failure == NetworkFailure.TIMEOUT) networkQuality.recordTimeout()
+                if (retry(failure)) return
+                callback(null, failure.toApiError(details = e.message))
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                if (handle.isCanceled) {
+                    scheduler.finished(policy.priority)
+                    response.close()
+                    Log.d(TAG, "$operationName cancelled, dropping response")
+                    return
+                }
                 try {
-                    val responseBody = response.body?.string()
+                    // The slot is held until the body is downloaded, not just the headers
+                    val responseBody = try {
+                        response.body?.string()
+                    } catch (e: IOException) {
+                        // The deadline can run out while the body is still arriving
+                        onNetworkFailure(e)
+                        return
+                    } finally {
+                        scheduler.finished(policy.priority)
+                    }
                     Log.d(TAG, "GraphQL Response: ${response.code}")
                     Log.d(TAG, "Body: ${responseBody?.take(500)}")
 
+                    networkQuality.recordSample(
+                        rttMs = response.receivedResponseAtMillis - response.sentRequestAtMillis,
+                        bytes = responseBody?.length?.toLong() ?: 0L,
+                        durationMs = SystemClock.elapsedRealtime() - startedAt
+                    )
+
+                    val httpFailure = NetworkFailure.fromHttpStatus(response.code)
+                    if (httpFailure != null) {
+                        if (retry(httpFailure)) return
+                        // A gateway's error page is not a GraphQL response; report the status
+                        callback(null, httpFailure.toApiError(httpCode = response.code))
+                        return
+                    }
+
                     if (responseBody == null) {
                         callback(null, ApiError(ApiErrorCode.PARSE_ERROR, "Empty response from server", response.code))
                         return
@@ -118,11 +312,39 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
         })
     }
 
+    /**
+     * Schedules another attempt if the policy allows it and the deadline leaves
+     * room for the backoff. Returns false when the failure should be reported.
+     */
+    private fun scheduleRetry(
+        failure: NetworkFailure,
+        body: RequestBody,
+        operationName: String,
+        policy: RequestPolicy,
+        handle: ApiCall,
+        deadline: Deadline?,
+        idempotencyKey: String?,
+        attempt: Int,
+        callback: (JSONObject?, ApiError?) -> Unit
+    ): Boolean {
+        if (!policy.shouldRetry(failure, attempt)) return false
+
+        val backoffMs = policy.backoffMs(attempt)
+        if (deadline != null && deadline.remainingMs() <= backoffMs) return false
+
+        Log.d(TAG, "Retrying $operationName in ${backoffMs}ms after $failure (attempt ${attempt + 1})")
+        retryExecutor.schedule({
+            executeAttempt(body, operationName, policy, handle, deadline, idempotencyKey, attempt + 1, callback)
+        }, backoffMs, TimeUnit.MILLISECONDS)
+        return true
+    }
+
     // =====================
     // Authentication APIs
     // =====================
 
-    fun requestOtp(mobileNumber: String, callback: ApiCallback<OtpResponse>) {
+    fun requestOtp(mobileNumber: String, callback: ApiCallback<OtpResponse>, deadline: Deadline? = null): ApiCall {
+        val handle = ApiCall()
         // GraphQL mutation for requesting OTP
         val mutation = """
             mutation RequestOtp(${'$'}mobile: String!, ${'$'}countryCode: String) {
@@ -154,11 +376,11 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
 
         Log.d(TAG, "Requesting OTP for: ${mobileNumber.takeLast(4)}")
 
-        executeGraphQL(mutation, variables, "RequestOtp") { data, error ->
+        executeGraphQL(mutation, variables, "RequestOtp", RequestPolicy.AUTH, handle, deadline) { data, error ->
             if (error != null) {
                 // Try alternative mutation format
                 Log.d(TAG, "Trying alternative mutation format...")
-                executeGraphQL(mutationAlt, mapOf("mobile" to mobileNumber), "RequestOtp") { altData, altError ->
+                executeGraphQL(mutationAlt, mapOf("mobile" to mobileNumber), "RequestOtp", RequestPolicy.AUTH, handle, deadline) { altData, altError ->
                     if (altError != null) {
                         callback.onError(altError)
                     } else {
@@ -170,6 +392,8 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
 
             parseOtpResponse(data, "requestOtp", callback)
         }
+
+        return handle
     }
 
     private fun parseOtpResponse(data: JSONObject?, fieldName: String, callback: ApiCallback<OtpResponse>) {
@@ -197,7 +421,14 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
         }
     }
 
-    fun verifyOtp(mobileNumber: String, otpCode: String, requestId: String, callback: ApiCallback<AuthResponse>) {
+    fun verifyOtp(
+        mobileNumber: String,
+        otpCode: String,
+        requestId: String,
+        callback: ApiCallback<AuthResponse>,
+        deadline: Deadline? = null
+    ): ApiCall {
+        val handle = ApiCall()
         // GraphQL mutation for verifying OTP
         val mutation = """
             mutation VerifyOtp(${'$'}mobile: String!, ${'$'}otp: String!, ${'$'}requestId: String) {
@@ -219,7 +450,7 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
 
         Log.d(TAG, "Verifying OTP for: ${mobileNumber.takeLast(4)}")
 
-        executeGraphQL(mutation, variables, "VerifyOtp") { data, error ->
+        executeGraphQL(mutation, variables, "VerifyOtp", RequestPolicy.AUTH, handle, deadline) { data, error ->
             if (error != null) {
                 callback.onError(error)
                 return@executeGraphQL
@@ -250,13 +481,16 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
                 callback.onError(ApiError(ApiErrorCode.PARSE_ERROR, "Failed to verify OTP", null, e.message))
             }
         }
+
+        return handle
     }
 
     // =====================
     // Wallet APIs
     // =====================
 
-    fun getWalletBalance(callback: ApiCallback<WalletBalance>) {
+    fun getWalletBalance(callback: ApiCallback<WalletBalance>, deadline: Deadline? = null): ApiCall {
+        val handle = ApiCall()
         val query = """
             query GetWalletBalance {
                 wallet {
@@ -267,7 +501,7 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
             }
         """.trimIndent()
 
-        executeGraphQL(query, emptyMap(), "GetWalletBalance") { data, error ->
+        executeGraphQL(query, emptyMap(), "GetWalletBalance", RequestPolicy.QUERY, handle, deadline) { data, error ->
             if (error != null) {
                 callback.onError(error)
                 return@executeGraphQL
@@ -276,7 +510,7 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
             try {
                 val walletData = data?.optJSONObject("wallet")
                 callback.onSuccess(WalletBalance(
-                    balance = walletData?.optDouble("balance", 0.0) ?: 0.0,
+                    balance = Money.fromDouble(walletData?.optDouble("balance", 0.0) ?: 0.0),
                     currency = walletData?.optString("currency", "EGP") ?: "EGP",
                     lastUpdated = walletData?.optString("lastUpdated", "") ?: ""
                 ))
@@ -284,12 +518,39 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
                 callback.onError(ApiError(ApiErrorCode.PARSE_ERROR, "Failed to parse balance", null, e.message))
             }
         }
+
+        return handle
     }
 
-    fun initiateTransfer(recipientMobile: String, amount: Double, note: String?, callback: ApiCallback<TransferResponse>) {
+    /**
+     * Sends a transfer under a client-generated idempotency key. Transient
+     * failures are retried with the same key; if the outcome is still unknown
+     * the transfer is looked up by key before an error is reported.
+     */
+    fun initiateTransfer(
+        recipientMobile: String,
+        amount: Money,
+        note: String?,
+        callback: ApiCallback<TransferResponse>,
+        deadline: Deadline? = null
+    ): ApiCall = submitTransfer(prepareTransfer(recipientMobile, amount, note), callback, deadline)
+
+    /**
+     * Builds the Transfer request and reserves its idempotency key without
+     * sending anything. Nothing is journaled until [submitTransfer], so a
+     * prepared transfer that is never submitted can simply be dropped. A
+     * replay of a transfer that may already have been sent passes its
+     * original [idempotencyKey].
+     */
+    fun prepareTransfer(
+        recipientMobile: String,
+        amount: Money,
+        note: String?,
+        idempotencyKey: String = transferJournal.reserve(recipientMobile, amount, note)
+    ): PreparedTransfer {
         val mutation = """
-            mutation Transfer(${'$'}recipientMobile: String!, ${'$'}amount: Float!, ${'$'}note: String) {
-                transfer(input: { recipientMobile: ${'$'}recipientMobile, amount: ${'$'}amount, note: ${'$'}note }) {
+            mutation Transfer(${'$'}recipientMobile: String!, ${'$'}amount: Float!, ${'$'}note: String, ${'$'}idempotencyKey: String!) {
+                transfer(input: { recipientMobile: ${'$'}recipientMobile, amount: ${'$'}amount, note: ${'$'}note, idempotencyKey: ${'$'}idempotencyKey }) {
                     success
                     transactionId
                     status
@@ -300,50 +561,302 @@ class HealthPayApiClient(private val tokenManager: TokenManager) {
 
         val variables = mapOf(
             "recipientMobile" to recipientMobile,
-            "amount" to amount,
-            "note" to note
+            "amount" to amount.toWireNumber(),
+            "note" to note,
+            "idempotencyKey" to idempotencyKey
         )
 
-        executeGraphQL(mutation, variables, "Transfer") { data, error ->
+        return PreparedTransfer(recipientMobile, amount, note, idempotencyKey, graphQLBody(mutation, variables, "Transfer"))
+    }
+
+    fun submitTransfer(
+        prepared: PreparedTransfer,
+        callback: ApiCallback<TransferResponse>,
+        deadline: Deadline? = null
+    ): ApiCall {
+        val handle = ApiCall()
+        val idempotencyKey = prepared.idempotencyKey
+        transferJournal.record(idempotencyKey, prepared.recipientMobile, prepared.amount, prepared.note)
+
+        executeAttempt(prepared.body, "Transfer", RequestPolicy.PAYMENT, handle, deadline, idempotencyKey, 1) { data, error ->
             if (error != null) {
-                callback.onError(error)
-                return@executeGraphQL
+                if (error.code !in AMBIGUOUS_TRANSFER_ERRORS) {
+                    transferJournal.markFailed(idempotencyKey)
+                    callback.onError(error)
+                    return@executeAttempt
+                }
+                // The server may have applied it - ask before reporting a failure
+                lookupTransfer(idempotencyKey, handle, deadline) { found, _ ->
+                    if (found != null) callback.onSuccess(found) else callback.onError(error)
+                }
+                return@executeAttempt
             }
 
             try {
                 val transferData = data?.optJSONObject("transfer")
-                callback.onSuccess(TransferResponse(
+                val response = TransferResponse(
                     success = transferData?.optBoolean("success", true) ?: true,
                     transactionId = transferData?.optString("transactionId", "") ?: "",
                     status = transferData?.optString("status", "pending") ?: "pending",
                     message = transferData?.optString("message", "Transfer initiated") ?: "Transfer initiated"
-                ))
+                )
+                if (response.success) {
+                    transferJournal.markCompleted(idempotencyKey, response.transactionId)
+                } else {
+                    transferJournal.markFailed(idempotencyKey)
+                }
+                callback.onSuccess(response)
             } catch (e: Exception) {
                 callback.onError(ApiError(ApiErrorCode.PARSE_ERROR, "Failed to process transfer", null, e.message))
             }
         }
+
+        return handle
+    }
+
+    /**
+     * Resolves journaled transfers whose outcome is still unknown, e.g. after
+     * the app was killed while a transfer was in flight.
+     */
+    fun reconcilePendingTransfers() {
+        transferJournal.inFlight().forEach { entry ->
+            lookupTransfer(entry.idempotencyKey, ApiCall(), null) { found, error ->
+                when {
+                    found != null -> Log.d(TAG, "Reconciled transfer ${found.transactionId}: ${found.status}")
+                    error != null -> Log.w(TAG, "Transfer still unresolved: ${error.code}")
+                    System.currentTimeMillis() - entry.createdAt >= TRANSFER_SETTLE_MS -> {
+                        transferJournal.markFailed(entry.idempotencyKey)
+                        Log.d(TAG, "Transfer was never applied, marked failed")
+                    }
+                    else -> Log.d(TAG, "Transfer not visible yet, left in flight")
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks the server whether the transfer sent under [idempotencyKey] was
+     * applied. Delivers the transfer if found, (null, null) if the server
+     * does not know the key after a few lookups, or the error that stopped
+     * the lookup.
+     */
+    fun findTransfer(idempotencyKey: String, callback: (TransferResponse?, ApiError?) -> Unit): ApiCall {
+        val handle = ApiCall()
+        lookupTransfer(idempotencyKey, handle, null, callback = callback)
+        return handle
+    }
+
+    /**
+     * Looks a transfer up by idempotency key and records the outcome in the
+     * journal. A transfer the server does not know yet may still be in
+     * processing, so the lookup is repeated a few times; if it is still not
+     * found, (null, null) is delivered and the entry stays IN_FLIGHT, so a
+     * manual retry reuses the key instead of charging twice.
+     */
+    private fun lookupTransfer(
+        idempotencyKey: String,
+        handle: ApiCall,
+        deadline: Deadline?,
+        attempt: Int = 1,
+        callback: (TransferResponse?, ApiError?) -> Unit
+    ) {
+        val query = """
+            query TransferStatus(${'$'}idempotencyKey: String!) {
+                transferByIdempotencyKey(idempotencyKey: ${'$'}idempotencyKey) {
+                    transactionId
+                    status
+                }
+            }
+        """.trimIndent()
+
+        val policy = RequestPolicy.QUERY.copy(priority = RequestPriority.PAYMENT)
+        executeGraphQL(query, mapOf("idempotencyKey" to idempotencyKey), "TransferStatus", policy, handle, deadline) { data, error ->
+            if (error != null) {
+                callback(null, error)
+                return@executeGraphQL
+            }
+
+            val transferData = data?.optJSONObject("transferByIdempotencyKey")
+            if (transferData == null) {
+                val backoffMs = LOOKUP_BACKOFF_MS * attempt
+                val canRetry = attempt < LOOKUP_ATTEMPTS && !handle.isCanceled &&
+                    (deadline == null || deadline.remainingMs() > backoffMs)
+                if (canRetry) {
+                    retryExecutor.schedule({
+                        lookupTransfer(idempotencyKey, handle, deadline, attempt + 1, callback)
+                    }, backoffMs, TimeUnit.MILLISECONDS)
+                } else {
+                    callback(null, null)
+                }
+                return@executeGraphQL
+            }
+
+            val status = transferData.optString("status", "pending")
+            val response = TransferResponse(
+                success = status.lowercase(Locale.US) !in FAILED_TRANSFER_STATUSES,
+                transactionId = transferData.optString("transactionId", ""),
+                status = status,
+                message = "Transfer $status"
+            )
+            if (response.success) {
+                transferJournal.markCompleted(idempotencyKey, response.transactionId)
+            } else {
+                transferJournal.markFailed(idempotencyKey)
+            }
+            callback(response, null)
+        }
     }
 
     // =====================
-    // Error Handling
+    // Payment Request APIs
     // =====================
 
-    private fun parseNetworkError(e: IOException): ApiError {
-        return when {
-            e.message?.contains("timeout", ignoreCase = true) == true -> 
-                ApiError(ApiErrorCode.TIMEOUT, "Connection timed out. Please check your internet and try again.", null, e.message)
-            e.message?.contains("Unable to resolve host", ignoreCase = true) == true -> 
-                ApiError(ApiErrorCode.NO_INTERNET, "No internet connection. Please check your network settings.", null, e.message)
-            e.message?.contains("Connection refused", ignoreCase = true) == true -> 
-                ApiError(ApiErrorCode.SERVER_UNREACHABLE, "Unable to reach server. Please try again later.", null, e.message)
-            e.message?.contains("SSL", ignoreCase = true) == true ||
-            e.message?.contains("Certificate", ignoreCase = true) == true -> 
-                ApiError(ApiErrorCode.SERVER_UNREACHABLE, "Secure connection failed. Please try again.", null, e.message)
-            else -> 
-                ApiError(ApiErrorCode.NETWORK_ERROR, "Network error occurred. Please try again.", null, e.message)
+    /**
+     * Mints a shareable payment request link. A null [amount] leaves the
+     * amount to the payer. [background] requests yield to payments and other
+     * foreground traffic. An [idempotencyKey] lets the server de-duplicate a
+     * replayed request.
+     */
+    fun createPaymentRequest(
+        amount: Money?,
+        note: String?,
+        callback: ApiCallback<PaymentLink>,
+        background: Boolean = false,
+        deadline: Deadline? = null,
+        idempotencyKey: String? = null
+    ): ApiCall {
+        val handle = ApiCall()
+        val mutation = """
+            mutation CreatePaymentRequest(${'$'}amount: Float, ${'$'}note: String) {
+                createPaymentRequest(input: { amount: ${'$'}amount, note: ${'$'}note }) {
+                    id
+                    url
+                    expiresAt
+                }
+            }
+        """.trimIndent()
+
+        val variables = mapOf(
+            "amount" to amount?.toWireNumber(),
+            "note" to note
+        )
+        val policy = if (background) RequestPolicy.PREFETCH else RequestPolicy.QUERY
+
+        executeGraphQL(mutation, variables, "CreatePaymentRequest", policy, handle, deadline, idempotencyKey) { data, error ->
+            if (error != null) {
+                callback.onError(error)
+                return@executeGraphQL
+            }
+
+            try {
+                val request = data?.optJSONObject("createPaymentRequest")
+                val url = request?.optString("url", "") ?: ""
+                if (url.isEmpty()) {
+                    callback.onError(ApiError(ApiErrorCode.PARSE_ERROR, "Payment request has no link"))
+                    return@executeGraphQL
+                }
+                callback.onSuccess(PaymentLink(
+                    id = request?.optString("id", "") ?: "",
+                    url = url,
+                    amount = amount,
+                    note = note,
+                    expiresAt = request?.optString("expiresAt", "") ?: ""
+                ))
+            } catch (e: Exception) {
+                callback.onError(ApiError(ApiErrorCode.PARSE_ERROR, "Failed to parse payment request", null, e.message))
+            }
         }
+
+        return handle
     }
 
+    // =====================
+    // History APIs
+    // =====================
+
+    /**
+     * Fetches transactions newer than [cursor] (oldest first), for delta sync.
+     * A null cursor starts from the beginning of the history.
+     */
+    fun getTransactionsSince(
+        cursor: String?,
+        limit: Int,
+        callback: ApiCallback<TransactionPage>,
+        deadline: Deadline? = null
+    ): ApiCall {
+        val handle = ApiCall()
+        val query = """
+            query TransactionsSince(${'$'}after: String, ${'$'}limit: Int!) {
+                transactionsSince(after: ${'$'}after, limit: ${'$'}limit) {
+                    cursor
+                    hasMore
+                    items {
+                        id
+                        type
+                        status
+                        amount
+                        fee
+                        currency
+                        counterpartyName
+                        counterpartyMobile
+                        description
+                        referenceNumber
+                        createdAt
+                        counterpartyAvatar
+                    }
+                }
+            }
+        """.trimIndent()
+
+        val variables = mapOf(
+            "after" to cursor,
+            "limit" to limit
+        )
+
+        executeGraphQL(query, variables, "TransactionsSince", RequestPolicy.PREFETCH, handle, deadline) { data, error ->
+            if (error != null) {
+                callback.onError(error)
+                return@executeGraphQL
+            }
+
+            try {
+                val pageData = data?.optJSONObject("transactionsSince")
+                val items = pageData?.optJSONArray("items")
+                val transactions = ArrayList<Transaction>(items?.length() ?: 0)
+                for (i in 0 until (items?.length() ?: 0)) {
+                    val tx = items!!.getJSONObject(i)
+                    transactions.add(Transaction(
+                        id = tx.getString("id"),
+                        type = tx.optString("type", ""),
+                        status = tx.optString("status", ""),
+                        amount = Money.fromDouble(tx.optDouble("amount", 0.0)),
+                        fee = Money.fromDouble(tx.optDouble("fee", 0.0)),
+                        currency = tx.optString("currency", "EGP"),
+                        counterpartyName = tx.optString("counterpartyName", ""),
+                        counterpartyMobile = tx.optString("counterpartyMobile", ""),
+                        description = tx.optString("description", ""),
+                        referenceNumber = tx.optString("referenceNumber", ""),
+                        createdAt = tx.optString("createdAt", ""),
+                        counterpartyAvatar = tx.optString("counterpartyAvatar", "")
+                    ))
+                }
+                callback.onSuccess(TransactionPage(
+                    items = transactions,
+                    cursor = pageData?.optString("cursor")?.takeIf { it.isNotEmpty() } ?: cursor,
+                    hasMore = pageData?.optBoolean("hasMore", false) ?: false
+                ))
+            } catch (e: Exception) {
+                callback.onError(ApiError(ApiErrorCode.PARSE_ERROR, "Failed to parse transactions", null, e.message))
+            }
+        }
+
+        return handle
+    }
+
+    // =====================
+    // Error Handling
+    // =====================
+
     private fun parseGraphQLError(code: String, message: String, httpCode: Int?): ApiError {
         return when (code.uppercase()) {
             "UNAUTHENTICATED", "UNAUTHORIZED" -> 
@@ -384,11 +897,23 @@ data class AuthResponse(
 )
 
 data class WalletBalance(
-    val balance: Double,
+    val balance: Money,
     val currency: String,
     val lastUpdated: String
 )
 
+/**
+ * A Transfer request built by [HealthPayApiClient.prepareTransfer], ready to
+ * be sent as-is by [HealthPayApiClient.submitTransfer]
+ */
+class PreparedTransfer internal constructor(
+    val recipientMobile: String,
+    val amount: Money,
+    val note: String?,
+    val idempotencyKey: String,
+    internal val body: RequestBody
+)
+
 data class TransferResponse(
     val success: Boolean,
     val transactionId: String,
@@ -396,6 +921,38 @@ data class TransferResponse(
     val message: String
 )
 
+data class Transaction(
+    val id: String,
+    val type: String,
+    val status: String,
+    val amount: Money,
+    val fee: Money,
+    val currency: String,
+    val counterpartyName: String,
+    val counterpartyMobile: String,
+    val description: String,
+    val referenceNumber: String,
+    val createdAt: String,
+    val counterpartyAvatar: String = ""
+) {
+    val isCredit: Boolean
+        get() = type.equals("credit", ignoreCase = true) || type.equals("received", ignoreCase = true)
+}
+
+data class PaymentLink(
+    val id: String,
+    val url: String,
+    val amount: Money?,
+    val note: String?,
+    val expiresAt: String
+)
+
+data class TransactionPage(
+    val items: List<Transaction>,
+    val cursor: String?,
+    val hasMore: Boolean
+)
+
 // =====================
 // Error Models
 // =====================
@@ -403,7 +960,7 @@ data class TransferResponse(
 enum class ApiErrorCode {
     NO_INTERNET, TIMEOUT, NETWORK_ERROR, SERVER_UNREACHABLE,
     BAD_REQUEST, UNAUTHORIZED, FORBIDDEN, NOT_FOUND, VALIDATION_ERROR, RATE_LIMITED, SERVER_ERROR,
-    PARSE_ERROR, UNKNOWN
+    PARSE_ERROR, CANCELLED, UNKNOWN
 }
 
 data class ApiError(
@@ -0,0 +1,170 @@
+package tech.healthpay.keyboard.api
+
+import tech.healthpay.keyboard.util.Digits
+import java.math.BigDecimal
+import java.text.DecimalFormatSymbols
+import java.util.Locale
+
+/**
+ * Money - An exact amount in minor units (piasters, 100 to the pound)
+ *
+ * A value class over a single Long: it is stored unboxed in fields, locals
+ * and arrays, and sums never pick up binary rounding error. The currency
+ * stays on the owning model (e.g. [WalletBalance.currency]), as before.
+ * Doubles only appear at the JSON boundary, via [fromDouble] and
+ * [toBigDecimal].
+ *
+ * [appendTo] and [parse] work digit by digit on a caller's StringBuilder or
+ * CharSequence, so formatting and parsing create no intermediate objects.
+ */
+@JvmInline
+value class Money(val minorUnits: Long) : Comparable<Money> {
+
+    companion object {
+        const val MINOR_PER_MAJOR = 100L
+        const val FRACTION_DIGITS = 2
+
+        /** Pass as the grouping separator to [appendTo] for "1234.50" */
+        const val NO_GROUPING = '\u0000'
+
+        // Keeps minorUnits well inside Long range
+        private const val MAX_INTEGER_DIGITS = 15
+
+        val ZERO = Money(0)
+
+        fun ofMajor(major: Long) = Money(Math.multiplyExact(major, MINOR_PER_MAJOR))
+
+        /** Nearest amount to a JSON number; exact for values with at most two decimals */
+        fun fromDouble(value: Double): Money =
+            if (value.isFinite()) Money(Math.round(value * MINOR_PER_MAJOR)) else ZERO
+
+        /**
+         * Parses a non-negative amount such as "1234", "1,234.5" or "١٢٣٫٤٥".
+         * Accepts ASCII and Arabic-Indic digits and Latin or Arabic separators;
+         * grouping is optional but, when used, must split the integer part
+         * into thousands. Returns null for more than two decimals, misplaced
+         * grouping ("1,2,3", "12,") or anything else.
+         */
+        fun parse(text: CharSequence): Money? {
+            var minor = 0L
+            var integerDigits = 0
+            var fractionDigits = -1 // -1 until the decimal separator
+            var groupDigits = -1 // digits since the last grouping separator, -1 before the first
+            for (i in 0 until text.length) {
+                val c = Digits.toAscii(text[i])
+                when {
+                    c in '0'..'9' -> {
+                        if (fractionDigits >= 0) {
+                            if (fractionDigits == FRACTION_DIGITS) return null
+                            fractionDigits++
+                        } else if (++integerDigits > MAX_INTEGER_DIGITS) {
+                            return null
+                        } else if (groupDigits >= 0) {
+                            groupDigits++
+                        }
+                        minor = minor * 10 + (c - '0')
+                    }
+                    (c == '.' || c == '٫') && fractionDigits < 0 && integerDigits > 0 -> {
+                        if (groupDigits != -1 && groupDigits != 3) return null
+                        fractionDigits = 0
+                    }
+                    (c == ',' || c == '٬') && fractionDigits < 0 && integerDigits > 0 -> {
+                        // The leading group has 1-3 digits, every later one exactly 3
+                        if (if (groupDigits < 0) integerDigits > 3 else groupDigits != 3) return null
+                        groupDigits = 0
+                    }
+                    else -> return null
+                }
+            }
+            if (integerDigits == 0 || fractionDigits == 0) return null
+            if (fractionDigits < 0 && groupDigits != -1 && groupDigits != 3) return null
+
+            // "12" -> 1200, "12.5" -> 1250
+            for (i in maxOf(fractionDigits, 0) until FRACTION_DIGITS) minor *= 10
+            return Money(minor)
+        }
+
+        private fun appendGroup(out: StringBuilder, group: Int, pad: Boolean, zeroDigit: Char) {
+            var divisor = 100
+            if (!pad) while (divisor > 1 && group < divisor) divisor /= 10
+            while (divisor > 0) {
+                out.append(zeroDigit + group / divisor % 10)
+                divisor /= 10
+            }
+        }
+    }
+
+    operator fun plus(other: Money) = Money(minorUnits + other.minorUnits)
+
+    operator fun minus(other: Money) = Money(minorUnits - other.minorUnits)
+
+    operator fun unaryMinus() = Money(-minorUnits)
+
+    operator fun times(factor: Int) = Money(minorUnits * factor)
+
+    override fun compareTo(other: Money) = minorUnits.compareTo(other.minorUnits)
+
+    val isPositive: Boolean get() = minorUnits > 0
+
+    val isZero: Boolean get() = minorUnits == 0L
+
+    /** Exact decimal, for arithmetic and formatting */
+    fun toBigDecimal(): BigDecimal = BigDecimal.valueOf(minorUnits, FRACTION_DIGITS)
+
+    /**
+     * The amount as a JSON number. Android's org.json writes a BigDecimal as
+     * a quoted string, so request variables take this primitive instead; the
+     * nearest double prints back as the same two-decimal value and
+     * [fromDouble] recovers it exactly.
+     */
+    fun toWireNumber(): Double = minorUnits.toDouble() / MINOR_PER_MAJOR
+
+    /**
+     * Appends the amount with two decimals, e.g. "1,234.50". Separators and
+     * [zeroDigit] normally come from the display locale's DecimalFormatSymbols.
+     */
+    fun appendTo(
+        out: StringBuilder,
+        groupingSeparator: Char = ',',
+        decimalSeparator: Char = '.',
+        zeroDigit: Char = '0'
+    ): StringBuilder {
+        if (minorUnits < 0) out.append('-')
+        val abs = Math.abs(minorUnits)
+        val major = abs / MINOR_PER_MAJOR
+        val minor = (abs % MINOR_PER_MAJOR).toInt()
+
+        if (groupingSeparator == NO_GROUPING) {
+            var divisor = 1L
+            while (major / divisor >= 10) divisor *= 10
+            while (divisor > 0) {
+                out.append(zeroDigit + (major / divisor % 10).toInt())
+                divisor /= 10
+            }
+        } else {
+            var divisor = 1L
+            while (major / divisor >= 1000) divisor *= 1000
+            var leading = true
+            while (divisor > 0) {
+                if (!leading) out.append(groupingSeparator)
+                appendGroup(out, (major / divisor % 1000).toInt(), !leading, zeroDigit)
+                leading = false
+                divisor /= 1000
+            }
+        }
+
+        out.append(decimalSeparator)
+        out.append(zeroDigit + minor / 10)
+        out.append(zeroDigit + minor % 10)
+        return out
+    }
+
+    /** Grouped with [locale]'s separators and digits */
+    fun format(locale: Locale): String {
+        val symbols = DecimalFormatSymbols.getInstance(locale)
+        return appendTo(StringBuilder(24), symbols.groupingSeparator, symbols.decimalSeparator, symbols.zeroDigit).toString()
+    }
+
+    /** Plain "1234.50", for logs, payloads and edit fields */
+    override fun toString(): String = appendTo(StringBuilder(24), NO_GROUPING).toString()
+}
@@ -0,0 +1,81 @@
+package tech.healthpay.keyboard.api
+
+import android.util.Log
+
+/**
+ * Network Quality Estimator - Rolling RTT and throughput from recent calls
+ *
+ * Uses the same smoothing as TCP retransmission timers (RFC 6298): a smoothed
+ * RTT plus four times its mean deviation gives a timeout that tracks the link
+ * instead of a fixed 30 s for every operation.
+ */
+class NetworkQualityEstimator {
+
+    companion object {
+        private const val TAG = "NetworkQuality"
+        private const val RTT_GAIN = 0.125
+        private const val RTT_VAR_GAIN = 0.25
+        private const val THROUGHPUT_GAIN = 0.2
+        private const val MAX_RTT_MS = 60_000.0
+        private const val GOOD_RTT_MS = 300.0
+        private const val MODERATE_RTT_MS = 1_000.0
+    }
+
+    enum class Quality { UNKNOWN, GOOD, MODERATE, POOR }
+
+    private var smoothedRttMs = 0.0
+    private var rttVarianceMs = 0.0
+    private var throughputBytesPerSec = 0.0
+    private var sampleCount = 0
+
+    /**
+     * Records a completed call. [rttMs] is request-sent to response-headers,
+     * [bytes]/[durationMs] cover the whole exchange for throughput.
+     */
+    @Synchronized
+    fun recordSample(rttMs: Long, bytes: Long, durationMs: Long) {
+        val rtt = rttMs.coerceIn(1, MAX_RTT_MS.toLong()).toDouble()
+        if (sampleCount == 0) {
+            smoothedRttMs = rtt
+            rttVarianceMs = rtt / 2
+        } else {
+            rttVarianceMs = (1 - RTT_VAR_GAIN) * rttVarianceMs + RTT_VAR_GAIN * Math.abs(smoothedRttMs - rtt)
+            smoothedRttMs = (1 - RTT_GAIN) * smoothedRttMs + RTT_GAIN * rtt
+        }
+        if (bytes > 0 && durationMs > 0) {
+            val sample = bytes * 1000.0 / durationMs
+            throughputBytesPerSec = if (throughputBytesPerSec == 0.0) sample
+            else (1 - THROUGHPUT_GAIN) * throughputBytesPerSec + THROUGHPUT_GAIN * sample
+        }
+        sampleCount++
+    }
+
+    /**
+     * A timed-out call gives no RTT sample; back the estimate off instead so
+     * the next attempt gets a longer budget.
+     */
+    @Synchronized
+    fun recordTimeout() {
+        if (sampleCount == 0) return
+        smoothedRttMs = (smoothedRttMs * 2).coerceAtMost(MAX_RTT_MS)
+        Log.d(TAG, "Timeout recorded, srtt backed off to ${smoothedRttMs.toLong()}ms")
+    }
+
+    /** Retransmission-style timeout, or null until the first sample arrives. */
+    @Synchronized
+    fun retransmissionTimeoutMs(): Long? {
+        if (sampleCount == 0) return null
+        return (smoothedRttMs + 4 * rttVarianceMs).toLong()
+    }
+
+    @Synchronized
+    fun throughputBytesPerSec(): Double = throughputBytesPerSec
+
+    @Synchronized
+    fun quality(): Quality = when {
+        sampleCount == 0 -> Quality.UNKNOWN
+        smoothedRttMs <= GOOD_RTT_MS -> Quality.GOOD
+        smoothedRttMs <= MODERATE_RTT_MS -> Quality.MODERATE
+        else -> Quality.POOR
+    }
+}
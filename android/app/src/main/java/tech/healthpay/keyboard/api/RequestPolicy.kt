@@ -0,0 +1,138 @@
+package tech.healthpay.keyboard.api
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.net.ConnectException
+import java.net.NoRouteToHostException
+import java.net.PortUnreachableException
+import java.net.SocketTimeoutException
+import java.net.UnknownHostException
+import javax.net.ssl.SSLHandshakeException
+import javax.net.ssl.SSLPeerUnverifiedException
+import kotlin.random.Random
+
+/**
+ * Request Policy - Per-operation timeouts and retry/backoff
+ *
+ * Idempotent operations (queries, keyed transfers) retry on any transient
+ * failure. Other mutations only retry when the failure proves the request
+ * never reached the server.
+ */
+data class RequestPolicy(
+    val priority: RequestPriority,
+    val idempotent: Boolean,
+    val maxAttempts: Int,
+    val baseBackoffMs: Long,
+    val maxBackoffMs: Long,
+    val minTimeoutMs: Long,
+    val maxTimeoutMs: Long,
+    val timeoutScale: Double
+) {
+
+    companion object {
+        /** Read-only queries such as GetWalletBalance */
+        val QUERY = RequestPolicy(
+            priority = RequestPriority.BALANCE,
+            idempotent = true,
+            maxAttempts = 3,
+            baseBackoffMs = 250,
+            maxBackoffMs = 2_000,
+            minTimeoutMs = 5_000,
+            maxTimeoutMs = 15_000,
+            timeoutScale = 3.0
+        )
+
+        /** OTP request/verify - re-sending would trigger a second SMS */
+        val AUTH = RequestPolicy(
+            priority = RequestPriority.AUTH,
+            idempotent = false,
+            maxAttempts = 2,
+            baseBackoffMs = 500,
+            maxBackoffMs = 2_000,
+            minTimeoutMs = 10_000,
+            maxTimeoutMs = 30_000,
+            timeoutScale = 4.0
+        )
+
+        /**
+         * Transfer mutation - every attempt carries the same idempotency key, so
+         * it is safe to replay and can use short timeouts
+         */
+        val PAYMENT = RequestPolicy(
+            priority = RequestPriority.PAYMENT,
+            idempotent = true,
+            maxAttempts = 3,
+            baseBackoffMs = 500,
+            maxBackoffMs = 3_000,
+            minTimeoutMs = 8_000,
+            maxTimeoutMs = 15_000,
+            timeoutScale = 4.0
+        )
+
+        /** Background reads (history pages) - yield to everything else */
+        val PREFETCH = QUERY.copy(priority = RequestPriority.PREFETCH, maxAttempts = 2)
+    }
+
+    fun timeoutsFor(estimator: NetworkQualityEstimator): CallTimeouts {
+        val rto = estimator.retransmissionTimeoutMs()
+            ?: return CallTimeouts(maxTimeoutMs, maxTimeoutMs, maxTimeoutMs)
+        val timeout = (rto * timeoutScale).toLong().coerceIn(minTimeoutMs, maxTimeoutMs)
+        return CallTimeouts(connectMs = timeout, readMs = timeout, writeMs = timeout)
+    }
+
+    fun shouldRetry(failure: NetworkFailure, attempt: Int): Boolean {
+        if (attempt >= maxAttempts || !failure.isTransient) return false
+        return idempotent || !failure.mayHaveReachedServer
+    }
+
+    /** Exponential backoff with full jitter */
+    fun backoffMs(attempt: Int): Long {
+        val ceiling = (baseBackoffMs shl (attempt - 1).coerceIn(0, 16)).coerceAtMost(maxBackoffMs)
+        return Random.nextLong(ceiling / 2, ceiling + 1)
+    }
+}
+
+data class CallTimeouts(
+    val connectMs: Long,
+    val readMs: Long,
+    val writeMs: Long
+)
+
+/**
+ * Typed network failure classification, based on exception type rather than
+ * the exception message.
+ */
+enum class NetworkFailure(
+    val errorCode: ApiErrorCode,
+    val userMessage: String,
+    val isTransient: Boolean,
+    val mayHaveReachedServer: Boolean
+) {
+    DNS_FAILURE(ApiErrorCode.NO_INTERNET, "No internet connection. Please check your network settings.", true, false),
+    CONNECT_FAILED(ApiErrorCode.SERVER_UNREACHABLE, "Unable to reach server. Please try again later.", true, false),
+    TLS_FAILURE(ApiErrorCode.SERVER_UNREACHABLE, "Secure connection failed. Please try again.", false, false),
+    TIMEOUT(ApiErrorCode.TIMEOUT, "Connection timed out. Please check your internet and try again.", true, true),
+    DEADLINE_EXCEEDED(ApiErrorCode.TIMEOUT, "Connection timed out. Please check your internet and try again.", false, true),
+    CONNECTION_LOST(ApiErrorCode.NETWORK_ERROR, "Network error occurred. Please try again.", true, true),
+    SERVER_OVERLOADED(ApiErrorCode.SERVER_ERROR, "Server is busy. Please try again.", true, true);
+
+    companion object {
+        fun classify(e: IOException): NetworkFailure = when (e) {
+            is UnknownHostException -> DNS_FAILURE
+            is ConnectException, is NoRouteToHostException, is PortUnreachableException -> CONNECT_FAILED
+            is SSLHandshakeException, is SSLPeerUnverifiedException -> TLS_FAILURE
+            is SocketTimeoutException -> TIMEOUT
+            // OkHttp reports an expired call timeout as a plain InterruptedIOException
+            is InterruptedIOException -> DEADLINE_EXCEEDED
+            else -> CONNECTION_LOST
+        }
+
+        fun fromHttpStatus(code: Int): NetworkFailure? = when (code) {
+            502, 503, 504 -> SERVER_OVERLOADED
+            else -> null
+        }
+    }
+
+    fun toApiError(httpCode: Int? = null, details: String? = null): ApiError =
+        ApiError(errorCode, userMessage, httpCode, details)
+}
@@ -0,0 +1,117 @@
+package tech.healthpay.keyboard.api
+
+import android.util.Log
+import java.util.EnumMap
+import java.util.PriorityQueue
+
+/**
+ * Request classes in dispatch order, each with its own concurrency limit
+ */
+enum class RequestPriority(val maxConcurrent: Int) {
+    PAYMENT(2),
+    AUTH(2),
+    BALANCE(2),
+    PREFETCH(1)
+}
+
+/**
+ * Request Scheduler - Priority-aware gate in front of the OkHttp dispatcher
+ *
+ * All calls share one host, so without a gate a burst of history prefetches
+ * would sit in OkHttp's FIFO ahead of a Transfer. The scheduler releases
+ * calls by priority, keeps [PAYMENT_RESERVED_SLOTS] free for payments, holds
+ * queued prefetches back while a payment is in flight, and drops the oldest
+ * queued prefetch once [MAX_QUEUED_PREFETCH] is exceeded.
+ */
+class RequestScheduler(private val maxConcurrent: Int = MAX_CONCURRENT) {
+
+    companion object {
+        private const val TAG = "RequestScheduler"
+        const val MAX_CONCURRENT = 4
+        private const val PAYMENT_RESERVED_SLOTS = 1
+        internal const val MAX_QUEUED_PREFETCH = 8
+    }
+
+    private class Task(
+        val priority: RequestPriority,
+        val sequence: Long,
+        val start: () -> Unit,
+        val onDropped: () -> Unit
+    )
+
+    private val queue = PriorityQueue<Task>(compareBy<Task>({ it.priority.ordinal }, { it.sequence }))
+    private val running = EnumMap<RequestPriority, Int>(RequestPriority::class.java)
+    private var totalRunning = 0
+    private var nextSequence = 0L
+
+    /**
+     * Queues [start] to run once a slot for [priority] is free. [start] must
+     * lead to exactly one [finished] call; [onDropped] runs instead if the
+     * task is evicted before starting.
+     */
+    fun submit(priority: RequestPriority, start: () -> Unit, onDropped: () -> Unit) {
+        val ready = ArrayList<Task>()
+        val dropped = ArrayList<Task>()
+        synchronized(this) {
+            queue.add(Task(priority, nextSequence++, start, onDropped))
+            if (priority == RequestPriority.PREFETCH) evictExcessPrefetch(dropped)
+            collectReady(ready)
+        }
+        dropped.forEach {
+            Log.d(TAG, "Dropping queued prefetch")
+            it.onDropped()
+        }
+        ready.forEach { it.start() }
+    }
+
+    fun finished(priority: RequestPriority) {
+        val ready = ArrayList<Task>()
+        synchronized(this) {
+            running[priority] = (running[priority] ?: 1) - 1
+            totalRunning--
+            collectReady(ready)
+        }
+        ready.forEach { it.start() }
+    }
+
+    @Synchronized
+    fun queuedCount(): Int = queue.size
+
+    private fun collectReady(ready: MutableList<Task>) {
+        val skipped = ArrayList<Task>()
+        while (queue.isNotEmpty()) {
+            val task = queue.poll() ?: break
+            val paymentWaiting = skipped.any { it.priority == RequestPriority.PAYMENT }
+            if (canStart(task.priority, paymentWaiting)) {
+                running[task.priority] = (running[task.priority] ?: 0) + 1
+                totalRunning++
+                ready.add(task)
+            } else {
+                skipped.add(task)
+            }
+        }
+        queue.addAll(skipped)
+    }
+
+    private fun canStart(priority: RequestPriority, paymentWaiting: Boolean): Boolean {
+        if ((running[priority] ?: 0) >= priority.maxConcurrent) return false
+        if (priority == RequestPriority.PAYMENT) return totalRunning < maxConcurrent
+        if (totalRunning >= maxConcurrent - PAYMENT_RESERVED_SLOTS) return false
+        if (priority == RequestPriority.PREFETCH) {
+            val paymentActive = paymentWaiting || (running[RequestPriority.PAYMENT] ?: 0) > 0
+            if (paymentActive) return false
+        }
+        return true
+    }
+
+    private fun evictExcessPrefetch(dropped: MutableList<Task>) {
+        val prefetch = queue.filter { it.priority == RequestPriority.PREFETCH }
+        if (prefetch.size <= MAX_QUEUED_PREFETCH) return
+        prefetch.sortedBy { it.sequence }
+            .take(prefetch.size - MAX_QUEUED_PREFETCH)
+            .forEach {
+                queue.remove(it)
+                dropped.add(it)
+            }
+    }
+}
@@ -0,0 +1,241 @@
+package tech.healthpay.keyboard.api
+
+import android.util.Log
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import org.json.JSONObject
+import tech.healthpay.keyboard.security.TokenManager
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Wallet Subscription Client - GraphQL over WebSocket (graphql-transport-ws)
+ *
+ * Keeps a single `WalletUpdates` subscription open while started and pushes
+ * balance and transaction events to the [Listener]. Dropped connections are
+ * re-established with jittered exponential backoff until [stop] is called.
+ * The endpoint can be overridden for tests.
+ */
+class WalletSubscriptionClient(
+    private val tokenManager: TokenManager,
+    private val wsUrl: String = WS_URL
+) {
+
+    companion object {
+        private const val TAG = "WalletSubscription"
+        private const val WS_URL = "wss://sword.beta.healthpay.tech/graphql"
+        private const val SUBPROTOCOL = "graphql-transport-ws"
+        private const val SUBSCRIPTION_ID = "wallet"
+        private const val PING_INTERVAL = 25L
+        private const val BASE_BACKOFF_MS = 1_000L
+        private const val MAX_BACKOFF_MS = 30_000L
+        private const val CLOSE_NORMAL = 1000
+        private const val CLOSE_UNAUTHORIZED = 4401
+        private const val CLOSE_FORBIDDEN = 4403
+    }
+
+    interface Listener {
+        /** [transactionId] is the transaction the update was pushed for, if any; [balance] includes it */
+        fun onBalanceUpdated(balance: WalletBalance, transactionId: String?)
+        fun onTransaction(event: WalletEvent)
+    }
+
+    private val client: OkHttpClient = OkHttpClient.Builder()
+        .pingInterval(PING_INTERVAL, TimeUnit.SECONDS)
+        .build()
+
+    private val reconnectExecutor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+
+    private var listener: Listener? = null
+    private var webSocket: WebSocket? = null
+    private var reconnectTask: ScheduledFuture<*>? = null
+    private var reconnectAttempt = 0
+    private var started = false
+    private var acknowledged = false
+
+    /** True while the subscription is connected and acknowledged */
+    val isLive: Boolean
+        @Synchronized get() = started && acknowledged && webSocket != null
+
+    private val subscription = """
+        subscription WalletUpdates {
+            walletUpdated {
+                balance
+                currency
+                lastUpdated
+                transaction {
+                    id
+                    type
+                    amount
+                    counterpartyName
+                    counterpartyMobile
+                    createdAt
+                }
+            }
+        }
+    """.trimIndent()
+
+    @Synchronized
+    fun start(listener: Listener) {
+        this.listener = listener
+        if (started) return
+        started = true
+        reconnectAttempt = 0
+        connect()
+    }
+
+    @Synchronized
+    fun stop() {
+        started = false
+        acknowledged = false
+        listener = null
+        reconnectTask?.cancel(false)
+        reconnectTask = null
+        webSocket?.close(CLOSE_NORMAL, "Keyboard hidden")
+        webSocket = null
+        Log.d(TAG, "Subscription stopped")
+    }
+
+    @Synchronized
+    private fun connect() {
+        if (!started) return
+        val token = tokenManager.getAccessToken()
+        if (token.isNullOrEmpty()) {
+            Log.w(TAG, "No access token, not subscribing")
+            started = false
+            return
+        }
+
+        val request = Request.Builder()
+            .url(wsUrl)
+            .header("Sec-WebSocket-Protocol", SUBPROTOCOL)
+            .build()
+
+        Log.d(TAG, "Connecting (attempt ${reconnectAttempt + 1})")
+        webSocket = client.newWebSocket(request, SocketListener(token))
+    }
+
+    @Synchronized
+    private fun scheduleReconnect(socket: WebSocket) {
+        if (!started || socket !== webSocket) return
+        webSocket = null
+        acknowledged = false
+        val ceiling = (BASE_BACKOFF_MS shl reconnectAttempt.coerceAtMost(5)).coerceAtMost(MAX_BACKOFF_MS)
+        val delayMs = Random.nextLong(ceiling / 2, ceiling + 1)
+        reconnectAttempt++
+        Log.d(TAG, "Reconnecting in ${delayMs}ms")
+        reconnectTask = reconnectExecutor.schedule({ connect() }, delayMs, TimeUnit.MILLISECONDS)
+    }
+
+    @Synchronized
+    private fun stopIfCurrent(socket: WebSocket) {
+        if (socket === webSocket) stop()
+    }
+
+    @Synchronized
+    private fun onAcknowledged() {
+        reconnectAttempt = 0
+        acknowledged = true
+    }
+
+    @Synchronized
+    private fun currentListener(socket: WebSocket): Listener? =
+        if (socket === webSocket) listener else null
+
+    private fun dispatch(socket: WebSocket, payload: JSONObject) {
+        val listener = currentListener(socket) ?: return
+        val update = payload.optJSONObject("data")?.optJSONObject("walletUpdated") ?: return
+
+        if (update.has("balance")) {
+            listener.onBalanceUpdated(WalletBalance(
+                balance = Money.fromDouble(update.optDouble("balance", 0.0)),
+                currency = update.optString("currency", "EGP"),
+                lastUpdated = update.optString("lastUpdated", "")
+            ), update.optJSONObject("transaction")?.optString("id", "")?.takeIf { it.isNotEmpty() })
+        }
+
+        update.optJSONObject("transaction")?.let { tx ->
+            listener.onTransaction(WalletEvent(
+                transactionId = tx.optString("id", ""),
+                type = tx.optString("type", ""),
+                amount = Money.fromDouble(tx.optDouble("amount", 0.0)),
+                counterpartyName = tx.optString("counterpartyName", ""),
+                counterpartyMobile = tx.optString("counterpartyMobile", ""),
+                createdAt = tx.optString("createdAt", "")
+            ))
+        }
+    }
+
+    private inner class SocketListener(private val token: String) : WebSocketListener() {
+
+        override fun onOpen(webSocket: WebSocket, response: Response) {
+            webSocket.send(JSONObject().apply {
+                put("type", "connection_init")
+                put("payload", JSONObject().put("Authorization", "Bearer $token"))
+            }.toString())
+        }
+
+        override fun onMessage(webSocket: WebSocket, text: String) {
+            try {
+                val message = JSONObject(text)
+                when (message.optString("type")) {
+                    "connection_ack" -> {
+                        Log.d(TAG, "Connection acknowledged, subscribing")
+                        onAcknowledged()
+                        webSocket.send(JSONObject().apply {
+                            put("id", SUBSCRIPTION_ID)
+                            put("type", "subscribe")
+                            put("payload", JSONObject().apply {
+                                put("query", subscription)
+                                put("operationName", "WalletUpdates")
+                            })
+                        }.toString())
+                    }
+                    "ping" -> webSocket.send(JSONObject().put("type", "pong").toString())
+                    "next" -> message.optJSONObject("payload")?.let { dispatch(webSocket, it) }
+                    "error" -> Log.e(TAG, "Subscription error: ${message.opt("payload")}")
+                    "complete" -> {
+                        Log.w(TAG, "Server completed subscription")
+                        webSocket.close(CLOSE_NORMAL, "Resubscribe")
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to handle subscription message", e)
+            }
+        }
+
+        override fun onClosing(webSocket: WebSocket, code: Int, reason: String) {
+            webSocket.close(CLOSE_NORMAL, null)
+        }
+
+        override fun onClosed(webSocket: WebSocket, code: Int, reason: String) {
+            Log.d(TAG, "Socket closed: $code $reason")
+            if (code == CLOSE_UNAUTHORIZED || code == CLOSE_FORBIDDEN) {
+                Log.w(TAG, "Subscription rejected, waiting for a new session")
+                stopIfCurrent(webSocket)
+                return
+            }
+            scheduleReconnect(webSocket)
+        }
+
+        override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
+            Log.e(TAG, "Socket failure: ${t.message}")
+            scheduleReconnect(webSocket)
+        }
+    }
+}
+
+data class WalletEvent(
+    val transactionId: String,
+    val type: String,
+    val amount: Money,
+    val counterpartyName: String,
+    val counterpartyMobile: String,
+    val createdAt: String
+)
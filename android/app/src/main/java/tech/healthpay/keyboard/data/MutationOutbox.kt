@@ -0,0 +1,444 @@
+package tech.healthpay.keyboard.data
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.net.ConnectivityManager
+import android.net.Network
+import android.util.Log
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import org.json.JSONArray
+import org.json.JSONObject
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.ApiErrorCode
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.PaymentLink
+import tech.healthpay.keyboard.api.PreparedTransfer
+import tech.healthpay.keyboard.api.TransferResponse
+import java.util.Random
+import java.util.UUID
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Mutation Outbox - Durable queue for transfers and payment requests
+ *
+ * Every mutation is written to the outbox (encrypted preferences, with a
+ * synchronous commit) before it is sent, under the idempotency key it keeps
+ * for life. If the network fails, the entry stays queued and is retried
+ * with exponential backoff, and at once when connectivity returns. If the
+ * process dies at any point, [start] replays what is left. The server
+ * de-duplicates by key, so a replay of a mutation it already applied is
+ * harmless.
+ *
+ * An entry leaves the outbox when the server answers, when the failure is
+ * not a connectivity one, or after [MAX_AGE_MS]. An expired transfer may
+ * still have been applied on an attempt whose answer was lost, so it is
+ * first looked up by key: if found it resolves as sent, and if the lookup
+ * itself fails it stays queued until the server can say. Callers see
+ * entries in [pending] ([Entry.isQueued] once a send has failed); a live
+ * caller is told through [Callback.onQueued] and still gets the final
+ * outcome, and [Listener]s hear about every outcome, including replays
+ * after a restart.
+ *
+ * A transfer submitted again under a key already in the outbox (a retry
+ * while the first attempt is unanswered) is not queued twice: the new
+ * caller is attached to the existing entry and gets the same outcome.
+ *
+ * Retries run on [executor] and are timed by [clock].
+ */
+class MutationOutbox(
+    context: Context,
+    private val prefs: SharedPreferences,
+    private val apiClient: HealthPayApiClient,
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(),
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    companion object {
+        private const val TAG = "MutationOutbox"
+        private const val KEY_OUTBOX = "mutation_outbox"
+        private const val BASE_BACKOFF_MS = 2_000L
+        private const val MAX_BACKOFF_MS = 5 * 60 * 1000L // 5 minutes
+        private const val MAX_AGE_MS = 60 * 60 * 1000L // 1 hour
+
+        // Failures that say nothing about the mutation itself
+        private val RETRYABLE_ERRORS = setOf(
+            ApiErrorCode.NO_INTERNET, ApiErrorCode.TIMEOUT, ApiErrorCode.NETWORK_ERROR,
+            ApiErrorCode.SERVER_UNREACHABLE, ApiErrorCode.SERVER_ERROR, ApiErrorCode.RATE_LIMITED
+        )
+    }
+
+    enum class Kind { TRANSFER, PAYMENT_REQUEST }
+
+    data class Entry(
+        val idempotencyKey: String,
+        val kind: Kind,
+        val recipientMobile: String?,
+        val amount: Money?,
+        val note: String?,
+        val createdAt: Long,
+        val attempts: Int = 0,
+        val nextAttemptAt: Long = 0L
+    ) {
+        /** True once a send has failed; until then the entry is simply in flight */
+        val isQueued: Boolean get() = attempts > 0
+    }
+
+    interface Callback<T> : ApiCallback<T> {
+        /** Delivery failed for now; the entry stays queued and the outcome follows later */
+        fun onQueued(entry: Entry, error: ApiError) {}
+    }
+
+    fun interface Listener {
+        /** Exactly one of [transfer], [link] and [error] is non-null */
+        fun onResolved(entry: Entry, transfer: TransferResponse?, link: PaymentLink?, error: ApiError?)
+    }
+
+    private val appContext = context.applicationContext
+    private val random = Random()
+
+    // Guarded by this outbox
+    private val entries = LinkedHashMap<String, Entry>()
+    private val callbacks = HashMap<String, MutableList<Callback<*>>>()
+    private val queuedErrors = HashMap<String, ApiError>()
+    private val prepared = HashMap<String, PreparedTransfer>()
+    private val sending = HashSet<String>()
+    private val listeners = mutableListOf<Listener>()
+    private var scheduled: ScheduledFuture<*>? = null
+    private var started = false
+    private var closed = false
+    private var connectivity: ConnectivityManager? = null
+
+    private val _pending = MutableStateFlow<List<Entry>>(emptyList())
+    val pending: StateFlow<List<Entry>> = _pending.asStateFlow()
+
+    private val networkCallback = object : ConnectivityManager.NetworkCallback() {
+        override fun onAvailable(network: Network) {
+            Log.d(TAG, "Connectivity returned, retrying queued mutations")
+            retryNow()
+        }
+    }
+
+    init {
+        entries.putAll(load())
+        _pending.value = entries.values.toList()
+    }
+
+    /** Watches connectivity and replays whatever a previous process left behind */
+    fun start() {
+        synchronized(this) {
+            if (started || closed) return
+            started = true
+        }
+        try {
+            val manager = appContext.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+            manager.registerDefaultNetworkCallback(networkCallback)
+            synchronized(this) { connectivity = manager }
+        } catch (e: Exception) {
+            // Backoff alone still drains the outbox
+            Log.e(TAG, "Failed to watch connectivity", e)
+        }
+        val queued = synchronized(this) { entries.size }
+        if (queued > 0) Log.d(TAG, "Replaying $queued queued mutation(s)")
+        retryNow()
+    }
+
+    @Synchronized
+    fun addListener(listener: Listener) {
+        listeners.add(listener)
+    }
+
+    /** Queues [transfer] durably, then sends it */
+    fun submitTransfer(transfer: PreparedTransfer, callback: Callback<TransferResponse>) {
+        val entry = Entry(
+            idempotencyKey = transfer.idempotencyKey,
+            kind = Kind.TRANSFER,
+            recipientMobile = transfer.recipientMobile,
+            amount = transfer.amount,
+            note = transfer.note,
+            createdAt = clock()
+        )
+        val queued = synchronized(this) {
+            prepared[entry.idempotencyKey] = transfer
+            enqueueLocked(entry, callback)
+        }
+        attached(queued, callback)
+    }
+
+    /** Queues a payment request durably, then sends it */
+    fun submitPaymentRequest(amount: Money?, note: String?, callback: Callback<PaymentLink>) {
+        val entry = Entry(
+            idempotencyKey = UUID.randomUUID().toString(),
+            kind = Kind.PAYMENT_REQUEST,
+            recipientMobile = null,
+            amount = amount,
+            note = note,
+            createdAt = clock()
+        )
+        val queued = synchronized(this) { enqueueLocked(entry, callback) }
+        attached(queued, callback)
+    }
+
+    /** Adds [entry], or attaches [callback] to the entry already under its key; returns the entry */
+    private fun enqueueLocked(entry: Entry, callback: Callback<*>): Entry {
+        val key = entry.idempotencyKey
+        callbacks.getOrPut(key) { ArrayList() }.add(callback)
+        entries[key]?.let {
+            Log.d(TAG, "${it.kind} already in the outbox, attaching caller")
+            return it
+        }
+        // Write-ahead: on disk before the first byte leaves the device
+        entries[key] = entry
+        persistLocked()
+        return entry
+    }
+
+    /** Sends [entry] unless it is already in flight; a caller joining a queued entry is told at once */
+    private fun attached(entry: Entry, callback: Callback<*>) {
+        val queuedBy = synchronized(this) { queuedErrors[entry.idempotencyKey] }
+        if (queuedBy != null) callback.onQueued(entry, queuedBy)
+        send(entry)
+    }
+
+    private fun send(entry: Entry) {
+        synchronized(this) {
+            if (!entries.containsKey(entry.idempotencyKey) || !sending.add(entry.idempotencyKey)) return
+        }
+        Log.d(TAG, "Sending ${entry.kind} (attempt ${entry.attempts + 1})")
+
+        when (entry.kind) {
+            Kind.TRANSFER -> {
+                val transfer = synchronized(this) { prepared[entry.idempotencyKey] }
+                    ?: apiClient.prepareTransfer(entry.recipientMobile.orEmpty(), entry.amount ?: Money.ZERO, entry.note, entry.idempotencyKey)
+                apiClient.submitTransfer(transfer, object : ApiCallback<TransferResponse> {
+                    override fun onSuccess(response: TransferResponse) {
+                        resolve(entry.idempotencyKey, response, null, null)
+                    }
+
+                    override fun onError(error: ApiError) {
+                        onSendFailed(entry.idempotencyKey, error)
+                    }
+                })
+            }
+            Kind.PAYMENT_REQUEST -> {
+                apiClient.createPaymentRequest(entry.amount, entry.note, object : ApiCallback<PaymentLink> {
+                    override fun onSuccess(response: PaymentLink) {
+                        resolve(entry.idempotencyKey, null, response, null)
+                    }
+
+                    override fun onError(error: ApiError) {
+                        onSendFailed(entry.idempotencyKey, error)
+                    }
+                }, idempotencyKey = entry.idempotencyKey)
+            }
+        }
+    }
+
+    private fun onSendFailed(key: String, error: ApiError) {
+        val retryable = error.code in RETRYABLE_ERRORS
+        val (entry, queued, toTell) = synchronized(this) {
+            sending.remove(key)
+            val entry = entries[key] ?: return
+            if (!retryable || isExpired(entry, clock())) {
+                Triple(entry, null, emptyList())
+            } else {
+                val attempts = entry.attempts + 1
+                val next = entry.copy(attempts = attempts, nextAttemptAt = clock() + backoffMs(attempts))
+                entries[key] = next
+                persistLocked()
+                scheduleLocked()
+                // Only the first failure is news to the callers
+                val first = queuedErrors.putIfAbsent(key, error) == null
+                Triple(entry, next, if (first) callbacks[key].orEmpty().toList() else emptyList())
+            }
+        }
+        when {
+            !retryable -> resolve(key, null, null, error)
+            queued == null -> expire(entry)
+            else -> {
+                Log.d(TAG, "${queued.kind} queued after ${error.code}, retry ${queued.attempts}")
+                toTell.forEach { it.onQueued(queued, error) }
+            }
+        }
+    }
+
+    /** Gives up on an entry past [MAX_AGE_MS]; a transfer is looked up first */
+    private fun expire(entry: Entry) {
+        val key = entry.idempotencyKey
+        if (entry.kind != Kind.TRANSFER) {
+            Log.w(TAG, "${entry.kind} expired after ${entry.attempts} attempt(s)")
+            resolve(key, null, null, expiredError())
+            return
+        }
+        synchronized(this) {
+            if (!entries.containsKey(key) || !sending.add(key)) return
+        }
+        Log.d(TAG, "Transfer expired after ${entry.attempts} attempt(s), looking it up")
+        apiClient.findTransfer(key) { found, error ->
+            when {
+                found != null -> resolve(key, found, null, null)
+                error != null -> onLookupFailed(key, error)
+                else -> {
+                    Log.w(TAG, "Expired transfer was never applied")
+                    resolve(key, null, null, expiredError())
+                }
+            }
+        }
+    }
+
+    /** The server could not say whether an expired transfer was applied; ask again later */
+    private fun onLookupFailed(key: String, error: ApiError) {
+        synchronized(this) {
+            sending.remove(key)
+            val entry = entries[key] ?: return
+            val attempts = entry.attempts + 1
+            entries[key] = entry.copy(attempts = attempts, nextAttemptAt = clock() + backoffMs(attempts))
+            persistLocked()
+            scheduleLocked()
+        }
+        Log.d(TAG, "Expired transfer still unresolved after ${error.code}, asking again later")
+    }
+
+    private fun expiredError() = ApiError(ApiErrorCode.TIMEOUT, "Could not be sent in time")
+
+    @Suppress("UNCHECKED_CAST")
+    private fun resolve(key: String, transfer: TransferResponse?, link: PaymentLink?, error: ApiError?) {
+        val (entry, waiting, toNotify) = synchronized(this) {
+            sending.remove(key)
+            val entry = entries.remove(key) ?: return
+            prepared.remove(key)
+            queuedErrors.remove(key)
+            persistLocked()
+            Triple(entry, callbacks.remove(key).orEmpty(), listeners.toList())
+        }
+        for (callback in waiting) {
+            when {
+                transfer != null -> (callback as? Callback<TransferResponse>)?.onSuccess(transfer)
+                link != null -> (callback as? Callback<PaymentLink>)?.onSuccess(link)
+                error != null -> callback.onError(error)
+            }
+        }
+        toNotify.forEach { it.onResolved(entry, transfer, link, error) }
+    }
+
+    /** Makes every queued entry due and drains the outbox */
+    fun retryNow() {
+        synchronized(this) {
+            if (closed) return
+            entries.replaceAll { _, entry -> entry.copy(nextAttemptAt = 0L) }
+        }
+        executor.execute { drain() }
+    }
+
+    private fun drain() {
+        val now = clock()
+        val (due, expired) = synchronized(this) {
+            scheduled = null
+            val waiting = entries.values.filter { it.idempotencyKey !in sending }
+            val (expired, due) = waiting.filter { it.nextAttemptAt <= now }.partition { isExpired(it, now) }
+            scheduleLocked()
+            due to expired
+        }
+        expired.forEach { expire(it) }
+        due.forEach { send(it) }
+    }
+
+    private fun scheduleLocked() {
+        scheduled?.cancel(false)
+        if (closed) return
+        val next = entries.values
+            .filter { it.idempotencyKey !in sending }
+            .minOfOrNull { it.nextAttemptAt } ?: return
+        val delay = (next - clock()).coerceAtLeast(0L)
+        scheduled = executor.schedule({ drain() }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    private fun backoffMs(attempts: Int): Long {
+        val exponential = BASE_BACKOFF_MS shl (attempts - 1).coerceAtMost(16)
+        val capped = exponential.coerceAtMost(MAX_BACKOFF_MS)
+        // ±20% jitter so queued devices do not retry in lockstep
+        return capped * (80 + random.nextInt(41)) / 100
+    }
+
+    private fun isExpired(entry: Entry, now: Long) = now - entry.createdAt > MAX_AGE_MS
+
+    @Synchronized
+    fun clear() {
+        scheduled?.cancel(false)
+        scheduled = null
+        entries.clear()
+        callbacks.clear()
+        queuedErrors.clear()
+        prepared.clear()
+        sending.clear()
+        persistLocked()
+    }
+
+    /**
+     * Stops retrying and watching connectivity. Queued entries stay on disk
+     * for the next outbox; answers still in flight resolve as usual.
+     */
+    fun close() {
+        val manager = synchronized(this) {
+            if (closed) return
+            closed = true
+            scheduled?.cancel(false)
+            scheduled = null
+            connectivity.also { connectivity = null }
+        }
+        try {
+            manager?.unregisterNetworkCallback(networkCallback)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to stop watching connectivity", e)
+        }
+        executor.shutdownNow()
+    }
+
+    private fun load(): Map<String, Entry> {
+        val result = LinkedHashMap<String, Entry>()
+        val raw = prefs.getString(KEY_OUTBOX, null) ?: return result
+        try {
+            val array = JSONArray(raw)
+            for (i in 0 until array.length()) {
+                val json = array.getJSONObject(i)
+                val entry = Entry(
+                    idempotencyKey = json.getString("key"),
+                    kind = Kind.valueOf(json.getString("kind")),
+                    recipientMobile = if (json.isNull("recipient")) null else json.optString("recipient"),
+                    amount = if (json.isNull("amountMinor")) null else Money(json.getLong("amountMinor")),
+                    note = if (json.isNull("note")) null else json.optString("note"),
+                    createdAt = json.getLong("createdAt"),
+                    attempts = json.optInt("attempts", 0)
+                )
+                result[entry.idempotencyKey] = entry
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to load outbox", e)
+        }
+        return result
+    }
+
+    private fun persistLocked() {
+        val array = JSONArray()
+        entries.values.forEach { entry ->
+            array.put(JSONObject().apply {
+                put("key", entry.idempotencyKey)
+                put("kind", entry.kind.name)
+                put("recipient", entry.recipientMobile ?: JSONObject.NULL)
+                put("amountMinor", entry.amount?.minorUnits ?: JSONObject.NULL)
+                put("note", entry.note ?: JSONObject.NULL)
+                put("createdAt", entry.createdAt)
+                put("attempts", entry.attempts)
+            })
+        }
+        // commit() so the entry is on disk before the mutation leaves the device
+        prefs.edit().putString(KEY_OUTBOX, array.toString()).commit()
+        _pending.value = entries.values.toList()
+    }
+}
@@ -0,0 +1,317 @@
+package tech.healthpay.keyboard.data
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import org.json.JSONObject
+import java.util.concurrent.Executors
+
+enum class NotificationType {
+    PAYMENT_RECEIVED,
+    PAYMENT_SENT,
+    PAYMENT_REQUEST,
+    PAYMENT_FAILED,
+    PROMO,
+    SYSTEM
+}
+
+data class WalletNotification(
+    val id: String,
+    val type: NotificationType,
+    val title: String,
+    val message: String,
+    val data: Map<String, String> = emptyMap(),
+    val read: Boolean = false,
+    val createdAt: Long = System.currentTimeMillis()
+)
+
+/**
+ * Notification Store - Local notification inbox with a maintained unread count
+ *
+ * The unread count is stored in a one-row counter table that is adjusted in
+ * the same transaction as every insert, mark-read and compaction, and is
+ * mirrored in [unreadCount], so showing a badge never counts rows.
+ *
+ * [markRead] calls are collected and written in one transaction after
+ * [MARK_READ_BATCH_DELAY_MS]. [compact] drops read notifications past
+ * [READ_RETENTION_MS], anything past [UNREAD_RETENTION_MS], and the oldest
+ * rows beyond [MAX_NOTIFICATIONS]. All writes run on one background thread.
+ */
+class NotificationStore(context: Context) :
+    SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+
+    companion object {
+        private const val TAG = "NotificationStore"
+        private const val DATABASE_NAME = "healthpay_notifications.db"
+        private const val DATABASE_VERSION = 1
+
+        private const val TABLE_NOTIFICATIONS = "notifications"
+        private const val TABLE_COUNTERS = "counters"
+        private const val COUNTER_UNREAD = "unread"
+
+        private const val COL_ID = "id"
+        private const val COL_TYPE = "type"
+        private const val COL_TITLE = "title"
+        private const val COL_MESSAGE = "message"
+        private const val COL_DATA = "data"
+        private const val COL_READ = "is_read"
+        private const val COL_CREATED_AT = "created_at"
+
+        private const val MARK_READ_BATCH_DELAY_MS = 500L
+        private const val READ_RETENTION_MS = 30L * 24 * 60 * 60 * 1000 // 30 days
+        private const val UNREAD_RETENTION_MS = 90L * 24 * 60 * 60 * 1000 // 90 days
+        private const val MAX_NOTIFICATIONS = 500
+    }
+
+    private val executor = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    private val _unreadCount = MutableStateFlow(0)
+    val unreadCount: StateFlow<Int> = _unreadCount.asStateFlow()
+
+    // Guarded by pendingReads
+    private val pendingReads = LinkedHashSet<String>()
+    private val flushRunnable = Runnable { executor.execute { flushReads() } }
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("""
+            CREATE TABLE $TABLE_NOTIFICATIONS (
+                $COL_ID TEXT PRIMARY KEY NOT NULL,
+                $COL_TYPE TEXT NOT NULL,
+                $COL_TITLE TEXT NOT NULL,
+                $COL_MESSAGE TEXT NOT NULL,
+                $COL_DATA TEXT NOT NULL,
+                $COL_READ INTEGER NOT NULL DEFAULT 0,
+                $COL_CREATED_AT INTEGER NOT NULL
+            )
+        """.trimIndent())
+        db.execSQL("CREATE INDEX idx_notifications_created ON $TABLE_NOTIFICATIONS ($COL_CREATED_AT DESC)")
+        db.execSQL("CREATE TABLE $TABLE_COUNTERS (name TEXT PRIMARY KEY NOT NULL, value INTEGER NOT NULL)")
+        db.execSQL("INSERT INTO $TABLE_COUNTERS (name, value) VALUES ('$COUNTER_UNREAD', 0)")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        db.execSQL("DROP TABLE IF EXISTS $TABLE_NOTIFICATIONS")
+        db.execSQL("DROP TABLE IF EXISTS $TABLE_COUNTERS")
+        onCreate(db)
+    }
+
+    /** Loads the stored unread count and compacts old notifications */
+    fun load() {
+        executor.execute {
+            try {
+                compactNow()
+                _unreadCount.value = readUnreadCounter(readableDatabase)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to load notifications", e)
+            }
+        }
+    }
+
+    // =====================
+    // Writes
+    // =====================
+
+    /** Stores [notification] unless one with the same id already exists */
+    fun insert(notification: WalletNotification) {
+        executor.execute {
+            val db = writableDatabase
+            db.beginTransaction()
+            try {
+                val rowId = db.insertWithOnConflict(
+                    TABLE_NOTIFICATIONS,
+                    null,
+                    toContentValues(notification),
+                    SQLiteDatabase.CONFLICT_IGNORE
+                )
+                if (rowId != -1L && !notification.read) adjustUnread(db, 1)
+                db.setTransactionSuccessful()
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to store notification", e)
+            } finally {
+                db.endTransaction()
+            }
+            publishUnread()
+        }
+    }
+
+    /** Queues [id] to be marked read with other marks made shortly after it */
+    fun markRead(id: String) {
+        synchronized(pendingReads) {
+            if (!pendingReads.add(id) || pendingReads.size > 1) return
+        }
+        mainHandler.postDelayed(flushRunnable, MARK_READ_BATCH_DELAY_MS)
+    }
+
+    fun markAllRead() {
+        executor.execute {
+            val db = writableDatabase
+            db.beginTransaction()
+            try {
+                db.update(TABLE_NOTIFICATIONS, ContentValues().apply { put(COL_READ, 1) }, "$COL_READ = 0", null)
+                setUnread(db, 0)
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+            publishUnread()
+        }
+    }
+
+    fun compact() {
+        executor.execute {
+            try {
+                compactNow()
+            } catch (e: Exception) {
+                Log.e(TAG, "Compaction failed", e)
+            }
+        }
+    }
+
+    fun clear() {
+        synchronized(pendingReads) { pendingReads.clear() }
+        mainHandler.removeCallbacks(flushRunnable)
+        executor.execute {
+            val db = writableDatabase
+            db.beginTransaction()
+            try {
+                db.delete(TABLE_NOTIFICATIONS, null, null)
+                setUnread(db, 0)
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+            publishUnread()
+        }
+    }
+
+    private fun flushReads() {
+        val ids = synchronized(pendingReads) {
+            pendingReads.toList().also { pendingReads.clear() }
+        }
+        if (ids.isEmpty()) return
+
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            var changed = 0
+            val values = ContentValues().apply { put(COL_READ, 1) }
+            ids.chunked(500).forEach { chunk ->
+                val placeholders = chunk.joinToString(",") { "?" }
+                changed += db.update(
+                    TABLE_NOTIFICATIONS,
+                    values,
+                    "$COL_READ = 0 AND $COL_ID IN ($placeholders)",
+                    chunk.toTypedArray()
+                )
+            }
+            adjustUnread(db, -changed)
+            db.setTransactionSuccessful()
+            Log.d(TAG, "Marked $changed notifications read")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to mark notifications read", e)
+        } finally {
+            db.endTransaction()
+        }
+        publishUnread()
+    }
+
+    private fun compactNow() {
+        val now = System.currentTimeMillis()
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            db.delete(
+                TABLE_NOTIFICATIONS,
+                "($COL_READ = 1 AND $COL_CREATED_AT < ?) OR $COL_CREATED_AT < ?",
+                arrayOf((now - READ_RETENTION_MS).toString(), (now - UNREAD_RETENTION_MS).toString())
+            )
+            db.execSQL(
+                """
+                    DELETE FROM $TABLE_NOTIFICATIONS WHERE $COL_ID NOT IN (
+                        SELECT $COL_ID FROM $TABLE_NOTIFICATIONS ORDER BY $COL_CREATED_AT DESC LIMIT $MAX_NOTIFICATIONS
+                    )
+                """.trimIndent()
+            )
+            // Compaction is rare, so recount here rather than tracking each deleted row
+            db.rawQuery("SELECT COUNT(*) FROM $TABLE_NOTIFICATIONS WHERE $COL_READ = 0", null).use { cursor ->
+                setUnread(db, if (cursor.moveToFirst()) cursor.getInt(0) else 0)
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        publishUnread()
+    }
+
+    private fun adjustUnread(db: SQLiteDatabase, delta: Int) {
+        if (delta == 0) return
+        db.execSQL(
+            "UPDATE $TABLE_COUNTERS SET value = MAX(0, value + ?) WHERE name = ?",
+            arrayOf<Any>(delta, COUNTER_UNREAD)
+        )
+    }
+
+    private fun setUnread(db: SQLiteDatabase, value: Int) {
+        db.execSQL("UPDATE $TABLE_COUNTERS SET value = ? WHERE name = ?", arrayOf<Any>(value, COUNTER_UNREAD))
+    }
+
+    private fun readUnreadCounter(db: SQLiteDatabase): Int {
+        db.rawQuery("SELECT value FROM $TABLE_COUNTERS WHERE name = ?", arrayOf(COUNTER_UNREAD)).use { cursor ->
+            return if (cursor.moveToFirst()) cursor.getInt(0) else 0
+        }
+    }
+
+    private fun publishUnread() {
+        _unreadCount.value = readUnreadCounter(readableDatabase)
+    }
+
+    // =====================
+    // Reads
+    // =====================
+
+    /** Newest notifications first; call off the main thread */
+    fun getRecent(limit: Int): List<WalletNotification> {
+        readableDatabase.rawQuery(
+            "SELECT * FROM $TABLE_NOTIFICATIONS ORDER BY $COL_CREATED_AT DESC LIMIT ?",
+            arrayOf(limit.toString())
+        ).use { cursor ->
+            val result = ArrayList<WalletNotification>(cursor.count)
+            while (cursor.moveToNext()) result.add(fromCursor(cursor))
+            return result
+        }
+    }
+
+    private fun toContentValues(notification: WalletNotification) = ContentValues().apply {
+        put(COL_ID, notification.id)
+        put(COL_TYPE, notification.type.name)
+        put(COL_TITLE, notification.title)
+        put(COL_MESSAGE, notification.message)
+        put(COL_DATA, JSONObject(notification.data).toString())
+        put(COL_READ, if (notification.read) 1 else 0)
+        put(COL_CREATED_AT, notification.createdAt)
+    }
+
+    private fun fromCursor(cursor: Cursor): WalletNotification {
+        val data = JSONObject(cursor.getString(cursor.getColumnIndexOrThrow(COL_DATA)))
+        return WalletNotification(
+            id = cursor.getString(cursor.getColumnIndexOrThrow(COL_ID)),
+            type = runCatching {
+                NotificationType.valueOf(cursor.getString(cursor.getColumnIndexOrThrow(COL_TYPE)))
+            }.getOrDefault(NotificationType.SYSTEM),
+            title = cursor.getString(cursor.getColumnIndexOrThrow(COL_TITLE)),
+            message = cursor.getString(cursor.getColumnIndexOrThrow(COL_MESSAGE)),
+            data = data.keys().asSequence().associateWith { data.optString(it) },
+            read = cursor.getInt(cursor.getColumnIndexOrThrow(COL_READ)) == 1,
+            createdAt = cursor.getLong(cursor.getColumnIndexOrThrow(COL_CREATED_AT))
+        )
+    }
+}
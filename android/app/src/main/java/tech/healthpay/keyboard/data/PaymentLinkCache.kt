@@ -0,0 +1,245 @@
+package tech.healthpay.keyboard.data
+
+import android.os.SystemClock
+import android.util.Log
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.PaymentLink
+
+/**
+ * Payment Link Cache - Payment request links that are ready before the tap
+ *
+ * A link for a given amount and note is reused while it still has at least
+ * [MIN_REMAINING_MS] of validity, so asking for the same request twice
+ * costs nothing. Open-amount links (no amount, no note) are single-use:
+ * [prefill] mints a small pool of them in the background, each [obtain]
+ * takes one, and the pool refills behind it. The common "request payment"
+ * tap therefore inserts a link without waiting on the network.
+ *
+ * Only a pool that is being used is kept full. Once links expire unused,
+ * [prefill] keeps a single spare, minted at most once per
+ * [IDLE_MINT_INTERVAL_MS], so opening the keyboard often without
+ * requesting payments does not keep creating requests on the server.
+ *
+ * Validity always comes from the server's expiresAt. A link whose expiry
+ * cannot be read is handed out but never cached. Links for an amount or
+ * note are requested through the [MutationOutbox]; if the network drops,
+ * the caller gets the error but the link is still created and cached once
+ * the outbox delivers it.
+ */
+class PaymentLinkCache(
+    private val apiClient: HealthPayApiClient,
+    private val outbox: MutationOutbox,
+    private val poolSize: Int = DEFAULT_POOL_SIZE
+) {
+
+    companion object {
+        private const val TAG = "PaymentLinkCache"
+        const val DEFAULT_POOL_SIZE = 3
+        private const val MIN_REMAINING_MS = 10 * 60 * 1000L // 10 minutes
+        private const val MAX_REUSABLE = 16
+        private const val IDLE_MINT_INTERVAL_MS = 30 * 60 * 1000L // 30 minutes
+    }
+
+    data class Stats(
+        val hits: Long,
+        val misses: Long,
+        val averageHitMs: Double,
+        val averageMissMs: Double
+    )
+
+    private class Cached(val link: PaymentLink, val expiresAt: Long)
+
+    private val lock = Any()
+    private val pool = ArrayDeque<Cached>()
+    private val reusable = object : LinkedHashMap<String, Cached>(MAX_REUSABLE, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Cached>) = size > MAX_REUSABLE
+    }
+    private var minting = 0
+    private var generation = 0
+    private var takenSinceMint = false
+    private var lastIdleMintAt = -IDLE_MINT_INTERVAL_MS
+
+    private var hits = 0L
+    private var misses = 0L
+    private var hitMs = 0L
+    private var missMs = 0L
+
+    init {
+        // Also catches links replayed by the outbox after a restart
+        outbox.addListener { _, _, link, _ ->
+            if (link == null) return@addListener
+            synchronized(lock) {
+                cacheable(link)?.let { reusable[key(link.amount, link.note)] = it }
+            }
+        }
+    }
+
+    /**
+     * Delivers a link for [amount] and [note] (both null for open-amount),
+     * from the cache when one is still valid. A miss is fetched at
+     * foreground priority.
+     */
+    fun obtain(amount: Money?, note: String?, callback: ApiCallback<PaymentLink>) {
+        val start = SystemClock.elapsedRealtime()
+        val open = isOpen(amount, note)
+        val cached = synchronized(lock) {
+            if (open) takeFromPoolLocked() else reusableLocked(amount, note)
+        }
+        if (open) prefill()
+
+        if (cached != null) {
+            record(start, hit = true)
+            callback.onSuccess(cached)
+            return
+        }
+
+        if (open) {
+            apiClient.createPaymentRequest(null, null, object : ApiCallback<PaymentLink> {
+                override fun onSuccess(response: PaymentLink) {
+                    record(start, hit = false)
+                    callback.onSuccess(response)
+                }
+
+                override fun onError(error: ApiError) {
+                    Log.e(TAG, "Payment link request failed: ${error.code}")
+                    callback.onError(error)
+                }
+            })
+            return
+        }
+
+        // A keyed link outlives a dropped connection: the outbox keeps the
+        // request and the listener caches the link on delivery, so a later
+        // tap is a hit
+        outbox.submitPaymentRequest(amount, note, object : MutationOutbox.Callback<PaymentLink> {
+            @Volatile
+            private var answered = false
+
+            override fun onSuccess(response: PaymentLink) {
+                if (answered) return
+                record(start, hit = false)
+                callback.onSuccess(response)
+            }
+
+            override fun onError(error: ApiError) {
+                Log.e(TAG, "Payment link request failed: ${error.code}")
+                if (!answered) callback.onError(error)
+            }
+
+            override fun onQueued(entry: MutationOutbox.Entry, error: ApiError) {
+                answered = true
+                callback.onError(error)
+            }
+        })
+    }
+
+    /**
+     * Tops the open-amount pool up in the background: to [poolSize] once a
+     * pooled link has been taken, otherwise to one spare at most every
+     * [IDLE_MINT_INTERVAL_MS]
+     */
+    fun prefill() {
+        val (needed, mintGeneration) = synchronized(lock) {
+            val now = System.currentTimeMillis()
+            pool.removeAll { !isUsable(it, now) }
+            var needed = ((if (takenSinceMint) poolSize else 1) - pool.size - minting).coerceAtLeast(0)
+            if (needed > 0 && !takenSinceMint) {
+                val elapsed = SystemClock.elapsedRealtime()
+                if (elapsed - lastIdleMintAt < IDLE_MINT_INTERVAL_MS) {
+                    needed = 0
+                } else {
+                    lastIdleMintAt = elapsed
+                }
+            }
+            if (needed > 0) takenSinceMint = false
+            minting += needed
+            needed to generation
+        }
+        repeat(needed) { mintOne(mintGeneration) }
+    }
+
+    private fun mintOne(mintGeneration: Int) {
+        apiClient.createPaymentRequest(null, null, object : ApiCallback<PaymentLink> {
+            override fun onSuccess(response: PaymentLink) {
+                synchronized(lock) {
+                    if (generation != mintGeneration) return
+                    minting--
+                    cacheable(response)?.let { pool.addLast(it) }
+                }
+            }
+
+            override fun onError(error: ApiError) {
+                Log.d(TAG, "Background link mint failed: ${error.code}")
+                synchronized(lock) {
+                    if (generation == mintGeneration) minting--
+                }
+            }
+        }, background = true)
+    }
+
+    private fun takeFromPoolLocked(): PaymentLink? {
+        takenSinceMint = true
+        val now = System.currentTimeMillis()
+        while (pool.isNotEmpty()) {
+            val candidate = pool.removeFirst()
+            if (isUsable(candidate, now)) return candidate.link
+        }
+        return null
+    }
+
+    private fun reusableLocked(amount: Money?, note: String?): PaymentLink? {
+        val key = key(amount, note)
+        val cached = reusable[key] ?: return null
+        if (isUsable(cached, System.currentTimeMillis())) return cached.link
+        reusable.remove(key)
+        return null
+    }
+
+    private fun cacheable(link: PaymentLink): Cached? {
+        val expiresAt = TransactionStore.parseCreatedAt(link.expiresAt)
+        return if (expiresAt > 0) Cached(link, expiresAt) else null
+    }
+
+    private fun isUsable(cached: Cached, now: Long) = cached.expiresAt - now >= MIN_REMAINING_MS
+
+    private fun isOpen(amount: Money?, note: String?) = amount == null && note.isNullOrEmpty()
+
+    private fun key(amount: Money?, note: String?) = "${amount?.minorUnits ?: -1}|${note.orEmpty()}"
+
+    private fun record(start: Long, hit: Boolean) {
+        val elapsed = SystemClock.elapsedRealtime() - start
+        synchronized(lock) {
+            if (hit) {
+                hits++
+                hitMs += elapsed
+            } else {
+                misses++
+                missMs += elapsed
+            }
+        }
+        Log.d(TAG, "Link ready in ${elapsed}ms (${if (hit) "cached" else "network"})")
+    }
+
+    fun stats(): Stats = synchronized(lock) {
+        Stats(
+            hits = hits,
+            misses = misses,
+            averageHitMs = if (hits == 0L) 0.0 else hitMs.toDouble() / hits,
+            averageMissMs = if (misses == 0L) 0.0 else missMs.toDouble() / misses
+        )
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            generation++
+            minting = 0
+            takenSinceMint = false
+            lastIdleMintAt = -IDLE_MINT_INTERVAL_MS
+            pool.clear()
+            reusable.clear()
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package tech.healthpay.keyboard.data
+
+import android.os.SystemClock
+import android.util.Log
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.PreparedTransfer
+import tech.healthpay.keyboard.api.TransferResponse
+import java.util.concurrent.Executors
+
+/**
+ * Payment Pipeline - Gets a transfer ready while the user authorizes it
+ *
+ * [start] runs these stages alongside the biometric prompt instead of after it:
+ *  - validation: recipient number, self-payment and the projected balance;
+ *  - connection warm-up, so the transfer does not pay for DNS, TCP and TLS;
+ *  - preparation: the Transfer request is built and its idempotency key
+ *    reserved.
+ * The caller reports the prompt's outcome through [Run.authorized] or
+ * [Run.cancel]. The prepared request is submitted as soon as both
+ * preparation and authorization are done, whichever finishes last.
+ *
+ * A validation failure is reported at once, so the caller can dismiss the
+ * prompt. If the network drops, the transfer waits in the [MutationOutbox]
+ * and a [PaymentResult.Queued] precedes the final result. Every result
+ * carries the [StageTimings] of its run.
+ */
+class PaymentPipeline(
+    private val apiClient: HealthPayApiClient,
+    private val walletRepository: WalletRepository
+) {
+
+    companion object {
+        private const val TAG = "PaymentPipeline"
+        const val NOT_RUN = -1L
+    }
+
+    enum class Rejection {
+        INVALID_RECIPIENT,
+        SELF_PAYMENT,
+        INVALID_AMOUNT,
+        INSUFFICIENT_BALANCE
+    }
+
+    /**
+     * Durations in milliseconds, [NOT_RUN] for a stage that did not run or
+     * finish. [authMs] is measured from the start of the run; [submitDelayMs]
+     * is how long a ready-to-go authorization still waited for preparation.
+     */
+    data class StageTimings(
+        val validateMs: Long,
+        val warmUpMs: Long,
+        val prepareMs: Long,
+        val authMs: Long,
+        val submitDelayMs: Long,
+        val networkMs: Long,
+        val totalMs: Long
+    )
+
+    sealed class PaymentResult {
+        abstract val timings: StageTimings
+
+        data class Sent(val response: TransferResponse, override val timings: StageTimings) : PaymentResult()
+        data class Failed(val error: ApiError, override val timings: StageTimings) : PaymentResult()
+        data class Rejected(val reason: Rejection, override val timings: StageTimings) : PaymentResult()
+
+        /** Not final: the transfer is queued and will be retried */
+        data class Queued(val error: ApiError, override val timings: StageTimings) : PaymentResult()
+    }
+
+    private val executor = Executors.newSingleThreadExecutor()
+
+    /**
+     * Starts preparing a payment of [amount] to [recipientMobile] (local
+     * format). [onResult] is called with the final result, on a background
+     * thread, unless the run is cancelled before it is submitted; a
+     * [PaymentResult.Queued] may come first.
+     */
+    fun start(
+        recipientMobile: String,
+        amount: Money,
+        note: String?,
+        selfMobile: String?,
+        onResult: (PaymentResult) -> Unit
+    ): Run = Run(recipientMobile, amount, note, selfMobile, onResult).also { it.begin() }
+
+    inner class Run internal constructor(
+        private val recipientMobile: String,
+        private val amount: Money,
+        private val note: String?,
+        private val selfMobile: String?,
+        private val onResult: (PaymentResult) -> Unit
+    ) {
+        private val startedAt = SystemClock.elapsedRealtime()
+
+        // Guarded by this run
+        private var prepared: PreparedTransfer? = null
+        private var validateMs = NOT_RUN
+        private var warmUpMs = NOT_RUN
+        private var prepareMs = NOT_RUN
+        private var authorizedAt = NOT_RUN
+        private var submittedAt = NOT_RUN
+        private var finished = false
+
+        internal fun begin() {
+            apiClient.warmConnection { warmed ->
+                if (warmed) synchronized(this) { warmUpMs = elapsed() }
+            }
+            executor.execute {
+                val rejection = validate()
+                val validatedAt = elapsed()
+                synchronized(this) { validateMs = validatedAt }
+                if (rejection != null) {
+                    finish { PaymentResult.Rejected(rejection, it) }
+                    return@execute
+                }
+
+                val transfer = apiClient.prepareTransfer(PhoneNumbers.toInternational(recipientMobile), amount, note)
+                synchronized(this) {
+                    prepared = transfer
+                    prepareMs = elapsed() - validatedAt
+                }
+                submitIfReady()
+            }
+        }
+
+        /** The user authorized the payment; submits now if preparation is done */
+        fun authorized() {
+            synchronized(this) {
+                if (finished || authorizedAt != NOT_RUN) return
+                authorizedAt = elapsed()
+            }
+            submitIfReady()
+        }
+
+        /** The user declined; drops the run unless it was already submitted */
+        fun cancel() {
+            synchronized(this) {
+                if (submittedAt != NOT_RUN) return
+                finished = true
+            }
+            Log.d(TAG, "Payment cancelled before submission")
+        }
+
+        private fun validate(): Rejection? {
+            if (!PhoneNumbers.isValidLocalMobile(recipientMobile)) return Rejection.INVALID_RECIPIENT
+            if (selfMobile != null && PhoneNumbers.toLocal(selfMobile) == recipientMobile) return Rejection.SELF_PAYMENT
+            if (!amount.isPositive) return Rejection.INVALID_AMOUNT
+            // Pending transfers are already projected; a warm-start snapshot is
+            // too old to reject on, so until the server answers it decides
+            val balance = walletRepository.confirmedBalance()
+            if (balance != null && balance.balance < amount) return Rejection.INSUFFICIENT_BALANCE
+            return null
+        }
+
+        private fun submitIfReady() {
+            val transfer = synchronized(this) {
+                if (finished || submittedAt != NOT_RUN || authorizedAt == NOT_RUN) return
+                val ready = prepared ?: return
+                submittedAt = elapsed()
+                ready
+            }
+            walletRepository.transfer(transfer, object : ApiCallback<TransferResponse> {
+                override fun onSuccess(response: TransferResponse) {
+                    finish { PaymentResult.Sent(response, it) }
+                }
+
+                override fun onError(error: ApiError) {
+                    finish { PaymentResult.Failed(error, it) }
+                }
+            }, queued = { error ->
+                val timings = synchronized(this) { timingsLocked() }
+                onResult(PaymentResult.Queued(error, timings))
+            })
+        }
+
+        private fun finish(result: (StageTimings) -> PaymentResult) {
+            val timings = synchronized(this) {
+                if (finished) return
+                finished = true
+                timingsLocked()
+            }
+            Log.d(TAG, "Payment stages: $timings")
+            onResult(result(timings))
+        }
+
+        private fun timingsLocked(): StageTimings {
+            val now = elapsed()
+            return StageTimings(
+                validateMs = validateMs,
+                warmUpMs = warmUpMs,
+                prepareMs = prepareMs,
+                authMs = authorizedAt,
+                submitDelayMs = if (submittedAt == NOT_RUN) NOT_RUN else submittedAt - authorizedAt,
+                networkMs = if (submittedAt == NOT_RUN) NOT_RUN else now - submittedAt,
+                totalMs = now
+            )
+        }
+
+        private fun elapsed() = SystemClock.elapsedRealtime() - startedAt
+    }
+}
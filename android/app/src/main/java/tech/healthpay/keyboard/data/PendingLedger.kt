@@ -0,0 +1,110 @@
+package tech.healthpay.keyboard.data
+
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.api.WalletBalance
+import java.util.Locale
+
+/**
+ * Pending Ledger - Outgoing transfers not yet reflected in the server balance
+ *
+ * A debit is added when a transfer is sent, so the projected balance drops
+ * at once, and is removed again on one of three outcomes:
+ *  - the transfer fails (rollback);
+ *  - a server balance arrives that was requested after the server accepted
+ *    the transfer, so it already includes the debit (settled);
+ *  - a balance is pushed for the transfer's own transaction (settled);
+ *  - the transaction shows up in history as failed or cancelled (rollback).
+ *
+ * "Requested after" is decided with a logical clock rather than wall time:
+ * a balance request that was already in flight when the transfer was
+ * accepted may predate it, and must not settle it. A pushed balance has no
+ * such stamp, so it only vouches for the transaction it was pushed for.
+ *
+ * Thread-safe; callers publish [project] after each change.
+ */
+class PendingLedger {
+
+    companion object {
+        private val FAILED_STATUSES = setOf("failed", "rejected", "cancelled", "canceled")
+    }
+
+    private class Entry(val amount: Money, val fee: Money) {
+        var transactionId: String? = null
+        var acceptedAt = Long.MAX_VALUE
+    }
+
+    private val entries = LinkedHashMap<Long, Entry>()
+    private var nextId = 1L
+    private var clock = 0L
+
+    /** Records a debit about to be sent; returns its ledger id */
+    @Synchronized
+    fun add(amount: Money, fee: Money): Long {
+        val id = nextId++
+        entries[id] = Entry(amount, fee)
+        return id
+    }
+
+    /** The server accepted the debit as [transactionId] */
+    @Synchronized
+    fun accept(id: Long, transactionId: String) {
+        val entry = entries[id] ?: return
+        entry.transactionId = transactionId
+        entry.acceptedAt = ++clock
+    }
+
+    /** Removes a debit the server did not apply */
+    @Synchronized
+    fun rollback(id: Long): Boolean = entries.remove(id) != null
+
+    /** Stamp for a balance request about to be issued; pass it to [onServerBalance] */
+    @Synchronized
+    fun balanceRequested(): Long = ++clock
+
+    /** Settles accepted debits that the balance requested at [requestedAt] includes */
+    @Synchronized
+    fun onServerBalance(requestedAt: Long) {
+        entries.values.removeAll { it.acceptedAt < requestedAt }
+    }
+
+    /** Settles the accepted debit a balance was pushed for, if it is one of ours */
+    @Synchronized
+    fun onPushedBalance(transactionId: String?) {
+        if (transactionId == null) return
+        entries.values.removeAll { it.transactionId == transactionId }
+    }
+
+    /** Rolls back accepted debits that history reports as failed; returns true if any were */
+    @Synchronized
+    fun onTransactions(transactions: List<Transaction>): Boolean {
+        if (entries.isEmpty()) return false
+        val failed = transactions
+            .filter { it.status.lowercase(Locale.US) in FAILED_STATUSES }
+            .mapTo(HashSet()) { it.id }
+        if (failed.isEmpty()) return false
+        return entries.values.removeAll { it.transactionId in failed }
+    }
+
+    @Synchronized
+    fun pendingCount(): Int = entries.size
+
+    @Synchronized
+    fun pendingTotal(): Money {
+        var total = Money.ZERO
+        for (entry in entries.values) total += entry.amount + entry.fee
+        return total
+    }
+
+    /** [server] less every pending debit */
+    @Synchronized
+    fun project(server: WalletBalance): WalletBalance {
+        if (entries.isEmpty()) return server
+        return server.copy(balance = server.balance - pendingTotal())
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+    }
+}
@@ -0,0 +1,41 @@
+package tech.healthpay.keyboard.data
+
+import tech.healthpay.keyboard.util.Digits
+
+/**
+ * Phone Numbers - Canonical form for Egyptian mobile numbers
+ *
+ * "+20 100 123 4567", "00201001234567", "201001234567" and "01001234567"
+ * (in ASCII or Arabic-Indic digits) all map to the local "01001234567", so
+ * one recipient has one key everywhere on the device.
+ */
+object PhoneNumbers {
+
+    private const val COUNTRY_CODE = "20"
+    private const val INTERNATIONAL_PREFIX = "00"
+
+    private val LOCAL_MOBILE = Regex("^01[0125][0-9]{8}$")
+
+    /**
+     * Local 0-prefixed form of [raw], or just its digits when it does not look
+     * like an Egyptian number. Returns an empty string when [raw] has no digits.
+     */
+    fun toLocal(raw: String): String {
+        val digits = StringBuilder(raw.length)
+        for (c in raw) {
+            val d = Digits.toAscii(c)
+            if (d in '0'..'9') digits.append(d)
+        }
+        var local = digits.toString()
+        if (local.startsWith(INTERNATIONAL_PREFIX + COUNTRY_CODE)) local = local.substring(2)
+        if (local.startsWith(COUNTRY_CODE) && local.length > 10) local = "0" + local.substring(2)
+        return local
+    }
+
+    /** True for a complete local mobile number, e.g. "01001234567" */
+    fun isValidLocalMobile(local: String): Boolean = LOCAL_MOBILE.matches(local)
+
+    /** "+20" international form of a local number, as the API expects */
+    fun toInternational(local: String): String =
+        if (local.startsWith("0")) "+$COUNTRY_CODE${local.substring(1)}" else local
+}
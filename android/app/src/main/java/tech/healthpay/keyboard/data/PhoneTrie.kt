@@ -0,0 +1,133 @@
+package tech.healthpay.keyboard.data
+
+import tech.healthpay.keyboard.util.Digits
+
+/**
+ * Phone Trie - Digit trie over local mobile numbers with ranked completions
+ *
+ * Every node keeps the best [completionsPerNode] recipients in its subtree,
+ * so completing a prefix is a walk of at most 11 nodes plus copying that
+ * node's list. Input in "+20", "0020", "20" or local form, with ASCII or
+ * Arabic-Indic digits, resolves to the same node. [complete] reuses a digit
+ * buffer and fills a caller-owned array, so it does not allocate per
+ * keystroke.
+ *
+ * Like [RecipientRanker], this relies on scores only ever rising: an updated
+ * recipient can only move up within, or into, each node's list along its path.
+ *
+ * Not thread-safe; [RecipientRanker] guards it with its own lock.
+ */
+class PhoneTrie(private val completionsPerNode: Int = DEFAULT_COMPLETIONS) {
+
+    companion object {
+        const val DEFAULT_COMPLETIONS = 5
+        private const val MAX_INPUT_DIGITS = 16
+        private const val RADIX = 10
+    }
+
+    private inner class Node {
+        var children: Array<Node?>? = null
+        val top = arrayOfNulls<RankedRecipient>(completionsPerNode)
+        val scores = DoubleArray(completionsPerNode)
+        var size = 0
+
+        fun child(digit: Int): Node {
+            val slots = children ?: arrayOfNulls<Node>(RADIX).also { children = it }
+            return slots[digit] ?: Node().also { slots[digit] = it }
+        }
+
+        fun offer(recipient: RankedRecipient, score: Double) {
+            var index = -1
+            for (i in 0 until size) {
+                if (top[i]!!.mobile == recipient.mobile) {
+                    index = i
+                    break
+                }
+            }
+            if (index < 0) {
+                if (size == completionsPerNode) {
+                    if (score <= scores[size - 1]) return
+                    index = size - 1
+                } else {
+                    index = size++
+                }
+            }
+            while (index > 0 && scores[index - 1] < score) {
+                top[index] = top[index - 1]
+                scores[index] = scores[index - 1]
+                index--
+            }
+            top[index] = recipient
+            scores[index] = score
+        }
+    }
+
+    private var root = Node()
+    private val inputDigits = CharArray(MAX_INPUT_DIGITS)
+
+    /** Records [recipient]'s new [score] on every node along its number */
+    fun update(recipient: RankedRecipient, score: Double) {
+        val mobile = recipient.mobile
+        var node = root
+        node.offer(recipient, score)
+        for (c in mobile) {
+            val digit = c - '0'
+            if (digit !in 0 until RADIX) return
+            node = node.child(digit)
+            node.offer(recipient, score)
+        }
+    }
+
+    /**
+     * Writes the best matches for the typed [input] into [out], best first,
+     * and returns how many were written (at most `out.size`).
+     */
+    fun complete(input: CharSequence, out: Array<RankedRecipient?>): Int {
+        var length = 0
+        for (c in input) {
+            val d = Digits.toAscii(c)
+            if (d !in '0'..'9') continue
+            if (length == MAX_INPUT_DIGITS) return 0
+            inputDigits[length++] = d
+        }
+
+        val node = resolve(length) ?: return 0
+        val count = minOf(node.size, out.size)
+        for (i in 0 until count) out[i] = node.top[i]
+        return count
+    }
+
+    fun clear() {
+        root = Node()
+    }
+
+    /** Walks the typed digits, treating a country-code prefix as the local leading 0 */
+    private fun resolve(length: Int): Node? {
+        val d = inputDigits
+        var start = 0
+        var leadingZero = false
+        when {
+            length == 0 -> return root
+            d[0] == '0' && length >= 2 && d[1] == '0' -> {
+                // "00" international prefix: nothing local to walk until "0020" is complete
+                if (length < 4) return if (length < 3 || d[2] == '2') root else null
+                if (d[2] != '2' || d[3] != '0') return null
+                start = 4
+                leadingZero = true
+            }
+            d[0] == '2' -> {
+                if (length == 1) return root
+                if (d[1] != '0') return null
+                start = 2
+                leadingZero = true
+            }
+        }
+
+        var node: Node = root
+        if (leadingZero) node = node.children?.get(0) ?: return null
+        for (i in start until length) {
+            node = node.children?.get(d[i] - '0') ?: return null
+        }
+        return node
+    }
+}
@@ -0,0 +1,211 @@
+package tech.healthpay.keyboard.data
+
+import android.util.Log
+import tech.healthpay.keyboard.api.Transaction
+import java.util.concurrent.Executors
+import kotlin.math.ln
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A payee ranked by [RecipientRanker]
+ */
+data class RankedRecipient(
+    val mobile: String,
+    val name: String,
+    val transactionCount: Int,
+    val lastTransactionAt: Long
+)
+
+/**
+ * Recipient Ranker - Frecency-ranked payees with an always-ready top list
+ *
+ * Each payment to or from a counterparty adds a weight that halves every
+ * [HALF_LIFE_MS], so frequent and recent recipients rank first. Scores are
+ * kept as log2 of the decayed sum relative to a fixed epoch: adding an event
+ * only ever raises one recipient's score and the decay factor is shared by
+ * everyone, so nothing is re-scored as time passes.
+ *
+ * Because scores only rise, a bounded top-[capacity] list can be maintained
+ * incrementally: an updated recipient either moves up inside it or displaces
+ * its last entry. [topRecipients] is a copy of that list, with no sorting.
+ *
+ * The same scores feed a [PhoneTrie], so the recipient field can complete a
+ * partly typed number with the best matches via [complete].
+ *
+ * Fed from [TransactionStore] on load, from in-flight [TransferJournal]
+ * entries not yet in history, and from [TransactionSyncManager] afterwards.
+ * A journaled transfer counts once: when its transaction later syncs, the
+ * journal's transaction id identifies it as already counted.
+ */
+class RecipientRanker(
+    private val store: TransactionStore,
+    private val transferJournal: TransferJournal,
+    private val capacity: Int = DEFAULT_CAPACITY
+) : TransactionSyncManager.Listener {
+
+    companion object {
+        private const val TAG = "RecipientRanker"
+        const val DEFAULT_CAPACITY = 8
+        private const val HALF_LIFE_MS = 14L * 24 * 60 * 60 * 1000 // 14 days
+        private const val SENT_WEIGHT = 1.0
+        private const val RECEIVED_WEIGHT = 0.5
+        private val LOG2_E = 1.0 / ln(2.0)
+
+        /** log2(2^a + 2^b) without overflow */
+        private fun log2Add(a: Double, b: Double): Double {
+            if (a == Double.NEGATIVE_INFINITY) return b
+            val hi = max(a, b)
+            val lo = min(a, b)
+            return hi + ln(1.0 + Math.pow(2.0, lo - hi)) * LOG2_E
+        }
+    }
+
+    private class Stats(val mobile: String) {
+        var name = ""
+        var score = Double.NEGATIVE_INFINITY
+        var count = 0
+        var lastAt = 0L
+
+        fun snapshot() = RankedRecipient(mobile, name, count, lastAt)
+    }
+
+    private val lock = Any()
+    private val stats = HashMap<String, Stats>()
+    private val seenTransactions = HashSet<String>()
+    private val countedJournalKeys = HashSet<String>()
+    private val top = ArrayList<Stats>(capacity + 1)
+    private val trie = PhoneTrie()
+    private var generation = 0
+
+    private val executor = Executors.newSingleThreadExecutor()
+
+    // =====================
+    // Building
+    // =====================
+
+    fun load() {
+        val loadGeneration = synchronized(lock) { generation }
+        executor.execute {
+            try {
+                store.forEachTransaction { tx ->
+                    synchronized(lock) {
+                        if (generation == loadGeneration) recordTransactionLocked(tx)
+                    }
+                }
+                synchronized(lock) {
+                    if (generation != loadGeneration) return@execute
+                    transferJournal.inFlight().forEach { entry ->
+                        if (countedJournalKeys.add(entry.idempotencyKey)) {
+                            record(entry.recipientMobile, "", entry.createdAt, SENT_WEIGHT)
+                        }
+                    }
+                    Log.d(TAG, "Ranked ${stats.size} recipients")
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to build recipient ranking", e)
+            }
+        }
+    }
+
+    override fun onNewTransactions(transactions: List<Transaction>) {
+        synchronized(lock) {
+            transactions.forEach { recordTransactionLocked(it) }
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            generation++
+            stats.clear()
+            seenTransactions.clear()
+            countedJournalKeys.clear()
+            top.clear()
+            trie.clear()
+        }
+    }
+
+    private fun recordTransactionLocked(tx: Transaction) {
+        if (!seenTransactions.add(tx.id)) return
+        if (isCountedTransfer(tx.id)) return
+        val at = TransactionStore.parseCreatedAt(tx.createdAt)
+        record(tx.counterpartyMobile, tx.counterpartyName, at, if (tx.isCredit) RECEIVED_WEIGHT else SENT_WEIGHT)
+    }
+
+    /** True if [transactionId] is a journaled transfer already counted while in flight */
+    private fun isCountedTransfer(transactionId: String): Boolean {
+        if (countedJournalKeys.isEmpty()) return false
+        val iterator = countedJournalKeys.iterator()
+        while (iterator.hasNext()) {
+            val entry = transferJournal.get(iterator.next())
+            when {
+                entry == null || entry.status == TransferJournal.Status.FAILED -> iterator.remove()
+                entry.transactionId == transactionId -> {
+                    iterator.remove()
+                    return true
+                }
+            }
+        }
+        return false
+    }
+
+    private fun record(rawMobile: String, name: String, at: Long, weight: Double) {
+        val mobile = PhoneNumbers.toLocal(rawMobile)
+        if (mobile.isEmpty()) return
+
+        val entry = stats.getOrPut(mobile) { Stats(mobile) }
+        // Event weight, in log2 space relative to the epoch
+        val eventScore = at.toDouble() / HALF_LIFE_MS + ln(weight) * LOG2_E
+        entry.score = log2Add(entry.score, eventScore)
+        entry.count++
+        if (at >= entry.lastAt) {
+            entry.lastAt = at
+            if (name.isNotEmpty()) entry.name = name
+        } else if (entry.name.isEmpty()) {
+            entry.name = name
+        }
+        promote(entry)
+        trie.update(entry.snapshot(), entry.score)
+    }
+
+    /**
+     * Restores top-list order after [entry]'s score rose. Everything outside
+     * the list scores at most its last entry, so only [entry] can move in.
+     */
+    private fun promote(entry: Stats) {
+        var index = top.indexOf(entry)
+        if (index < 0) {
+            if (top.size == capacity && entry.score <= top.last().score) return
+            top.add(entry)
+            index = top.size - 1
+        }
+        while (index > 0 && top[index - 1].score < entry.score) {
+            top[index] = top[index - 1]
+            index--
+        }
+        top[index] = entry
+        if (top.size > capacity) top.removeAt(top.size - 1)
+    }
+
+    // =====================
+    // Querying
+    // =====================
+
+    /** Best recipients first, at most [capacity] of them */
+    fun topRecipients(): List<RankedRecipient> = synchronized(lock) {
+        top.map { it.snapshot() }
+    }
+
+    /** What is known about [mobile], in any format, or null if never paid */
+    fun find(mobile: String): RankedRecipient? = synchronized(lock) {
+        stats[PhoneNumbers.toLocal(mobile)]?.snapshot()
+    }
+
+    /**
+     * Best recipients whose number starts with the typed [input], written into
+     * [out]; returns the count. Allocation-free, so it can run per keystroke.
+     */
+    fun complete(input: CharSequence, out: Array<RankedRecipient?>): Int = synchronized(lock) {
+        trie.complete(input, out)
+    }
+}
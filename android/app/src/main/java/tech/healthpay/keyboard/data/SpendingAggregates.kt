@@ -0,0 +1,167 @@
+package tech.healthpay.keyboard.data
+
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import java.util.Calendar
+import java.util.Locale
+import java.util.TimeZone
+
+/**
+ * Totals for one (month, type, counterparty) cell; any dimension may be [SpendingAggregates.ALL].
+ */
+data class SpendingSummary(
+    val count: Int,
+    val creditTotal: Money,
+    val debitTotal: Money,
+    val feeTotal: Money
+) {
+    companion object {
+        val EMPTY = SpendingSummary(0, Money.ZERO, Money.ZERO, Money.ZERO)
+    }
+}
+
+/**
+ * Spending Aggregates - Incrementally maintained history totals
+ *
+ * Every transaction contributes to the 8 cells formed by its (month, type,
+ * counterparty) key with each dimension optionally rolled up to [ALL], so
+ * any summary (monthly spend, totals per counterparty, fees per month, ...)
+ * is a single primary-key lookup. Cells are adjusted by [TransactionStore]
+ * in the same database transaction that writes the row, by subtracting the
+ * old version of a row and adding the new one; failed transactions do not
+ * count.
+ *
+ * Months are UTC ("yyyy-MM"), matching the server's `createdAt`.
+ */
+class SpendingAggregates(private val helper: SQLiteOpenHelper) {
+
+    companion object {
+        const val ALL = "*"
+
+        private const val TABLE_AGGREGATES = "aggregates"
+        private const val COL_MONTH = "month"
+        private const val COL_TYPE = "type"
+        private const val COL_COUNTERPARTY = "counterparty"
+        private const val COL_COUNT = "tx_count"
+        private const val COL_CREDIT = "credit_total"
+        private const val COL_DEBIT = "debit_total"
+        private const val COL_FEE = "fee_total"
+
+        private val EXCLUDED_STATUSES = setOf("failed", "rejected", "cancelled", "canceled")
+
+        private val utcCalendar = object : ThreadLocal<Calendar>() {
+            override fun initialValue(): Calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US)
+        }
+
+        /** UTC "yyyy-MM" bucket for an epoch-millis timestamp */
+        fun monthOf(epochMillis: Long): String {
+            val calendar = utcCalendar.get()!!
+            calendar.timeInMillis = epochMillis
+            return String.format(Locale.US, "%04d-%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1)
+        }
+
+        fun typeOf(tx: Transaction): String = tx.type.lowercase(Locale.US)
+
+        /**
+         * Counterparty key: the mobile in local 0-prefixed form when present
+         * (so +20 and 0 forms of the same number share a bucket), else the name.
+         */
+        fun counterpartyOf(tx: Transaction): String =
+            PhoneNumbers.toLocal(tx.counterpartyMobile).ifEmpty { tx.counterpartyName.trim().lowercase(Locale.US) }
+
+        private fun counts(tx: Transaction) = tx.status.lowercase(Locale.US) !in EXCLUDED_STATUSES
+    }
+
+    internal fun createTable(db: SQLiteDatabase) {
+        db.execSQL("""
+            CREATE TABLE $TABLE_AGGREGATES (
+                $COL_MONTH TEXT NOT NULL,
+                $COL_TYPE TEXT NOT NULL,
+                $COL_COUNTERPARTY TEXT NOT NULL,
+                $COL_COUNT INTEGER NOT NULL DEFAULT 0,
+                $COL_CREDIT INTEGER NOT NULL DEFAULT 0,
+                $COL_DEBIT INTEGER NOT NULL DEFAULT 0,
+                $COL_FEE INTEGER NOT NULL DEFAULT 0,
+                PRIMARY KEY ($COL_MONTH, $COL_TYPE, $COL_COUNTERPARTY)
+            )
+        """.trimIndent())
+    }
+
+    internal fun dropTable(db: SQLiteDatabase) {
+        db.execSQL("DROP TABLE IF EXISTS $TABLE_AGGREGATES")
+    }
+
+    internal fun clear(db: SQLiteDatabase) {
+        db.delete(TABLE_AGGREGATES, null, null)
+    }
+
+    /**
+     * Moves a row's contribution from [old] to [new]; either may be null for
+     * an insert or delete. Must be called inside the store's write transaction.
+     */
+    internal fun applyChange(db: SQLiteDatabase, old: Transaction?, new: Transaction?) {
+        if (old == new) return
+        if (old != null && counts(old)) add(db, old, -1)
+        if (new != null && counts(new)) add(db, new, 1)
+    }
+
+    private fun add(db: SQLiteDatabase, tx: Transaction, sign: Int) {
+        val month = monthOf(TransactionStore.parseCreatedAt(tx.createdAt))
+        val type = typeOf(tx)
+        val counterparty = counterpartyOf(tx)
+        // Minor units, so totals stay exact however many rows are summed
+        val credit = if (tx.isCredit) tx.amount.minorUnits * sign else 0L
+        val debit = if (tx.isCredit) 0L else tx.amount.minorUnits * sign
+        val fee = tx.fee.minorUnits * sign
+
+        for (m in arrayOf(month, ALL)) {
+            for (t in arrayOf(type, ALL)) {
+                for (c in arrayOf(counterparty, ALL)) {
+                    val key = arrayOf<Any>(m, t, c)
+                    db.execSQL(
+                        "INSERT OR IGNORE INTO $TABLE_AGGREGATES ($COL_MONTH, $COL_TYPE, $COL_COUNTERPARTY) VALUES (?, ?, ?)",
+                        key
+                    )
+                    db.execSQL(
+                        """
+                            UPDATE $TABLE_AGGREGATES SET
+                                $COL_COUNT = $COL_COUNT + ?,
+                                $COL_CREDIT = $COL_CREDIT + ?,
+                                $COL_DEBIT = $COL_DEBIT + ?,
+                                $COL_FEE = $COL_FEE + ?
+                            WHERE $COL_MONTH = ? AND $COL_TYPE = ? AND $COL_COUNTERPARTY = ?
+                        """.trimIndent(),
+                        arrayOf<Any>(sign, credit, debit, fee, m, t, c)
+                    )
+                }
+            }
+        }
+    }
+
+    /**
+     * Totals for one cell, e.g. `summary(month = "2024-05")` for a month's
+     * spend or `summary(counterparty = "01001234567")` for all-time totals
+     * with one person.
+     */
+    fun summary(month: String = ALL, type: String = ALL, counterparty: String = ALL): SpendingSummary {
+        helper.readableDatabase.rawQuery(
+            """
+                SELECT $COL_COUNT, $COL_CREDIT, $COL_DEBIT, $COL_FEE FROM $TABLE_AGGREGATES
+                WHERE $COL_MONTH = ? AND $COL_TYPE = ? AND $COL_COUNTERPARTY = ?
+            """.trimIndent(),
+            arrayOf(month, type, counterparty)
+        ).use { cursor ->
+            if (!cursor.moveToFirst()) return SpendingSummary.EMPTY
+            return SpendingSummary(
+                count = cursor.getInt(0),
+                creditTotal = Money(cursor.getLong(1)),
+                debitTotal = Money(cursor.getLong(2)),
+                feeTotal = Money(cursor.getLong(3))
+            )
+        }
+    }
+
+    fun currentMonthSummary(): SpendingSummary = summary(month = monthOf(System.currentTimeMillis()))
+}
@@ -0,0 +1,334 @@
+package tech.healthpay.keyboard.data
+
+import android.util.Log
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.util.Digits
+import java.util.TreeMap
+import java.util.concurrent.Executors
+
+/**
+ * Transaction Search Index - In-memory inverted index over local history
+ *
+ * Counterparty name, description, reference number and counterparty mobile
+ * are tokenized and normalized (case, Arabic letter variants, diacritics and
+ * Arabic-Indic digits), and each term maps to the transactions containing it.
+ * Terms are kept sorted so every query token is a prefix range lookup; a
+ * transaction matches when all query tokens match one of its terms.
+ *
+ * The index is built from [TransactionStore] once and then updated
+ * incrementally from [TransactionSyncManager]. Queries are read-only and may
+ * run on any thread.
+ */
+class TransactionSearchIndex(
+    private val store: TransactionStore
+) : TransactionSyncManager.Listener {
+
+    companion object {
+        private const val TAG = "TransactionSearchIndex"
+        private const val INITIAL_CAPACITY = 1_024
+        private const val MIN_PHONE_DIGITS = 6
+
+        /**
+         * Folds [text] to its searchable form: lowercase, Arabic alef/yaa/
+         * taa-marbuta variants unified, diacritics and tatweel dropped, and
+         * Arabic-Indic digits mapped to ASCII.
+         */
+        fun normalize(text: CharSequence): String {
+            val out = StringBuilder(text.length)
+            for (c in text) {
+                when (c) {
+                    'أ', 'إ', 'آ', 'ٱ' -> out.append('ا')
+                    'ى' -> out.append('ي')
+                    'ة' -> out.append('ه')
+                    'ؤ' -> out.append('و')
+                    'ئ' -> out.append('ي')
+                    in 'ً'..'ْ', 'ٰ', 'ـ' -> Unit // tashkeel, superscript alef, tatweel
+                    in '٠'..'٩', in '۰'..'۹' -> out.append(Digits.toAscii(c))
+                    else -> out.append(c.lowercaseChar())
+                }
+            }
+            return out.toString()
+        }
+
+        /** Splits normalized text into letter/digit runs */
+        fun tokenize(text: CharSequence): List<String> {
+            val normalized = normalize(text)
+            val tokens = ArrayList<String>()
+            var start = -1
+            for (i in normalized.indices) {
+                if (normalized[i].isLetterOrDigit()) {
+                    if (start < 0) start = i
+                } else if (start >= 0) {
+                    tokens.add(normalized.substring(start, i))
+                    start = -1
+                }
+            }
+            if (start >= 0) tokens.add(normalized.substring(start))
+            return tokens
+        }
+    }
+
+    /** Growable sorted list of document ordinals */
+    private class Postings {
+        var docs = IntArray(4)
+        var size = 0
+
+        fun add(doc: Int) {
+            // Ordinals are assigned in increasing order, so appends stay sorted
+            if (size > 0 && docs[size - 1] == doc) return
+            if (size == docs.size) docs = docs.copyOf(size * 2)
+            docs[size++] = doc
+        }
+    }
+
+    private val lock = Any()
+    private val terms = TreeMap<String, Postings>()
+    private val ordinals = HashMap<String, Int>(INITIAL_CAPACITY)
+    private var ids = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var createdAt = LongArray(INITIAL_CAPACITY)
+    private var docCount = 0
+    private var generation = 0
+
+    /** Reusable bitset over document ordinals for multi-term prefixes */
+    private var scratch = LongArray(INITIAL_CAPACITY / 64)
+
+    private val executor = Executors.newSingleThreadExecutor()
+
+    @Volatile
+    var isReady = false
+        private set
+
+    // =====================
+    // Building
+    // =====================
+
+    /** Indexes everything currently in the store, off the calling thread */
+    fun load() {
+        val loadGeneration = synchronized(lock) { generation }
+        executor.execute {
+            val start = System.currentTimeMillis()
+            try {
+                store.forEachTransaction { tx ->
+                    synchronized(lock) {
+                        if (generation == loadGeneration) addLocked(tx)
+                    }
+                }
+                isReady = true
+                Log.d(TAG, "Indexed $docCount transactions in ${System.currentTimeMillis() - start}ms")
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to build search index", e)
+            }
+        }
+    }
+
+    override fun onNewTransactions(transactions: List<Transaction>) {
+        synchronized(lock) {
+            transactions.forEach { addLocked(it) }
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            generation++
+            terms.clear()
+            ordinals.clear()
+            ids = arrayOfNulls(INITIAL_CAPACITY)
+            createdAt = LongArray(INITIAL_CAPACITY)
+            scratch = LongArray(INITIAL_CAPACITY / 64)
+            docCount = 0
+        }
+    }
+
+    private fun addLocked(tx: Transaction) {
+        if (ordinals.containsKey(tx.id)) return
+
+        val doc = docCount++
+        if (doc == ids.size) {
+            ids = ids.copyOf(doc * 2)
+            createdAt = createdAt.copyOf(doc * 2)
+        }
+        ids[doc] = tx.id
+        createdAt[doc] = TransactionStore.parseCreatedAt(tx.createdAt)
+        ordinals[tx.id] = doc
+
+        indexText(tx.counterpartyName, doc)
+        indexText(tx.description, doc)
+        indexText(tx.referenceNumber, doc)
+        indexPhone(tx.counterpartyMobile, doc)
+    }
+
+    private fun indexText(text: String, doc: Int) {
+        if (text.isEmpty()) return
+        tokenize(text).forEach { term -> terms.getOrPut(term) { Postings() }.add(doc) }
+    }
+
+    /**
+     * Phone numbers are indexed as one digit string, plus the local 0-prefixed
+     * form for +20 numbers, so "0100", "+20100" and "20100" all match.
+     */
+    private fun indexPhone(mobile: String, doc: Int) {
+        val digits = normalize(mobile).filter { it in '0'..'9' }
+        if (digits.length < MIN_PHONE_DIGITS) return
+        terms.getOrPut(digits) { Postings() }.add(doc)
+        val local = PhoneNumbers.toLocal(mobile)
+        if (local != digits) terms.getOrPut(local) { Postings() }.add(doc)
+    }
+
+    // =====================
+    // Querying
+    // =====================
+
+    /**
+     * Ids of transactions matching every token of [query] as a prefix,
+     * newest first. Returns an empty list for a blank query.
+     *
+     * The most selective token's postings become a sorted candidate array that
+     * each further token intersects in place. Only the best [limit] candidates
+     * are ordered, through a bounded heap, so nothing is boxed per match.
+     */
+    fun search(query: String, limit: Int = Int.MAX_VALUE): List<String> {
+        val tokens = tokenize(query)
+        if (tokens.isEmpty() || limit <= 0) return emptyList()
+
+        synchronized(lock) {
+            // Longer tokens select fewer documents; resolve them first
+            val ordered = tokens.sortedByDescending { it.length }
+            val candidates = docsMatching(ordered[0])
+            var count = candidates.size
+            for (t in 1 until ordered.size) {
+                if (count == 0) break
+                count = retainMatching(candidates, count, ordered[t])
+            }
+            if (count == 0) return emptyList()
+
+            val top = topNewest(candidates, count, minOf(limit, count))
+            return List(top.size) { ids[top[it]]!! }
+        }
+    }
+
+    /** Sets exactly the documents matching [prefix] in [scratch] */
+    private fun markDocs(prefix: String) {
+        val words = (docCount + 63) ushr 6
+        if (scratch.size < words) scratch = LongArray(words * 2) else scratch.fill(0L, 0, words)
+        for (postings in prefixRange(prefix)) {
+            val docs = postings.docs
+            for (i in 0 until postings.size) {
+                val doc = docs[i]
+                scratch[doc ushr 6] = scratch[doc ushr 6] or (1L shl doc)
+            }
+        }
+    }
+
+    /**
+     * Keeps those of the first [count] sorted [candidates] that match
+     * [prefix], in order, and returns how many remain
+     */
+    private fun retainMatching(candidates: IntArray, count: Int, prefix: String): Int {
+        val range = prefixRange(prefix)
+        var kept = 0
+        if (range.size == 1) {
+            // Both sides sorted: a single merge pass
+            val postings = range.first()
+            var p = 0
+            for (i in 0 until count) {
+                val doc = candidates[i]
+                while (p < postings.size && postings.docs[p] < doc) p++
+                if (p == postings.size) break
+                if (postings.docs[p] == doc) candidates[kept++] = doc
+            }
+        } else {
+            markDocs(prefix)
+            for (i in 0 until count) {
+                val doc = candidates[i]
+                if (scratch[doc ushr 6] and (1L shl doc) != 0L) candidates[kept++] = doc
+            }
+        }
+        return kept
+    }
+
+    /** Sorted, distinct ordinals of the documents matching [prefix] */
+    private fun docsMatching(prefix: String): IntArray {
+        val range = prefixRange(prefix)
+        if (range.size == 1) {
+            // A single term: its postings are already sorted and distinct
+            val postings = range.first()
+            return postings.docs.copyOf(postings.size)
+        }
+        markDocs(prefix)
+        var total = 0
+        val words = (docCount + 63) ushr 6
+        for (w in 0 until words) total += java.lang.Long.bitCount(scratch[w])
+        val result = IntArray(total)
+        var n = 0
+        for (w in 0 until words) {
+            var bits = scratch[w]
+            while (bits != 0L) {
+                result[n++] = (w shl 6) + java.lang.Long.numberOfTrailingZeros(bits)
+                bits = bits and (bits - 1)
+            }
+        }
+        return result
+    }
+
+    /** The [k] newest of the first [count] [docs], newest first, via a bounded min-heap */
+    private fun topNewest(docs: IntArray, count: Int, k: Int): IntArray {
+        val heap = IntArray(k)
+        var size = 0
+        for (i in 0 until count) {
+            val doc = docs[i]
+            if (size < k) {
+                heap[size] = doc
+                siftUp(heap, size++)
+            } else if (newer(doc, heap[0])) {
+                heap[0] = doc
+                siftDown(heap, 0, size)
+            }
+        }
+        // Pop the oldest to the back until the array runs newest first
+        for (end in size - 1 downTo 1) {
+            val oldest = heap[0]
+            heap[0] = heap[end]
+            heap[end] = oldest
+            siftDown(heap, 0, end)
+        }
+        return heap
+    }
+
+    private fun siftUp(heap: IntArray, index: Int) {
+        var child = index
+        while (child > 0) {
+            val parent = (child - 1) ushr 1
+            if (!newer(heap[parent], heap[child])) return
+            swap(heap, parent, child)
+            child = parent
+        }
+    }
+
+    private fun siftDown(heap: IntArray, index: Int, size: Int) {
+        var parent = index
+        while (true) {
+            var oldest = parent
+            val left = 2 * parent + 1
+            if (left < size && newer(heap[oldest], heap[left])) oldest = left
+            if (left + 1 < size && newer(heap[oldest], heap[left + 1])) oldest = left + 1
+            if (oldest == parent) return
+            swap(heap, parent, oldest)
+            parent = oldest
+        }
+    }
+
+    private fun swap(heap: IntArray, a: Int, b: Int) {
+        val t = heap[a]
+        heap[a] = heap[b]
+        heap[b] = t
+    }
+
+    /** Result order: newer first, ties broken by id, descending */
+    private fun newer(a: Int, b: Int): Boolean {
+        if (createdAt[a] != createdAt[b]) return createdAt[a] > createdAt[b]
+        return ids[a]!! > ids[b]!!
+    }
+
+    private fun prefixRange(prefix: String): Collection<Postings> =
+        terms.subMap(prefix, true, prefix + Char.MAX_VALUE, false).values
+}
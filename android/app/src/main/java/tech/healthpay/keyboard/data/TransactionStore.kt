@@ -0,0 +1,268 @@
+package tech.healthpay.keyboard.data
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.util.Log
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import java.text.ParsePosition
+import java.text.SimpleDateFormat
+import java.util.Locale
+import java.util.TimeZone
+
+/**
+ * Transaction Store - On-device SQLite copy of the transaction history
+ *
+ * Rows are keyed by transaction id and indexed by (created_at, id) so the
+ * history can be read newest-first with keyset paging. The delta-sync cursor
+ * is kept alongside the rows so both are updated in one transaction, as are
+ * the [SpendingAggregates] derived from them. A null [databaseName] keeps
+ * the store in memory.
+ */
+class TransactionStore(context: Context, databaseName: String? = DATABASE_NAME) :
+    SQLiteOpenHelper(context, databaseName, null, DATABASE_VERSION) {
+
+    companion object {
+        private const val TAG = "TransactionStore"
+        private const val DATABASE_NAME = "healthpay_transactions.db"
+        private const val DATABASE_VERSION = 4
+
+        private const val TABLE_TRANSACTIONS = "transactions"
+        private const val TABLE_SYNC_STATE = "sync_state"
+        private const val KEY_SYNC_CURSOR = "transactions_cursor"
+        private const val MAX_QUERY_ARGS = 500
+
+        private const val COL_ID = "id"
+        private const val COL_CREATED_AT = "created_at"
+        private const val COL_CREATED_AT_RAW = "created_at_raw"
+        private const val COL_TYPE = "type"
+        private const val COL_STATUS = "status"
+        private const val COL_AMOUNT = "amount"
+        private const val COL_FEE = "fee"
+        private const val COL_CURRENCY = "currency"
+        private const val COL_COUNTERPARTY_NAME = "counterparty_name"
+        private const val COL_COUNTERPARTY_MOBILE = "counterparty_mobile"
+        private const val COL_DESCRIPTION = "description"
+        private const val COL_REFERENCE = "reference_number"
+        private const val COL_COUNTERPARTY_AVATAR = "counterparty_avatar"
+
+        private val ISO_PATTERNS = listOf(
+            "yyyy-MM-dd'T'HH:mm:ss.SSSXXX",
+            "yyyy-MM-dd'T'HH:mm:ssXXX",
+            "yyyy-MM-dd'T'HH:mm:ss.SSS",
+            "yyyy-MM-dd'T'HH:mm:ss"
+        )
+
+        private val isoFormats = object : ThreadLocal<List<SimpleDateFormat>>() {
+            override fun initialValue() = ISO_PATTERNS.map { pattern ->
+                SimpleDateFormat(pattern, Locale.US).apply { timeZone = TimeZone.getTimeZone("UTC") }
+            }
+        }
+
+        /** Parses an ISO-8601 `createdAt` to epoch millis, or 0 if unparseable */
+        fun parseCreatedAt(raw: String): Long {
+            if (raw.isEmpty()) return 0L
+            // Position-based parsing: a pattern that does not match costs no exception
+            for (format in isoFormats.get()!!) {
+                format.parse(raw, ParsePosition(0))?.let { return it.time }
+            }
+            return 0L
+        }
+    }
+
+    val aggregates = SpendingAggregates(this)
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("""
+            CREATE TABLE $TABLE_TRANSACTIONS (
+                $COL_ID TEXT PRIMARY KEY NOT NULL,
+                $COL_CREATED_AT INTEGER NOT NULL,
+                $COL_CREATED_AT_RAW TEXT NOT NULL,
+                $COL_TYPE TEXT NOT NULL,
+                $COL_STATUS TEXT NOT NULL,
+                $COL_AMOUNT INTEGER NOT NULL,
+                $COL_FEE INTEGER NOT NULL,
+                $COL_CURRENCY TEXT NOT NULL,
+                $COL_COUNTERPARTY_NAME TEXT NOT NULL,
+                $COL_COUNTERPARTY_MOBILE TEXT NOT NULL,
+                $COL_DESCRIPTION TEXT NOT NULL,
+                $COL_REFERENCE TEXT NOT NULL,
+                $COL_COUNTERPARTY_AVATAR TEXT NOT NULL DEFAULT ''
+            )
+        """.trimIndent())
+        db.execSQL("CREATE INDEX idx_transactions_created ON $TABLE_TRANSACTIONS ($COL_CREATED_AT DESC, $COL_ID DESC)")
+        db.execSQL("CREATE TABLE $TABLE_SYNC_STATE (key TEXT PRIMARY KEY NOT NULL, value TEXT)")
+        aggregates.createTable(db)
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        // Local history is a cache of the server; rebuild and re-sync from scratch
+        db.execSQL("DROP TABLE IF EXISTS $TABLE_TRANSACTIONS")
+        db.execSQL("DROP TABLE IF EXISTS $TABLE_SYNC_STATE")
+        aggregates.dropTable(db)
+        onCreate(db)
+    }
+
+    /**
+     * Writes a synced page and advances the cursor atomically. Existing rows
+     * are updated in place (e.g. status changes); returns the rows that were
+     * not stored before and the stored rows that changed.
+     */
+    fun applyPage(items: List<Transaction>, cursor: String?): AppliedPage {
+        val inserted = ArrayList<Transaction>()
+        val updated = ArrayList<Transaction>()
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            items.forEach { tx ->
+                val values = toContentValues(tx)
+                val rowId = db.insertWithOnConflict(TABLE_TRANSACTIONS, null, values, SQLiteDatabase.CONFLICT_IGNORE)
+                if (rowId == -1L) {
+                    val old = getById(tx.id)
+                    db.update(TABLE_TRANSACTIONS, values, "$COL_ID = ?", arrayOf(tx.id))
+                    aggregates.applyChange(db, old, tx)
+                    if (old != tx) updated.add(tx)
+                } else {
+                    inserted.add(tx)
+                    aggregates.applyChange(db, null, tx)
+                }
+            }
+            if (cursor != null) {
+                db.insertWithOnConflict(
+                    TABLE_SYNC_STATE,
+                    null,
+                    ContentValues().apply {
+                        put("key", KEY_SYNC_CURSOR)
+                        put("value", cursor)
+                    },
+                    SQLiteDatabase.CONFLICT_REPLACE
+                )
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        Log.d(TAG, "Applied ${items.size} transactions, ${inserted.size} new, ${updated.size} changed")
+        return AppliedPage(inserted, updated)
+    }
+
+    fun getSyncCursor(): String? {
+        readableDatabase.rawQuery(
+            "SELECT value FROM $TABLE_SYNC_STATE WHERE key = ?",
+            arrayOf(KEY_SYNC_CURSOR)
+        ).use { cursor ->
+            return if (cursor.moveToFirst()) cursor.getString(0) else null
+        }
+    }
+
+    /** Newest-first transactions, for the first screen of history */
+    fun getRecent(limit: Int): List<Transaction> = query(
+        "SELECT * FROM $TABLE_TRANSACTIONS ORDER BY $COL_CREATED_AT DESC, $COL_ID DESC LIMIT ?",
+        arrayOf(limit.toString())
+    )
+
+    /**
+     * Keyset page of transactions strictly older than ([createdAt], [id]),
+     * as stored for the last row of the previous page.
+     */
+    fun getPageBefore(createdAt: Long, id: String, limit: Int): List<Transaction> = query(
+        """
+            SELECT * FROM $TABLE_TRANSACTIONS
+            WHERE $COL_CREATED_AT < ? OR ($COL_CREATED_AT = ? AND $COL_ID < ?)
+            ORDER BY $COL_CREATED_AT DESC, $COL_ID DESC
+            LIMIT ?
+        """.trimIndent(),
+        arrayOf(createdAt.toString(), createdAt.toString(), id, limit.toString())
+    )
+
+    fun getById(id: String): Transaction? =
+        query("SELECT * FROM $TABLE_TRANSACTIONS WHERE $COL_ID = ?", arrayOf(id)).firstOrNull()
+
+    /** Rows for [ids], in the order given; ids not in the store are skipped */
+    fun getByIds(ids: List<String>): List<Transaction> {
+        if (ids.isEmpty()) return emptyList()
+        val byId = HashMap<String, Transaction>(ids.size)
+        // Stay well under SQLite's bound-parameter limit
+        ids.chunked(MAX_QUERY_ARGS).forEach { chunk ->
+            val placeholders = chunk.joinToString(",") { "?" }
+            query("SELECT * FROM $TABLE_TRANSACTIONS WHERE $COL_ID IN ($placeholders)", chunk.toTypedArray())
+                .forEach { byId[it.id] = it }
+        }
+        return ids.mapNotNull { byId[it] }
+    }
+
+    /** Streams every stored row without materializing the whole history */
+    fun forEachTransaction(block: (Transaction) -> Unit) {
+        readableDatabase.rawQuery("SELECT * FROM $TABLE_TRANSACTIONS", null).use { cursor ->
+            while (cursor.moveToNext()) block(fromCursor(cursor))
+        }
+    }
+
+    fun count(): Long {
+        readableDatabase.rawQuery("SELECT COUNT(*) FROM $TABLE_TRANSACTIONS", null).use { cursor ->
+            return if (cursor.moveToFirst()) cursor.getLong(0) else 0L
+        }
+    }
+
+    fun clear() {
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            db.delete(TABLE_TRANSACTIONS, null, null)
+            db.delete(TABLE_SYNC_STATE, null, null)
+            aggregates.clear(db)
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        Log.d(TAG, "Transaction store cleared")
+    }
+
+    private fun query(sql: String, args: Array<String>): List<Transaction> {
+        readableDatabase.rawQuery(sql, args).use { cursor ->
+            val result = ArrayList<Transaction>(cursor.count)
+            while (cursor.moveToNext()) result.add(fromCursor(cursor))
+            return result
+        }
+    }
+
+    private fun toContentValues(tx: Transaction) = ContentValues().apply {
+        put(COL_ID, tx.id)
+        put(COL_CREATED_AT, parseCreatedAt(tx.createdAt))
+        put(COL_CREATED_AT_RAW, tx.createdAt)
+        put(COL_TYPE, tx.type)
+        put(COL_STATUS, tx.status)
+        put(COL_AMOUNT, tx.amount.minorUnits)
+        put(COL_FEE, tx.fee.minorUnits)
+        put(COL_CURRENCY, tx.currency)
+        put(COL_COUNTERPARTY_NAME, tx.counterpartyName)
+        put(COL_COUNTERPARTY_MOBILE, tx.counterpartyMobile)
+        put(COL_DESCRIPTION, tx.description)
+        put(COL_REFERENCE, tx.referenceNumber)
+        put(COL_COUNTERPARTY_AVATAR, tx.counterpartyAvatar)
+    }
+
+    private fun fromCursor(cursor: Cursor) = Transaction(
+        id = cursor.getString(cursor.getColumnIndexOrThrow(COL_ID)),
+        type = cursor.getString(cursor.getColumnIndexOrThrow(COL_TYPE)),
+        status = cursor.getString(cursor.getColumnIndexOrThrow(COL_STATUS)),
+        amount = Money(cursor.getLong(cursor.getColumnIndexOrThrow(COL_AMOUNT))),
+        fee = Money(cursor.getLong(cursor.getColumnIndexOrThrow(COL_FEE))),
+        currency = cursor.getString(cursor.getColumnIndexOrThrow(COL_CURRENCY)),
+        counterpartyName = cursor.getString(cursor.getColumnIndexOrThrow(COL_COUNTERPARTY_NAME)),
+        counterpartyMobile = cursor.getString(cursor.getColumnIndexOrThrow(COL_COUNTERPARTY_MOBILE)),
+        description = cursor.getString(cursor.getColumnIndexOrThrow(COL_DESCRIPTION)),
+        referenceNumber = cursor.getString(cursor.getColumnIndexOrThrow(COL_REFERENCE)),
+        createdAt = cursor.getString(cursor.getColumnIndexOrThrow(COL_CREATED_AT_RAW)),
+        counterpartyAvatar = cursor.getString(cursor.getColumnIndexOrThrow(COL_COUNTERPARTY_AVATAR))
+    )
+}
+
+/** What [TransactionStore.applyPage] wrote: rows stored for the first time, and stored rows that changed */
+data class AppliedPage(
+    val inserted: List<Transaction>,
+    val updated: List<Transaction>
+)
@@ -0,0 +1,126 @@
+package tech.healthpay.keyboard.data
+
+import android.util.Log
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.api.TransactionPage
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Transaction Sync Manager - Delta sync of history into [TransactionStore]
+ *
+ * Only records newer than the stored cursor are requested, page by page,
+ * so opening history never refetches what is already on the device. Only
+ * one sync runs at a time; a request made while syncing is coalesced into
+ * one follow-up pass.
+ *
+ * [clear] starts a new generation: a page still in flight from before it
+ * (e.g. across a logout) is dropped instead of being written back.
+ */
+class TransactionSyncManager(
+    private val apiClient: HealthPayApiClient,
+    private val store: TransactionStore
+) {
+
+    companion object {
+        private const val TAG = "TransactionSync"
+        private const val PAGE_SIZE = 200
+    }
+
+    /** Notified (on a background thread) with rows stored for the first time */
+    fun interface Listener {
+        fun onNewTransactions(transactions: List<Transaction>)
+
+        /** Stored rows the server changed, e.g. a pending transfer that completed or failed */
+        fun onUpdatedTransactions(transactions: List<Transaction>) {}
+    }
+
+    private val listeners = CopyOnWriteArrayList<Listener>()
+    private val executor = Executors.newSingleThreadExecutor()
+    private val syncing = AtomicBoolean(false)
+    private val pendingResync = AtomicBoolean(false)
+
+    // Pages are stored under this lock, so a generation check cannot race clear()
+    private val lock = Any()
+    private var generation = 0
+
+    fun addListener(listener: Listener) {
+        listeners.add(listener)
+    }
+
+    fun removeListener(listener: Listener) {
+        listeners.remove(listener)
+    }
+
+    fun sync() {
+        if (!syncing.compareAndSet(false, true)) {
+            pendingResync.set(true)
+            return
+        }
+        val syncGeneration = synchronized(lock) { generation }
+        // Callers are usually on the main thread; keep the cursor read off it
+        executor.execute { fetchPage(store.getSyncCursor(), 0, syncGeneration) }
+    }
+
+    private fun fetchPage(cursor: String?, syncedSoFar: Int, syncGeneration: Int) {
+        apiClient.getTransactionsSince(cursor, PAGE_SIZE, object : ApiCallback<TransactionPage> {
+            override fun onSuccess(response: TransactionPage) {
+                val applied = try {
+                    synchronized(lock) {
+                        if (generation != syncGeneration) {
+                            Log.d(TAG, "Dropping page from a cleared sync")
+                            return
+                        }
+                        store.applyPage(response.items, response.cursor)
+                    }
+                } catch (e: Exception) {
+                    Log.e(TAG, "Failed to store transactions", e)
+                    finish(syncedSoFar, syncGeneration)
+                    return
+                }
+                val inserted = applied.inserted
+                if (inserted.isNotEmpty()) {
+                    listeners.forEach { it.onNewTransactions(inserted) }
+                }
+                if (applied.updated.isNotEmpty()) {
+                    listeners.forEach { it.onUpdatedTransactions(applied.updated) }
+                }
+
+                if (response.hasMore && response.items.isNotEmpty()) {
+                    fetchPage(response.cursor, syncedSoFar + inserted.size, syncGeneration)
+                } else {
+                    finish(syncedSoFar + inserted.size, syncGeneration)
+                }
+            }
+
+            override fun onError(error: ApiError) {
+                Log.e(TAG, "Delta sync failed: ${error.code}")
+                finish(syncedSoFar, syncGeneration)
+            }
+        })
+    }
+
+    private fun finish(syncedCount: Int, syncGeneration: Int) {
+        // A sync from before clear() no longer owns the flags
+        if (synchronized(lock) { generation != syncGeneration }) return
+        Log.d(TAG, "Delta sync finished, $syncedCount new transactions")
+        syncing.set(false)
+        if (pendingResync.getAndSet(false)) sync()
+    }
+
+    /**
+     * Abandons any sync in flight; call before clearing the [TransactionStore].
+     * Waits for a page being stored, which the store clear then removes.
+     */
+    fun clear() {
+        synchronized(lock) {
+            generation++
+            syncing.set(false)
+            pendingResync.set(false)
+        }
+    }
+}
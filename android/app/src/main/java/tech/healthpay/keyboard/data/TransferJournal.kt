@@ -0,0 +1,141 @@
+package tech.healthpay.keyboard.data
+
+import android.content.SharedPreferences
+import android.util.Log
+import org.json.JSONArray
+import org.json.JSONObject
+import tech.healthpay.keyboard.api.Money
+import java.util.UUID
+
+/**
+ * Transfer Journal - Local record of transfers and their idempotency keys
+ *
+ * A transfer is journaled before it is sent. Entries whose outcome is unknown
+ * (timeout after the request may have reached the server) stay IN_FLIGHT until
+ * reconciled by key, and a manual retry of the same transfer reuses the key so
+ * the server can de-duplicate it.
+ */
+class TransferJournal(private val prefs: SharedPreferences) {
+
+    companion object {
+        private const val TAG = "TransferJournal"
+        private const val KEY_JOURNAL = "transfer_journal"
+        private const val REUSE_WINDOW_MS = 10 * 60 * 1000L // 10 minutes
+        private const val RETENTION_MS = 24 * 60 * 60 * 1000L // 24 hours
+    }
+
+    enum class Status { IN_FLIGHT, COMPLETED, FAILED }
+
+    data class Entry(
+        val idempotencyKey: String,
+        val recipientMobile: String,
+        val amount: Money,
+        val note: String?,
+        val status: Status,
+        val createdAt: Long,
+        val transactionId: String? = null
+    )
+
+    private val entries: MutableMap<String, Entry> by lazy { load() }
+
+    /**
+     * Returns the key of an unresolved identical transfer if one exists,
+     * otherwise a fresh key. Nothing is journaled until [record], so a
+     * transfer prepared but never sent leaves no entry behind.
+     */
+    @Synchronized
+    fun reserve(recipientMobile: String, amount: Money, note: String?): String {
+        val now = System.currentTimeMillis()
+        entries.values.firstOrNull {
+            it.status == Status.IN_FLIGHT &&
+                it.recipientMobile == recipientMobile &&
+                it.amount == amount &&
+                it.note == note &&
+                now - it.createdAt < REUSE_WINDOW_MS
+        }?.let {
+            Log.d(TAG, "Reusing idempotency key for unresolved transfer")
+            return it.idempotencyKey
+        }
+        return UUID.randomUUID().toString()
+    }
+
+    /** Journals an IN_FLIGHT entry for a transfer about to be sent with [idempotencyKey] */
+    @Synchronized
+    fun record(idempotencyKey: String, recipientMobile: String, amount: Money, note: String?) {
+        if (entries.containsKey(idempotencyKey)) return
+        entries[idempotencyKey] = Entry(idempotencyKey, recipientMobile, amount, note, Status.IN_FLIGHT, System.currentTimeMillis())
+        persist()
+    }
+
+    @Synchronized
+    fun markCompleted(idempotencyKey: String, transactionId: String) {
+        val entry = entries[idempotencyKey] ?: return
+        entries[idempotencyKey] = entry.copy(status = Status.COMPLETED, transactionId = transactionId)
+        persist()
+    }
+
+    @Synchronized
+    fun markFailed(idempotencyKey: String) {
+        val entry = entries[idempotencyKey] ?: return
+        entries[idempotencyKey] = entry.copy(status = Status.FAILED)
+        persist()
+    }
+
+    @Synchronized
+    fun get(idempotencyKey: String): Entry? = entries[idempotencyKey]
+
+    @Synchronized
+    fun inFlight(): List<Entry> = entries.values.filter { it.status == Status.IN_FLIGHT }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+        prefs.edit().remove(KEY_JOURNAL).apply()
+    }
+
+    private fun load(): MutableMap<String, Entry> {
+        val result = LinkedHashMap<String, Entry>()
+        val raw = prefs.getString(KEY_JOURNAL, null) ?: return result
+        try {
+            val array = JSONArray(raw)
+            for (i in 0 until array.length()) {
+                val json = array.getJSONObject(i)
+                val entry = Entry(
+                    idempotencyKey = json.getString("key"),
+                    recipientMobile = json.getString("recipient"),
+                    // Entries written before amounts were kept in minor units
+                    amount = if (json.has("amountMinor")) Money(json.getLong("amountMinor")) else Money.fromDouble(json.getDouble("amount")),
+                    note = if (json.isNull("note")) null else json.optString("note"),
+                    status = Status.valueOf(json.getString("status")),
+                    createdAt = json.getLong("createdAt"),
+                    transactionId = if (json.isNull("transactionId")) null else json.optString("transactionId")
+                )
+                result[entry.idempotencyKey] = entry
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to load transfer journal", e)
+        }
+        return result
+    }
+
+    private fun persist() {
+        // Resolved entries are only kept long enough to answer late reconciliations
+        val cutoff = System.currentTimeMillis() - RETENTION_MS
+        entries.values.removeAll { it.status != Status.IN_FLIGHT && it.createdAt < cutoff }
+
+        val array = JSONArray()
+        entries.values.forEach { entry ->
+            array.put(JSONObject().apply {
+                put("key", entry.idempotencyKey)
+                put("recipient", entry.recipientMobile)
+                put("amountMinor", entry.amount.minorUnits)
+                put("note", entry.note ?: JSONObject.NULL)
+                put("status", entry.status.name)
+                put("createdAt", entry.createdAt)
+                put("transactionId", entry.transactionId ?: JSONObject.NULL)
+            })
+        }
+        // commit() so the entry is on disk before the mutation leaves the device
+        prefs.edit().putString(KEY_JOURNAL, array.toString()).commit()
+    }
+}
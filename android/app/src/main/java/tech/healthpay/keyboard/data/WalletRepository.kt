@@ -0,0 +1,280 @@
+package tech.healthpay.keyboard.data
+
+import android.util.Log
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.PreparedTransfer
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.api.TransferResponse
+import tech.healthpay.keyboard.api.WalletBalance
+import tech.healthpay.keyboard.api.WalletEvent
+import tech.healthpay.keyboard.api.WalletSubscriptionClient
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Wallet Repository - Single source of wallet state for the app and keyboard
+ *
+ * Balance and incoming transactions are pushed by [WalletSubscriptionClient]
+ * while live updates are running; [refreshBalance] is only needed for the
+ * first value or when live updates are off. Each pushed transaction is also
+ * filed in the [NotificationStore] inbox.
+ *
+ * Server balances are persisted by [WalletSnapshotStore]; [warmStart] shows
+ * that last-known balance before the network answers. It is only for
+ * display: [confirmedBalance] stays null until the server has answered in
+ * this process.
+ *
+ * [balance] is the server balance less transfers still in the
+ * [PendingLedger], so a payment sent through [transfer] shows immediately
+ * instead of after another balance round-trip. The snapshot always stores
+ * the server balance, never the projection. Transfers are sent through the
+ * [MutationOutbox]; those still queued from an earlier process are projected
+ * too, until the outbox resolves them.
+ */
+class WalletRepository(
+    private val apiClient: HealthPayApiClient,
+    private val subscriptionClient: WalletSubscriptionClient,
+    private val transactionSync: TransactionSyncManager,
+    private val notificationStore: NotificationStore,
+    private val snapshotStore: WalletSnapshotStore,
+    private val outbox: MutationOutbox
+) {
+
+    companion object {
+        private const val TAG = "WalletRepository"
+    }
+
+    private val _balance = MutableStateFlow<WalletBalance?>(null)
+    val balance: StateFlow<WalletBalance?> = _balance.asStateFlow()
+
+    private val _latestEvent = MutableStateFlow<WalletEvent?>(null)
+    val latestEvent: StateFlow<WalletEvent?> = _latestEvent.asStateFlow()
+
+    private val _balanceError = MutableStateFlow<ApiError?>(null)
+    val balanceError: StateFlow<ApiError?> = _balanceError.asStateFlow()
+
+    private val _pendingTransfers = MutableStateFlow(0)
+    val pendingTransfers: StateFlow<Int> = _pendingTransfers.asStateFlow()
+
+    // Guarded by the ledger's lock, together with the ledger itself
+    private val ledger = PendingLedger()
+    private var serverBalance: WalletBalance? = null
+    // False while serverBalance is the warm-start snapshot
+    private var serverBalanceFetched = false
+    private val warmStarted = AtomicBoolean(false)
+    // Debits of transfers a previous process left in the outbox, by idempotency key
+    private val restoredDebits = HashMap<String, Long>()
+
+    init {
+        synchronized(ledger) {
+            outbox.pending.value.filter { it.kind == MutationOutbox.Kind.TRANSFER }.forEach { entry ->
+                restoredDebits[entry.idempotencyKey] = ledger.add(entry.amount ?: Money.ZERO, Money.ZERO)
+            }
+            publishBalance()
+        }
+        outbox.addListener { entry, transfer, _, _ ->
+            val accepted = transfer?.takeIf { it.success }
+            synchronized(ledger) {
+                val id = restoredDebits.remove(entry.idempotencyKey) ?: return@addListener
+                if (accepted != null) ledger.accept(id, accepted.transactionId) else ledger.rollback(id)
+                publishBalance()
+            }
+            if (accepted != null) refreshBalance()
+        }
+
+        transactionSync.addListener(object : TransactionSyncManager.Listener {
+            override fun onNewTransactions(transactions: List<Transaction>) {
+                settleFromHistory(transactions)
+            }
+
+            // A transfer accepted as pending usually first arrives that way, then changes status
+            override fun onUpdatedTransactions(transactions: List<Transaction>) {
+                settleFromHistory(transactions)
+            }
+        })
+    }
+
+    private fun settleFromHistory(transactions: List<Transaction>) {
+        synchronized(ledger) {
+            if (ledger.onTransactions(transactions)) publishBalance()
+        }
+    }
+
+    private val subscriptionListener = object : WalletSubscriptionClient.Listener {
+        override fun onBalanceUpdated(balance: WalletBalance, transactionId: String?) {
+            // A push may have left the server before a debit was accepted, so it
+            // only settles the transfer it reports
+            onServerBalance(balance) { ledger.onPushedBalance(transactionId) }
+        }
+
+        override fun onTransaction(event: WalletEvent) {
+            Log.d(TAG, "Transaction event: ${event.type}")
+            _latestEvent.value = event
+            notificationStore.insert(toNotification(event))
+            transactionSync.sync()
+        }
+    }
+
+    /** Publishes the stored balance; a live balance that already arrived wins */
+    fun warmStart() {
+        if (!warmStarted.compareAndSet(false, true)) return
+        snapshotStore.readAsync { snapshot ->
+            val stored = snapshot?.balance ?: return@readAsync
+            synchronized(ledger) {
+                if (serverBalance == null) {
+                    serverBalance = stored
+                    publishBalance()
+                }
+            }
+        }
+    }
+
+    /**
+     * The projected balance, but only once a server balance has arrived in
+     * this process; a warm-start snapshot may be days old. Null otherwise.
+     */
+    fun confirmedBalance(): WalletBalance? = synchronized(ledger) {
+        if (serverBalanceFetched) serverBalance?.let { ledger.project(it) } else null
+    }
+
+    fun refreshBalance() {
+        val requestedAt = ledger.balanceRequested()
+        apiClient.getWalletBalance(object : ApiCallback<WalletBalance> {
+            override fun onSuccess(response: WalletBalance) {
+                onServerBalance(response) { ledger.onServerBalance(requestedAt) }
+            }
+
+            override fun onError(error: ApiError) {
+                Log.e(TAG, "Balance refresh failed: ${error.code}")
+                _balanceError.value = error
+            }
+        })
+    }
+
+    /**
+     * Sends a transfer and projects its debit ([amount] plus the quoted [fee],
+     * if known) onto [balance] right away. The debit is rolled back if the
+     * transfer fails, and settled by the first server balance requested after
+     * the server accepted it.
+     */
+    fun transfer(
+        recipientMobile: String,
+        amount: Money,
+        note: String?,
+        callback: ApiCallback<TransferResponse>,
+        fee: Money = Money.ZERO
+    ) = transfer(apiClient.prepareTransfer(recipientMobile, amount, note), callback, fee)
+
+    /**
+     * Sends a transfer prepared with [HealthPayApiClient.prepareTransfer]
+     * through the [MutationOutbox], as above. If the network fails, the
+     * transfer stays queued with its debit projected: [queued] is told at
+     * once and [callback] hears the outcome when the outbox delivers it.
+     */
+    fun transfer(
+        prepared: PreparedTransfer,
+        callback: ApiCallback<TransferResponse>,
+        fee: Money = Money.ZERO,
+        queued: (ApiError) -> Unit = {}
+    ) {
+        val id = synchronized(ledger) {
+            ledger.add(prepared.amount, fee).also { publishBalance() }
+        }
+        outbox.submitTransfer(prepared, object : MutationOutbox.Callback<TransferResponse> {
+            override fun onSuccess(response: TransferResponse) {
+                synchronized(ledger) {
+                    if (response.success) ledger.accept(id, response.transactionId) else ledger.rollback(id)
+                    publishBalance()
+                }
+                // Off the critical path: the projection is already showing.
+                // A pushed balance may have raced ahead of the acceptance, so
+                // only a request issued now is known to include the debit.
+                if (response.success) refreshBalance()
+                callback.onSuccess(response)
+            }
+
+            override fun onError(error: ApiError) {
+                synchronized(ledger) {
+                    ledger.rollback(id)
+                    publishBalance()
+                }
+                callback.onError(error)
+            }
+
+            override fun onQueued(entry: MutationOutbox.Entry, error: ApiError) {
+                queued(error)
+            }
+        })
+    }
+
+    /** Takes [balance] as the server's, settling whatever [settle] knows it includes */
+    private fun onServerBalance(balance: WalletBalance, settle: () -> Unit) {
+        synchronized(ledger) {
+            serverBalance = balance
+            serverBalanceFetched = true
+            settle()
+            publishBalance()
+        }
+        _balanceError.value = null
+        snapshotStore.scheduleWrite(balance)
+    }
+
+    private fun publishBalance() {
+        _balance.value = serverBalance?.let { ledger.project(it) }
+        _pendingTransfers.value = ledger.pendingCount()
+    }
+
+    /**
+     * Opens the subscription and catches up once (balance and history delta),
+     * since the subscription only reports changes. While the subscription is
+     * already live the state is current, so nothing is fetched.
+     */
+    fun startLiveUpdates() {
+        if (subscriptionClient.isLive) return
+        subscriptionClient.start(subscriptionListener)
+        refreshBalance()
+        transactionSync.sync()
+    }
+
+    fun stopLiveUpdates() {
+        subscriptionClient.stop()
+    }
+
+    private fun toNotification(event: WalletEvent): WalletNotification {
+        val received = event.type.equals("credit", ignoreCase = true) ||
+            event.type.equals("received", ignoreCase = true)
+        val createdAt = TransactionStore.parseCreatedAt(event.createdAt)
+        return WalletNotification(
+            id = "tx:${event.transactionId}",
+            type = if (received) NotificationType.PAYMENT_RECEIVED else NotificationType.PAYMENT_SENT,
+            title = event.counterpartyName.ifEmpty { event.counterpartyMobile },
+            message = event.amount.toString(),
+            data = mapOf(
+                "transactionId" to event.transactionId,
+                "amount" to event.amount.toString(),
+                "counterpartyMobile" to event.counterpartyMobile
+            ),
+            createdAt = if (createdAt > 0) createdAt else System.currentTimeMillis()
+        )
+    }
+
+    fun clear() {
+        stopLiveUpdates()
+        synchronized(ledger) {
+            ledger.clear()
+            restoredDebits.clear()
+            serverBalance = null
+            serverBalanceFetched = false
+            publishBalance()
+        }
+        _latestEvent.value = null
+        _balanceError.value = null
+        warmStarted.set(false)
+        snapshotStore.clear()
+    }
+}
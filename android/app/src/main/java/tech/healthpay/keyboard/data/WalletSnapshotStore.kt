@@ -0,0 +1,169 @@
+package tech.healthpay.keyboard.data
+
+import android.content.Context
+import android.util.AtomicFile
+import android.util.Log
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.WalletBalance
+import tech.healthpay.keyboard.security.EncryptionManager
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Last-known wallet state for warm-starting the keyboard
+ *
+ * Only what the keyboard shows before the network answers is kept; history
+ * and recipients are rebuilt from [TransactionStore].
+ */
+data class WalletSnapshot(
+    val balance: WalletBalance?,
+    val savedAt: Long
+)
+
+/**
+ * Wallet Snapshot Store - Encrypted binary snapshot of [WalletSnapshot]
+ *
+ * Layout: a plain 5-byte header (magic + format version), then the
+ * [EncryptionManager] output for the body. The header is authenticated as
+ * associated data, so it cannot be swapped. The body is written with
+ * [DataOutputStream]: fixed-width numbers and length-prefixed modified UTF-8,
+ * read back field by field with no parsing or reflection.
+ *
+ * [read] is one buffered file read plus one decrypt. [scheduleWrite] captures
+ * current state on a background thread and replaces the file atomically via
+ * [AtomicFile]; requests made while a write is pending are coalesced.
+ */
+class WalletSnapshotStore(
+    context: Context,
+    private val encryptionManager: EncryptionManager
+) {
+
+    companion object {
+        private const val TAG = "WalletSnapshotStore"
+        private const val FILE_NAME = "wallet_snapshot.bin"
+        private const val MAGIC = 0x48505753 // "HPWS"
+        private const val FORMAT_VERSION: Byte = 2
+        private const val HEADER_SIZE = 5
+
+        /** Body bytes for [snapshot], before encryption */
+        internal fun encode(snapshot: WalletSnapshot): ByteArray {
+            val bytes = ByteArrayOutputStream(64)
+            val output = DataOutputStream(bytes)
+            output.writeLong(snapshot.savedAt)
+            val balance = snapshot.balance
+            output.writeBoolean(balance != null)
+            if (balance != null) {
+                output.writeLong(balance.balance.minorUnits)
+                output.writeUTF(balance.currency)
+                output.writeUTF(balance.lastUpdated)
+            }
+            output.flush()
+            return bytes.toByteArray()
+        }
+
+        /** Reads back what [encode] wrote */
+        internal fun decode(body: ByteArray): WalletSnapshot {
+            val input = DataInputStream(ByteArrayInputStream(body))
+            val savedAt = input.readLong()
+            val balance = if (input.readBoolean()) {
+                WalletBalance(
+                    balance = Money(input.readLong()),
+                    currency = input.readUTF(),
+                    lastUpdated = input.readUTF()
+                )
+            } else {
+                null
+            }
+            return WalletSnapshot(balance, savedAt)
+        }
+    }
+
+    private val file = AtomicFile(File(context.filesDir, FILE_NAME))
+    private val executor = Executors.newSingleThreadExecutor()
+    private val writePending = AtomicBoolean(false)
+    private val latestBalance = AtomicReference<WalletBalance?>(null)
+
+    private val header = ByteArrayOutputStream(HEADER_SIZE).also { bytes ->
+        DataOutputStream(bytes).apply {
+            writeInt(MAGIC)
+            writeByte(FORMAT_VERSION.toInt())
+        }
+    }.toByteArray()
+
+    // =====================
+    // Reading
+    // =====================
+
+    /**
+     * The stored snapshot, or null if there is none or it was written by an
+     * incompatible version or cannot be decrypted. Call off the main thread.
+     */
+    fun read(): WalletSnapshot? {
+        val bytes = try {
+            file.readFully()
+        } catch (e: FileNotFoundException) {
+            return null
+        }
+        if (bytes.size <= HEADER_SIZE || !header.indices.all { bytes[it] == header[it] }) {
+            Log.d(TAG, "Ignoring snapshot with unknown format")
+            return null
+        }
+
+        return try {
+            val body = encryptionManager.decryptBytes(bytes, HEADER_SIZE, bytes.size - HEADER_SIZE, header)
+            decode(body)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to read snapshot", e)
+            null
+        }
+    }
+
+    fun readAsync(callback: (WalletSnapshot?) -> Unit) {
+        executor.execute { callback(read()) }
+    }
+
+    // =====================
+    // Writing
+    // =====================
+
+    /** Persists [balance], or the last one given if null */
+    fun scheduleWrite(balance: WalletBalance?) {
+        if (balance != null) latestBalance.set(balance)
+        if (!writePending.compareAndSet(false, true)) return
+        executor.execute {
+            writePending.set(false)
+            try {
+                write(WalletSnapshot(latestBalance.get(), System.currentTimeMillis()))
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to write snapshot", e)
+            }
+        }
+    }
+
+    private fun write(snapshot: WalletSnapshot) {
+        val encrypted = encryptionManager.encryptBytes(encode(snapshot), header)
+
+        val stream = file.startWrite()
+        try {
+            stream.write(header)
+            stream.write(encrypted)
+            file.finishWrite(stream)
+        } catch (e: Exception) {
+            file.failWrite(stream)
+            throw e
+        }
+        Log.d(TAG, "Snapshot written: ${HEADER_SIZE + encrypted.size} bytes")
+    }
+
+    fun clear() {
+        latestBalance.set(null)
+        executor.execute { file.delete() }
+    }
+}
@@ -0,0 +1,119 @@
+package tech.healthpay.keyboard.qr
+
+import android.graphics.Bitmap
+import android.os.SystemClock
+import android.util.Log
+import android.util.LruCache
+import com.google.zxing.BarcodeFormat
+import com.google.zxing.EncodeHintType
+import com.google.zxing.common.BitArray
+import com.google.zxing.common.BitMatrix
+import com.google.zxing.qrcode.QRCodeWriter
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
+/**
+ * QR Code Renderer - Encodes and rasterizes QR codes off the main thread
+ *
+ * Bitmaps are cached by payload and size, so a user's receive code is
+ * encoded once and then served from memory. Rasterizing writes into one
+ * reused pixel buffer instead of a new IntArray per code, and the bitmap is
+ * RGB_565 since a QR code has no alpha. A module spans many pixel rows, so
+ * a row equal to the one above is copied rather than read bit by bit.
+ */
+class QrCodeRenderer {
+
+    companion object {
+        private const val TAG = "QrCodeRenderer"
+        private const val CACHE_BYTES = 4 * 1024 * 1024
+        private const val MARGIN_MODULES = 1
+        private const val DARK = 0xFF000000.toInt()
+        private const val LIGHT = 0xFFFFFFFF.toInt()
+
+        private val HINTS = mapOf(
+            EncodeHintType.ERROR_CORRECTION to ErrorCorrectionLevel.M,
+            EncodeHintType.CHARACTER_SET to "UTF-8",
+            EncodeHintType.MARGIN to MARGIN_MODULES
+        )
+
+        /** The [sizePx]-square matrix for [payload], scaled to whole pixels per module */
+        internal fun encodeMatrix(writer: QRCodeWriter, payload: String, sizePx: Int): BitMatrix =
+            writer.encode(payload, BarcodeFormat.QR_CODE, sizePx, sizePx, HINTS)
+
+        /** Writes [matrix] into [buffer] as opaque pixels, row-major */
+        internal fun fillPixels(matrix: BitMatrix, buffer: IntArray) {
+            val width = matrix.width
+            var row = BitArray(width)
+            var previous = BitArray(width)
+            for (y in 0 until matrix.height) {
+                row = matrix.getRow(y, row)
+                val offset = y * width
+                if (y > 0 && row == previous) {
+                    System.arraycopy(buffer, offset - width, buffer, offset, width)
+                } else {
+                    for (x in 0 until width) {
+                        buffer[offset + x] = if (row.get(x)) DARK else LIGHT
+                    }
+                }
+                val done = previous
+                previous = row
+                row = done
+            }
+        }
+    }
+
+    data class Timings(val encodeMs: Long, val rasterMs: Long)
+
+    private val cache = object : LruCache<String, Bitmap>(CACHE_BYTES) {
+        override fun sizeOf(key: String, value: Bitmap) = value.byteCount
+    }
+
+    private val writer = QRCodeWriter()
+    private val pixelLock = Any()
+    private var pixels = IntArray(0)
+
+    @Volatile
+    var lastTimings: Timings? = null
+        private set
+
+    /** Cached bitmap for [payload] at [sizePx], if one has been rendered */
+    fun peek(payload: String, sizePx: Int): Bitmap? = cache.get(key(payload, sizePx))
+
+    /** Returns a [sizePx]-square QR code bitmap for [payload] */
+    suspend fun render(payload: String, sizePx: Int): Bitmap {
+        val key = key(payload, sizePx)
+        cache.get(key)?.let { return it }
+
+        return withContext(Dispatchers.Default) {
+            cache.get(key) ?: encode(payload, sizePx).also { cache.put(key, it) }
+        }
+    }
+
+    private fun encode(payload: String, sizePx: Int): Bitmap {
+        val encodeStart = SystemClock.elapsedRealtime()
+        val matrix = encodeMatrix(writer, payload, sizePx)
+        val rasterStart = SystemClock.elapsedRealtime()
+        val bitmap = rasterize(matrix)
+        val end = SystemClock.elapsedRealtime()
+
+        lastTimings = Timings(encodeMs = rasterStart - encodeStart, rasterMs = end - rasterStart)
+        Log.d(TAG, "Rendered ${sizePx}px QR: encode ${rasterStart - encodeStart}ms, raster ${end - rasterStart}ms")
+        return bitmap
+    }
+
+    private fun rasterize(matrix: BitMatrix): Bitmap {
+        val width = matrix.width
+        val height = matrix.height
+        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565)
+
+        synchronized(pixelLock) {
+            if (pixels.size < width * height) pixels = IntArray(width * height)
+            fillPixels(matrix, pixels)
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
+        }
+        return bitmap
+    }
+
+    private fun key(payload: String, sizePx: Int) = "$sizePx:$payload"
+}
@@ -0,0 +1,146 @@
+package tech.healthpay.keyboard.qr
+
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.data.PhoneNumbers
+import java.net.URLDecoder
+
+/**
+ * A validated HealthPay payment code
+ */
+data class QRCodeData(
+    val recipientPhone: String,
+    val amount: Money?,
+    val expiresAt: Long?,
+    val type: String,
+    val signature: String?
+)
+
+/**
+ * Why a scanned code was rejected before reaching the server
+ */
+enum class QrRejection {
+    MALFORMED,
+    INVALID_RECIPIENT,
+    SELF_PAYMENT,
+    INVALID_AMOUNT,
+    EXPIRED,
+    /** Signature missing where required, or not in the signature format */
+    MALFORMED_SIGNATURE
+}
+
+sealed class QrParseResult {
+    data class Valid(val data: QRCodeData) : QrParseResult()
+    data class Invalid(val reason: QrRejection) : QrParseResult()
+}
+
+/**
+ * QR Payload Parser - Validates "healthpay://pay?to=…" codes on the device
+ *
+ * Parameters: to (recipient, required), amount, exp (expiry, epoch seconds),
+ * type and sig. Anything that is not exactly this shape is rejected: unknown
+ * or repeated parameters, bad escapes, oversize payloads. Codes carrying an
+ * amount or expiry are issued by the server and must carry a signature.
+ *
+ * Only the signature's format is checked: this is a sanity check, not an
+ * authenticity check. Nothing verifies the signature, since a payment goes
+ * out as a plain transfer to the decoded recipient, so the recipient and
+ * amount the user confirms are what is actually authorized.
+ *
+ * Pure and exception-free for any input, so arbitrary camera text is safe.
+ */
+object QrPayloadParser {
+
+    const val MAX_PAYLOAD_LENGTH = 512
+    val MAX_AMOUNT = Money.ofMajor(100_000)
+    const val TYPE_P2P = "p2p"
+    const val TYPE_MERCHANT = "merchant"
+
+    private const val SCHEME_PREFIX = "healthpay://pay?"
+    private const val PARAM_TO = "to"
+    private const val PARAM_AMOUNT = "amount"
+    private const val PARAM_EXPIRY = "exp"
+    private const val PARAM_TYPE = "type"
+    private const val PARAM_SIGNATURE = "sig"
+
+    private val KNOWN_PARAMS = setOf(PARAM_TO, PARAM_AMOUNT, PARAM_EXPIRY, PARAM_TYPE, PARAM_SIGNATURE)
+    private val KNOWN_TYPES = setOf(TYPE_P2P, TYPE_MERCHANT)
+
+    private val PHONE_PATTERN = Regex("^\\+?[0-9 ]{10,16}$")
+    private val AMOUNT_PATTERN = Regex("^[0-9]{1,9}(\\.[0-9]{1,2})?$")
+    private val EXPIRY_PATTERN = Regex("^[0-9]{1,12}$")
+    // Base64url HMAC-SHA256, unpadded
+    private val SIGNATURE_PATTERN = Regex("^[A-Za-z0-9_-]{43}$")
+
+    /**
+     * Parses and validates [raw]. [selfMobile] is the signed-in user's number,
+     * so a user cannot pay their own code.
+     */
+    fun parse(raw: String, nowMillis: Long = System.currentTimeMillis(), selfMobile: String? = null): QrParseResult {
+        if (raw.length > MAX_PAYLOAD_LENGTH) return QrParseResult.Invalid(QrRejection.MALFORMED)
+        if (!raw.regionMatches(0, SCHEME_PREFIX, 0, SCHEME_PREFIX.length, ignoreCase = true)) {
+            return QrParseResult.Invalid(QrRejection.MALFORMED)
+        }
+        val params = parseQuery(raw.substring(SCHEME_PREFIX.length))
+            ?: return QrParseResult.Invalid(QrRejection.MALFORMED)
+
+        val to = params[PARAM_TO]
+        if (to == null || !PHONE_PATTERN.matches(to)) return QrParseResult.Invalid(QrRejection.INVALID_RECIPIENT)
+        val recipient = PhoneNumbers.toLocal(to)
+        if (!PhoneNumbers.isValidLocalMobile(recipient)) return QrParseResult.Invalid(QrRejection.INVALID_RECIPIENT)
+        if (selfMobile != null && PhoneNumbers.toLocal(selfMobile) == recipient) {
+            return QrParseResult.Invalid(QrRejection.SELF_PAYMENT)
+        }
+
+        val amount = params[PARAM_AMOUNT]?.let { value ->
+            if (!AMOUNT_PATTERN.matches(value)) return QrParseResult.Invalid(QrRejection.INVALID_AMOUNT)
+            parseAmount(value) ?: return QrParseResult.Invalid(QrRejection.INVALID_AMOUNT)
+        }
+
+        val expiresAt = params[PARAM_EXPIRY]?.let { value ->
+            if (!EXPIRY_PATTERN.matches(value)) return QrParseResult.Invalid(QrRejection.MALFORMED)
+            value.toLong() * 1000
+        }
+        if (expiresAt != null && expiresAt <= nowMillis) return QrParseResult.Invalid(QrRejection.EXPIRED)
+
+        val type = params[PARAM_TYPE] ?: TYPE_P2P
+        if (type !in KNOWN_TYPES) return QrParseResult.Invalid(QrRejection.MALFORMED)
+
+        val signature = params[PARAM_SIGNATURE]
+        if (signature != null && !SIGNATURE_PATTERN.matches(signature)) {
+            return QrParseResult.Invalid(QrRejection.MALFORMED_SIGNATURE)
+        }
+        if (signature == null && (amount != null || expiresAt != null || type == TYPE_MERCHANT)) {
+            return QrParseResult.Invalid(QrRejection.MALFORMED_SIGNATURE)
+        }
+
+        return QrParseResult.Valid(QRCodeData(recipient, amount, expiresAt, type, signature))
+    }
+
+    /**
+     * A positive amount of at most two decimals and [MAX_AMOUNT], or null.
+     * Shared with manual amount entry, which may also use Arabic digits and
+     * grouping; codes themselves must match the stricter ASCII form.
+     */
+    fun parseAmount(value: CharSequence): Money? = Money.parse(value)?.takeIf { isValidAmount(it) }
+
+    fun isValidAmount(amount: Money): Boolean = amount.isPositive && amount <= MAX_AMOUNT
+
+    /** Decoded parameters, or null on unknown, repeated or badly escaped ones */
+    private fun parseQuery(query: String): Map<String, String>? {
+        if (query.isEmpty()) return null
+        val params = HashMap<String, String>(KNOWN_PARAMS.size)
+        for (pair in query.split('&')) {
+            val separator = pair.indexOf('=')
+            if (separator <= 0) return null
+            val name = pair.substring(0, separator)
+            if (name !in KNOWN_PARAMS) return null
+            val value = try {
+                URLDecoder.decode(pair.substring(separator + 1), "UTF-8")
+            } catch (e: IllegalArgumentException) {
+                return null
+            }
+            if (params.put(name, value) != null) return null
+        }
+        return params
+    }
+}
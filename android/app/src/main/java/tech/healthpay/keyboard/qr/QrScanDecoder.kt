@@ -0,0 +1,181 @@
+package tech.healthpay.keyboard.qr
+
+import android.graphics.ImageFormat
+import android.graphics.Rect
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import com.google.zxing.BarcodeFormat
+import com.google.zxing.BinaryBitmap
+import com.google.zxing.DecodeHintType
+import com.google.zxing.LuminanceSource
+import com.google.zxing.MultiFormatReader
+import com.google.zxing.PlanarYUVLuminanceSource
+import com.google.zxing.ReaderException
+import com.google.zxing.common.HybridBinarizer
+import com.journeyapps.barcodescanner.SourceData
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * QR Scan Decoder - Decodes camera frames for QR codes on a small worker pool
+ *
+ * Only QR_CODE is tried, only the centre region of interest is binarized,
+ * and a frame that arrives while every worker is busy is dropped rather than
+ * queued, so decoding never falls behind the camera. The region is a centred
+ * square, which stays centred whatever the sensor rotation, and QR decoding
+ * is orientation-independent, so NV21 frames are used in place unrotated.
+ *
+ * The first decoded text is delivered once, on the main thread.
+ */
+class QrScanDecoder(
+    private val workers: Int = DEFAULT_WORKERS,
+    private val listener: Listener
+) {
+
+    companion object {
+        private const val TAG = "QrScanDecoder"
+        const val DEFAULT_WORKERS = 2
+        private const val ROI_FRACTION = 0.7f
+
+        private val HINTS = mapOf(
+            DecodeHintType.POSSIBLE_FORMATS to listOf(BarcodeFormat.QR_CODE),
+            DecodeHintType.CHARACTER_SET to "UTF-8"
+        )
+
+        /** A reader restricted to QR codes; keeps per-decode state, so one per thread */
+        internal fun newReader() = MultiFormatReader().apply { setHints(HINTS) }
+
+        /** Side of the centred square region of interest in a [width] x [height] frame */
+        private fun roiSide(width: Int, height: Int) = (minOf(width, height) * ROI_FRACTION).toInt()
+
+        /** The centred region of a Y-first (e.g. NV21) frame, wrapped without copying */
+        internal fun centreSource(data: ByteArray, width: Int, height: Int): LuminanceSource {
+            val side = roiSide(width, height)
+            return PlanarYUVLuminanceSource(data, width, height, (width - side) / 2, (height - side) / 2, side, side, false)
+        }
+
+        /** Text of the QR code in [source], or null if none is found */
+        internal fun decodeText(reader: MultiFormatReader, source: LuminanceSource): String? = try {
+            reader.decodeWithState(BinaryBitmap(HybridBinarizer(source))).text
+        } catch (e: ReaderException) {
+            null
+        } finally {
+            reader.reset()
+        }
+    }
+
+    fun interface Listener {
+        fun onDecoded(text: String)
+    }
+
+    data class Stats(
+        val framesSubmitted: Long,
+        val framesDropped: Long,
+        val decodeAttempts: Long,
+        val averageDecodeMs: Double
+    )
+
+    private val executor = Executors.newFixedThreadPool(workers)
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val inFlight = AtomicInteger(0)
+    private val delivered = AtomicBoolean(false)
+
+    // MultiFormatReader keeps per-decode state, so each worker has its own
+    private val readers = object : ThreadLocal<MultiFormatReader>() {
+        override fun initialValue() = newReader()
+    }
+
+    private val submitted = AtomicLong()
+    private val dropped = AtomicLong()
+    private val attempts = AtomicLong()
+    private val decodeNanos = AtomicLong()
+
+    /**
+     * Hands [frame] to a free worker. Returns false if the frame was dropped
+     * because all workers are busy or a code was already found.
+     */
+    fun submit(frame: SourceData): Boolean {
+        submitted.incrementAndGet()
+        if (delivered.get() || !tryAcquireWorker()) {
+            dropped.incrementAndGet()
+            return false
+        }
+        try {
+            executor.execute {
+                try {
+                    decode(luminanceSource(frame))
+                } catch (e: Exception) {
+                    Log.e(TAG, "Frame decode failed", e)
+                } finally {
+                    inFlight.decrementAndGet()
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            // Shut down between the check and the hand-off
+            inFlight.decrementAndGet()
+            return false
+        }
+        return true
+    }
+
+    fun stats(): Stats {
+        val count = attempts.get()
+        return Stats(
+            framesSubmitted = submitted.get(),
+            framesDropped = dropped.get(),
+            decodeAttempts = count,
+            averageDecodeMs = if (count == 0L) 0.0 else decodeNanos.get() / 1_000_000.0 / count
+        )
+    }
+
+    fun shutdown() {
+        delivered.set(true)
+        executor.shutdownNow()
+        Log.d(TAG, "Scan stats: ${stats()}")
+    }
+
+    private fun tryAcquireWorker(): Boolean {
+        while (true) {
+            val current = inFlight.get()
+            if (current >= workers) return false
+            if (inFlight.compareAndSet(current, current + 1)) return true
+        }
+    }
+
+    /** Wraps the centred region of the frame without copying it */
+    private fun luminanceSource(frame: SourceData): LuminanceSource {
+        val width = frame.dataWidth
+        val height = frame.dataHeight
+        // The Y plane comes first, so the luminance is usable in place
+        if (frame.imageFormat == ImageFormat.NV21) return centreSource(frame.data, width, height)
+
+        val side = roiSide(width, height)
+        val left = (width - side) / 2
+        val top = (height - side) / 2
+        // createSource() rotates first, so the crop is in rotated coordinates
+        frame.cropRect = if (frame.isRotated) {
+            Rect(top, left, top + side, left + side)
+        } else {
+            Rect(left, top, left + side, top + side)
+        }
+        return frame.createSource()
+    }
+
+    private fun decode(source: LuminanceSource) {
+        if (delivered.get()) return
+        val reader = readers.get()!!
+        val start = SystemClock.elapsedRealtimeNanos()
+        val text = decodeText(reader, source)
+        attempts.incrementAndGet()
+        decodeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - start)
+
+        if (text != null && delivered.compareAndSet(false, true)) {
+            mainHandler.post { listener.onDecoded(text) }
+        }
+    }
+}
@@ -8,6 +8,10 @@ import androidx.security.crypto.MasterKey
 
 /**
  * Authentication Manager - Handles authentication state and session management
+ *
+ * The biometric preference is read from the encrypted prefs once and then
+ * kept in memory, and device capability comes from [BiometricHelper]'s
+ * cached status, so [isBiometricEnabled] is cheap enough to call per payment.
  */
 class AuthenticationManager(
     private val context: Context,
@@ -22,8 +26,12 @@ class AuthenticationManager(
         private const val KEY_LAST_AUTH_TIME = "last_auth_time"
         private const val KEY_SESSION_TIMEOUT = "session_timeout"
         private const val DEFAULT_SESSION_TIMEOUT = 15 * 60 * 1000L // 15 minutes
+        private const val KEY_PAYMENT_AUTH_WINDOW = "payment_auth_window"
     }
 
+    @Volatile
+    private var biometricEnabled: Boolean? = null
+
     private val authPrefs: SharedPreferences by lazy {
         val masterKey = MasterKey.Builder(context)
             .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
@@ -38,6 +46,12 @@ class AuthenticationManager(
         )
     }
 
+    init {
+        biometricHelper.setAuthWindow(
+            authPrefs.getInt(KEY_PAYMENT_AUTH_WINDOW, BiometricHelper.DEFAULT_AUTH_WINDOW_SECONDS)
+        )
+    }
+
     fun isAuthenticated(): Boolean {
         if (!tokenManager.hasValidToken()) {
             Log.d(TAG, "No valid token")
@@ -58,14 +72,26 @@ class AuthenticationManager(
     }
 
     fun isBiometricEnabled(): Boolean {
-        return authPrefs.getBoolean(KEY_BIOMETRIC_ENABLED, false) && biometricHelper.canAuthenticate()
+        val enabled = biometricEnabled
+            ?: authPrefs.getBoolean(KEY_BIOMETRIC_ENABLED, false).also { biometricEnabled = it }
+        return enabled && biometricHelper.canAuthenticate()
     }
 
     fun setBiometricEnabled(enabled: Boolean) {
         authPrefs.edit().putBoolean(KEY_BIOMETRIC_ENABLED, enabled).apply()
+        biometricEnabled = enabled
         Log.d(TAG, "Biometric enabled: $enabled")
     }
 
+    /** Seconds after a biometric prompt during which payments do not prompt again */
+    fun getPaymentAuthWindow(): Int =
+        authPrefs.getInt(KEY_PAYMENT_AUTH_WINDOW, BiometricHelper.DEFAULT_AUTH_WINDOW_SECONDS)
+
+    fun setPaymentAuthWindow(seconds: Int) {
+        authPrefs.edit().putInt(KEY_PAYMENT_AUTH_WINDOW, seconds).apply()
+        biometricHelper.setAuthWindow(seconds)
+    }
+
     fun setSessionTimeout(timeoutMs: Long) {
         authPrefs.edit().putLong(KEY_SESSION_TIMEOUT, timeoutMs).apply()
     }
@@ -85,6 +111,7 @@ class AuthenticationManager(
             remove(KEY_LAST_AUTH_TIME)
             apply()
         }
+        biometricHelper.resetAuthWindow()
         Log.d(TAG, "Session cleared")
     }
 
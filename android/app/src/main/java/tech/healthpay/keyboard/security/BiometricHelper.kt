@@ -1,48 +1,260 @@
 package tech.healthpay.keyboard.security
 
 import android.content.Context
+import android.os.Build
+import android.os.SystemClock
+import android.security.keystore.KeyGenParameterSpec
+import android.security.keystore.KeyInfo
+import android.security.keystore.KeyPermanentlyInvalidatedException
+import android.security.keystore.KeyProperties
+import android.security.keystore.UserNotAuthenticatedException
 import android.util.Log
 import androidx.biometric.BiometricManager
 import androidx.biometric.BiometricPrompt
 import androidx.core.content.ContextCompat
 import androidx.fragment.app.FragmentActivity
+import java.security.KeyStore
+import javax.crypto.Cipher
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import javax.crypto.SecretKeyFactory
 
 /**
  * Biometric Helper - Handles biometric authentication
+ *
+ * The capability check is cached: [refreshStatus] queries BiometricManager
+ * and is called from onResume, when enrollment may have changed in system
+ * settings; [canAuthenticate] and [getBiometricStatus] only read the result.
+ *
+ * Payments are authorized with [authorizePayment]. A successful prompt
+ * unlocks an auth-bound Keystore key for the configured window, and further
+ * payments skip the prompt only while both hold: the key is usable, and the
+ * app's own prompt succeeded within the window. The key alone is not
+ * enough, since any strong-biometric authentication opens it, including
+ * unlocking the device. A new biometric enrollment invalidates the key.
  */
 class BiometricHelper(private val context: Context) {
 
     companion object {
         private const val TAG = "BiometricHelper"
+        private const val KEYSTORE_PROVIDER = "AndroidKeyStore"
+        private const val PAYMENT_KEY_ALIAS = "healthpay_payment_auth_key"
+        private const val TRANSFORMATION = "AES/GCM/NoPadding"
+        const val DEFAULT_AUTH_WINDOW_SECONDS = 60
     }
 
+    /** Tap-to-authorized timings, split by whether the prompt was shown */
+    data class AuthTimings(
+        val promptedCount: Long,
+        val averagePromptedMs: Double,
+        val skippedCount: Long,
+        val averageSkippedMs: Double
+    )
+
     private val biometricManager = BiometricManager.from(context)
 
-    fun canAuthenticate(): Boolean {
-        return when (biometricManager.canAuthenticate(BiometricManager.Authenticators.BIOMETRIC_STRONG)) {
-            BiometricManager.BIOMETRIC_SUCCESS -> {
-                Log.d(TAG, "Biometric authentication available")
-                true
-            }
-            BiometricManager.BIOMETRIC_ERROR_NO_HARDWARE -> {
-                Log.d(TAG, "No biometric hardware")
-                false
-            }
-            BiometricManager.BIOMETRIC_ERROR_HW_UNAVAILABLE -> {
-                Log.d(TAG, "Biometric hardware unavailable")
-                false
+    private val keyStore: KeyStore by lazy {
+        KeyStore.getInstance(KEYSTORE_PROVIDER).apply { load(null) }
+    }
+
+    @Volatile
+    private var status: BiometricStatus? = null
+
+    @Volatile
+    var authWindowSeconds = DEFAULT_AUTH_WINDOW_SECONDS
+        private set
+
+    private var promptInfo: BiometricPrompt.PromptInfo? = null
+    private var promptInfoKey: String? = null
+
+    private var activePrompt: BiometricPrompt? = null
+
+    // elapsedRealtime of this app's last successful payment prompt
+    @Volatile
+    private var lastPromptAt: Long? = null
+
+    private val timingLock = Any()
+    private var promptedCount = 0L
+    private var promptedMs = 0L
+    private var skippedCount = 0L
+    private var skippedMs = 0L
+
+    // =====================
+    // Capability
+    // =====================
+
+    /** Re-queries the device; call from onResume */
+    fun refreshStatus(): BiometricStatus {
+        val current = when (biometricManager.canAuthenticate(BiometricManager.Authenticators.BIOMETRIC_STRONG)) {
+            BiometricManager.BIOMETRIC_SUCCESS -> BiometricStatus.AVAILABLE
+            BiometricManager.BIOMETRIC_ERROR_NO_HARDWARE -> BiometricStatus.NO_HARDWARE
+            BiometricManager.BIOMETRIC_ERROR_HW_UNAVAILABLE -> BiometricStatus.UNAVAILABLE
+            BiometricManager.BIOMETRIC_ERROR_NONE_ENROLLED -> BiometricStatus.NOT_ENROLLED
+            else -> BiometricStatus.UNKNOWN
+        }
+        if (current != status) Log.d(TAG, "Biometric status: $current")
+        status = current
+        return current
+    }
+
+    fun canAuthenticate(): Boolean = getBiometricStatus() == BiometricStatus.AVAILABLE
+
+    fun getBiometricStatus(): BiometricStatus = status ?: refreshStatus()
+
+    // =====================
+    // Payment authorization
+    // =====================
+
+    /**
+     * Sets how long one successful prompt covers further payments. The
+     * window is a property of the key, so a key made with another window is
+     * replaced and the next payment prompts again.
+     */
+    fun setAuthWindow(seconds: Int) {
+        authWindowSeconds = seconds
+        val key = paymentKey() ?: return
+        val keyWindow = try {
+            val factory = SecretKeyFactory.getInstance(key.algorithm, KEYSTORE_PROVIDER)
+            (factory.getKeySpec(key, KeyInfo::class.java) as KeyInfo).userAuthenticationValidityDurationSeconds
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to read payment key window", e)
+            -1
+        }
+        if (keyWindow != seconds) resetAuthWindow()
+    }
+
+    /**
+     * Calls [onSuccess] straight away if the user authenticated within the
+     * window, otherwise shows the prompt first.
+     */
+    fun authorizePayment(
+        activity: FragmentActivity,
+        title: String,
+        subtitle: String,
+        negativeButtonText: String,
+        onSuccess: () -> Unit,
+        onError: (Int, String) -> Unit
+    ) {
+        val start = SystemClock.elapsedRealtime()
+        if (isWithinAuthWindow()) {
+            recordTiming(start, prompted = false)
+            onSuccess()
+            return
+        }
+        ensurePaymentKey()
+        authenticate(
+            activity = activity,
+            title = title,
+            subtitle = subtitle,
+            negativeButtonText = negativeButtonText,
+            onSuccess = {
+                lastPromptAt = SystemClock.elapsedRealtime()
+                recordTiming(start, prompted = true)
+                onSuccess()
+            },
+            onError = onError,
+            onFailed = {} // The prompt stays up and lets the user retry
+        )
+    }
+
+    /**
+     * True if this app's prompt succeeded within the window and the
+     * auth-bound key agrees that the window is still open
+     */
+    fun isWithinAuthWindow(): Boolean {
+        val promptedAt = lastPromptAt ?: return false
+        if (SystemClock.elapsedRealtime() - promptedAt >= authWindowSeconds * 1000L) return false
+        val key = paymentKey() ?: return false
+        return try {
+            Cipher.getInstance(TRANSFORMATION).init(Cipher.ENCRYPT_MODE, key)
+            true
+        } catch (e: UserNotAuthenticatedException) {
+            false
+        } catch (e: KeyPermanentlyInvalidatedException) {
+            Log.d(TAG, "Payment key invalidated by an enrollment change")
+            deletePaymentKey()
+            false
+        } catch (e: Exception) {
+            Log.e(TAG, "Payment key check failed", e)
+            false
+        }
+    }
+
+    fun authTimings(): AuthTimings = synchronized(timingLock) {
+        AuthTimings(
+            promptedCount = promptedCount,
+            averagePromptedMs = if (promptedCount == 0L) 0.0 else promptedMs.toDouble() / promptedCount,
+            skippedCount = skippedCount,
+            averageSkippedMs = if (skippedCount == 0L) 0.0 else skippedMs.toDouble() / skippedCount
+        )
+    }
+
+    private fun recordTiming(start: Long, prompted: Boolean) {
+        val elapsed = SystemClock.elapsedRealtime() - start
+        synchronized(timingLock) {
+            if (prompted) {
+                promptedCount++
+                promptedMs += elapsed
+            } else {
+                skippedCount++
+                skippedMs += elapsed
             }
-            BiometricManager.BIOMETRIC_ERROR_NONE_ENROLLED -> {
-                Log.d(TAG, "No biometrics enrolled")
-                false
+        }
+        Log.d(TAG, "Payment authorized in ${elapsed}ms (${if (prompted) "prompted" else "within window"})")
+    }
+
+    private fun paymentKey(): SecretKey? = try {
+        (keyStore.getEntry(PAYMENT_KEY_ALIAS, null) as? KeyStore.SecretKeyEntry)?.secretKey
+    } catch (e: Exception) {
+        Log.e(TAG, "Failed to load payment key", e)
+        null
+    }
+
+    private fun ensurePaymentKey() {
+        if (keyStore.containsAlias(PAYMENT_KEY_ALIAS)) return
+        try {
+            val builder = KeyGenParameterSpec.Builder(
+                PAYMENT_KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
+            )
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .setUserAuthenticationRequired(true)
+                .setInvalidatedByBiometricEnrollment(true)
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                builder.setUserAuthenticationParameters(authWindowSeconds, KeyProperties.AUTH_BIOMETRIC_STRONG)
+            } else {
+                @Suppress("DEPRECATION")
+                builder.setUserAuthenticationValidityDurationSeconds(authWindowSeconds)
             }
-            else -> {
-                Log.d(TAG, "Biometric status unknown")
-                false
+
+            KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER).apply {
+                init(builder.build())
+                generateKey()
             }
+            Log.d(TAG, "Payment key generated (${authWindowSeconds}s window)")
+        } catch (e: Exception) {
+            // Without the key every payment simply prompts
+            Log.e(TAG, "Failed to generate payment key", e)
+        }
+    }
+
+    private fun deletePaymentKey() {
+        try {
+            keyStore.deleteEntry(PAYMENT_KEY_ALIAS)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to delete payment key", e)
         }
     }
 
+    /** Drops the key so the next payment prompts, e.g. on logout */
+    fun resetAuthWindow() {
+        lastPromptAt = null
+        deletePaymentKey()
+    }
+
     fun authenticate(
         activity: FragmentActivity,
         title: String = "Authenticate",
@@ -58,12 +270,14 @@ class BiometricHelper(private val context: Context) {
             override fun onAuthenticationSucceeded(result: BiometricPrompt.AuthenticationResult) {
                 super.onAuthenticationSucceeded(result)
                 Log.d(TAG, "Authentication succeeded")
+                activePrompt = null
                 onSuccess()
             }
 
             override fun onAuthenticationError(errorCode: Int, errString: CharSequence) {
                 super.onAuthenticationError(errorCode, errString)
                 Log.e(TAG, "Authentication error: $errorCode - $errString")
+                activePrompt = null
                 onError(errorCode, errString.toString())
             }
 
@@ -74,26 +288,31 @@ class BiometricHelper(private val context: Context) {
             }
         }
 
+        // The prompt is bound to the activity; the prompt info is reused
         val biometricPrompt = BiometricPrompt(activity, executor, callback)
+        activePrompt = biometricPrompt
+        biometricPrompt.authenticate(promptInfo(title, subtitle, negativeButtonText))
+    }
+
+    /** Dismisses the prompt shown by [authenticate]; it reports ERROR_CANCELED */
+    fun cancelPrompt() {
+        activePrompt?.cancelAuthentication()
+        activePrompt = null
+    }
 
-        val promptInfo = BiometricPrompt.PromptInfo.Builder()
+    private fun promptInfo(title: String, subtitle: String, negativeButtonText: String): BiometricPrompt.PromptInfo {
+        val key = "$title\u0000$subtitle\u0000$negativeButtonText"
+        promptInfo?.let { if (key == promptInfoKey) return it }
+        return BiometricPrompt.PromptInfo.Builder()
             .setTitle(title)
             .setSubtitle(subtitle)
             .setNegativeButtonText(negativeButtonText)
             .setAllowedAuthenticators(BiometricManager.Authenticators.BIOMETRIC_STRONG)
             .build()
-
-        biometricPrompt.authenticate(promptInfo)
-    }
-
-    fun getBiometricStatus(): BiometricStatus {
-        return when (biometricManager.canAuthenticate(BiometricManager.Authenticators.BIOMETRIC_STRONG)) {
-            BiometricManager.BIOMETRIC_SUCCESS -> BiometricStatus.AVAILABLE
-            BiometricManager.BIOMETRIC_ERROR_NO_HARDWARE -> BiometricStatus.NO_HARDWARE
-            BiometricManager.BIOMETRIC_ERROR_HW_UNAVAILABLE -> BiometricStatus.UNAVAILABLE
-            BiometricManager.BIOMETRIC_ERROR_NONE_ENROLLED -> BiometricStatus.NOT_ENROLLED
-            else -> BiometricStatus.UNKNOWN
-        }
+            .also {
+                promptInfo = it
+                promptInfoKey = key
+            }
     }
 
     enum class BiometricStatus {
@@ -66,38 +66,53 @@ class EncryptionManager(private val context: Context) {
     }
 
     fun encrypt(plainText: String): String {
+        return Base64.encodeToString(encryptBytes(plainText.toByteArray(Charsets.UTF_8)), Base64.NO_WRAP)
+    }
+
+    fun decrypt(encryptedText: String): String {
+        return String(decryptBytes(Base64.decode(encryptedText, Base64.NO_WRAP)), Charsets.UTF_8)
+    }
+
+    /**
+     * Encrypts [plain] and returns IV followed by ciphertext. [associatedData]
+     * is authenticated but not encrypted, e.g. a file header.
+     */
+    fun encryptBytes(plain: ByteArray, associatedData: ByteArray? = null): ByteArray {
         return try {
             val cipher = Cipher.getInstance(TRANSFORMATION)
             cipher.init(Cipher.ENCRYPT_MODE, getSecretKey())
+            associatedData?.let { cipher.updateAAD(it) }
 
             val iv = cipher.iv
-            val encryptedBytes = cipher.doFinal(plainText.toByteArray(Charsets.UTF_8))
+            val encryptedBytes = cipher.doFinal(plain)
 
             // Combine IV and encrypted data
             val combined = ByteArray(iv.size + encryptedBytes.size)
             System.arraycopy(iv, 0, combined, 0, iv.size)
             System.arraycopy(encryptedBytes, 0, combined, iv.size, encryptedBytes.size)
-
-            Base64.encodeToString(combined, Base64.NO_WRAP)
+            combined
         } catch (e: Exception) {
             Log.e(TAG, "Encryption failed", e)
             throw e
         }
     }
 
-    fun decrypt(encryptedText: String): String {
+    /** Reverses [encryptBytes] for [length] bytes of [combined] starting at [offset] */
+    fun decryptBytes(
+        combined: ByteArray,
+        offset: Int = 0,
+        length: Int = combined.size - offset,
+        associatedData: ByteArray? = null
+    ): ByteArray {
         return try {
-            val combined = Base64.decode(encryptedText, Base64.NO_WRAP)
-
             // Extract IV and encrypted data
-            val iv = combined.copyOfRange(0, IV_SIZE)
-            val encryptedBytes = combined.copyOfRange(IV_SIZE, combined.size)
+            val spec = GCMParameterSpec(GCM_TAG_LENGTH, combined, offset, IV_SIZE)
 
             val cipher = Cipher.getInstance(TRANSFORMATION)
-            val spec = GCMParameterSpec(GCM_TAG_LENGTH, iv)
             cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), spec)
+            associatedData?.let { cipher.updateAAD(it) }
 
-            String(cipher.doFinal(encryptedBytes), Charsets.UTF_8)
+            cipher.doFinal(combined, offset + IV_SIZE, length - IV_SIZE)
         } catch (e: Exception) {
             Log.e(TAG, "Decryption failed", e)
             throw e
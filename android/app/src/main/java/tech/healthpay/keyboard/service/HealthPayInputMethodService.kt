@@ -1,23 +1,41 @@
 package tech.healthpay.keyboard.service
 
 import android.inputmethodservice.InputMethodService
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 import android.view.View
 import android.view.inputmethod.EditorInfo
 import android.widget.Button
 import android.widget.ImageButton
 import android.widget.LinearLayout
+import tech.healthpay.keyboard.HealthPayKeyboardApplication
 import tech.healthpay.keyboard.R
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.PaymentLink
 
 /**
  * HealthPay Keyboard Input Method Service
  * 
  * v1.2.1 - Fixed shift key crash with null-safety and resource validation
+ * v1.2.7 - Live wallet updates run only while the keyboard is visible
+ * v1.2.8 - Unread notification count on the space bar
+ * v1.2.9 - Warm start from the last wallet snapshot
+ * v1.3.0 - Request-payment key inserting a pre-minted link
+ * v1.3.1 - Live updates linger briefly after the keyboard hides, so switching
+ *          fields does not reconnect the subscription
  */
 class HealthPayInputMethodService : InputMethodService() {
 
     companion object {
         private const val TAG = "HealthPayKeyboard"
+        private const val LIVE_UPDATES_LINGER_MS = 30_000L
+    }
+
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val stopLiveUpdates = Runnable {
+        HealthPayKeyboardApplication.walletRepository.stopLiveUpdates()
     }
 
     private var keyboardView: View? = null
@@ -31,6 +49,14 @@ class HealthPayInputMethodService : InputMethodService() {
     private var isCapsLocked = false
     private var lastShiftClickTime = 0L
 
+    override fun onCreate() {
+        super.onCreate()
+        // Last-known wallet state is ready before the first network response
+        if (HealthPayKeyboardApplication.instance.isUserLoggedIn()) {
+            HealthPayKeyboardApplication.walletRepository.warmStart()
+        }
+    }
+
     override fun onCreateInputView(): View {
         Log.d(TAG, "Creating input view")
         keyboardView = layoutInflater.inflate(R.layout.keyboard_qwerty, null)
@@ -98,6 +124,11 @@ class HealthPayInputMethodService : InputMethodService() {
             // TODO: Switch to numbers layout
         }
         
+        // Request payment: open-amount links are pre-minted, so this rarely waits
+        keyboardView?.findViewById<Button>(R.id.btn_request_payment)?.setOnClickListener {
+            insertPaymentLink()
+        }
+
         // Comma and period
         keyboardView?.findViewById<Button>(R.id.btn_comma)?.setOnClickListener { commitText(",") }
         keyboardView?.findViewById<Button>(R.id.btn_period)?.setOnClickListener { commitText(".") }
@@ -180,6 +211,19 @@ class HealthPayInputMethodService : InputMethodService() {
         }
     }
 
+    private fun insertPaymentLink() {
+        if (!HealthPayKeyboardApplication.instance.isUserLoggedIn()) return
+        HealthPayKeyboardApplication.paymentLinkCache.obtain(null, null, object : ApiCallback<PaymentLink> {
+            override fun onSuccess(response: PaymentLink) {
+                keyboardView?.post { commitText(response.url) }
+            }
+
+            override fun onError(error: ApiError) {
+                Log.e(TAG, "Could not get a payment link: ${error.code}")
+            }
+        })
+    }
+
     private fun commitText(text: String) {
         currentInputConnection?.commitText(text, 1)
     }
@@ -190,16 +234,42 @@ class HealthPayInputMethodService : InputMethodService() {
         if (!isCapsLocked) isShiftActive = false
         updateShiftKeyUI()
         updateKeyLabels()
+
+        mainHandler.removeCallbacks(stopLiveUpdates)
+        if (HealthPayKeyboardApplication.instance.isUserLoggedIn()) {
+            HealthPayKeyboardApplication.walletRepository.startLiveUpdates()
+            HealthPayKeyboardApplication.paymentLinkCache.prefill()
+        }
+        updateUnreadBadge()
+    }
+
+    /** Reads the maintained unread counter; no notifications are queried */
+    private fun updateUnreadBadge() {
+        val unread = if (HealthPayKeyboardApplication.instance.isUserLoggedIn()) {
+            HealthPayKeyboardApplication.notificationStore.unreadCount.value
+        } else {
+            0
+        }
+        spaceButton?.text = if (unread > 0) {
+            getString(R.string.keyboard_space_unread, getString(R.string.app_name), unread)
+        } else {
+            getString(R.string.app_name)
+        }
     }
 
     override fun onFinishInputView(finishingInput: Boolean) {
         super.onFinishInputView(finishingInput)
         Log.d(TAG, "Input view finished")
+        // Field switches finish and restart the view; keep the socket across them
+        mainHandler.removeCallbacks(stopLiveUpdates)
+        mainHandler.postDelayed(stopLiveUpdates, LIVE_UPDATES_LINGER_MS)
     }
 
     override fun onDestroy() {
         super.onDestroy()
         Log.d(TAG, "Service destroyed")
+        mainHandler.removeCallbacks(stopLiveUpdates)
+        HealthPayKeyboardApplication.walletRepository.stopLiveUpdates()
         keyboardView = null
     }
 }
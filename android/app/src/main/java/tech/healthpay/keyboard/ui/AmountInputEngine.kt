@@ -0,0 +1,218 @@
+package tech.healthpay.keyboard.ui
+
+import android.text.Editable
+import android.text.Selection
+import android.text.TextWatcher
+import android.widget.EditText
+import tech.healthpay.keyboard.api.Money
+
+/**
+ * Amount Input Engine - Keystroke-level state for an amount field
+ *
+ * Keeps the typed amount as numbers (integer part, fraction digits and
+ * their count) and applies one key at a time, so the field is never
+ * re-parsed as a whole. The text is rendered from that state with grouping,
+ * in the digit family the user last typed: Latin, Arabic-Indic or Eastern
+ * Arabic-Indic, with Arabic separators for the latter two.
+ *
+ * Editing happens at the end of the field, as on a calculator; the caret is
+ * kept there, so reformatting never makes it jump. An edit elsewhere (e.g. a
+ * paste over a selection) replays the new text through the engine.
+ */
+class AmountInputEngine(private val maxIntegerDigits: Int = DEFAULT_MAX_INTEGER_DIGITS) {
+
+    companion object {
+        const val DEFAULT_MAX_INTEGER_DIGITS = 9
+
+        private const val LATIN_ZERO = '0'
+        private const val ARABIC_ZERO = '٠'
+        private const val PERSIAN_ZERO = '۰'
+        private const val ARABIC_DECIMAL = '٫'
+        private const val ARABIC_GROUPING = '٬'
+
+        private fun zeroOf(c: Char): Char = when (c) {
+            in '0'..'9' -> LATIN_ZERO
+            in '٠'..'٩' -> ARABIC_ZERO
+            in '۰'..'۹' -> PERSIAN_ZERO
+            else -> 0.toChar()
+        }
+
+        private fun isDecimalSeparator(c: Char) = c == '.' || c == ARABIC_DECIMAL
+
+        private fun isGroupingSeparator(c: Char) = c == ',' || c == ARABIC_GROUPING
+    }
+
+    private var integer = 0L
+    private var integerDigits = 0
+    private var fraction = 0
+    private var fractionDigits = -1 // -1 until a decimal separator is typed
+    private var zeroDigit = LATIN_ZERO
+
+    /** The typed amount, or null while the field is empty */
+    val value: Money?
+        get() {
+            if (integerDigits == 0) return null
+            var minor = fraction.toLong()
+            for (i in maxOf(fractionDigits, 0) until Money.FRACTION_DIGITS) minor *= 10
+            return Money(integer * Money.MINOR_PER_MAJOR + minor)
+        }
+
+    /**
+     * Applies one typed character. Returns false if it was ignored: a
+     * grouping separator (those are rendered, not typed), a second decimal
+     * separator, a third decimal or a digit beyond [maxIntegerDigits].
+     */
+    fun type(c: Char): Boolean {
+        val zero = zeroOf(c)
+        if (zero != 0.toChar()) {
+            val digit = c - zero
+            if (fractionDigits >= 0) {
+                if (fractionDigits == Money.FRACTION_DIGITS) return false
+                fraction = fraction * 10 + digit
+                fractionDigits++
+            } else if (integerDigits == 1 && integer == 0L) {
+                // Replace a lone leading zero rather than growing "0" to "07"
+                integer = digit.toLong()
+            } else {
+                if (integerDigits == maxIntegerDigits) return false
+                integer = integer * 10 + digit
+                integerDigits++
+            }
+            zeroDigit = zero
+            return true
+        }
+        if (isDecimalSeparator(c) && fractionDigits < 0) {
+            // ".5" reads as "0.5"
+            if (integerDigits == 0) integerDigits = 1
+            fractionDigits = 0
+            return true
+        }
+        return false
+    }
+
+    /** Removes the last typed character; returns false if the field was empty */
+    fun backspace(): Boolean {
+        when {
+            fractionDigits > 0 -> {
+                fraction /= 10
+                fractionDigits--
+            }
+            fractionDigits == 0 -> fractionDigits = -1
+            integerDigits > 0 -> {
+                integer /= 10
+                integerDigits--
+            }
+            else -> return false
+        }
+        return true
+    }
+
+    fun clear() {
+        integer = 0
+        integerDigits = 0
+        fraction = 0
+        fractionDigits = -1
+    }
+
+    /** Loads [amount] as if it had been typed, without trailing zero decimals */
+    fun set(amount: Money) {
+        clear()
+        integer = amount.minorUnits / Money.MINOR_PER_MAJOR
+        integerDigits = 1
+        while (integerDigits < maxIntegerDigits && integer >= pow10(integerDigits)) integerDigits++
+        val minor = (amount.minorUnits % Money.MINOR_PER_MAJOR).toInt()
+        when {
+            minor == 0 -> Unit
+            minor % 10 == 0 -> {
+                fraction = minor / 10
+                fractionDigits = 1
+            }
+            else -> {
+                fraction = minor
+                fractionDigits = Money.FRACTION_DIGITS
+            }
+        }
+    }
+
+    /** Appends the field text, e.g. "12,345.6", to [out] */
+    fun render(out: StringBuilder): StringBuilder {
+        if (integerDigits == 0) return out
+        val arabic = zeroDigit != LATIN_ZERO
+        val grouping = if (arabic) ARABIC_GROUPING else ','
+
+        for (position in integerDigits - 1 downTo 0) {
+            out.append(zeroDigit + (integer / pow10(position) % 10).toInt())
+            if (position > 0 && position % 3 == 0) out.append(grouping)
+        }
+        if (fractionDigits >= 0) {
+            out.append(if (arabic) ARABIC_DECIMAL else '.')
+            for (position in fractionDigits - 1 downTo 0) {
+                out.append(zeroDigit + fraction / pow10(position).toInt() % 10)
+            }
+        }
+        return out
+    }
+
+    /**
+     * Applies a text change to the field: [before] characters of [rendered]
+     * at [start] were replaced by [count] characters of [text], which is the
+     * field's whole new content.
+     */
+    internal fun edit(rendered: CharSequence, text: CharSequence, start: Int, before: Int, count: Int) {
+        if (start + before == rendered.length) {
+            // Edit at the end: replay just the removed and inserted characters
+            for (i in start until start + before) {
+                if (!isGroupingSeparator(rendered[i])) backspace()
+            }
+            for (i in start until start + count) type(text[i])
+        } else {
+            clear()
+            for (i in 0 until text.length) type(text[i])
+        }
+    }
+
+    private fun pow10(exponent: Int): Long {
+        var result = 1L
+        repeat(exponent) { result *= 10 }
+        return result
+    }
+
+    /**
+     * Drives [editText] from this engine. [onChanged] receives the amount
+     * after every edit.
+     */
+    fun attach(editText: EditText, onChanged: (Money?) -> Unit = {}) {
+        val rendered = StringBuilder(render(StringBuilder()))
+        editText.setText(rendered)
+        editText.setSelection(rendered.length)
+
+        editText.addTextChangedListener(object : TextWatcher {
+            private var applying = false
+
+            override fun beforeTextChanged(s: CharSequence, start: Int, count: Int, after: Int) {}
+
+            override fun onTextChanged(s: CharSequence, start: Int, before: Int, count: Int) {
+                if (!applying) edit(rendered, s, start, before, count)
+            }
+
+            override fun afterTextChanged(s: Editable) {
+                if (applying) return
+                rendered.setLength(0)
+                render(rendered)
+                if (!contentEqual(s, rendered)) {
+                    applying = true
+                    s.replace(0, s.length, rendered)
+                    applying = false
+                }
+                Selection.setSelection(s, s.length)
+                onChanged(value)
+            }
+        })
+    }
+
+    private fun contentEqual(a: CharSequence, b: CharSequence): Boolean {
+        if (a.length != b.length) return false
+        for (i in 0 until a.length) if (a[i] != b[i]) return false
+        return true
+    }
+}
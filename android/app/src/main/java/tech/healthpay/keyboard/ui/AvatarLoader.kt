@@ -0,0 +1,284 @@
+package tech.healthpay.keyboard.ui
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapShader
+import android.graphics.Canvas
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.Shader
+import android.graphics.Typeface
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import android.util.LruCache
+import android.widget.ImageView
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import tech.healthpay.keyboard.R
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Avatar Loader - Circular avatars from a memory cache, disk cache or network
+ *
+ * Decoded bitmaps are kept in a byte-bounded LRU keyed by URL and target size,
+ * so rows scrolled back into view are set synchronously with no decode.
+ * Downloads are kept on disk and decoded with downsampling straight to the
+ * target size; concurrent requests for the same avatar share one load.
+ * Without a URL (or until the photo arrives) a rendered-initial bitmap is
+ * shown, which is cached the same way.
+ *
+ * [load] must be called on the main thread.
+ */
+class AvatarLoader(context: Context) {
+
+    companion object {
+        private const val TAG = "AvatarLoader"
+        private const val DISK_DIR = "avatars"
+        private const val MAX_DISK_BYTES = 8L * 1024 * 1024
+        private const val MAX_MEMORY_BYTES = 16 * 1024 * 1024
+        private const val MAX_DOWNLOAD_BYTES = 2L * 1024 * 1024
+        private const val WORKER_THREADS = 2
+        private const val INITIALS_TEXT_SCALE = 0.42f
+
+        private fun hash(value: String): String {
+            val digest = MessageDigest.getInstance("SHA-1").digest(value.toByteArray())
+            return digest.joinToString("") { "%02x".format(it) }
+        }
+    }
+
+    data class Stats(
+        val memoryHits: Long,
+        val diskHits: Long,
+        val networkLoads: Long,
+        val decodes: Long,
+        val initialsRendered: Long,
+        val failures: Long
+    )
+
+    private val appContext = context.applicationContext
+    private val diskDir = File(appContext.cacheDir, DISK_DIR)
+    private val executor = Executors.newFixedThreadPool(WORKER_THREADS)
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    private val memoryCache = object : LruCache<String, Bitmap>(
+        minOf(MAX_MEMORY_BYTES.toLong(), Runtime.getRuntime().maxMemory() / 16).toInt()
+    ) {
+        override fun sizeOf(key: String, value: Bitmap) = value.byteCount
+    }
+
+    private val httpClient = OkHttpClient.Builder()
+        .connectTimeout(10, TimeUnit.SECONDS)
+        .readTimeout(15, TimeUnit.SECONDS)
+        .build()
+
+    // Main-thread only: targets waiting on each in-flight photo
+    private val inFlight = HashMap<String, MutableList<ImageView>>()
+
+    private val memoryHits = AtomicLong()
+    private val diskHits = AtomicLong()
+    private val networkLoads = AtomicLong()
+    private val decodes = AtomicLong()
+    private val initialsRendered = AtomicLong()
+    private val failures = AtomicLong()
+
+    private val backgroundColor = appContext.getColor(R.color.healthpay_accent)
+    private val textColor = appContext.getColor(R.color.healthpay_primary)
+
+    /**
+     * Shows the avatar for [url] in [target] at [sizePx], or [initial] when
+     * there is no URL or the photo cannot be loaded.
+     */
+    fun load(target: ImageView, url: String, initial: String, sizePx: Int) {
+        val key = if (url.isEmpty()) "initial:$initial@$sizePx" else "$url@$sizePx"
+        target.tag = key
+
+        memoryCache.get(key)?.let {
+            memoryHits.incrementAndGet()
+            target.setImageBitmap(it)
+            return
+        }
+
+        target.setImageBitmap(initialsBitmap(initial, sizePx))
+        if (url.isEmpty()) return
+
+        inFlight[key]?.let { waiting ->
+            waiting.add(target)
+            return
+        }
+        inFlight[key] = mutableListOf(target)
+
+        executor.execute {
+            val bitmap = loadPhoto(url, sizePx)
+            if (bitmap != null) memoryCache.put(key, bitmap) else failures.incrementAndGet()
+            mainHandler.post {
+                val targets = inFlight.remove(key) ?: return@post
+                if (bitmap == null) return@post
+                // Rows may have been rebound to another transaction meanwhile
+                targets.forEach { if (it.tag == key) it.setImageBitmap(bitmap) }
+            }
+        }
+    }
+
+    fun stats() = Stats(
+        memoryHits = memoryHits.get(),
+        diskHits = diskHits.get(),
+        networkLoads = networkLoads.get(),
+        decodes = decodes.get(),
+        initialsRendered = initialsRendered.get(),
+        failures = failures.get()
+    )
+
+    /** Forgets every avatar, in memory and on disk, e.g. on logout */
+    fun clear() {
+        memoryCache.evictAll()
+        executor.execute {
+            synchronized(diskDir) {
+                diskDir.listFiles()?.forEach { it.delete() }
+            }
+        }
+    }
+
+    fun onTrimMemory(level: Int) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            memoryCache.evictAll()
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            memoryCache.trimToSize(memoryCache.maxSize() / 2)
+        }
+    }
+
+    // =====================
+    // Initials
+    // =====================
+
+    private fun initialsBitmap(initial: String, sizePx: Int): Bitmap {
+        val key = "initial:$initial@$sizePx"
+        memoryCache.get(key)?.let { return it }
+
+        val bitmap = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bitmap)
+        val radius = sizePx / 2f
+        canvas.drawCircle(radius, radius, radius, Paint(Paint.ANTI_ALIAS_FLAG).apply { color = backgroundColor })
+
+        val textPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+            color = textColor
+            textSize = sizePx * INITIALS_TEXT_SCALE
+            typeface = Typeface.DEFAULT_BOLD
+            textAlign = Paint.Align.CENTER
+        }
+        val baseline = radius - (textPaint.descent() + textPaint.ascent()) / 2f
+        canvas.drawText(initial, radius, baseline, textPaint)
+
+        initialsRendered.incrementAndGet()
+        memoryCache.put(key, bitmap)
+        return bitmap
+    }
+
+    // =====================
+    // Photos
+    // =====================
+
+    private fun loadPhoto(url: String, sizePx: Int): Bitmap? {
+        return try {
+            val file = File(diskDir, hash(url))
+            if (file.exists()) {
+                diskHits.incrementAndGet()
+                file.setLastModified(System.currentTimeMillis())
+            } else if (!download(url, file)) {
+                return null
+            }
+            decodeCircle(file, sizePx)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to load avatar", e)
+            null
+        }
+    }
+
+    private fun download(url: String, file: File): Boolean {
+        networkLoads.incrementAndGet()
+        val request = Request.Builder().url(url).build()
+        httpClient.newCall(request).execute().use { response ->
+            val body = response.body ?: return false
+            if (!response.isSuccessful || body.contentLength() > MAX_DOWNLOAD_BYTES) return false
+
+            diskDir.mkdirs()
+            val temp = File.createTempFile(file.name, ".tmp", diskDir)
+            try {
+                // The declared length may be missing (-1) or wrong; count what is read
+                val complete = body.byteStream().use { input ->
+                    temp.outputStream().use { output ->
+                        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+                        var total = 0L
+                        while (true) {
+                            val read = input.read(buffer)
+                            if (read < 0) break
+                            total += read
+                            if (total > MAX_DOWNLOAD_BYTES) return@use false
+                            output.write(buffer, 0, read)
+                        }
+                        true
+                    }
+                }
+                if (!complete) return false
+                if (!temp.renameTo(file)) throw IOException("Could not move avatar into cache")
+            } finally {
+                temp.delete()
+            }
+        }
+        trimDisk()
+        return true
+    }
+
+    /** Decodes with the largest power-of-two subsample that still covers [sizePx], then crops to a circle */
+    private fun decodeCircle(file: File, sizePx: Int): Bitmap? {
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeFile(file.path, bounds)
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            file.delete()
+            return null
+        }
+
+        var sampleSize = 1
+        while (bounds.outWidth / (sampleSize * 2) >= sizePx && bounds.outHeight / (sampleSize * 2) >= sizePx) {
+            sampleSize *= 2
+        }
+        val source = BitmapFactory.decodeFile(file.path, BitmapFactory.Options().apply { inSampleSize = sampleSize })
+            ?: return null
+        decodes.incrementAndGet()
+
+        val scale = maxOf(sizePx.toFloat() / source.width, sizePx.toFloat() / source.height)
+        val matrix = Matrix().apply {
+            setScale(scale, scale)
+            postTranslate((sizePx - source.width * scale) / 2f, (sizePx - source.height * scale) / 2f)
+        }
+        val paint = Paint(Paint.ANTI_ALIAS_FLAG or Paint.FILTER_BITMAP_FLAG).apply {
+            shader = BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP).apply { setLocalMatrix(matrix) }
+        }
+        val result = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888)
+        val radius = sizePx / 2f
+        Canvas(result).drawCircle(radius, radius, radius, paint)
+        source.recycle()
+        return result
+    }
+
+    /** Drops least recently used files once the disk cache is over budget */
+    private fun trimDisk() {
+        synchronized(diskDir) {
+            val files = diskDir.listFiles()?.filter { !it.name.endsWith(".tmp") } ?: return
+            var total = files.sumOf { it.length() }
+            if (total <= MAX_DISK_BYTES) return
+            for (file in files.sortedBy { it.lastModified() }) {
+                total -= file.length()
+                file.delete()
+                if (total <= MAX_DISK_BYTES) break
+            }
+        }
+    }
+}
@@ -19,11 +19,13 @@ import com.google.android.material.textfield.TextInputLayout
 import tech.healthpay.keyboard.HealthPayKeyboardApplication
 import tech.healthpay.keyboard.R
 import tech.healthpay.keyboard.api.*
+import tech.healthpay.keyboard.data.PhoneNumbers
 
 /**
  * Login Activity - Handles OTP-based authentication
  * 
  * v1.2.2 - Added timeout handling to prevent UI from hanging
+ * v1.2.4 - UI timeout is passed down as a deadline and cancels the in-flight call
  */
 class LoginActivity : AppCompatActivity() {
 
@@ -52,6 +54,7 @@ class LoginActivity : AppCompatActivity() {
     private var resendTimer: CountDownTimer? = null
     private var apiTimeoutHandler: Handler? = null
     private var apiTimeoutRunnable: Runnable? = null
+    private var currentCall: ApiCall? = null
     private var isRequestInProgress = false
 
     private val apiClient: HealthPayApiClient by lazy { HealthPayKeyboardApplication.apiClient }
@@ -71,6 +74,8 @@ class LoginActivity : AppCompatActivity() {
         super.onDestroy()
         resendTimer?.cancel()
         cancelApiTimeout()
+        currentCall?.cancel()
+        currentCall = null
     }
 
     private fun initViews() {
@@ -121,24 +126,30 @@ class LoginActivity : AppCompatActivity() {
     }
 
     private fun isValidMobile(mobile: String): Boolean {
-        return "^01[0125][0-9]{8}$".toRegex().matches(mobile)
+        return PhoneNumbers.isValidLocalMobile(mobile)
     }
 
     private fun formatMobileForApi(mobile: String): String {
-        return if (mobile.startsWith("01")) "+2$mobile" else mobile
+        return PhoneNumbers.toInternational(mobile)
     }
 
     // =====================
     // Timeout Management
     // =====================
 
-    private fun startApiTimeout(operation: String) {
+    /**
+     * Starts the UI timeout and returns the matching deadline for the API call,
+     * so OkHttp gives up on the socket at the same moment the UI does.
+     */
+    private fun startApiTimeout(operation: String): Deadline {
         cancelApiTimeout()
         
         apiTimeoutRunnable = Runnable {
             if (isRequestInProgress) {
                 Log.e(TAG, "$operation timed out after ${API_TIMEOUT_MS}ms")
                 isRequestInProgress = false
+                currentCall?.cancel()
+                currentCall = null
                 runOnUiThread {
                     hideLoading()
                     showTimeoutError(operation)
@@ -147,6 +158,7 @@ class LoginActivity : AppCompatActivity() {
         }
         
         apiTimeoutHandler?.postDelayed(apiTimeoutRunnable!!, API_TIMEOUT_MS)
+        return Deadline.after(API_TIMEOUT_MS)
     }
 
     private fun cancelApiTimeout() {
@@ -192,13 +204,15 @@ class LoginActivity : AppCompatActivity() {
         currentMobile = mobile
         isRequestInProgress = true
         showLoading(getString(R.string.status_sending_otp))
-        startApiTimeout("OTP_REQUEST")
+        val deadline = startApiTimeout("OTP_REQUEST")
         
-        apiClient.requestOtp(formatMobileForApi(mobile), object : ApiCallback<OtpResponse> {
+        // Callbacks clear the handle on the UI thread, i.e. after this assignment
+        currentCall = apiClient.requestOtp(formatMobileForApi(mobile), object : ApiCallback<OtpResponse> {
             override fun onSuccess(response: OtpResponse) {
                 cancelApiTimeout()
                 isRequestInProgress = false
                 runOnUiThread {
+                    currentCall = null
                     Log.d(TAG, "OTP sent successfully")
                     currentRequestId = response.requestId
                     isOtpSent = true
@@ -213,6 +227,7 @@ class LoginActivity : AppCompatActivity() {
                 cancelApiTimeout()
                 isRequestInProgress = false
                 runOnUiThread {
+                    currentCall = null
                     Log.e(TAG, "OTP request failed: ${error.code} - ${error.message}")
                     hideLoading()
                     showError(error)
@@ -220,7 +235,7 @@ class LoginActivity : AppCompatActivity() {
                     sendOtpButton.isEnabled = isValidMobile(mobileInput.text?.toString() ?: "")
                 }
             }
-        })
+        }, deadline)
     }
 
     // =====================
@@ -236,13 +251,14 @@ class LoginActivity : AppCompatActivity() {
         Log.d(TAG, "Verifying OTP")
         isRequestInProgress = true
         showLoading(getString(R.string.status_verifying))
-        startApiTimeout("OTP_VERIFY")
+        val deadline = startApiTimeout("OTP_VERIFY")
         
-        apiClient.verifyOtp(formatMobileForApi(currentMobile), otp, currentRequestId, object : ApiCallback<AuthResponse> {
+        currentCall = apiClient.verifyOtp(formatMobileForApi(currentMobile), otp, currentRequestId, object : ApiCallback<AuthResponse> {
             override fun onSuccess(response: AuthResponse) {
                 cancelApiTimeout()
                 isRequestInProgress = false
                 runOnUiThread {
+                    currentCall = null
                     Log.d(TAG, "OTP verified successfully")
                     hideLoading()
                     showSuccess(getString(R.string.status_login_success))
@@ -254,6 +270,7 @@ class LoginActivity : AppCompatActivity() {
                 cancelApiTimeout()
                 isRequestInProgress = false
                 runOnUiThread {
+                    currentCall = null
                     Log.e(TAG, "OTP verification failed: ${error.code}")
                     hideLoading()
                     when (error.code) {
@@ -267,7 +284,7 @@ class LoginActivity : AppCompatActivity() {
                     }
                 }
             }
-        })
+        }, deadline)
     }
 
     // =====================
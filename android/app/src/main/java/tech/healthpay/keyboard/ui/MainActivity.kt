@@ -1,33 +1,106 @@
 package tech.healthpay.keyboard.ui
 
 import android.content.Intent
+import android.net.Uri
 import android.os.Bundle
 import android.provider.Settings
+import android.text.InputFilter
+import android.text.InputType
+import android.view.View
 import android.view.inputmethod.InputMethodManager
 import android.widget.Button
+import android.widget.EditText
+import android.widget.ImageView
 import android.widget.TextView
 import android.widget.Toast
+import androidx.activity.result.contract.ActivityResultContracts
+import androidx.appcompat.app.AlertDialog
 import androidx.appcompat.app.AppCompatActivity
+import androidx.biometric.BiometricPrompt
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.lifecycleScope
+import androidx.lifecycle.repeatOnLifecycle
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import tech.healthpay.keyboard.HealthPayKeyboardApplication
 import tech.healthpay.keyboard.R
+import tech.healthpay.keyboard.api.ApiCall
 import tech.healthpay.keyboard.api.ApiCallback
 import tech.healthpay.keyboard.api.ApiError
-import tech.healthpay.keyboard.api.WalletBalance
+import tech.healthpay.keyboard.api.ApiErrorCode
+import tech.healthpay.keyboard.api.AuthResponse
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.OtpResponse
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.data.MutationOutbox
+import tech.healthpay.keyboard.data.PaymentPipeline
+import tech.healthpay.keyboard.data.PhoneNumbers
+import tech.healthpay.keyboard.data.RankedRecipient
+import tech.healthpay.keyboard.data.TransactionStore
+import tech.healthpay.keyboard.data.TransactionSyncManager
+import tech.healthpay.keyboard.qr.QRCodeData
+import tech.healthpay.keyboard.qr.QrParseResult
+import tech.healthpay.keyboard.qr.QrPayloadParser
+import tech.healthpay.keyboard.qr.QrRejection
 
 /**
  * Main Activity - Dashboard for HealthPay Keyboard app
  */
 class MainActivity : AppCompatActivity() {
 
+    companion object {
+        private const val DEFAULT_CURRENCY = "EGP"
+        private const val RECEIVE_QR_SIZE_DP = 240
+        private const val OTP_LENGTH = 6
+        private const val RECIPIENT_LOOKUP_CANDIDATES = 20
+    }
+
     private lateinit var welcomeText: TextView
     private lateinit var balanceText: TextView
+    private lateinit var monthSpendText: TextView
+    private lateinit var pendingPaymentsText: TextView
     private lateinit var enableKeyboardButton: Button
     private lateinit var selectKeyboardButton: Button
     private lateinit var settingsButton: Button
+    private lateinit var historyButton: Button
+    private lateinit var receiveQrButton: Button
+    private lateinit var scanQrButton: Button
     private lateinit var logoutButton: Button
 
-    private val apiClient by lazy { HealthPayKeyboardApplication.apiClient }
+    private val walletRepository by lazy { HealthPayKeyboardApplication.walletRepository }
     private val tokenManager by lazy { HealthPayKeyboardApplication.tokenManager }
+    private val transactionStore by lazy { HealthPayKeyboardApplication.transactionStore }
+    private val transactionSync by lazy { HealthPayKeyboardApplication.transactionSync }
+    private val qrCodeRenderer by lazy { HealthPayKeyboardApplication.qrCodeRenderer }
+    private val authManager by lazy { HealthPayKeyboardApplication.authenticationManager }
+    private val biometricHelper by lazy { HealthPayKeyboardApplication.biometricHelper }
+    private val paymentPipeline by lazy { HealthPayKeyboardApplication.paymentPipeline }
+    private val mutationOutbox by lazy { HealthPayKeyboardApplication.mutationOutbox }
+    private val recipientRanker by lazy { HealthPayKeyboardApplication.recipientRanker }
+    private val transactionSearchIndex by lazy { HealthPayKeyboardApplication.transactionSearchIndex }
+    private val apiClient by lazy { HealthPayKeyboardApplication.apiClient }
+
+    // The OTP re-entry dialog while one is open, so a rejected payment can close it
+    private var otpDialog: AlertDialog? = null
+
+    private val scanQrLauncher = registerForActivityResult(ActivityResultContracts.StartActivityForResult()) { result ->
+        val payload = result.data?.getStringExtra(ScanQrActivity.EXTRA_PAYLOAD)
+        if (result.resultCode == RESULT_OK && payload != null) onQrScanned(payload)
+    }
+
+    private val syncListener = object : TransactionSyncManager.Listener {
+        override fun onNewTransactions(transactions: List<Transaction>) {
+            runOnUiThread { loadMonthSpend() }
+        }
+
+        // A failed transfer drops out of the month's spend
+        override fun onUpdatedTransactions(transactions: List<Transaction>) {
+            runOnUiThread { loadMonthSpend() }
+        }
+    }
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -47,14 +120,32 @@ class MainActivity : AppCompatActivity() {
     override fun onResume() {
         super.onResume()
         updateKeyboardStatus()
+        biometricHelper.refreshStatus()
+    }
+
+    override fun onStart() {
+        super.onStart()
+        if (!::monthSpendText.isInitialized) return
+        transactionSync.addListener(syncListener)
+        loadMonthSpend()
+    }
+
+    override fun onStop() {
+        super.onStop()
+        transactionSync.removeListener(syncListener)
     }
 
     private fun initViews() {
         welcomeText = findViewById(R.id.welcome_text)
         balanceText = findViewById(R.id.balance_text)
+        monthSpendText = findViewById(R.id.month_spend_text)
+        pendingPaymentsText = findViewById(R.id.pending_payments_text)
         enableKeyboardButton = findViewById(R.id.btn_enable_keyboard)
         selectKeyboardButton = findViewById(R.id.btn_select_keyboard)
         settingsButton = findViewById(R.id.btn_settings)
+        historyButton = findViewById(R.id.btn_history)
+        receiveQrButton = findViewById(R.id.btn_receive_qr)
+        scanQrButton = findViewById(R.id.btn_scan_qr)
         logoutButton = findViewById(R.id.btn_logout)
 
         tokenManager.getUserMobile()?.let { mobile ->
@@ -76,6 +167,16 @@ class MainActivity : AppCompatActivity() {
             startActivity(Intent(this, SettingsActivity::class.java))
         }
 
+        historyButton.setOnClickListener {
+            startActivity(Intent(this, TransactionHistoryActivity::class.java))
+        }
+
+        receiveQrButton.setOnClickListener { showReceiveQr() }
+
+        scanQrButton.setOnClickListener {
+            scanQrLauncher.launch(Intent(this, ScanQrActivity::class.java))
+        }
+
         logoutButton.setOnClickListener {
             HealthPayKeyboardApplication.instance.logout()
             navigateToLogin()
@@ -84,20 +185,325 @@ class MainActivity : AppCompatActivity() {
 
     private fun loadWalletBalance() {
         balanceText.text = getString(R.string.balance_loading)
-        
-        apiClient.getWalletBalance(object : ApiCallback<WalletBalance> {
-            override fun onSuccess(response: WalletBalance) {
+
+        lifecycleScope.launch {
+            repeatOnLifecycle(Lifecycle.State.STARTED) {
+                launch {
+                    walletRepository.balance.collect { balance ->
+                        balance?.let {
+                            balanceText.text = getString(R.string.balance_format, it.currency, it.balance.format(displayLocale()))
+                        }
+                    }
+                }
+                launch {
+                    mutationOutbox.pending.collect { pending ->
+                        // Transfers in their first attempt are just sending, not waiting
+                        val transfers = pending.count { it.kind == MutationOutbox.Kind.TRANSFER && it.isQueued }
+                        pendingPaymentsText.text = getString(R.string.pending_payments_format, transfers)
+                        pendingPaymentsText.visibility = if (transfers > 0) View.VISIBLE else View.GONE
+                    }
+                }
+                launch {
+                    walletRepository.balanceError.collect { error ->
+                        if (error != null && walletRepository.balance.value == null) {
+                            balanceText.text = getString(R.string.balance_error)
+                        }
+                    }
+                }
+            }
+        }
+
+        walletRepository.refreshBalance()
+    }
+
+    /** Reads this month's debit total from the precomputed aggregates */
+    private fun loadMonthSpend() {
+        lifecycleScope.launch {
+            val summary = withContext(Dispatchers.IO) {
+                transactionStore.aggregates.currentMonthSummary()
+            }
+            if (summary.count == 0) {
+                monthSpendText.visibility = View.GONE
+                return@launch
+            }
+            val currency = walletRepository.balance.value?.currency ?: DEFAULT_CURRENCY
+            val spent = summary.debitTotal + summary.feeTotal
+            monthSpendText.text = getString(R.string.month_spend_format, currency, spent.format(displayLocale()))
+            monthSpendText.visibility = View.VISIBLE
+        }
+    }
+
+    /** Shows the user's receive code; after the first time it comes from the renderer's cache */
+    private fun showReceiveQr() {
+        val mobile = tokenManager.getUserMobile() ?: return
+        val payload = Uri.Builder()
+            .scheme("healthpay")
+            .authority("pay")
+            .appendQueryParameter("to", PhoneNumbers.toInternational(PhoneNumbers.toLocal(mobile)))
+            .build()
+            .toString()
+        val sizePx = (RECEIVE_QR_SIZE_DP * resources.displayMetrics.density).toInt()
+
+        val image = ImageView(this).apply {
+            adjustViewBounds = true
+            qrCodeRenderer.peek(payload, sizePx)?.let { setImageBitmap(it) }
+        }
+        AlertDialog.Builder(this)
+            .setTitle(R.string.receive_qr_title)
+            .setView(image)
+            .setPositiveButton(R.string.btn_continue, null)
+            .show()
+
+        lifecycleScope.launch {
+            image.setImageBitmap(qrCodeRenderer.render(payload, sizePx))
+        }
+    }
+
+    /**
+     * Validates a scanned code on the device; bad codes never reach the
+     * server. For a good one the payee is resolved while the user confirms.
+     */
+    private fun onQrScanned(payload: String) {
+        when (val result = QrPayloadParser.parse(payload, selfMobile = tokenManager.getUserMobile())) {
+            is QrParseResult.Invalid -> {
+                Toast.makeText(this, rejectionMessage(result.reason), Toast.LENGTH_LONG).show()
+            }
+            is QrParseResult.Valid -> {
+                val code = result.data
+                val recipient = lifecycleScope.async(Dispatchers.IO) { lookupRecipient(code.recipientPhone) }
+                showQrPayment(code, recipient)
+            }
+        }
+    }
+
+    private fun showQrPayment(code: QRCodeData, recipient: Deferred<RankedRecipient?>) {
+        val view = layoutInflater.inflate(R.layout.dialog_qr_payment, null)
+        val recipientText = view.findViewById<TextView>(R.id.recipient_text)
+        val amountInput = view.findViewById<EditText>(R.id.amount_input)
+        recipientText.text = code.recipientPhone
+        val amountEngine = AmountInputEngine()
+        code.amount?.let { amountEngine.set(it) }
+        amountEngine.attach(amountInput) { amountInput.error = null }
+        amountInput.isEnabled = code.amount == null
+
+        val dialog = AlertDialog.Builder(this)
+            .setTitle(R.string.qr_pay_title)
+            .setView(view)
+            .setPositiveButton(R.string.wallet_send_money, null)
+            .setNegativeButton(R.string.btn_cancel, null)
+            .show()
+
+        val nameJob = lifecycleScope.launch {
+            recipient.await()?.name?.takeIf { it.isNotEmpty() }?.let { name ->
+                recipientText.text = getString(R.string.qr_pay_recipient_format, name, code.recipientPhone)
+            }
+        }
+        dialog.setOnDismissListener {
+            nameJob.cancel()
+            recipient.cancel()
+        }
+
+        dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener {
+            val amount = code.amount ?: amountEngine.value?.takeIf { QrPayloadParser.isValidAmount(it) }
+            if (amount == null) {
+                amountInput.error = getString(R.string.qr_pay_invalid_amount)
+                return@setOnClickListener
+            }
+            dialog.dismiss()
+            // The code may have expired while the dialog was open
+            if (code.expiresAt != null && code.expiresAt <= System.currentTimeMillis()) {
+                Toast.makeText(this, R.string.qr_reject_expired, Toast.LENGTH_LONG).show()
+                return@setOnClickListener
+            }
+            sendQrPayment(code, amount)
+        }
+    }
+
+    /**
+     * Runs [action] once the payment is authorized, [onDenied] if the user
+     * backs out; no prompt inside the auth window
+     */
+    private fun authorizePayment(action: () -> Unit, onDenied: () -> Unit) {
+        if (!authManager.isBiometricEnabled()) {
+            authorizeWithOtp(action, onDenied)
+            return
+        }
+        biometricHelper.authorizePayment(
+            activity = this,
+            title = getString(R.string.biometric_title),
+            subtitle = getString(R.string.biometric_subtitle),
+            negativeButtonText = getString(R.string.btn_cancel),
+            onSuccess = action,
+            onError = { code, message ->
+                onDenied()
+                if (code != BiometricPrompt.ERROR_NEGATIVE_BUTTON &&
+                    code != BiometricPrompt.ERROR_USER_CANCELED &&
+                    code != BiometricPrompt.ERROR_CANCELED
+                ) {
+                    Toast.makeText(this, message, Toast.LENGTH_SHORT).show()
+                }
+            }
+        )
+    }
+
+    /**
+     * Without biometrics the payment needs a fresh OTP sent to the account's
+     * number; the transfer is prepared while the code is on its way
+     */
+    private fun authorizeWithOtp(action: () -> Unit, onDenied: () -> Unit) {
+        val mobile = tokenManager.getUserMobile()
+        if (mobile == null) {
+            onDenied()
+            return
+        }
+        val otpInput = EditText(this).apply {
+            hint = getString(R.string.hint_otp)
+            inputType = InputType.TYPE_CLASS_NUMBER
+            filters = arrayOf(InputFilter.LengthFilter(OTP_LENGTH))
+            isEnabled = false
+        }
+        val dialog = AlertDialog.Builder(this)
+            .setTitle(R.string.payment_otp_title)
+            .setMessage(getString(R.string.payment_otp_message, maskMobile(mobile)))
+            .setView(otpInput)
+            .setPositiveButton(R.string.btn_verify_otp, null)
+            .setNegativeButton(R.string.btn_cancel, null)
+            .show()
+        otpDialog = dialog
+        val verifyButton = dialog.getButton(AlertDialog.BUTTON_POSITIVE).apply { isEnabled = false }
+
+        // Callbacks run on the UI thread, so these need no guarding
+        var requestId: String? = null
+        var call: ApiCall? = null
+        var authorized = false
+        dialog.setOnDismissListener {
+            if (otpDialog === dialog) otpDialog = null
+            call?.cancel()
+            if (!authorized) onDenied()
+        }
+
+        call = apiClient.requestOtp(PhoneNumbers.toInternational(mobile), object : ApiCallback<OtpResponse> {
+            override fun onSuccess(response: OtpResponse) {
                 runOnUiThread {
-                    balanceText.text = getString(R.string.balance_format, response.currency, response.balance)
+                    if (!dialog.isShowing) return@runOnUiThread
+                    call = null
+                    requestId = response.requestId
+                    otpInput.isEnabled = true
+                    verifyButton.isEnabled = true
+                    otpInput.requestFocus()
                 }
             }
 
             override fun onError(error: ApiError) {
                 runOnUiThread {
-                    balanceText.text = getString(R.string.balance_error)
+                    if (!dialog.isShowing) return@runOnUiThread
+                    call = null
+                    Toast.makeText(this@MainActivity, getString(R.string.qr_pay_failed, error.message), Toast.LENGTH_LONG).show()
+                    dialog.dismiss()
                 }
             }
         })
+
+        verifyButton.setOnClickListener {
+            val otpRequestId = requestId ?: return@setOnClickListener
+            val code = otpInput.text?.toString().orEmpty()
+            if (code.length != OTP_LENGTH) {
+                otpInput.error = getString(R.string.error_invalid_otp)
+                return@setOnClickListener
+            }
+            verifyButton.isEnabled = false
+            otpInput.isEnabled = false
+            call = apiClient.verifyOtp(PhoneNumbers.toInternational(mobile), code, otpRequestId, object : ApiCallback<AuthResponse> {
+                override fun onSuccess(response: AuthResponse) {
+                    runOnUiThread {
+                        if (!dialog.isShowing) return@runOnUiThread
+                        call = null
+                        authorized = true
+                        dialog.dismiss()
+                        action()
+                    }
+                }
+
+                override fun onError(error: ApiError) {
+                    runOnUiThread {
+                        if (!dialog.isShowing) return@runOnUiThread
+                        call = null
+                        when (error.code) {
+                            // A wrong code can be retyped; anything else ends the attempt
+                            ApiErrorCode.UNAUTHORIZED, ApiErrorCode.VALIDATION_ERROR -> {
+                                otpInput.error = getString(R.string.error_invalid_otp)
+                                otpInput.text?.clear()
+                                otpInput.isEnabled = true
+                                verifyButton.isEnabled = true
+                            }
+                            else -> {
+                                Toast.makeText(this@MainActivity, getString(R.string.qr_pay_failed, error.message), Toast.LENGTH_LONG).show()
+                                dialog.dismiss()
+                            }
+                        }
+                    }
+                }
+            })
+        }
+    }
+
+    /** Validates, warms up and prepares the transfer while the prompt is showing */
+    private fun sendQrPayment(code: QRCodeData, amount: Money) {
+        val run = paymentPipeline.start(code.recipientPhone, amount, null, tokenManager.getUserMobile()) { result ->
+            runOnUiThread { onPaymentResult(result) }
+        }
+        authorizePayment(action = run::authorized, onDenied = run::cancel)
+    }
+
+    private fun onPaymentResult(result: PaymentPipeline.PaymentResult) {
+        // The balance card shows the debit at once; the repository reconciles it
+        when (result) {
+            is PaymentPipeline.PaymentResult.Sent -> if (result.response.success) {
+                Toast.makeText(this, R.string.qr_pay_sent, Toast.LENGTH_SHORT).show()
+            } else {
+                Toast.makeText(this, getString(R.string.qr_pay_failed, result.response.message), Toast.LENGTH_LONG).show()
+            }
+            is PaymentPipeline.PaymentResult.Failed ->
+                Toast.makeText(this, getString(R.string.qr_pay_failed, result.error.message), Toast.LENGTH_LONG).show()
+            is PaymentPipeline.PaymentResult.Queued ->
+                Toast.makeText(this, R.string.payment_queued, Toast.LENGTH_LONG).show()
+            is PaymentPipeline.PaymentResult.Rejected -> {
+                // Nothing left to authorize
+                biometricHelper.cancelPrompt()
+                otpDialog?.dismiss()
+                Toast.makeText(this, paymentRejectionMessage(result.reason), Toast.LENGTH_LONG).show()
+            }
+        }
+    }
+
+    /**
+     * Payee details from the ranking, or from history while the ranking is
+     * still loading. Search hits are only candidates (a reference number or
+     * note can contain the digits too), so a name is shown only from a
+     * transaction with this counterparty's number.
+     */
+    private fun lookupRecipient(mobile: String): RankedRecipient? {
+        recipientRanker.find(mobile)?.let { return it }
+        val local = PhoneNumbers.toLocal(mobile)
+        val tx = transactionStore.getByIds(transactionSearchIndex.search(mobile, RECIPIENT_LOOKUP_CANDIDATES))
+            .firstOrNull { PhoneNumbers.toLocal(it.counterpartyMobile) == local } ?: return null
+        return RankedRecipient(mobile, tx.counterpartyName, 1, TransactionStore.parseCreatedAt(tx.createdAt))
+    }
+
+    private fun rejectionMessage(reason: QrRejection): Int = when (reason) {
+        QrRejection.MALFORMED -> R.string.qr_reject_malformed
+        QrRejection.INVALID_RECIPIENT -> R.string.qr_reject_recipient
+        QrRejection.SELF_PAYMENT -> R.string.qr_reject_self
+        QrRejection.INVALID_AMOUNT -> R.string.qr_reject_amount
+        QrRejection.EXPIRED -> R.string.qr_reject_expired
+        QrRejection.MALFORMED_SIGNATURE -> R.string.qr_reject_incomplete
+    }
+
+    private fun paymentRejectionMessage(reason: PaymentPipeline.Rejection): Int = when (reason) {
+        PaymentPipeline.Rejection.INVALID_RECIPIENT -> R.string.qr_reject_recipient
+        PaymentPipeline.Rejection.SELF_PAYMENT -> R.string.qr_reject_self
+        PaymentPipeline.Rejection.INVALID_AMOUNT -> R.string.qr_pay_invalid_amount
+        PaymentPipeline.Rejection.INSUFFICIENT_BALANCE -> R.string.payment_insufficient_balance
     }
 
     private fun updateKeyboardStatus() {
@@ -117,6 +523,8 @@ class MainActivity : AppCompatActivity() {
         return enabledMethods?.contains(packageName) == true
     }
 
+    private fun displayLocale() = resources.configuration.locales[0]
+
     private fun maskMobile(mobile: String): String {
         return if (mobile.length >= 4) "****${mobile.takeLast(4)}" else mobile
     }
@@ -0,0 +1,115 @@
+package tech.healthpay.keyboard.ui
+
+import android.Manifest
+import android.content.Intent
+import android.content.pm.PackageManager
+import android.os.Bundle
+import android.util.Log
+import android.widget.Toast
+import androidx.appcompat.app.AppCompatActivity
+import androidx.core.app.ActivityCompat
+import androidx.core.content.ContextCompat
+import com.journeyapps.barcodescanner.CameraPreview
+import com.journeyapps.barcodescanner.SourceData
+import com.journeyapps.barcodescanner.camera.PreviewCallback
+import tech.healthpay.keyboard.R
+import tech.healthpay.keyboard.qr.QrScanDecoder
+
+/**
+ * Scan QR Activity - Camera preview feeding [QrScanDecoder]
+ *
+ * A new preview frame is requested as soon as the previous one is handed
+ * off, and the decoder drops frames while its workers are busy. Returns the
+ * decoded text in [EXTRA_PAYLOAD].
+ */
+class ScanQrActivity : AppCompatActivity() {
+
+    companion object {
+        private const val TAG = "ScanQrActivity"
+        private const val REQUEST_CAMERA = 1001
+        const val EXTRA_PAYLOAD = "payload"
+    }
+
+    private lateinit var preview: CameraPreview
+
+    private val decoder = QrScanDecoder { text ->
+        setResult(RESULT_OK, Intent().putExtra(EXTRA_PAYLOAD, text))
+        finish()
+    }
+
+    private val previewCallback = object : PreviewCallback {
+        override fun onPreview(sourceData: SourceData) {
+            decoder.submit(sourceData)
+            requestFrame()
+        }
+
+        override fun onPreviewError(e: Exception) {
+            Log.e(TAG, "Preview frame failed", e)
+        }
+    }
+
+    private val stateListener = object : CameraPreview.StateListener {
+        override fun previewSized() {}
+        override fun previewStarted() = requestFrame()
+        override fun previewStopped() {}
+        override fun cameraError(error: Exception) {
+            Log.e(TAG, "Camera error", error)
+            Toast.makeText(this@ScanQrActivity, R.string.scan_qr_camera_error, Toast.LENGTH_SHORT).show()
+            finish()
+        }
+        override fun cameraClosed() {}
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        setContentView(R.layout.activity_scan_qr)
+
+        supportActionBar?.setDisplayHomeAsUpEnabled(true)
+
+        preview = findViewById(R.id.camera_preview)
+        preview.addStateListener(stateListener)
+    }
+
+    override fun onResume() {
+        super.onResume()
+        if (hasCameraPermission()) {
+            preview.resume()
+        } else {
+            ActivityCompat.requestPermissions(this, arrayOf(Manifest.permission.CAMERA), REQUEST_CAMERA)
+        }
+    }
+
+    override fun onPause() {
+        super.onPause()
+        preview.pause()
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        decoder.shutdown()
+    }
+
+    override fun onSupportNavigateUp(): Boolean {
+        onBackPressed()
+        return true
+    }
+
+    override fun onRequestPermissionsResult(requestCode: Int, permissions: Array<out String>, grantResults: IntArray) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults)
+        if (requestCode != REQUEST_CAMERA) return
+        if (grantResults.firstOrNull() != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, R.string.scan_qr_permission_denied, Toast.LENGTH_SHORT).show()
+            finish()
+        }
+        // Granted: onResume runs again and starts the preview
+    }
+
+    private fun requestFrame() {
+        if (preview.isPreviewActive) {
+            preview.cameraInstance?.requestPreview(previewCallback)
+        }
+    }
+
+    private fun hasCameraPermission() =
+        ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED
+}
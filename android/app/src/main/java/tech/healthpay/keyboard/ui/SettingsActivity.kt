@@ -29,6 +29,12 @@ class SettingsActivity : AppCompatActivity() {
         
         initViews()
         setupListeners()
+    }
+
+    override fun onResume() {
+        super.onResume()
+        // Enrollment may have changed in system settings while we were away
+        biometricHelper.refreshStatus()
         updateBiometricStatus()
     }
 
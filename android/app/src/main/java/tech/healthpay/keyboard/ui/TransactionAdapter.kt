@@ -0,0 +1,79 @@
+package tech.healthpay.keyboard.ui
+
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.ImageView
+import android.widget.TextView
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.ListAdapter
+import androidx.recyclerview.widget.RecyclerView
+import tech.healthpay.keyboard.R
+
+/**
+ * Transaction Adapter - Async-diffed list of transactions keyed by id
+ *
+ * Rows are precomputed [TransactionDisplay]s, so binding does no parsing or
+ * formatting; avatars come from [AvatarLoader]'s caches.
+ *
+ * [submitList] diffs on a background thread, so appending a window or
+ * applying a sync only rebinds rows that actually changed. [onRowShown] fires
+ * for every bound row; [onNearEnd] fires when a row within [LOAD_AHEAD] of the
+ * end is bound, to load the next window.
+ */
+class TransactionAdapter(
+    private val avatarLoader: AvatarLoader,
+    private val onRowShown: (TransactionDisplay) -> Unit,
+    private val onNearEnd: () -> Unit
+) : ListAdapter<TransactionDisplay, TransactionAdapter.ViewHolder>(DIFF_CALLBACK) {
+
+    companion object {
+        private const val LOAD_AHEAD = 20
+
+        private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<TransactionDisplay>() {
+            override fun areItemsTheSame(oldItem: TransactionDisplay, newItem: TransactionDisplay) =
+                oldItem.id == newItem.id
+            override fun areContentsTheSame(oldItem: TransactionDisplay, newItem: TransactionDisplay) =
+                oldItem == newItem
+        }
+    }
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ViewHolder {
+        val view = LayoutInflater.from(parent.context).inflate(R.layout.item_transaction, parent, false)
+        return ViewHolder(view, avatarLoader)
+    }
+
+    override fun onBindViewHolder(holder: ViewHolder, position: Int) {
+        val display = getItem(position)
+        holder.bind(display)
+        onRowShown(display)
+        if (position >= itemCount - LOAD_AHEAD) onNearEnd()
+    }
+
+    class ViewHolder(
+        view: View,
+        private val avatarLoader: AvatarLoader
+    ) : RecyclerView.ViewHolder(view) {
+        private val avatar: ImageView = view.findViewById(R.id.avatar)
+        private val name: TextView = view.findViewById(R.id.counterparty_name)
+        private val date: TextView = view.findViewById(R.id.transaction_date)
+        private val amount: TextView = view.findViewById(R.id.transaction_amount)
+        private val status: TextView = view.findViewById(R.id.transaction_status)
+
+        fun bind(display: TransactionDisplay) {
+            val context = itemView.context
+            avatarLoader.load(
+                avatar,
+                display.transaction.counterpartyAvatar,
+                display.counterpartyInitial,
+                avatar.layoutParams.width
+            )
+            name.text = display.counterpartyName
+            date.text = display.formattedDate
+            amount.text = display.formattedAmount
+            amount.setTextColor(context.getColor(display.amountColor))
+            status.text = display.transaction.status
+            status.setTextColor(context.getColor(display.statusColor))
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package tech.healthpay.keyboard.ui
+
+import android.content.Context
+import android.util.LruCache
+import androidx.annotation.ColorRes
+import tech.healthpay.keyboard.R
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.data.TransactionStore
+import java.text.DecimalFormatSymbols
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * Render-ready fields for one transaction row, computed once off the main
+ * thread so binding a row is only view assignments.
+ */
+data class TransactionDisplay(
+    val transaction: Transaction,
+    val createdAtMillis: Long,
+    val counterpartyName: String,
+    val counterpartyInitial: String,
+    val formattedAmount: String,
+    val formattedDate: String,
+    @ColorRes val amountColor: Int,
+    @ColorRes val statusColor: Int
+) {
+    val id: String get() = transaction.id
+}
+
+/**
+ * Transaction Display Mapper - Builds and memoizes [TransactionDisplay]s
+ *
+ * `createdAt` is parsed once per transaction and date formatters are cached
+ * per thread and locale (SimpleDateFormat is not thread-safe), so Arabic and
+ * English rows never re-create formatters. Amounts are written digit by
+ * digit by [tech.healthpay.keyboard.api.Money.appendTo] with the locale's
+ * symbols, into a per-thread builder.
+ */
+class TransactionDisplayMapper(context: Context) {
+
+    companion object {
+        private const val CACHE_SIZE = 2_000
+
+        private class Formatters(locale: Locale) {
+            val symbols: DecimalFormatSymbols = DecimalFormatSymbols.getInstance(locale)
+            val text = StringBuilder(32)
+            val date = SimpleDateFormat("d MMM yyyy, HH:mm", locale)
+        }
+
+        private val formatters = object : ThreadLocal<HashMap<Locale, Formatters>>() {
+            override fun initialValue() = HashMap<Locale, Formatters>()
+        }
+
+        private fun formattersFor(locale: Locale): Formatters =
+            formatters.get()!!.getOrPut(locale) { Formatters(locale) }
+    }
+
+    private val appContext = context.applicationContext
+    private val cache = LruCache<String, TransactionDisplay>(CACHE_SIZE)
+
+    @Volatile
+    private var cachedLocale: Locale? = null
+
+    fun map(transactions: List<Transaction>): List<TransactionDisplay> {
+        val locale = currentLocale()
+        return transactions.map { map(it, locale) }
+    }
+
+    fun map(transaction: Transaction): TransactionDisplay = map(transaction, currentLocale())
+
+    private fun map(transaction: Transaction, locale: Locale): TransactionDisplay {
+        cache.get(transaction.id)?.let { cached ->
+            if (cached.transaction == transaction) return cached
+        }
+        return build(transaction, locale).also { cache.put(transaction.id, it) }
+    }
+
+    private fun currentLocale(): Locale {
+        val locale = appContext.resources.configuration.locales[0]
+        if (locale != cachedLocale) {
+            // Formatted strings depend on the locale; drop them on a language switch
+            cache.evictAll()
+            cachedLocale = locale
+        }
+        return locale
+    }
+
+    private fun build(transaction: Transaction, locale: Locale): TransactionDisplay {
+        val formats = formattersFor(locale)
+        val createdAtMillis = TransactionStore.parseCreatedAt(transaction.createdAt)
+        val counterparty = transaction.counterpartyName.ifEmpty {
+            appContext.getString(R.string.history_unknown_counterparty)
+        }
+        val amount = formats.text.apply {
+            setLength(0)
+            append(if (transaction.isCredit) '+' else '-').append(transaction.currency).append(' ')
+            transaction.amount.appendTo(this, formats.symbols.groupingSeparator, formats.symbols.decimalSeparator, formats.symbols.zeroDigit)
+        }.toString()
+        val date = Date(createdAtMillis)
+
+        return TransactionDisplay(
+            transaction = transaction,
+            createdAtMillis = createdAtMillis,
+            counterpartyName = counterparty,
+            counterpartyInitial = counterparty.substring(0, counterparty.offsetByCodePoints(0, 1)).uppercase(locale),
+            formattedAmount = amount,
+            formattedDate = if (createdAtMillis > 0) formats.date.format(date) else "",
+            amountColor = if (transaction.isCredit) R.color.success else R.color.text_primary,
+            statusColor = statusColor(transaction.status)
+        )
+    }
+
+    @ColorRes
+    private fun statusColor(status: String): Int = when (status.lowercase(Locale.US)) {
+        "completed", "success", "successful" -> R.color.success
+        "pending", "processing" -> R.color.warning
+        "failed", "rejected", "cancelled", "canceled" -> R.color.error
+        else -> R.color.text_secondary
+    }
+}
@@ -0,0 +1,123 @@
+package tech.healthpay.keyboard.ui
+
+import android.os.Bundle
+import android.text.Editable
+import android.text.TextWatcher
+import android.view.View
+import android.widget.EditText
+import android.widget.TextView
+import androidx.appcompat.app.AppCompatActivity
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import tech.healthpay.keyboard.HealthPayKeyboardApplication
+import tech.healthpay.keyboard.R
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.data.TransactionSyncManager
+
+/**
+ * Transaction History Activity - Renders history from the local store
+ *
+ * The first window comes straight from [tech.healthpay.keyboard.data.TransactionStore],
+ * a delta sync runs in the background and newly synced rows are diffed in.
+ * Typing in the search field swaps the list for matches from
+ * [tech.healthpay.keyboard.data.TransactionSearchIndex].
+ */
+class TransactionHistoryActivity : AppCompatActivity() {
+
+    companion object {
+        private const val VIEW_CACHE_SIZE = 10
+    }
+
+    private lateinit var transactionsList: RecyclerView
+    private lateinit var emptyText: TextView
+    private lateinit var searchInput: EditText
+
+    private var query = ""
+
+    private val transactionSync by lazy { HealthPayKeyboardApplication.transactionSync }
+    private val notificationStore by lazy { HealthPayKeyboardApplication.notificationStore }
+    private val pagingSource by lazy {
+        TransactionPagingSource(
+            HealthPayKeyboardApplication.transactionStore,
+            TransactionDisplayMapper(this),
+            HealthPayKeyboardApplication.transactionSearchIndex
+        )
+    }
+
+    private val adapter by lazy {
+        TransactionAdapter(
+            HealthPayKeyboardApplication.avatarLoader,
+            onRowShown = { display -> notificationStore.markRead("tx:${display.id}") },
+            onNearEnd = { loadNextWindow() }
+        )
+    }
+
+    private val syncListener = object : TransactionSyncManager.Listener {
+        override fun onNewTransactions(transactions: List<Transaction>) {
+            runOnUiThread { refresh() }
+        }
+
+        // Status changes to rows already on screen
+        override fun onUpdatedTransactions(transactions: List<Transaction>) {
+            runOnUiThread { refresh() }
+        }
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        setContentView(R.layout.activity_transaction_history)
+
+        supportActionBar?.setDisplayHomeAsUpEnabled(true)
+        supportActionBar?.title = getString(R.string.wallet_transactions)
+
+        transactionsList = findViewById(R.id.transactions_list)
+        emptyText = findViewById(R.id.empty_text)
+        searchInput = findViewById(R.id.search_input)
+
+        transactionsList.layoutManager = LinearLayoutManager(this).apply {
+            isItemPrefetchEnabled = true
+        }
+        transactionsList.setHasFixedSize(true)
+        transactionsList.setItemViewCacheSize(VIEW_CACHE_SIZE)
+        transactionsList.adapter = adapter
+
+        searchInput.addTextChangedListener(object : TextWatcher {
+            override fun beforeTextChanged(s: CharSequence?, start: Int, count: Int, after: Int) {}
+            override fun onTextChanged(s: CharSequence?, start: Int, before: Int, count: Int) {}
+            override fun afterTextChanged(s: Editable?) {
+                val newQuery = s?.toString()?.trim().orEmpty()
+                if (newQuery == query) return
+                query = newQuery
+                refresh()
+            }
+        })
+
+        transactionSync.addListener(syncListener)
+        refresh()
+        transactionSync.sync()
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        transactionSync.removeListener(syncListener)
+        pagingSource.close()
+    }
+
+    override fun onSupportNavigateUp(): Boolean {
+        onBackPressed()
+        return true
+    }
+
+    private fun refresh() {
+        val callback = TransactionPagingSource.Callback { transactions ->
+            adapter.submitList(transactions)
+            emptyText.setText(if (query.isEmpty()) R.string.history_empty else R.string.history_no_results)
+            emptyText.visibility = if (transactions.isEmpty()) View.VISIBLE else View.GONE
+        }
+        if (query.isEmpty()) pagingSource.refresh(callback) else pagingSource.search(query, callback)
+    }
+
+    private fun loadNextWindow() {
+        pagingSource.loadNextWindow { transactions -> adapter.submitList(transactions) }
+    }
+}
@@ -0,0 +1,105 @@
+package tech.healthpay.keyboard.ui
+
+import android.os.Handler
+import android.os.Looper
+import tech.healthpay.keyboard.data.TransactionSearchIndex
+import tech.healthpay.keyboard.data.TransactionStore
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Transaction Paging Source - Loads history from [TransactionStore] in windows
+ *
+ * Windows are read with keyset paging and mapped to [TransactionDisplay]s on a
+ * background thread, then appended to the loaded list, which is delivered on
+ * the main thread. Only one load runs at a time; results of a load started
+ * before a [refresh] or [search] are discarded.
+ */
+class TransactionPagingSource(
+    private val store: TransactionStore,
+    private val mapper: TransactionDisplayMapper,
+    private val searchIndex: TransactionSearchIndex,
+    private val windowSize: Int = DEFAULT_WINDOW_SIZE
+) {
+
+    companion object {
+        const val DEFAULT_WINDOW_SIZE = 50
+        private const val MAX_SEARCH_RESULTS = 200
+    }
+
+    fun interface Callback {
+        fun onLoaded(transactions: List<TransactionDisplay>)
+    }
+
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Main-thread state
+    private var loaded: List<TransactionDisplay> = emptyList()
+    private var isLoading = false
+    private var endReached = false
+    private var generation = 0
+
+    /**
+     * Re-reads the newest rows, keeping as many as are already shown so the
+     * list does not shrink under the user after a sync.
+     */
+    fun refresh(callback: Callback) {
+        val requestGeneration = ++generation
+        val count = maxOf(windowSize, loaded.size)
+        isLoading = true
+        executor.execute {
+            val rows = mapper.map(store.getRecent(count))
+            mainHandler.post {
+                if (requestGeneration != generation) return@post
+                loaded = rows
+                endReached = rows.size < count
+                isLoading = false
+                callback.onLoaded(rows)
+            }
+        }
+    }
+
+    /**
+     * Replaces the list with the newest transactions matching [query]. Search
+     * results are not paged; [refresh] returns to the full history.
+     */
+    fun search(query: String, callback: Callback) {
+        val requestGeneration = ++generation
+        isLoading = true
+        executor.execute {
+            val ids = searchIndex.search(query, MAX_SEARCH_RESULTS)
+            val rows = mapper.map(store.getByIds(ids))
+            mainHandler.post {
+                if (requestGeneration != generation) return@post
+                loaded = rows
+                endReached = true
+                isLoading = false
+                callback.onLoaded(rows)
+            }
+        }
+    }
+
+    fun loadNextWindow(callback: Callback) {
+        if (isLoading || endReached) return
+        val last = loaded.lastOrNull() ?: return refresh(callback)
+
+        val requestGeneration = generation
+        isLoading = true
+        executor.execute {
+            val rows = mapper.map(store.getPageBefore(last.createdAtMillis, last.id, windowSize))
+            mainHandler.post {
+                if (requestGeneration != generation) return@post
+                loaded = loaded + rows
+                endReached = rows.size < windowSize
+                isLoading = false
+                callback.onLoaded(loaded)
+            }
+        }
+    }
+
+    fun close() {
+        generation++
+        executor.shutdown()
+    }
+}
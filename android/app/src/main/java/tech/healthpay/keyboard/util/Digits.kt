@@ -0,0 +1,18 @@
+package tech.healthpay.keyboard.util
+
+/**
+ * Digits - Digit families the app accepts as input
+ *
+ * Users type amounts and phone numbers in ASCII, Arabic-Indic (٠١٢) or
+ * Eastern Arabic-Indic (۰۱۲) digits; parsers map them to ASCII one
+ * character at a time.
+ */
+object Digits {
+
+    /** Maps Arabic-Indic and Eastern Arabic-Indic digits to ASCII; other chars are returned as-is */
+    fun toAscii(c: Char): Char = when (c) {
+        in '٠'..'٩' -> '0' + (c - '٠')
+        in '۰'..'۹' -> '0' + (c - '۰')
+        else -> c
+    }
+}
@@ -0,0 +1,82 @@
+package tech.healthpay.keyboard
+
+import android.content.SharedPreferences
+
+/**
+ * In-memory [SharedPreferences] for local unit tests. Instances survive the
+ * objects that use them, so a test can rebuild those objects on the same
+ * preferences as a restarted process would.
+ */
+class FakeSharedPreferences : SharedPreferences {
+
+    private val values = HashMap<String, Any?>()
+    private val listeners = LinkedHashSet<SharedPreferences.OnSharedPreferenceChangeListener>()
+
+    @Synchronized
+    override fun getAll(): Map<String, *> = HashMap(values)
+
+    @Synchronized
+    override fun getString(key: String, defValue: String?): String? = values[key] as String? ?: defValue
+
+    @Suppress("UNCHECKED_CAST")
+    @Synchronized
+    override fun getStringSet(key: String, defValues: Set<String>?): Set<String>? =
+        (values[key] as Set<String>?)?.toSet() ?: defValues
+
+    @Synchronized
+    override fun getInt(key: String, defValue: Int): Int = values[key] as Int? ?: defValue
+
+    @Synchronized
+    override fun getLong(key: String, defValue: Long): Long = values[key] as Long? ?: defValue
+
+    @Synchronized
+    override fun getFloat(key: String, defValue: Float): Float = values[key] as Float? ?: defValue
+
+    @Synchronized
+    override fun getBoolean(key: String, defValue: Boolean): Boolean = values[key] as Boolean? ?: defValue
+
+    @Synchronized
+    override fun contains(key: String): Boolean = values.containsKey(key)
+
+    override fun edit(): SharedPreferences.Editor = Editor()
+
+    /** A copy of what is stored right now, as a process killed at this point leaves it */
+    @Synchronized
+    fun snapshot(): FakeSharedPreferences = FakeSharedPreferences().also { it.values.putAll(values) }
+
+    override fun registerOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        synchronized(this) { listeners.add(listener) }
+    }
+
+    override fun unregisterOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        synchronized(this) { listeners.remove(listener) }
+    }
+
+    private inner class Editor : SharedPreferences.Editor {
+        private val changes = HashMap<String, Any?>()
+        private var clear = false
+
+        override fun putString(key: String, value: String?) = apply { changes[key] = value }
+        override fun putStringSet(key: String, values: Set<String>?) = apply { changes[key] = values?.toSet() }
+        override fun putInt(key: String, value: Int) = apply { changes[key] = value }
+        override fun putLong(key: String, value: Long) = apply { changes[key] = value }
+        override fun putFloat(key: String, value: Float) = apply { changes[key] = value }
+        override fun putBoolean(key: String, value: Boolean) = apply { changes[key] = value }
+        override fun remove(key: String) = apply { changes[key] = null }
+        override fun clear() = apply { clear = true }
+
+        override fun commit(): Boolean {
+            val notify = synchronized(this@FakeSharedPreferences) {
+                if (clear) values.clear()
+                changes.forEach { (key, value) -> if (value == null) values.remove(key) else values[key] = value }
+                listeners.toList()
+            }
+            changes.keys.forEach { key -> notify.forEach { it.onSharedPreferenceChanged(this@FakeSharedPreferences, key) } }
+            return true
+        }
+
+        override fun apply() {
+            commit()
+        }
+    }
+}
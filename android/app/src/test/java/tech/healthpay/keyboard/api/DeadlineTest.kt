@@ -0,0 +1,112 @@
+package tech.healthpay.keyboard.api
+
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import tech.healthpay.keyboard.FakeSharedPreferences
+import tech.healthpay.keyboard.data.TransferJournal
+import tech.healthpay.keyboard.security.TokenManager
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * A UI deadline against a throttled stand-in server: the call gives up when
+ * the deadline does, not after OkHttp's own 30 s timeouts.
+ */
+class DeadlineTest {
+
+    private val server = MockWebServer().apply { start() }
+
+    private val apiClient = FakeSharedPreferences().let { prefs ->
+        HealthPayApiClient(TokenManager(prefs), TransferJournal(prefs), server.url("/graphql").toString())
+    }
+
+    private val balance = """{"data":{"wallet":{"balance":150.0,"currency":"EGP","lastUpdated":""}}}"""
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    private fun balanceOutcomes(deadline: Deadline?) = LinkedBlockingQueue<Any>().also { outcomes ->
+        apiClient.getWalletBalance(object : ApiCallback<WalletBalance> {
+            override fun onSuccess(response: WalletBalance) {
+                outcomes.add(response)
+            }
+
+            override fun onError(error: ApiError) {
+                outcomes.add(error)
+            }
+        }, deadline)
+    }
+
+    @Test
+    fun slowHeadersAreCancelledAtTheDeadline() {
+        server.enqueue(MockResponse().setBody(balance).setHeadersDelay(3, TimeUnit.SECONDS))
+
+        val start = System.nanoTime()
+        val outcomes = balanceOutcomes(Deadline.after(DEADLINE_MS))
+        val error = outcomes.poll(5, TimeUnit.SECONDS) as ApiError
+        val elapsedMs = (System.nanoTime() - start) / 1_000_000
+
+        assertEquals(ApiErrorCode.TIMEOUT, error.code)
+        assertTrue("gave up after $elapsedMs ms", elapsedMs in DEADLINE_MS until DEADLINE_MS + SLACK_MS)
+        // An expired deadline is final: no retry goes out behind it
+        assertEquals(1, server.requestCount)
+    }
+
+    @Test
+    fun throttledBodyIsCancelledAtTheDeadline() {
+        // The request goes up in one chunk; the padded answer needs about 8 s to come down
+        server.enqueue(MockResponse().setBody(balance + " ".repeat(8_192)).throttleBody(1_024, 1, TimeUnit.SECONDS))
+
+        val start = System.nanoTime()
+        val outcomes = balanceOutcomes(Deadline.after(DEADLINE_MS))
+        val error = outcomes.poll(5, TimeUnit.SECONDS) as ApiError
+        val elapsedMs = (System.nanoTime() - start) / 1_000_000
+
+        assertEquals(ApiErrorCode.TIMEOUT, error.code)
+        assertTrue("gave up after $elapsedMs ms", elapsedMs in DEADLINE_MS until DEADLINE_MS + SLACK_MS)
+        assertEquals(1, server.requestCount)
+    }
+
+    @Test
+    fun responseWithinTheDeadlineIsDelivered() {
+        server.enqueue(MockResponse().setBody(balance).setHeadersDelay(100, TimeUnit.MILLISECONDS))
+
+        val outcome = balanceOutcomes(Deadline.after(5_000)).poll(5, TimeUnit.SECONDS)
+
+        assertEquals(Money.ofMajor(150), (outcome as WalletBalance).balance)
+    }
+
+    @Test
+    fun cancelledCallReportsNothing() {
+        server.enqueue(MockResponse().setBody(balance).setHeadersDelay(3, TimeUnit.SECONDS))
+        val outcomes = LinkedBlockingQueue<Any>()
+        val call = apiClient.getWalletBalance(object : ApiCallback<WalletBalance> {
+            override fun onSuccess(response: WalletBalance) {
+                outcomes.add(response)
+            }
+
+            override fun onError(error: ApiError) {
+                outcomes.add(error)
+            }
+        }, Deadline.after(5_000))
+
+        // As LoginActivity does when its own timer fires first
+        server.takeRequest(5, TimeUnit.SECONDS)
+        call.cancel()
+
+        assertNull(outcomes.poll(1, TimeUnit.SECONDS))
+        assertEquals(1, server.requestCount)
+    }
+
+    private companion object {
+        const val DEADLINE_MS = 500L
+        const val SLACK_MS = 1_500L
+    }
+}
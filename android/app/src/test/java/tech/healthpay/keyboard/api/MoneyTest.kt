@@ -0,0 +1,130 @@
+package tech.healthpay.keyboard.api
+
+import org.json.JSONObject
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+class MoneyTest {
+
+    private fun Money.plain() = appendTo(StringBuilder(), Money.NO_GROUPING).toString()
+
+    private fun Money.grouped() = appendTo(StringBuilder()).toString()
+
+    private fun Money.arabic() = appendTo(StringBuilder(), '٬', '٫', '٠').toString()
+
+    @Test
+    fun parsesPlainGroupedAndArabicAmounts() {
+        assertEquals(Money(123_400), Money.parse("1234"))
+        assertEquals(Money(123_450), Money.parse("1234.5"))
+        assertEquals(Money(123_456), Money.parse("1,234.56"))
+        assertEquals(Money(123_456_789_00), Money.parse("123,456,789"))
+        assertEquals(Money(5), Money.parse("0.05"))
+        assertEquals(Money(12_345), Money.parse("١٢٣٫٤٥"))
+        assertEquals(Money(123_456), Money.parse("١٬٢٣٤٫٥٦"))
+        assertEquals(Money(123_400), Money.parse("۱۲۳۴"))
+        assertEquals(Money(12_345), Money.parse("1٢3.4٥"))
+    }
+
+    @Test
+    fun rejectsMalformedAmounts() {
+        val rejected = listOf(
+            "", ".", ".5", "12.", "1.234", "1.2.3", "-5", "+5", "1e3", " 12", "12 ", "١٢x",
+            "1,2,3", "12,", "1,23", "1,2345", "1234,567", ",123", "1,234,56", "1,234,5678.00", "12,.5",
+            "1234567890123456"
+        )
+        for (text in rejected) assertNull(text, Money.parse(text))
+    }
+
+    @Test
+    fun formatsWithTwoDecimalsAndGrouping() {
+        assertEquals("0.00", Money.ZERO.grouped())
+        assertEquals("0.05", Money(5).grouped())
+        assertEquals("999.99", Money(99_999).grouped())
+        assertEquals("1,000.00", Money(100_000).grouped())
+        assertEquals("1,234,567.89", Money(123_456_789).grouped())
+        assertEquals("1001000.10", Money(100_100_010).plain())
+        assertEquals("١٬٠٠٠٬٠٠٠٫٠٥", Money(100_000_005).arabic())
+        assertEquals("1234.50", Money(123_450).toString())
+    }
+
+    @Test
+    fun formatsNegativeAmounts() {
+        assertEquals("-0.01", Money(-1).grouped())
+        assertEquals("-12,345.67", Money(-1_234_567).grouped())
+        assertEquals("-1000.00", (Money.ZERO - Money.ofMajor(1_000)).plain())
+        assertEquals("-٥٫٠٠", (-Money.ofMajor(5)).arabic())
+    }
+
+    @Test
+    fun arithmeticIsExact() {
+        var total = Money.ZERO
+        repeat(10) { total += Money.fromDouble(0.1) }
+        assertEquals(Money.ofMajor(1), total)
+        assertEquals(Money(30), Money.fromDouble(0.1 + 0.2))
+        assertEquals(Money(1_005), Money.fromDouble(10.05))
+        assertEquals(Money.ZERO, Money.fromDouble(Double.NaN))
+        assertEquals("0.30", Money(10).times(3).plain())
+        assertEquals(java.math.BigDecimal("1234.05"), Money(123_405).toBigDecimal())
+    }
+
+    @Test
+    fun wireNumberIsAJsonNumberThatRoundTrips() {
+        val body = JSONObject(mapOf("amount" to Money(123_450).toWireNumber())).toString()
+        assertEquals("""{"amount":1234.5}""", body)
+
+        val random = Random(45)
+        repeat(20_000) {
+            val money = Money(random.nextLong(0, 1_000_000_000_000_000L))
+            val sent = JSONObject(JSONObject(mapOf("amount" to money.toWireNumber())).toString()).get("amount")
+            assertTrue(sent is Number)
+            assertEquals(money, Money.fromDouble((sent as Number).toDouble()))
+        }
+    }
+
+    @Test
+    fun formatAndParseRoundTrip() {
+        val random = Random(45)
+        repeat(20_000) {
+            val money = Money(random.nextLong(0, 1_000_000_000_000_000L))
+            assertEquals(money, Money.parse(money.plain()))
+            assertEquals(money, Money.parse(money.grouped()))
+            assertEquals(money, Money.parse(money.arabic()))
+        }
+    }
+
+    @Test
+    fun benchmarkFormatAndParse() {
+        val random = Random(4545)
+        val amounts = LongArray(10_000) { random.nextLong(0, 10_000_000_000L) }
+        val out = StringBuilder(32)
+        var sink = 0L
+
+        fun pass() {
+            for (minor in amounts) {
+                out.setLength(0)
+                Money(minor).appendTo(out)
+                sink += Money.parse(out)!!.minorUnits
+            }
+        }
+        repeat(20) { pass() } // warm-up
+
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+        val allocatedBefore = threads.getThreadAllocatedBytes(thread)
+        val start = System.nanoTime()
+        repeat(50) { pass() }
+        val elapsed = System.nanoTime() - start
+        val allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore
+
+        val calls = 50 * amounts.size
+        val nsPerCall = elapsed / calls
+        println("Money format + parse: $nsPerCall ns per amount, $allocated bytes allocated over $calls calls ($sink)")
+        assertTrue("$nsPerCall ns per amount", nsPerCall < 20_000)
+        // Formatting allocates nothing; parsing only boxes its nullable result
+        assertTrue("$allocated bytes allocated", allocated <= calls * 32L)
+    }
+}
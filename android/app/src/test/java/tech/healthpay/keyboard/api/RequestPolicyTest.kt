@@ -0,0 +1,190 @@
+package tech.healthpay.keyboard.api
+
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.SocketPolicy
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import tech.healthpay.keyboard.FakeSharedPreferences
+import tech.healthpay.keyboard.data.TransferJournal
+import tech.healthpay.keyboard.security.TokenManager
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Per-operation timeouts and retries under simulated latency and loss:
+ * first on a modelled link, then against a lossy stand-in server.
+ */
+class RequestPolicyTest {
+
+    private val server = MockWebServer().apply { start() }
+
+    private val apiClient = FakeSharedPreferences().let { prefs ->
+        HealthPayApiClient(TokenManager(prefs), TransferJournal(prefs), server.url("/graphql").toString())
+    }
+
+    private val balance = """{"data":{"wallet":{"balance":150.0,"currency":"EGP","lastUpdated":""}}}"""
+    private val gatewayPage = "<html><body><h1>503 Service Temporarily Unavailable</h1></body></html>"
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    private fun <T> outcomes() = LinkedBlockingQueue<Any>().let { queue ->
+        queue to object : ApiCallback<T> {
+            override fun onSuccess(response: T) {
+                queue.add(response as Any)
+            }
+
+            override fun onError(error: ApiError) {
+                queue.add(error)
+            }
+        }
+    }
+
+    /** Round trips drawn around [rttMs] with the given jitter, as a link would report them */
+    private fun estimatorOnLink(random: Random, rttMs: Long, jitterMs: Long) = NetworkQualityEstimator().apply {
+        repeat(50) {
+            val rtt = (rttMs + random.nextLong(-jitterMs, jitterMs + 1)).coerceAtLeast(1)
+            recordSample(rttMs = rtt, bytes = 2_000, durationMs = rtt + 5)
+        }
+    }
+
+    @Test
+    fun timeoutsFollowTheLinkWithinEachOperationsBounds() {
+        val random = Random(27)
+        val links = listOf(
+            estimatorOnLink(random, rttMs = 40, jitterMs = 10),
+            estimatorOnLink(random, rttMs = 400, jitterMs = 150),
+            estimatorOnLink(random, rttMs = 6_000, jitterMs = 3_000)
+        )
+        for (policy in listOf(RequestPolicy.QUERY, RequestPolicy.AUTH, RequestPolicy.PAYMENT, RequestPolicy.PREFETCH)) {
+            // Nothing measured yet: the ceiling, not OkHttp's 30 s default
+            val unknown = policy.timeoutsFor(NetworkQualityEstimator())
+            assertEquals(CallTimeouts(policy.maxTimeoutMs, policy.maxTimeoutMs, policy.maxTimeoutMs), unknown)
+
+            val timeouts = links.map { policy.timeoutsFor(it).readMs }
+            timeouts.forEach { assertTrue("$policy: $it ms", it in policy.minTimeoutMs..policy.maxTimeoutMs) }
+            assertEquals("$policy on a fast link", policy.minTimeoutMs, timeouts.first())
+            assertEquals("$policy on a bad link", policy.maxTimeoutMs, timeouts.last())
+            assertTrue("$policy: $timeouts", timeouts.zipWithNext().all { (a, b) -> a <= b })
+        }
+
+        // A timeout without a sample still lengthens the next budget
+        val link = estimatorOnLink(random, rttMs = 1_500, jitterMs = 100)
+        val before = RequestPolicy.QUERY.timeoutsFor(link).readMs
+        link.recordTimeout()
+        assertTrue(RequestPolicy.QUERY.timeoutsFor(link).readMs > before)
+    }
+
+    @Test
+    fun simulatedLossRetriesOnlyWhatIsSafeToRepeat() {
+        val random = Random(270)
+        // Each attempt is lost with this chance; half the losses happen before the server sees the request
+        val loss = 0.3
+        val runs = 20_000
+        val delivered = HashMap<RequestPolicy, Int>()
+        val duplicates = HashMap<RequestPolicy, Int>()
+
+        for (policy in listOf(RequestPolicy.QUERY, RequestPolicy.AUTH, RequestPolicy.PAYMENT)) {
+            repeat(runs) {
+                var attempt = 1
+                var reached = 0
+                while (true) {
+                    if (random.nextDouble() >= loss) {
+                        reached++
+                        delivered.merge(policy, 1, Int::plus)
+                        break
+                    }
+                    val failure = if (random.nextBoolean()) NetworkFailure.CONNECT_FAILED else NetworkFailure.CONNECTION_LOST
+                    if (failure.mayHaveReachedServer) reached++
+                    if (!policy.shouldRetry(failure, attempt)) break
+                    assertTrue(policy.backoffMs(attempt) in policy.baseBackoffMs / 2..policy.maxBackoffMs)
+                    attempt++
+                }
+                assertTrue(attempt <= policy.maxAttempts)
+                if (reached > 1) duplicates.merge(policy, 1, Int::plus)
+            }
+        }
+
+        fun rate(policy: RequestPolicy) = (delivered[policy] ?: 0).toDouble() / runs
+        // Three attempts at 30% loss: 1 - 0.3^3
+        assertEquals(0.973, rate(RequestPolicy.QUERY), 0.01)
+        assertEquals(0.973, rate(RequestPolicy.PAYMENT), 0.01)
+        // A second attempt only after a loss the server never saw: 0.7 + 0.15 * 0.7
+        assertEquals(0.7 + 0.15 * 0.7, rate(RequestPolicy.AUTH), 0.01)
+        // An OTP is never sent twice; keyed operations may reach the server again, which their key makes safe
+        assertFalse(duplicates.containsKey(RequestPolicy.AUTH))
+        assertTrue((duplicates[RequestPolicy.PAYMENT] ?: 0) > 0)
+    }
+
+    @Test
+    fun backoffStaysWithinItsJitteredCeiling() {
+        for (policy in listOf(RequestPolicy.QUERY, RequestPolicy.AUTH, RequestPolicy.PAYMENT)) {
+            for (attempt in 1..6) {
+                val ceiling = (policy.baseBackoffMs shl (attempt - 1)).coerceAtMost(policy.maxBackoffMs)
+                repeat(200) {
+                    assertTrue("$policy/$attempt", policy.backoffMs(attempt) in ceiling / 2..ceiling)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun lostAnswerIsRetriedForQueries() {
+        server.enqueue(MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST))
+        server.enqueue(MockResponse().setBody(balance).setHeadersDelay(200, TimeUnit.MILLISECONDS))
+        val (outcomes, callback) = outcomes<WalletBalance>()
+
+        apiClient.getWalletBalance(callback)
+
+        assertEquals(Money.ofMajor(150), (outcomes.poll(10, TimeUnit.SECONDS) as WalletBalance).balance)
+        assertEquals(2, server.requestCount)
+    }
+
+    @Test
+    fun lostAnswerIsNotRetriedForOtp() {
+        server.enqueue(MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST))
+        server.enqueue(MockResponse().setBody("""{"data":{"verifyOtp":{"success":true}}}"""))
+        val (outcomes, callback) = outcomes<AuthResponse>()
+
+        apiClient.verifyOtp("01001234567", "123456", "request1", callback)
+
+        assertEquals(ApiErrorCode.NETWORK_ERROR, (outcomes.poll(10, TimeUnit.SECONDS) as ApiError).code)
+        // The server saw the code once; a second SMS round would be the user's choice
+        assertEquals(1, server.requestCount)
+    }
+
+    @Test
+    fun overloadedServerIsRetriedThenReportedWithItsStatus() {
+        repeat(RequestPolicy.QUERY.maxAttempts) {
+            server.enqueue(MockResponse().setResponseCode(503).setBody(gatewayPage))
+        }
+        val (outcomes, callback) = outcomes<WalletBalance>()
+
+        apiClient.getWalletBalance(callback)
+
+        val error = outcomes.poll(10, TimeUnit.SECONDS) as ApiError
+        assertEquals(ApiErrorCode.SERVER_ERROR, error.code)
+        assertEquals(503, error.httpCode)
+        assertEquals(RequestPolicy.QUERY.maxAttempts, server.requestCount)
+    }
+
+    @Test
+    fun declinedRetryReportsTheGatewayStatusNotAParseError() {
+        server.enqueue(MockResponse().setResponseCode(502).setBody(gatewayPage))
+        val (outcomes, callback) = outcomes<AuthResponse>()
+
+        apiClient.verifyOtp("01001234567", "123456", "request1", callback)
+
+        val error = outcomes.poll(10, TimeUnit.SECONDS) as ApiError
+        assertEquals(ApiErrorCode.SERVER_ERROR, error.code)
+        assertEquals(502, error.httpCode)
+        assertEquals(1, server.requestCount)
+    }
+}
@@ -0,0 +1,110 @@
+package tech.healthpay.keyboard.api
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class RequestSchedulerTest {
+
+    private val scheduler = RequestScheduler()
+    private val started = Collections.synchronizedList(ArrayList<String>())
+    private val dropped = Collections.synchronizedList(ArrayList<String>())
+
+    private fun submit(priority: RequestPriority, name: String) {
+        scheduler.submit(priority, start = { started.add(name) }, onDropped = { dropped.add(name) })
+    }
+
+    @Test
+    fun paymentGetsASlotThroughAPrefetchFlood() {
+        repeat(50) { submit(RequestPriority.PREFETCH, "prefetch$it") }
+        // Everything else the app might have open at once, none of it finishing
+        repeat(10) { submit(RequestPriority.BALANCE, "balance$it") }
+        repeat(10) { submit(RequestPriority.AUTH, "auth$it") }
+
+        submit(RequestPriority.PAYMENT, "payment")
+
+        assertTrue(started.contains("payment"))
+        assertEquals(1, started.count { it.startsWith("prefetch") })
+        assertEquals(RequestScheduler.MAX_CONCURRENT, started.size)
+    }
+
+    @Test
+    fun prefetchesBeyondTheCapAreDroppedOldestFirst() {
+        repeat(21) { submit(RequestPriority.PREFETCH, "prefetch$it") }
+
+        // One runs, the newest eight wait, the rest were dropped in submission order
+        assertEquals(listOf("prefetch0"), started)
+        assertEquals((1..12).map { "prefetch$it" }, dropped)
+        assertEquals(RequestScheduler.MAX_QUEUED_PREFETCH, scheduler.queuedCount())
+
+        scheduler.finished(RequestPriority.PREFETCH)
+        assertEquals(listOf("prefetch0", "prefetch13"), started)
+    }
+
+    @Test
+    fun queuedPrefetchWaitsForTheRunningPayment() {
+        submit(RequestPriority.PREFETCH, "prefetch0")
+        submit(RequestPriority.PAYMENT, "payment")
+        submit(RequestPriority.PREFETCH, "prefetch1")
+
+        scheduler.finished(RequestPriority.PREFETCH)
+        assertEquals(listOf("prefetch0", "payment"), started)
+
+        scheduler.finished(RequestPriority.PAYMENT)
+        assertEquals(listOf("prefetch0", "payment", "prefetch1"), started)
+    }
+
+    @Test
+    fun concurrentFloodNeverStrandsAPayment() {
+        val threads = Executors.newFixedThreadPool(8)
+        val paymentsStarted = CountDownLatch(20)
+        val submitted = 2_000
+        val prefetchesSettled = CountDownLatch(submitted)
+        val settleCount = AtomicInteger()
+
+        try {
+            // Prefetches finish as soon as they start, from several threads at once
+            repeat(submitted) {
+                threads.execute {
+                    scheduler.submit(
+                        RequestPriority.PREFETCH,
+                        start = {
+                            settleCount.incrementAndGet()
+                            prefetchesSettled.countDown()
+                            threads.execute { scheduler.finished(RequestPriority.PREFETCH) }
+                        },
+                        onDropped = {
+                            settleCount.incrementAndGet()
+                            prefetchesSettled.countDown()
+                        }
+                    )
+                }
+            }
+            repeat(20) {
+                threads.execute {
+                    scheduler.submit(
+                        RequestPriority.PAYMENT,
+                        start = {
+                            paymentsStarted.countDown()
+                            threads.execute { scheduler.finished(RequestPriority.PAYMENT) }
+                        },
+                        onDropped = {}
+                    )
+                }
+            }
+
+            assertTrue(paymentsStarted.await(10, TimeUnit.SECONDS))
+            // Each prefetch either ran or was dropped, exactly once
+            assertTrue(prefetchesSettled.await(10, TimeUnit.SECONDS))
+            assertEquals(submitted, settleCount.get())
+            assertEquals(0, scheduler.queuedCount())
+        } finally {
+            threads.shutdownNow()
+        }
+    }
+}
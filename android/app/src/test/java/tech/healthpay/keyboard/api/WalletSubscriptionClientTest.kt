@@ -0,0 +1,163 @@
+package tech.healthpay.keyboard.api
+
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import tech.healthpay.keyboard.FakeSharedPreferences
+import tech.healthpay.keyboard.security.TokenManager
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * The subscription against a stand-in graphql-transport-ws server
+ */
+class WalletSubscriptionClientTest {
+
+    private val server = MockWebServer().apply { start() }
+
+    private val tokenManager = TokenManager(FakeSharedPreferences()).apply { saveTokens("access1", "refresh1") }
+
+    private val client = WalletSubscriptionClient(tokenManager, server.url("/graphql").toString())
+
+    private val balances = LinkedBlockingQueue<WalletBalance>()
+    private val balanceTransactionIds = LinkedBlockingQueue<String>()
+    private val events = LinkedBlockingQueue<WalletEvent>()
+
+    private val listener = object : WalletSubscriptionClient.Listener {
+        override fun onBalanceUpdated(balance: WalletBalance, transactionId: String?) {
+            // The balance last, since the tests wait on it
+            balanceTransactionIds.add(transactionId ?: "")
+            balances.add(balance)
+        }
+
+        override fun onTransaction(event: WalletEvent) {
+            events.add(event)
+        }
+    }
+
+    @After
+    fun tearDown() {
+        client.stop()
+        server.shutdown()
+    }
+
+    /**
+     * One server-side connection: acknowledges the init, records what the
+     * client sends, and runs [onSubscribe] once the subscription arrives
+     */
+    private inner class Connection(private val onSubscribe: (WebSocket) -> Unit) : WebSocketListener() {
+        val received = LinkedBlockingQueue<JSONObject>()
+        val closed = LinkedBlockingQueue<Int>()
+
+        override fun onMessage(webSocket: WebSocket, text: String) {
+            val message = JSONObject(text)
+            received.add(message)
+            when (message.getString("type")) {
+                "connection_init" -> webSocket.send("""{"type":"connection_ack"}""")
+                "subscribe" -> onSubscribe(webSocket)
+            }
+        }
+
+        override fun onClosing(webSocket: WebSocket, code: Int, reason: String) {
+            closed.add(code)
+            webSocket.close(code, null)
+        }
+
+        override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
+            closed.add(-1)
+        }
+
+        fun next(type: String) = received.poll(5, TimeUnit.SECONDS)!!.also { assertEquals(type, it.getString("type")) }
+    }
+
+    private fun push(webSocket: WebSocket, balance: String, transactionId: String? = null) {
+        val update = JSONObject().put("balance", balance.toDouble()).put("currency", "EGP").put("lastUpdated", "")
+        transactionId?.let {
+            update.put("transaction", JSONObject()
+                .put("id", it)
+                .put("type", "credit")
+                .put("amount", 25.5)
+                .put("counterpartyName", "Mona")
+                .put("counterpartyMobile", "01119876543")
+                .put("createdAt", "2024-05-01T10:00:00Z"))
+        }
+        webSocket.send(JSONObject()
+            .put("id", "wallet")
+            .put("type", "next")
+            .put("payload", JSONObject().put("data", JSONObject().put("walletUpdated", update)))
+            .toString())
+    }
+
+    private fun upgrade(connection: Connection) = server.enqueue(MockResponse().withWebSocketUpgrade(connection))
+
+    @Test
+    fun subscribesWithTheSessionTokenAndDeliversPushes() {
+        val connection = Connection { push(it, "175.50", transactionId = "tx1") }
+        upgrade(connection)
+
+        client.start(listener)
+
+        val init = connection.next("connection_init")
+        assertEquals("Bearer access1", init.getJSONObject("payload").getString("Authorization"))
+        val subscribe = connection.next("subscribe")
+        assertEquals("WalletUpdates", subscribe.getJSONObject("payload").getString("operationName"))
+
+        assertEquals(Money(17_550), balances.poll(5, TimeUnit.SECONDS)!!.balance)
+        assertEquals("tx1", balanceTransactionIds.poll())
+        val event = events.poll(5, TimeUnit.SECONDS)!!
+        assertEquals("tx1", event.transactionId)
+        assertEquals(Money(2_550), event.amount)
+        assertTrue(client.isLive)
+        assertEquals("graphql-transport-ws", server.takeRequest().getHeader("Sec-WebSocket-Protocol"))
+    }
+
+    @Test
+    fun droppedConnectionIsReestablished() {
+        // The first connection dies right after subscribing
+        upgrade(Connection { it.close(1011, "Restarting") })
+        val second = Connection { push(it, "80.00") }
+        upgrade(second)
+
+        client.start(listener)
+
+        // Within the first backoff ceiling of one second
+        assertEquals(Money(8_000), balances.poll(5, TimeUnit.SECONDS)!!.balance)
+        assertEquals("", balanceTransactionIds.poll())
+        assertEquals(2, server.requestCount)
+        second.next("connection_init")
+    }
+
+    @Test
+    fun rejectedSessionIsNotRetried() {
+        upgrade(Connection { it.close(4401, "Unauthorized") })
+        upgrade(Connection { push(it, "80.00") })
+
+        client.start(listener)
+
+        assertNull(balances.poll(2, TimeUnit.SECONDS))
+        assertEquals(1, server.requestCount)
+        assertFalse(client.isLive)
+    }
+
+    @Test
+    fun stopClosesTheSocketNormally() {
+        val connection = Connection { push(it, "10.00") }
+        upgrade(connection)
+        client.start(listener)
+        balances.poll(5, TimeUnit.SECONDS)!!
+
+        client.stop()
+
+        assertEquals(1000, connection.closed.poll(5, TimeUnit.SECONDS))
+        assertFalse(client.isLive)
+    }
+}
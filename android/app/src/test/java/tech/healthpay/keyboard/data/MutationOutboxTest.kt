@@ -0,0 +1,353 @@
+package tech.healthpay.keyboard.data
+
+import android.content.Context
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okhttp3.mockwebserver.SocketPolicy
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.Mockito.any
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.verifyNoMoreInteractions
+import tech.healthpay.keyboard.FakeSharedPreferences
+import tech.healthpay.keyboard.api.ApiCall
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.ApiErrorCode
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.PaymentLink
+import tech.healthpay.keyboard.api.TransferResponse
+import tech.healthpay.keyboard.security.TokenManager
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Kill-the-process tests: the outbox is rebuilt on a snapshot of its
+ * preferences taken mid-flight, against a stand-in GraphQL server. Time is
+ * a test clock; retries wait until a test advances it.
+ */
+class MutationOutboxTest {
+
+    private class Outcome(val entry: MutationOutbox.Entry, val transfer: TransferResponse?, val error: ApiError?)
+
+    private val servers = ArrayList<MockWebServer>()
+    private val outboxes = ArrayList<MutationOutbox>()
+    private val context = mock(Context::class.java).also { doReturn(it).`when`(it).applicationContext }
+
+    @Volatile
+    private var now = 1_700_000_000_000L
+
+    @After
+    fun tearDown() {
+        outboxes.forEach { it.close() }
+        servers.forEach { it.shutdown() }
+    }
+
+    /**
+     * Runs immediate work on its own thread; delayed work is parked until
+     * [advance] moves the test clock past it
+     */
+    private inner class ManualScheduler : ScheduledThreadPoolExecutor(1) {
+        private inner class Parked(val dueAt: Long, val future: ScheduledFuture<*>, val command: Runnable)
+
+        private val parked = ArrayList<Parked>()
+        private val lock = Object()
+
+        override fun schedule(command: Runnable, delay: Long, unit: TimeUnit): ScheduledFuture<*> {
+            if (delay <= 0) return super.schedule(command, 0, unit)
+            // A real future so the outbox can cancel it; it never fires on its own
+            val future = super.schedule(command, 1, TimeUnit.DAYS)
+            synchronized(lock) {
+                parked.add(Parked(now + unit.toMillis(delay), future, command))
+                lock.notifyAll()
+            }
+            return future
+        }
+
+        /** Waits until delayed work is parked and returns how far off the earliest is */
+        fun awaitParked(): Long {
+            val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+            synchronized(lock) {
+                while (true) {
+                    parked.removeAll { it.future.isCancelled }
+                    parked.minOfOrNull { it.dueAt }?.let { return it - now }
+                    val left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+                    assertTrue("nothing scheduled", left > 0)
+                    lock.wait(left)
+                }
+            }
+        }
+
+        fun advance(ms: Long) {
+            now += ms
+            val due = synchronized(lock) {
+                parked.filter { it.dueAt <= now }.also { parked.removeAll(it) }
+            }
+            due.forEach { if (it.future.cancel(false)) execute(it.command) }
+        }
+    }
+
+    /** A server answering each operation by name; requests are recorded in [received] */
+    private fun server(received: MutableCollection<RecordedRequest>, answer: (String) -> MockResponse) =
+        MockWebServer().apply {
+            dispatcher = object : Dispatcher() {
+                override fun dispatch(request: RecordedRequest): MockResponse {
+                    received.add(request)
+                    return answer(operation(request))
+                }
+            }
+            start()
+            servers.add(this)
+        }
+
+    private fun <T> anyArg(placeholder: T): T {
+        any<T>()
+        return placeholder
+    }
+
+    private fun operation(request: RecordedRequest) =
+        JSONObject(request.body.clone().readUtf8()).optString("operationName")
+
+    private fun data(json: String) = MockResponse().setBody("""{"data":$json}""")
+
+    private fun transferred(transactionId: String) =
+        data("""{"transfer":{"success":true,"transactionId":"$transactionId","status":"completed","message":"ok"}}""")
+
+    private fun apiClient(server: MockWebServer, prefs: FakeSharedPreferences) =
+        HealthPayApiClient(TokenManager(prefs), TransferJournal(prefs), server.url("/graphql").toString())
+
+    private fun outbox(server: MockWebServer, prefs: FakeSharedPreferences, scheduler: ManualScheduler = ManualScheduler()) =
+        MutationOutbox(context, prefs, apiClient(server, prefs), scheduler) { now }.also { outboxes.add(it) }
+
+    private fun MutationOutbox.outcomes() = LinkedBlockingQueue<Outcome>().also { queue ->
+        addListener { entry, transfer, _, error -> queue.add(Outcome(entry, transfer, error)) }
+    }
+
+    /** Preferences as a process that died with one transfer [ageMs] old left them */
+    private fun leftBehind(key: String, ageMs: Long, attempts: Int) = FakeSharedPreferences().apply {
+        val entry = JSONObject()
+            .put("key", key)
+            .put("kind", MutationOutbox.Kind.TRANSFER.name)
+            .put("recipient", "+201001234567")
+            .put("amountMinor", 2_500)
+            .put("note", JSONObject.NULL)
+            .put("createdAt", now - ageMs)
+            .put("attempts", attempts)
+        edit().putString("mutation_outbox", JSONArray().put(entry).toString()).commit()
+    }
+
+    private fun storedEntries(prefs: FakeSharedPreferences) = JSONArray(prefs.getString("mutation_outbox", "[]"))
+
+    /** Records what the outbox tells one caller */
+    private class Caller : MutationOutbox.Callback<TransferResponse> {
+        val queued = CountDownLatch(1)
+        val outcomes = LinkedBlockingQueue<Any>()
+
+        override fun onSuccess(response: TransferResponse) {
+            outcomes.add(response)
+        }
+
+        override fun onError(error: ApiError) {
+            outcomes.add(error)
+        }
+
+        override fun onQueued(entry: MutationOutbox.Entry, error: ApiError) {
+            queued.countDown()
+        }
+
+        fun transactionId() = (outcomes.poll(5, TimeUnit.SECONDS) as TransferResponse).transactionId
+    }
+
+    @Test
+    fun queuedTransferIsReplayedUnderItsKeyAfterRestart() {
+        val prefs = FakeSharedPreferences()
+        // Requests arrive, but every answer is lost
+        val dropping = server(Collections.synchronizedList(ArrayList())) {
+            MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST)
+        }
+        val first = outbox(dropping, prefs)
+        val transfer = apiClient(dropping, prefs).prepareTransfer("+201001234567", Money.ofMajor(25), null)
+        val caller = Caller()
+        first.submitTransfer(transfer, caller)
+        assertTrue(caller.queued.await(5, TimeUnit.SECONDS))
+        assertTrue(first.pending.value.single().isQueued)
+
+        // The process dies here; only what was committed survives
+        val disk = prefs.snapshot()
+        first.close()
+        val received = Collections.synchronizedList(ArrayList<RecordedRequest>())
+        val online = server(received) { transferred("tx1") }
+        val second = outbox(online, disk)
+        val outcomes = second.outcomes()
+        assertEquals(transfer.idempotencyKey, second.pending.value.single().idempotencyKey)
+        second.start()
+
+        val outcome = outcomes.poll(5, TimeUnit.SECONDS)!!
+        assertEquals("tx1", outcome.transfer?.transactionId)
+        assertEquals(transfer.idempotencyKey, outcome.entry.idempotencyKey)
+        val replay = received.single()
+        assertEquals("Transfer", operation(replay))
+        assertEquals(transfer.idempotencyKey, replay.getHeader("Idempotency-Key"))
+        assertTrue(second.pending.value.isEmpty())
+        assertEquals(0, storedEntries(disk).length())
+    }
+
+    @Test
+    fun transferInItsFirstAttemptIsNotCountedAsQueued() {
+        val prefs = FakeSharedPreferences()
+        val answer = CountDownLatch(1)
+        val slow = server(Collections.synchronizedList(ArrayList())) {
+            answer.await(5, TimeUnit.SECONDS)
+            transferred("tx1")
+        }
+        val outbox = outbox(slow, prefs)
+        val outcomes = outbox.outcomes()
+        outbox.submitTransfer(apiClient(slow, prefs).prepareTransfer("+201001234567", Money.ofMajor(25), null), Caller())
+
+        // Written ahead, but only sending
+        assertFalse(outbox.pending.value.single().isQueued)
+        assertEquals(1, storedEntries(prefs).length())
+        answer.countDown()
+        assertEquals("tx1", outcomes.poll(5, TimeUnit.SECONDS)!!.transfer?.transactionId)
+    }
+
+    @Test
+    fun duplicateSubmitWhileInFlightIsSentOnceAndAnswersBoth() {
+        val prefs = FakeSharedPreferences()
+        val answer = CountDownLatch(1)
+        val received = Collections.synchronizedList(ArrayList<RecordedRequest>())
+        val slow = server(received) {
+            answer.await(5, TimeUnit.SECONDS)
+            transferred("tx1")
+        }
+        val outbox = outbox(slow, prefs)
+        val outcomes = outbox.outcomes()
+        val transfer = apiClient(slow, prefs).prepareTransfer("+201001234567", Money.ofMajor(25), null)
+        val first = Caller()
+        val retry = Caller()
+
+        outbox.submitTransfer(transfer, first)
+        // The user taps again before the first attempt is answered; the journal hands back the same key
+        outbox.submitTransfer(transfer, retry)
+
+        assertEquals(1, outbox.pending.value.size)
+        assertEquals(1, storedEntries(prefs).length())
+        answer.countDown()
+        assertEquals("tx1", first.transactionId())
+        assertEquals("tx1", retry.transactionId())
+        assertEquals(transfer.idempotencyKey, outcomes.poll(5, TimeUnit.SECONDS)!!.entry.idempotencyKey)
+        assertNull(outcomes.poll())
+        assertEquals(1, received.size)
+    }
+
+    @Test
+    fun duplicateSubmitOfAQueuedTransferIsToldAndSentAgain() {
+        val prefs = FakeSharedPreferences()
+        val online = AtomicBoolean(false)
+        val received = LinkedBlockingQueue<RecordedRequest>()
+        val flaky = server(received) {
+            if (online.get()) transferred("tx1") else MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST)
+        }
+        val outbox = outbox(flaky, prefs)
+        val transfer = apiClient(flaky, prefs).prepareTransfer("+201001234567", Money.ofMajor(25), null)
+        val first = Caller()
+        outbox.submitTransfer(transfer, first)
+        assertTrue(first.queued.await(5, TimeUnit.SECONDS))
+        received.poll(5, TimeUnit.SECONDS)!!
+
+        online.set(true)
+        val retry = Caller()
+        outbox.submitTransfer(transfer, retry)
+
+        // Queued already, so the new caller hears it straight away; the retry goes out under the same key
+        assertEquals(0, retry.queued.count)
+        assertEquals(transfer.idempotencyKey, received.poll(5, TimeUnit.SECONDS)!!.getHeader("Idempotency-Key"))
+        assertEquals("tx1", first.transactionId())
+        assertEquals("tx1", retry.transactionId())
+        assertTrue(outbox.pending.value.isEmpty())
+    }
+
+    @Test
+    fun expiredTransferTheServerAppliedResolvesAsSent() {
+        val disk = leftBehind("key-applied", ageMs = 2 * HOUR, attempts = 4)
+        val received = Collections.synchronizedList(ArrayList<RecordedRequest>())
+        val online = server(received) {
+            data("""{"transferByIdempotencyKey":{"transactionId":"tx9","status":"completed"}}""")
+        }
+        val outbox = outbox(online, disk)
+        val outcomes = outbox.outcomes()
+        outbox.start()
+
+        val outcome = outcomes.poll(5, TimeUnit.SECONDS)!!
+        assertNull(outcome.error)
+        assertEquals("tx9", outcome.transfer?.transactionId)
+        // Asked about, never sent again
+        assertEquals(listOf("TransferStatus"), received.map { operation(it) })
+        assertEquals(0, storedEntries(disk).length())
+    }
+
+    @Test
+    fun expiredTransferUnknownToTheServerFails() {
+        val disk = leftBehind("key-lost", ageMs = 2 * HOUR, attempts = 4)
+        // The client's own lookup retries found nothing
+        val apiClient = mock(HealthPayApiClient::class.java).also { client ->
+            doAnswer { it.getArgument<(TransferResponse?, ApiError?) -> Unit>(1)(null, null); ApiCall() }
+                .`when`(client).findTransfer(anyArg(""), anyArg { _, _ -> })
+        }
+        val outbox = MutationOutbox(context, disk, apiClient, ManualScheduler()) { now }.also { outboxes.add(it) }
+        val outcomes = outbox.outcomes()
+        outbox.start()
+
+        val outcome = outcomes.poll(5, TimeUnit.SECONDS)!!
+        assertNull(outcome.transfer)
+        assertEquals(ApiErrorCode.TIMEOUT, outcome.error?.code)
+        // Asked about, never sent again
+        verify(apiClient).findTransfer(anyArg("key-lost"), anyArg { _, _ -> })
+        verifyNoMoreInteractions(apiClient)
+        assertEquals(0, storedEntries(disk).length())
+    }
+
+    @Test
+    fun expiredTransferStaysQueuedWhileTheLookupFails() {
+        val disk = leftBehind("key-unknown", ageMs = 2 * HOUR, attempts = 4)
+        val received = LinkedBlockingQueue<RecordedRequest>()
+        val down = server(received) { MockResponse().setResponseCode(503) }
+        val scheduler = ManualScheduler()
+        val outbox = outbox(down, disk, scheduler)
+        val outcomes = outbox.outcomes()
+        outbox.start()
+
+        // Every lookup is refused, and each one backs off twice as long as the last (±20%)
+        for (attempts in 5..7) {
+            assertEquals("TransferStatus", operation(received.poll(5, TimeUnit.SECONDS)!!))
+            val backoff = scheduler.awaitParked()
+            val nominal = 2_000L shl (attempts - 1)
+            assertTrue("backoff $backoff ms after $attempts attempts", backoff in nominal * 8 / 10..nominal * 12 / 10)
+            assertEquals(attempts, storedEntries(disk).getJSONObject(0).getInt("attempts"))
+            scheduler.advance(backoff)
+        }
+
+        assertEquals("key-unknown", outbox.pending.value.single().idempotencyKey)
+        assertNull(outcomes.poll())
+    }
+
+    private companion object {
+        const val HOUR = 60 * 60 * 1000L
+    }
+}
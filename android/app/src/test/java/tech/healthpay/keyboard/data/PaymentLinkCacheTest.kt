@@ -0,0 +1,120 @@
+package tech.healthpay.keyboard.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.isNull
+import org.mockito.Mockito.any
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.mock
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.PaymentLink
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.TimeZone
+
+class PaymentLinkCacheTest {
+
+    private val minted = ArrayList<ApiCallback<PaymentLink>>()
+    private val ignored = object : ApiCallback<PaymentLink> {
+        override fun onSuccess(response: PaymentLink) {}
+        override fun onError(error: ApiError) {}
+    }
+
+    private val apiClient = mock(HealthPayApiClient::class.java).also { client ->
+        doAnswer { minted.add(it.getArgument(2)); null }
+            .`when`(client).createPaymentRequest(isNull(), isNull(), anyCallback(), anyBoolean(), isNull(), isNull())
+    }
+    private val cache = PaymentLinkCache(apiClient, mock(MutationOutbox::class.java))
+
+    private fun anyCallback(): ApiCallback<PaymentLink> {
+        any<ApiCallback<PaymentLink>>()
+        return ignored
+    }
+
+    private fun link(id: String, validForMs: Long) = PaymentLink(
+        id = id,
+        url = "https://pay.healthpay.tech/$id",
+        amount = null,
+        note = null,
+        expiresAt = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+            .apply { timeZone = TimeZone.getTimeZone("UTC") }
+            .format(Date(System.currentTimeMillis() + validForMs))
+    )
+
+    /** Answers every outstanding mint with a link valid for [validForMs] */
+    private fun deliver(validForMs: Long) {
+        val pending = minted.toList()
+        minted.clear()
+        pending.forEachIndexed { i, callback -> callback.onSuccess(link("link$i-${System.nanoTime()}", validForMs)) }
+    }
+
+    private fun obtainOpen(): PaymentLink? {
+        var result: PaymentLink? = null
+        cache.obtain(null, null, object : ApiCallback<PaymentLink> {
+            override fun onSuccess(response: PaymentLink) {
+                result = response
+            }
+
+            override fun onError(error: ApiError) {}
+        })
+        return result
+    }
+
+    @Test
+    fun idleKeyboardKeepsOneSpare() {
+        cache.prefill()
+        assertEquals(1, minted.size)
+        deliver(HOUR)
+
+        repeat(5) { cache.prefill() }
+        assertEquals(0, minted.size)
+    }
+
+    @Test
+    fun linksExpiringUnusedAreNotReMintedOnEveryOpen() {
+        cache.prefill()
+        // Already inside the minimum remaining validity, so unusable at once
+        deliver(MINUTE)
+
+        repeat(5) { cache.prefill() }
+        assertEquals(0, minted.size)
+    }
+
+    @Test
+    fun takingALinkRefillsTheWholePool() {
+        cache.prefill()
+        deliver(HOUR)
+
+        assertNotNull(obtainOpen())
+        assertEquals(PaymentLinkCache.DEFAULT_POOL_SIZE, minted.size)
+        deliver(HOUR)
+
+        // Each take is replaced; nothing more is minted while the pool is full
+        obtainOpen()
+        assertEquals(1, minted.size)
+        deliver(HOUR)
+        cache.prefill()
+        assertEquals(0, minted.size)
+    }
+
+    @Test
+    fun clearForgetsThePoolAndItsMints() {
+        cache.prefill()
+        cache.clear()
+        // A mint answered after logout is not pooled
+        deliver(HOUR)
+
+        cache.prefill()
+        assertEquals(1, minted.size)
+    }
+
+    private companion object {
+        const val MINUTE = 60_000L
+        const val HOUR = 60 * MINUTE
+    }
+}
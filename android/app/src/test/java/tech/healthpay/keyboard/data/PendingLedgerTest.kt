@@ -0,0 +1,165 @@
+package tech.healthpay.keyboard.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.api.WalletBalance
+
+class PendingLedgerTest {
+
+    private val server = WalletBalance(Money.ofMajor(1_000), "EGP", "")
+
+    private fun transaction(id: String, status: String) = Transaction(
+        id = id,
+        type = "debit",
+        status = status,
+        amount = Money.ofMajor(10),
+        fee = Money.ZERO,
+        currency = "EGP",
+        counterpartyName = "",
+        counterpartyMobile = "",
+        description = "",
+        referenceNumber = "",
+        createdAt = "2024-01-01T10:00:00Z"
+    )
+
+    @Test
+    fun projectsEveryPendingDebitWithItsFee() {
+        val ledger = PendingLedger()
+        ledger.add(Money.ofMajor(100), Money.ofMajor(1))
+        ledger.add(Money.ofMajor(50), Money.ZERO)
+
+        assertEquals(2, ledger.pendingCount())
+        assertEquals(Money.ofMajor(151), ledger.pendingTotal())
+        assertEquals(Money.ofMajor(849), ledger.project(server).balance)
+        assertEquals("EGP", ledger.project(server).currency)
+    }
+
+    @Test
+    fun rollbackRestoresTheBalanceOnce() {
+        val ledger = PendingLedger()
+        val id = ledger.add(Money.ofMajor(100), Money.ZERO)
+
+        assertTrue(ledger.rollback(id))
+        assertFalse(ledger.rollback(id))
+        assertEquals(server, ledger.project(server))
+        // Accepting after a rollback does not resurrect the debit
+        ledger.accept(id, "tx1")
+        assertEquals(0, ledger.pendingCount())
+    }
+
+    @Test
+    fun balanceRequestedAfterAcceptanceSettles() {
+        val ledger = PendingLedger()
+        val id = ledger.add(Money.ofMajor(100), Money.ZERO)
+        ledger.accept(id, "tx1")
+
+        ledger.onServerBalance(ledger.balanceRequested())
+        assertEquals(0, ledger.pendingCount())
+    }
+
+    @Test
+    fun balanceAlreadyInFlightAtAcceptanceDoesNotSettle() {
+        val ledger = PendingLedger()
+        val id = ledger.add(Money.ofMajor(100), Money.ZERO)
+        val stale = ledger.balanceRequested()
+        ledger.accept(id, "tx1")
+
+        // The response to the earlier request may predate the debit
+        ledger.onServerBalance(stale)
+        assertEquals(1, ledger.pendingCount())
+        assertEquals(Money.ofMajor(900), ledger.project(server).balance)
+
+        ledger.onServerBalance(ledger.balanceRequested())
+        assertEquals(0, ledger.pendingCount())
+    }
+
+    @Test
+    fun unacceptedDebitsSurviveAnyBalance() {
+        val ledger = PendingLedger()
+        ledger.add(Money.ofMajor(100), Money.ZERO)
+
+        // Still in flight: no balance can be known to include it yet
+        ledger.onServerBalance(ledger.balanceRequested())
+        ledger.onServerBalance(Long.MAX_VALUE - 1)
+        assertEquals(1, ledger.pendingCount())
+    }
+
+    @Test
+    fun settlesOnlyWhatEachBalanceCovers() {
+        val ledger = PendingLedger()
+        val first = ledger.add(Money.ofMajor(100), Money.ZERO)
+        val second = ledger.add(Money.ofMajor(30), Money.ZERO)
+        ledger.accept(first, "tx1")
+        val between = ledger.balanceRequested()
+        ledger.accept(second, "tx2")
+
+        ledger.onServerBalance(between)
+        assertEquals(Money.ofMajor(30), ledger.pendingTotal())
+    }
+
+    @Test
+    fun pushSettlesOnlyTheTransactionItWasPushedFor() {
+        val ledger = PendingLedger()
+        val first = ledger.add(Money.ofMajor(100), Money.ZERO)
+        val second = ledger.add(Money.ofMajor(30), Money.ZERO)
+        ledger.accept(first, "tx1")
+        ledger.accept(second, "tx2")
+
+        // A push for someone else's credit, or with no transaction, vouches for nothing
+        ledger.onPushedBalance(null)
+        ledger.onPushedBalance("tx9")
+        assertEquals(Money.ofMajor(130), ledger.pendingTotal())
+
+        ledger.onPushedBalance("tx2")
+        assertEquals(Money.ofMajor(100), ledger.pendingTotal())
+    }
+
+    @Test
+    fun failedHistoryRollsBackMatchingDebits() {
+        val ledger = PendingLedger()
+        val failed = ledger.add(Money.ofMajor(100), Money.ZERO)
+        val completed = ledger.add(Money.ofMajor(30), Money.ZERO)
+        val cancelled = ledger.add(Money.ofMajor(5), Money.ZERO)
+        ledger.accept(failed, "tx1")
+        ledger.accept(completed, "tx2")
+        ledger.accept(cancelled, "tx3")
+
+        val changed = ledger.onTransactions(listOf(
+            transaction("tx1", "FAILED"),
+            transaction("tx2", "completed"),
+            transaction("tx3", "Canceled"),
+            transaction("tx9", "rejected")
+        ))
+
+        assertTrue(changed)
+        assertEquals(Money.ofMajor(30), ledger.pendingTotal())
+    }
+
+    @Test
+    fun historyWithoutMatchingFailuresChangesNothing() {
+        val ledger = PendingLedger()
+        assertFalse(ledger.onTransactions(listOf(transaction("tx1", "failed"))))
+
+        val id = ledger.add(Money.ofMajor(100), Money.ZERO)
+        // Not yet accepted, so no transaction id can match it
+        assertFalse(ledger.onTransactions(listOf(transaction("tx1", "failed"))))
+        ledger.accept(id, "tx1")
+        assertFalse(ledger.onTransactions(listOf(transaction("tx1", "pending"), transaction("tx2", "failed"))))
+        assertEquals(1, ledger.pendingCount())
+    }
+
+    @Test
+    fun clearDropsEverything() {
+        val ledger = PendingLedger()
+        ledger.accept(ledger.add(Money.ofMajor(100), Money.ZERO), "tx1")
+        ledger.add(Money.ofMajor(30), Money.ZERO)
+        ledger.clear()
+
+        assertEquals(0, ledger.pendingCount())
+        assertEquals(server, ledger.project(server))
+    }
+}
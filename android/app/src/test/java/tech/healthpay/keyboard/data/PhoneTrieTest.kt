@@ -0,0 +1,104 @@
+package tech.healthpay.keyboard.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+class PhoneTrieTest {
+
+    private fun recipient(mobile: String) = RankedRecipient(mobile, "", 1, 0L)
+
+    private fun PhoneTrie.completions(input: String, max: Int = PhoneTrie.DEFAULT_COMPLETIONS): List<String> {
+        val out = arrayOfNulls<RankedRecipient>(max)
+        val count = complete(input, out)
+        return List(count) { out[it]!!.mobile }
+    }
+
+    @Test
+    fun completesBestFirst() {
+        val trie = PhoneTrie()
+        trie.update(recipient("01001234567"), 1.0)
+        trie.update(recipient("01009999999"), 3.0)
+        trie.update(recipient("01112345678"), 2.0)
+
+        assertEquals(listOf("01009999999", "01112345678", "01001234567"), trie.completions(""))
+        assertEquals(listOf("01009999999", "01001234567"), trie.completions("0100"))
+        assertEquals(listOf("01001234567"), trie.completions("010012"))
+        assertEquals(emptyList<String>(), trie.completions("0122"))
+    }
+
+    @Test
+    fun risingScoreMovesRecipientUp() {
+        val trie = PhoneTrie()
+        trie.update(recipient("01001234567"), 1.0)
+        trie.update(recipient("01009999999"), 2.0)
+        trie.update(recipient("01001234567"), 5.0)
+
+        assertEquals(listOf("01001234567", "01009999999"), trie.completions("010"))
+    }
+
+    @Test
+    fun keepsOnlyTheBestPerNode() {
+        val trie = PhoneTrie(completionsPerNode = 2)
+        trie.update(recipient("01000000001"), 1.0)
+        trie.update(recipient("01000000002"), 2.0)
+        trie.update(recipient("01000000003"), 3.0)
+
+        assertEquals(listOf("01000000003", "01000000002"), trie.completions("0100"))
+        assertEquals(listOf("01000000003"), trie.completions("0100", max = 1))
+    }
+
+    @Test
+    fun internationalAndArabicInputResolveToLocalNumbers() {
+        val trie = PhoneTrie()
+        trie.update(recipient("01001234567"), 1.0)
+
+        for (input in listOf("+20100", "0020100", "20100", "+20 100 12", "٠١٠٠", "۰۱۰۰")) {
+            assertEquals(input, listOf("01001234567"), trie.completions(input))
+        }
+        // Partial country codes still offer everything
+        assertEquals(listOf("01001234567"), trie.completions("+2"))
+        assertEquals(listOf("01001234567"), trie.completions("002"))
+        assertEquals(emptyList<String>(), trie.completions("0030"))
+        assertEquals(emptyList<String>(), trie.completions("21"))
+    }
+
+    @Test
+    fun clearForgetsEveryone() {
+        val trie = PhoneTrie()
+        trie.update(recipient("01001234567"), 1.0)
+        trie.clear()
+
+        assertEquals(emptyList<String>(), trie.completions(""))
+    }
+
+    @Test
+    fun benchmarkCompletionPerKeystroke() {
+        val random = Random(37)
+        val trie = PhoneTrie()
+        val mobiles = List(5_000) { "01" + "0125"[random.nextInt(4)] + "%08d".format(random.nextInt(100_000_000)) }
+        mobiles.forEach { trie.update(recipient(it), random.nextDouble(0.0, 100.0)) }
+
+        // Every prefix of a number, as typed one key at a time
+        val keystrokes = mobiles.take(200).flatMap { mobile -> (1..mobile.length).map { mobile.substring(0, it) } }
+        val out = arrayOfNulls<RankedRecipient>(PhoneTrie.DEFAULT_COMPLETIONS)
+        repeat(20) { keystrokes.forEach { trie.complete(it, out) } } // warm-up
+
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+        val allocatedBefore = threads.getThreadAllocatedBytes(thread)
+        val start = System.nanoTime()
+        repeat(50) { keystrokes.forEach { trie.complete(it, out) } }
+        val elapsed = System.nanoTime() - start
+        val allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore
+
+        val calls = 50 * keystrokes.size
+        val nsPerCall = elapsed / calls
+        println("PhoneTrie 5k recipients: $nsPerCall ns per keystroke, $allocated bytes allocated over $calls calls")
+        assertTrue("$nsPerCall ns per keystroke", nsPerCall < 50_000)
+        // Far less than one small object per call
+        assertTrue("$allocated bytes allocated", allocated < calls)
+    }
+}
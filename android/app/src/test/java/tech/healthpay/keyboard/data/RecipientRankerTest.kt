@@ -0,0 +1,85 @@
+package tech.healthpay.keyboard.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.mockito.Mockito.mock
+import tech.healthpay.keyboard.FakeSharedPreferences
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+
+class RecipientRankerTest {
+
+    private val mobile = "01001234567"
+
+    private lateinit var journal: TransferJournal
+    private lateinit var ranker: RecipientRanker
+
+    @Before
+    fun setUp() {
+        journal = TransferJournal(FakeSharedPreferences())
+        ranker = RecipientRanker(mock(TransactionStore::class.java), journal)
+    }
+
+    private fun sent(id: String, to: String = "+201001234567") = Transaction(
+        id = id,
+        type = "debit",
+        status = "completed",
+        amount = Money.ofMajor(50),
+        fee = Money.ZERO,
+        currency = "EGP",
+        counterpartyName = "Ahmed",
+        counterpartyMobile = to,
+        description = "",
+        referenceNumber = "",
+        createdAt = "2024-05-01T10:00:00Z"
+    )
+
+    private fun journalTransfer(): String {
+        val key = journal.reserve(mobile, Money.ofMajor(50), null)
+        journal.record(key, mobile, Money.ofMajor(50), null)
+        return key
+    }
+
+    /** load() ranks on its own executor; waits until [mobile] shows [count] events */
+    private fun awaitCount(count: Int) {
+        val deadline = System.currentTimeMillis() + 5_000
+        while (ranker.find(mobile)?.transactionCount != count) {
+            check(System.currentTimeMillis() < deadline) { "ranking never reached $count" }
+            Thread.sleep(5)
+        }
+    }
+
+    @Test
+    fun syncedTransferIsNotCountedTwice() {
+        val key = journalTransfer()
+        ranker.load()
+        awaitCount(1)
+
+        journal.markCompleted(key, "tx1")
+        ranker.onNewTransactions(listOf(sent("tx1")))
+        assertEquals(1, ranker.find(mobile)?.transactionCount)
+
+        ranker.onNewTransactions(listOf(sent("tx2")))
+        assertEquals(2, ranker.find(mobile)?.transactionCount)
+    }
+
+    @Test
+    fun failedTransferLetsLaterTransactionsCount() {
+        val key = journalTransfer()
+        ranker.load()
+        awaitCount(1)
+
+        journal.markFailed(key)
+        ranker.onNewTransactions(listOf(sent("tx1")))
+        assertEquals(2, ranker.find(mobile)?.transactionCount)
+    }
+
+    @Test
+    fun repeatedTransactionsCountOnce() {
+        ranker.onNewTransactions(listOf(sent("tx1"), sent("tx1", to = mobile)))
+        ranker.onNewTransactions(listOf(sent("tx1")))
+        assertEquals(1, ranker.find(mobile)?.transactionCount)
+        assertEquals(listOf(mobile), ranker.topRecipients().map { it.mobile })
+    }
+}
@@ -0,0 +1,153 @@
+package tech.healthpay.keyboard.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.Mockito.mock
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import kotlin.random.Random
+
+class TransactionSearchIndexTest {
+
+    private fun transaction(
+        id: String,
+        name: String,
+        createdAt: String,
+        mobile: String = "",
+        description: String = ""
+    ) = Transaction(
+        id = id,
+        type = "debit",
+        status = "completed",
+        amount = Money.ofMajor(10),
+        fee = Money.ZERO,
+        currency = "EGP",
+        counterpartyName = name,
+        counterpartyMobile = mobile,
+        description = description,
+        referenceNumber = "",
+        createdAt = createdAt
+    )
+
+    private fun index(vararg transactions: Transaction) =
+        TransactionSearchIndex(mock(TransactionStore::class.java)).apply {
+            onNewTransactions(transactions.toList())
+        }
+
+    /** Brute-force reference: every token prefixes some term, newest first */
+    private fun expected(transactions: List<Transaction>, query: String, limit: Int): List<String> {
+        val tokens = TransactionSearchIndex.tokenize(query)
+        return transactions
+            .filter { tx ->
+                val terms = TransactionSearchIndex.tokenize("${tx.counterpartyName} ${tx.description}")
+                tokens.all { token -> terms.any { it.startsWith(token) } }
+            }
+            .sortedWith(compareByDescending<Transaction> { TransactionStore.parseCreatedAt(it.createdAt) }
+                .thenByDescending { it.id })
+            .take(limit)
+            .map { it.id }
+    }
+
+    @Test
+    fun matchesEveryTokenAsPrefix() {
+        val index = index(
+            transaction("1", "Ahmed Hassan", "2024-01-01T10:00:00Z"),
+            transaction("2", "Ahmed Ali", "2024-01-02T10:00:00Z"),
+            transaction("3", "Mona Hassan", "2024-01-03T10:00:00Z")
+        )
+
+        assertEquals(listOf("2", "1"), index.search("ahm"))
+        assertEquals(listOf("1"), index.search("AHMED has"))
+        assertEquals(listOf("3", "1"), index.search("hassan"))
+        assertEquals(emptyList<String>(), index.search("ahmed mona"))
+        assertEquals(emptyList<String>(), index.search("  "))
+    }
+
+    @Test
+    fun normalizesArabicAndPhoneNumbers() {
+        val index = index(
+            transaction("1", "أحمد", "2024-01-01T10:00:00Z", mobile = "+201001234567"),
+            transaction("2", "منى", "2024-01-02T10:00:00Z", mobile = "01119876543")
+        )
+
+        assertEquals(listOf("1"), index.search("احمد"))
+        assertEquals(listOf("1"), index.search("0100"))
+        assertEquals(listOf("1"), index.search("+20100"))
+        assertEquals(listOf("2"), index.search("٠١١١"))
+    }
+
+    @Test
+    fun limitKeepsTheNewestAndBreaksTiesById() {
+        val index = index(
+            transaction("a", "Sara", "2024-01-01T10:00:00Z"),
+            transaction("c", "Sara", "2024-01-03T10:00:00Z"),
+            transaction("b", "Sara", "2024-01-03T10:00:00Z"),
+            transaction("d", "Sara", "2024-01-02T10:00:00Z")
+        )
+
+        assertEquals(listOf("c", "b"), index.search("sara", limit = 2))
+        assertEquals(listOf("c", "b", "d", "a"), index.search("s"))
+        assertEquals(emptyList<String>(), index.search("sara", limit = 0))
+    }
+
+    @Test
+    fun agreesWithBruteForceOnRandomHistory() {
+        val random = Random(34)
+        val words = listOf("ahmed", "ahlam", "mona", "mohamed", "sara", "samir", "rent", "refund", "grocery", "gift")
+        val transactions = List(2_000) { i ->
+            transaction(
+                id = "tx$i",
+                name = "${words.random(random)} ${words.random(random)}",
+                createdAt = "2024-%02d-%02dT%02d:00:00Z".format(
+                    random.nextInt(1, 13), random.nextInt(1, 29), random.nextInt(0, 24)
+                ),
+                description = words.random(random)
+            )
+        }
+        val index = index(*transactions.toTypedArray())
+
+        for (query in listOf("a", "ah", "mo re", "s g", "sara samir", "r a m", "x", "gift gift")) {
+            for (limit in listOf(1, 20, Int.MAX_VALUE)) {
+                assertEquals("$query/$limit", expected(transactions, query, limit), index.search(query, limit))
+            }
+        }
+    }
+
+    @Test
+    fun benchmarkOneCharacterQueryOver50kRows() {
+        val random = Random(50)
+        val transactions = List(50_000) { i ->
+            val name = buildString {
+                repeat(2) {
+                    if (it > 0) append(' ')
+                    repeat(random.nextInt(4, 9)) { append('a' + random.nextInt(26)) }
+                }
+            }
+            transaction(
+                id = "tx$i",
+                name = name,
+                createdAt = "2024-%02d-%02dT%02d:%02d:00Z".format(
+                    random.nextInt(1, 13), random.nextInt(1, 29), random.nextInt(0, 24), random.nextInt(0, 60)
+                ),
+                mobile = "010%08d".format(random.nextInt(100_000_000))
+            )
+        }
+        val index = index(*transactions.toTypedArray())
+
+        val queries = listOf("a", "m", "0", "s", "e t")
+        repeat(50) { queries.forEach { index.search(it, 50) } } // warm-up
+
+        val timings = LongArray(200)
+        for (i in timings.indices) {
+            val start = System.nanoTime()
+            index.search(queries[i % queries.size], 50)
+            timings[i] = System.nanoTime() - start
+        }
+        timings.sort()
+        val medianMs = timings[timings.size / 2] / 1_000_000.0
+        val p95Ms = timings[timings.size * 95 / 100] / 1_000_000.0
+        println("TransactionSearchIndex 50k rows, top 50: median %.2f ms, p95 %.2f ms".format(medianMs, p95Ms))
+        assertTrue("median $medianMs ms", medianMs < 10.0)
+    }
+}
@@ -0,0 +1,198 @@
+package tech.healthpay.keyboard.data
+
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.Mockito.any
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.mock
+import tech.healthpay.keyboard.FakeSharedPreferences
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.security.TokenManager
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Delta sync against a stand-in server holding a 50k-row change log, with
+ * the store kept in memory
+ */
+class TransactionSyncManagerTest {
+
+    // The server's change log; a cursor is a position in it
+    private val log = Collections.synchronizedList(ArrayList<Transaction>())
+    private val requestedCursors = Collections.synchronizedList(ArrayList<Int>())
+
+    private val server = MockWebServer().apply {
+        dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                val variables = JSONObject(request.body.readUtf8()).getJSONObject("variables")
+                val after = variables.optString("after").toIntOrNull() ?: 0
+                requestedCursors.add(after)
+                val page = synchronized(log) {
+                    log.subList(after, minOf(after + variables.getInt("limit"), log.size)).toList()
+                }
+                val end = after + page.size
+                val body = JSONObject().put("data", JSONObject().put("transactionsSince", JSONObject()
+                    .put("cursor", end.toString())
+                    .put("hasMore", end < log.size)
+                    .put("items", JSONArray(page.map { it.toJson() }))))
+                return MockResponse().setBody(body.toString())
+            }
+        }
+        start()
+    }
+
+    private val apiClient = FakeSharedPreferences().let { prefs ->
+        HealthPayApiClient(TokenManager(prefs), TransferJournal(prefs), server.url("/graphql").toString())
+    }
+
+    // What the device has stored, by id, and the stored cursor
+    private val rows = HashMap<String, Transaction>()
+    private var storedCursor: String? = null
+
+    private val store = mock(TransactionStore::class.java).also { store ->
+        doAnswer { storedCursor }.`when`(store).getSyncCursor()
+        doAnswer {
+            val items: List<Transaction> = it.getArgument(0)
+            val inserted = ArrayList<Transaction>()
+            val updated = ArrayList<Transaction>()
+            for (tx in items) {
+                when (rows.put(tx.id, tx)) {
+                    null -> inserted.add(tx)
+                    tx -> Unit
+                    else -> updated.add(tx)
+                }
+            }
+            storedCursor = it.getArgument(1)
+            AppliedPage(inserted, updated)
+        }.`when`(store).applyPage(anyArg(emptyList()), any())
+    }
+
+    private val syncManager = TransactionSyncManager(apiClient, store)
+
+    private val newCount = AtomicInteger()
+    private val updatedIds = Collections.synchronizedList(ArrayList<String>())
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    private fun <T> anyArg(placeholder: T): T {
+        any<T>()
+        return placeholder
+    }
+
+    private fun Transaction.toJson() = JSONObject()
+        .put("id", id)
+        .put("type", type)
+        .put("status", status)
+        .put("amount", amount.toBigDecimal().toDouble())
+        .put("fee", fee.toBigDecimal().toDouble())
+        .put("currency", currency)
+        .put("counterpartyName", counterpartyName)
+        .put("counterpartyMobile", counterpartyMobile)
+        .put("description", description)
+        .put("referenceNumber", referenceNumber)
+        .put("createdAt", createdAt)
+        .put("counterpartyAvatar", counterpartyAvatar)
+
+    private fun transaction(index: Int, status: String) = Transaction(
+        id = "tx$index",
+        type = if (index % 3 == 0) "credit" else "debit",
+        status = status,
+        amount = Money(1_000L + index % 5_000),
+        fee = Money.ZERO,
+        currency = "EGP",
+        counterpartyName = "Recipient ${index % 400}",
+        counterpartyMobile = "0100%07d".format(index % 400),
+        description = "",
+        referenceNumber = "REF$index",
+        createdAt = "2024-05-01T10:00:00Z",
+        counterpartyAvatar = ""
+    )
+
+    /** Runs a sync and waits until [expectedNew] new and [expectedUpdated] changed rows were reported */
+    private fun syncAndAwait(expectedNew: Int, expectedUpdated: Int) {
+        val done = CountDownLatch(1)
+        val listener = object : TransactionSyncManager.Listener {
+            override fun onNewTransactions(transactions: List<Transaction>) {
+                newCount.addAndGet(transactions.size)
+                check()
+            }
+
+            override fun onUpdatedTransactions(transactions: List<Transaction>) {
+                updatedIds.addAll(transactions.map { it.id })
+                check()
+            }
+
+            private fun check() {
+                if (newCount.get() == expectedNew && updatedIds.size == expectedUpdated) done.countDown()
+            }
+        }
+        syncManager.addListener(listener)
+        syncManager.sync()
+        assertTrue("synced ${newCount.get()} new, ${updatedIds.size} changed", done.await(60, TimeUnit.SECONDS))
+        syncManager.removeListener(listener)
+    }
+
+    @Test
+    fun fiftyThousandRowsSyncPageByPageThenOnlyTheDelta() {
+        // Every tenth transfer is created pending and completes further down the log
+        for (i in 0 until ROWS) {
+            log.add(transaction(i, if (i % 10 == 0) "pending" else "completed"))
+            if (i % 10 == 0 && i >= 1_000) log.add(transaction(i - 1_000, "completed"))
+        }
+        val initialChanges = log.size - ROWS
+
+        syncAndAwait(expectedNew = ROWS, expectedUpdated = initialChanges)
+
+        assertEquals(ROWS, rows.size)
+        assertEquals(log.size.toString(), storedCursor)
+        // Each page was asked for once, in order
+        assertEquals((0 until log.size step PAGE_SIZE).toList(), requestedCursors.toList())
+
+        // The server moves on: the transfers still pending fail, a few new rows arrive
+        val before = log.size
+        for (i in ROWS - 1_000 until ROWS step 10) log.add(transaction(i, "failed"))
+        for (i in ROWS until ROWS + 50) log.add(transaction(i, "completed"))
+        requestedCursors.clear()
+        updatedIds.clear()
+
+        syncAndAwait(expectedNew = ROWS + 50, expectedUpdated = 100)
+
+        // Only the delta came down
+        assertEquals(listOf(before), requestedCursors.toList())
+        assertEquals(ROWS + 50, rows.size)
+        assertTrue(updatedIds.all { rows.getValue(it).status == "failed" })
+    }
+
+    @Test
+    fun unchangedRowsInAPageAreNotReportedAsUpdates() {
+        for (i in 0 until 500) log.add(transaction(i, "completed"))
+        syncAndAwait(expectedNew = 500, expectedUpdated = 0)
+
+        // The server replays rows the device already has, unchanged, plus one real change
+        for (i in 0 until 100) log.add(transaction(i, "completed"))
+        log.add(transaction(7, "refunded"))
+        syncAndAwait(expectedNew = 500, expectedUpdated = 1)
+
+        assertEquals(listOf("tx7"), updatedIds.toList())
+    }
+
+    private companion object {
+        const val ROWS = 50_000
+        const val PAGE_SIZE = 200
+    }
+}
@@ -0,0 +1,170 @@
+package tech.healthpay.keyboard.data
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import okhttp3.RequestBody.Companion.toRequestBody
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.mockito.ArgumentMatchers.isNull
+import org.mockito.Mockito.any
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+import tech.healthpay.keyboard.api.ApiCallback
+import tech.healthpay.keyboard.api.ApiError
+import tech.healthpay.keyboard.api.ApiErrorCode
+import tech.healthpay.keyboard.api.HealthPayApiClient
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.PreparedTransfer
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.api.TransferResponse
+import tech.healthpay.keyboard.api.WalletBalance
+import tech.healthpay.keyboard.api.WalletSubscriptionClient
+
+class WalletRepositoryTest {
+
+    private val snapshotReads = ArrayList<(WalletSnapshot?) -> Unit>()
+    private val balanceRequests = ArrayList<ApiCallback<WalletBalance>>()
+    private val transferCallbacks = ArrayList<MutationOutbox.Callback<TransferResponse>>()
+    private val syncListeners = ArrayList<TransactionSyncManager.Listener>()
+    private val subscriptionListeners = ArrayList<WalletSubscriptionClient.Listener>()
+
+    private val ignored = object : ApiCallback<WalletBalance> {
+        override fun onSuccess(response: WalletBalance) {}
+        override fun onError(error: ApiError) {}
+    }
+
+    private val apiClient = mock(HealthPayApiClient::class.java).also { client ->
+        doAnswer { balanceRequests.add(it.getArgument(0)); null }
+            .`when`(client).getWalletBalance(anyArg(ignored), isNull())
+    }
+    private val snapshotStore = mock(WalletSnapshotStore::class.java).also { store ->
+        doAnswer { snapshotReads.add(it.getArgument(0)); null }
+            .`when`(store).readAsync(anyArg { })
+    }
+    private val ignoredTransfer = object : MutationOutbox.Callback<TransferResponse> {
+        override fun onSuccess(response: TransferResponse) {}
+        override fun onError(error: ApiError) {}
+    }
+
+    private val outbox = mock(MutationOutbox::class.java).also { outbox ->
+        doReturn(MutableStateFlow(emptyList<MutationOutbox.Entry>())).`when`(outbox).pending
+        doAnswer { transferCallbacks.add(it.getArgument(1)); null }
+            .`when`(outbox).submitTransfer(anyArg(prepared(Money.ZERO)), anyArg(ignoredTransfer))
+    }
+    private val transactionSync = mock(TransactionSyncManager::class.java).also { sync ->
+        doAnswer { syncListeners.add(it.getArgument(0)); null }
+            .`when`(sync).addListener(anyArg(TransactionSyncManager.Listener { }))
+    }
+    private val subscriptionClient = mock(WalletSubscriptionClient::class.java).also { client ->
+        doAnswer { subscriptionListeners.add(it.getArgument(0)); null }
+            .`when`(client).start(anyArg(mock(WalletSubscriptionClient.Listener::class.java)))
+    }
+    private val repository = WalletRepository(
+        apiClient,
+        subscriptionClient,
+        transactionSync,
+        mock(NotificationStore::class.java),
+        snapshotStore,
+        outbox
+    )
+
+    private fun <T> anyArg(placeholder: T): T {
+        any<T>()
+        return placeholder
+    }
+
+    private fun balance(major: Long) = WalletBalance(Money.ofMajor(major), "EGP", "")
+
+    private fun prepared(amount: Money) = PreparedTransfer("01001234567", amount, null, "key1", "{}".toRequestBody())
+
+    private fun historyRow(id: String, status: String) = Transaction(
+        id = id,
+        type = "debit",
+        status = status,
+        amount = Money.ofMajor(100),
+        fee = Money.ZERO,
+        currency = "EGP",
+        counterpartyName = "Mona",
+        counterpartyMobile = "01001234567",
+        description = "",
+        referenceNumber = "",
+        createdAt = "2024-05-01T10:00:00Z",
+        counterpartyAvatar = ""
+    )
+
+    @Test
+    fun warmStartBalanceIsShownButNotConfirmed() {
+        repository.warmStart()
+        snapshotReads.single()(WalletSnapshot(balance(5), 0L))
+
+        assertEquals(balance(5), repository.balance.value)
+        assertNull(repository.confirmedBalance())
+    }
+
+    @Test
+    fun serverBalanceConfirms() {
+        repository.warmStart()
+        snapshotReads.single()(WalletSnapshot(balance(5), 0L))
+        repository.refreshBalance()
+        balanceRequests.single().onSuccess(balance(500))
+
+        assertEquals(balance(500), repository.confirmedBalance())
+        assertEquals(balance(500), repository.balance.value)
+    }
+
+    @Test
+    fun failedRefreshLeavesTheSnapshotUnconfirmed() {
+        repository.warmStart()
+        snapshotReads.single()(WalletSnapshot(balance(5), 0L))
+        repository.refreshBalance()
+        balanceRequests.single().onError(ApiError(ApiErrorCode.TIMEOUT, "timeout"))
+
+        assertNull(repository.confirmedBalance())
+    }
+
+    @Test
+    fun clearForgetsTheConfirmation() {
+        repository.refreshBalance()
+        balanceRequests.single().onSuccess(balance(500))
+        repository.clear()
+
+        assertNull(repository.confirmedBalance())
+        repository.warmStart()
+        snapshotReads.last()(WalletSnapshot(balance(5), 0L))
+        assertNull(repository.confirmedBalance())
+    }
+
+    @Test
+    fun acceptedTransferThatLaterFailsInHistoryIsRolledBack() {
+        repository.refreshBalance()
+        balanceRequests.single().onSuccess(balance(500))
+        repository.transfer(prepared(Money.ofMajor(100)), ignoredTransfer)
+        transferCallbacks.single().onSuccess(TransferResponse(true, "tx1", "pending", ""))
+        assertEquals(balance(400), repository.balance.value)
+
+        // The delta sync already stored tx1 as pending; the change is an update, not a new row
+        syncListeners.single().onUpdatedTransactions(listOf(historyRow("tx1", "failed")))
+
+        assertEquals(balance(500), repository.balance.value)
+    }
+
+    @Test
+    fun stalePushDoesNotSettleAnAcceptedDebit() {
+        repository.startLiveUpdates()
+        balanceRequests.single().onSuccess(balance(500))
+        repository.transfer(prepared(Money.ofMajor(100)), ignoredTransfer)
+        transferCallbacks.single().onSuccess(TransferResponse(true, "tx1", "pending", ""))
+
+        // Pushed for an earlier credit, before the debit reached the server's balance
+        subscriptionListeners.single().onBalanceUpdated(balance(520), "tx0")
+        assertEquals(balance(420), repository.balance.value)
+        subscriptionListeners.single().onBalanceUpdated(balance(520), null)
+        assertEquals(balance(420), repository.balance.value)
+
+        // The push for the transfer itself includes the debit
+        subscriptionListeners.single().onBalanceUpdated(balance(420), "tx1")
+        assertEquals(balance(420), repository.balance.value)
+        assertEquals(0, repository.pendingTransfers.value)
+    }
+}
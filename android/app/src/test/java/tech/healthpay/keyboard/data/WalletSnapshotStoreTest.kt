@@ -0,0 +1,68 @@
+package tech.healthpay.keyboard.data
+
+import org.json.JSONObject
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.WalletBalance
+
+class WalletSnapshotStoreTest {
+
+    private val snapshot = WalletSnapshot(
+        balance = WalletBalance(Money(1_234_567_89), "EGP", "2024-05-01T10:00:00.000Z"),
+        savedAt = 1_714_557_600_000L
+    )
+
+    /** The same snapshot as a JSON document, the format the binary body replaced */
+    private fun toJson(snapshot: WalletSnapshot): ByteArray = JSONObject().apply {
+        put("savedAt", snapshot.savedAt)
+        snapshot.balance?.let { balance ->
+            put("balance", JSONObject().apply {
+                put("minorUnits", balance.balance.minorUnits)
+                put("currency", balance.currency)
+                put("lastUpdated", balance.lastUpdated)
+            })
+        }
+    }.toString().toByteArray()
+
+    private fun fromJson(bytes: ByteArray): WalletSnapshot {
+        val json = JSONObject(String(bytes))
+        val balance = json.optJSONObject("balance")?.let {
+            WalletBalance(Money(it.getLong("minorUnits")), it.getString("currency"), it.getString("lastUpdated"))
+        }
+        return WalletSnapshot(balance, json.getLong("savedAt"))
+    }
+
+    @Test
+    fun roundTrips() {
+        assertEquals(snapshot, WalletSnapshotStore.decode(WalletSnapshotStore.encode(snapshot)))
+
+        val empty = WalletSnapshot(balance = null, savedAt = 0L)
+        assertEquals(empty, WalletSnapshotStore.decode(WalletSnapshotStore.encode(empty)))
+
+        val arabic = WalletSnapshot(WalletBalance(Money(-5), "ج.م", ""), 1L)
+        assertEquals(arabic, WalletSnapshotStore.decode(WalletSnapshotStore.encode(arabic)))
+    }
+
+    @Test
+    fun benchmarkBinaryVersusJsonDecode() {
+        val binary = WalletSnapshotStore.encode(snapshot)
+        val json = toJson(snapshot)
+        assertEquals(snapshot, fromJson(json))
+
+        val rounds = 200_000
+        repeat(rounds) { WalletSnapshotStore.decode(binary); fromJson(json) } // warm-up
+
+        var start = System.nanoTime()
+        repeat(rounds) { WalletSnapshotStore.decode(binary) }
+        val binaryNs = (System.nanoTime() - start) / rounds
+        start = System.nanoTime()
+        repeat(rounds) { fromJson(json) }
+        val jsonNs = (System.nanoTime() - start) / rounds
+
+        println("WalletSnapshot decode: binary $binaryNs ns (${binary.size} B), JSON $jsonNs ns (${json.size} B)")
+        assertTrue("binary $binaryNs ns vs JSON $jsonNs ns", binaryNs < jsonNs)
+        assertTrue(binary.size < json.size)
+    }
+}
@@ -0,0 +1,90 @@
+package tech.healthpay.keyboard.qr
+
+import com.google.zxing.common.BitMatrix
+import com.google.zxing.qrcode.QRCodeWriter
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Encode and raster times for receive and payment codes at the sizes the
+ * app shows them, on the JVM. The bitmap itself is Android-only, so raster
+ * is measured up to the pixel buffer handed to it.
+ */
+class QrCodeRendererTest {
+
+    companion object {
+        private const val DARK = 0xFF000000.toInt()
+        private const val LIGHT = 0xFFFFFFFF.toInt()
+    }
+
+    private val payloads = listOf(
+        "healthpay://pay?to=%2B201001234567",
+        "healthpay://pay?to=%2B201001234567&amount=250.50",
+        "healthpay://pay?to=%2B201001234567&amount=1250.75&exp=1735689600000&type=merchant" +
+            "&sig=3q2-7wABEjRWeJq8zd7_ABEiM0RVZneImaq7zN3u_w"
+    )
+    private val sizes = listOf(256, 512, 1024)
+
+    private val writer = QRCodeWriter()
+
+    /** Rasterizing as before the renderer: one read per pixel into a fresh array */
+    private fun perPixel(matrix: BitMatrix): IntArray {
+        val pixels = IntArray(matrix.width * matrix.height)
+        for (y in 0 until matrix.height) {
+            for (x in 0 until matrix.width) {
+                pixels[y * matrix.width + x] = if (matrix.get(x, y)) DARK else LIGHT
+            }
+        }
+        return pixels
+    }
+
+    @Test
+    fun fillMatchesTheMatrix() {
+        for (payload in payloads) {
+            for (size in sizes + listOf(101, 333)) {
+                val matrix = QrCodeRenderer.encodeMatrix(writer, payload, size)
+                assertEquals(size, matrix.width)
+                // A buffer reused from a larger code keeps stale pixels past the end
+                val buffer = IntArray(2_048 * 2_048) { 0x12345678 }
+                QrCodeRenderer.fillPixels(matrix, buffer)
+                assertArrayEquals("$size: $payload", perPixel(matrix), buffer.copyOf(size * size))
+            }
+        }
+    }
+
+    @Test
+    fun benchmarkEncodeAndRaster() {
+        val rounds = 50
+        val buffer = IntArray(sizes.max() * sizes.max())
+        val matrices = sizes.associateWith { size -> payloads.map { QrCodeRenderer.encodeMatrix(writer, it, size) } }
+        repeat(20) { // warm-up
+            matrices.values.flatten().forEach { matrix ->
+                QrCodeRenderer.fillPixels(matrix, buffer)
+                perPixel(matrix)
+            }
+            payloads.forEach { QrCodeRenderer.encodeMatrix(writer, it, 512) }
+        }
+
+        for (size in sizes) {
+            var start = System.nanoTime()
+            repeat(rounds) { payloads.forEach { QrCodeRenderer.encodeMatrix(writer, it, size) } }
+            val encodeMicros = (System.nanoTime() - start) / 1_000.0 / (rounds * payloads.size)
+
+            start = System.nanoTime()
+            repeat(rounds) { matrices.getValue(size).forEach { QrCodeRenderer.fillPixels(it, buffer) } }
+            val rasterMicros = (System.nanoTime() - start) / 1_000.0 / (rounds * payloads.size)
+
+            start = System.nanoTime()
+            repeat(rounds) { matrices.getValue(size).forEach { perPixel(it) } }
+            val perPixelMicros = (System.nanoTime() - start) / 1_000.0 / (rounds * payloads.size)
+
+            println("QrCodeRenderer ${size}px: encode %.0f µs, raster %.0f µs (per pixel into a fresh array %.0f µs)"
+                .format(encodeMicros, rasterMicros, perPixelMicros))
+            assertTrue("${size}px raster %.0f µs vs %.0f µs".format(rasterMicros, perPixelMicros), rasterMicros < perPixelMicros)
+            // A receive code rendered on first open must not cost a visible frame drop
+            assertTrue("${size}px encode + raster", encodeMicros + rasterMicros < 50_000)
+        }
+    }
+}
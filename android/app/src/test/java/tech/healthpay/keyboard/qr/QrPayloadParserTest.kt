@@ -0,0 +1,125 @@
+package tech.healthpay.keyboard.qr
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.data.PhoneNumbers
+import kotlin.random.Random
+
+class QrPayloadParserTest {
+
+    private val now = 1_700_000_000_000L
+    private val signature = "3q2-7wABEjRWeJq8zd7_ABEiM0RVZneImaq7zN3u_w0"
+
+    private val seeds = listOf(
+        "healthpay://pay?to=%2B201001234567",
+        "healthpay://pay?to=01001234567&type=p2p",
+        "healthpay://pay?to=%2B201001234567&amount=250.50&sig=$signature",
+        "healthpay://pay?to=%2B201001234567&amount=10&exp=1800000000&type=merchant&sig=$signature"
+    )
+
+    private fun reason(raw: String, selfMobile: String? = null) =
+        (QrPayloadParser.parse(raw, now, selfMobile) as? QrParseResult.Invalid)?.reason
+
+    @Test
+    fun acceptsWellFormedCodes() {
+        val plain = QrPayloadParser.parse(seeds[0], now) as QrParseResult.Valid
+        assertEquals(QRCodeData("01001234567", null, null, QrPayloadParser.TYPE_P2P, null), plain.data)
+
+        val merchant = QrPayloadParser.parse(seeds[3], now) as QrParseResult.Valid
+        assertEquals(Money.ofMajor(10), merchant.data.amount)
+        assertEquals(1_800_000_000_000L, merchant.data.expiresAt)
+        assertEquals(QrPayloadParser.TYPE_MERCHANT, merchant.data.type)
+    }
+
+    @Test
+    fun rejectsWithTheRightReason() {
+        assertEquals(QrRejection.MALFORMED, reason("https://pay?to=01001234567"))
+        assertEquals(QrRejection.MALFORMED, reason("healthpay://pay?to=01001234567&to=01001234567"))
+        assertEquals(QrRejection.MALFORMED, reason("healthpay://pay?to=01001234567&foo=1"))
+        assertEquals(QrRejection.MALFORMED, reason("healthpay://pay?to=%ZZ"))
+        assertEquals(QrRejection.MALFORMED, reason("healthpay://pay?to=01001234567&type=loan"))
+        assertEquals(QrRejection.MALFORMED, reason("healthpay://pay?" + "to=01001234567&".repeat(40)))
+        assertEquals(QrRejection.INVALID_RECIPIENT, reason("healthpay://pay?to=0300123456"))
+        assertEquals(QrRejection.INVALID_RECIPIENT, reason("healthpay://pay?amount=5"))
+        assertEquals(QrRejection.SELF_PAYMENT, reason(seeds[0], selfMobile = "01001234567"))
+        assertEquals(QrRejection.INVALID_AMOUNT, reason("healthpay://pay?to=01001234567&amount=1,000&sig=$signature"))
+        assertEquals(QrRejection.INVALID_AMOUNT, reason("healthpay://pay?to=01001234567&amount=0&sig=$signature"))
+        assertEquals(QrRejection.INVALID_AMOUNT, reason("healthpay://pay?to=01001234567&amount=100000.01&sig=$signature"))
+        assertEquals(QrRejection.EXPIRED, reason("healthpay://pay?to=01001234567&exp=1600000000&sig=$signature"))
+        assertEquals(QrRejection.MALFORMED_SIGNATURE, reason("healthpay://pay?to=01001234567&amount=5"))
+        assertEquals(QrRejection.MALFORMED_SIGNATURE, reason("healthpay://pay?to=01001234567&type=merchant"))
+        assertEquals(QrRejection.MALFORMED_SIGNATURE, reason("healthpay://pay?to=01001234567&sig=short"))
+    }
+
+    /** Whatever the input, parse() returns, and anything it accepts is internally consistent */
+    private fun checkInvariants(raw: String) {
+        val result = try {
+            QrPayloadParser.parse(raw, now, selfMobile = "01119876543")
+        } catch (e: Exception) {
+            throw AssertionError("parse threw on \"$raw\"", e)
+        }
+        assertNotNull(result)
+        if (result !is QrParseResult.Valid) return
+        val code = result.data
+        assertTrue(raw, raw.length <= QrPayloadParser.MAX_PAYLOAD_LENGTH)
+        assertTrue(raw, PhoneNumbers.isValidLocalMobile(code.recipientPhone))
+        assertTrue(raw, code.recipientPhone != "01119876543")
+        code.amount?.let { assertTrue(raw, QrPayloadParser.isValidAmount(it)) }
+        code.expiresAt?.let { assertTrue(raw, it > now) }
+        assertTrue(raw, code.type == QrPayloadParser.TYPE_P2P || code.type == QrPayloadParser.TYPE_MERCHANT)
+        if (code.amount != null || code.expiresAt != null || code.type == QrPayloadParser.TYPE_MERCHANT) {
+            assertEquals(raw, 43, code.signature?.length)
+        }
+    }
+
+    @Test
+    fun fuzzRandomText() {
+        val random = Random(43)
+        val alphabet = "healthpay:/?&=%+.,-_~ 0123456789٠١٢٣٤٥٦٧٨٩abcxyzABCXYZ\u0000￿😀"
+        repeat(20_000) {
+            val length = random.nextInt(0, 600)
+            checkInvariants(String(CharArray(length) { alphabet[random.nextInt(alphabet.length)] }))
+        }
+        repeat(2_000) {
+            checkInvariants("healthpay://pay?" + String(CharArray(random.nextInt(0, 200)) { random.nextInt(0, 0x3000).toChar() }))
+        }
+    }
+
+    @Test
+    fun fuzzMutatedCodes() {
+        val random = Random(4343)
+        val fragments = listOf("&", "=", "%", "%2", "%2B", "%00", "+", "..", "amount=", "exp=", "sig=", "type=", "to=", "٠", "-", " ")
+        var accepted = 0
+        repeat(50_000) {
+            val chars = StringBuilder(seeds.random(random))
+            repeat(random.nextInt(1, 4)) {
+                val at = random.nextInt(0, chars.length + 1)
+                when (random.nextInt(4)) {
+                    0 -> if (at < chars.length) chars.deleteCharAt(at)
+                    1 -> chars.insert(at, fragments.random(random))
+                    2 -> if (at < chars.length) chars.setCharAt(at, (chars[at] + random.nextInt(-3, 4)))
+                    else -> chars.insert(at, chars.substring(random.nextInt(0, chars.length)))
+                }
+            }
+            val raw = chars.toString()
+            checkInvariants(raw)
+            if (QrPayloadParser.parse(raw, now) is QrParseResult.Valid) accepted++
+        }
+        // The mutations must exercise the accepting paths too, not only the rejections
+        assertTrue("$accepted mutants accepted", accepted > 500)
+    }
+
+    @Test
+    fun fuzzParseAmount() {
+        val random = Random(4344)
+        val alphabet = "0123456789٠١٢٣٤٥٦٧٨٩۰۱۲۳۴۵۶۷۸۹.,٫٬- e+"
+        repeat(20_000) {
+            val text = String(CharArray(random.nextInt(0, 24)) { alphabet[random.nextInt(alphabet.length)] })
+            val amount = QrPayloadParser.parseAmount(text)
+            if (amount != null) assertTrue(text, QrPayloadParser.isValidAmount(amount))
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package tech.healthpay.keyboard.qr
+
+import com.google.zxing.BarcodeFormat
+import com.google.zxing.EncodeHintType
+import com.google.zxing.MultiFormatReader
+import com.google.zxing.PlanarYUVLuminanceSource
+import com.google.zxing.common.BitMatrix
+import com.google.zxing.qrcode.QRCodeWriter
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * Decodes a generated corpus of NV21 camera frames: payloads of several
+ * lengths at several module sizes, rotations, contrasts, noise levels and
+ * positions inside the region of interest, plus frames with no code.
+ */
+class QrScanDecoderTest {
+
+    companion object {
+        /** Per-pixel sensor noise, in luma levels either way */
+        private const val NOISE = 16
+        private const val MIN_DECODE_RATE = 0.95
+    }
+
+    private class Frame(val name: String, val data: ByteArray, val width: Int, val height: Int, val expected: String?)
+
+    private val payloads = listOf(
+        "healthpay://pay?to=%2B201001234567",
+        "healthpay://pay?to=%2B201001234567&amount=250.50",
+        "healthpay://pay?to=%2B201001234567&amount=1250.75&exp=1735689600000&type=merchant" +
+            "&sig=3q2-7wABEjRWeJq8zd7_ABEiM0RVZneImaq7zN3u_w"
+    )
+
+    private fun encode(payload: String): BitMatrix =
+        QRCodeWriter().encode(payload, BarcodeFormat.QR_CODE, 0, 0, mapOf(EncodeHintType.MARGIN to 0))
+
+    /** Draws [matrix] rotated by [quarterTurns] into the Y plane of an NV21 frame */
+    private fun frame(
+        matrix: BitMatrix,
+        width: Int,
+        height: Int,
+        scale: Int,
+        quarterTurns: Int,
+        dark: Int,
+        light: Int,
+        noise: Int,
+        shift: Int,
+        random: Random
+    ): ByteArray {
+        val data = ByteArray(width * height * 3 / 2) { 128.toByte() }
+        val modules = matrix.width
+        val side = modules * scale
+        val left = (width - side) / 2 + shift
+        val top = (height - side) / 2 - shift
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                var value = light
+                val mx = (x - left).floorDiv(scale)
+                val my = (y - top).floorDiv(scale)
+                if (x >= left && y >= top && mx < modules && my < modules) {
+                    val (sx, sy) = when (quarterTurns) {
+                        1 -> my to modules - 1 - mx
+                        2 -> modules - 1 - mx to modules - 1 - my
+                        3 -> modules - 1 - my to mx
+                        else -> mx to my
+                    }
+                    if (matrix[sx, sy]) value = dark
+                }
+                if (noise > 0) value += random.nextInt(-noise, noise + 1)
+                data[y * width + x] = value.coerceIn(0, 255).toByte()
+            }
+        }
+        return data
+    }
+
+    private fun corpus(): List<Frame> {
+        val random = Random(42)
+        val frames = ArrayList<Frame>()
+        for (payload in payloads) {
+            val matrix = encode(payload)
+            for ((width, height) in listOf(640 to 480, 1280 to 720)) {
+                val roi = (minOf(width, height) * 0.7f).toInt()
+                for (scale in listOf(3, 5, 8)) {
+                    // The code and its 4-module quiet zone must fit the region of interest
+                    val shift = (roi - (matrix.width + 8) * scale) / 2
+                    if (shift < 0) continue
+                    for (quarterTurns in 0..3) {
+                        for ((dark, light) in listOf(20 to 230, 90 to 160)) {
+                            for (noise in listOf(0, NOISE)) {
+                                val name = "${payload.length}ch ${width}x$height s$scale r$quarterTurns c$dark-$light n$noise"
+                                val data = frame(matrix, width, height, scale, quarterTurns, dark, light, noise, shift / 2, random)
+                                frames.add(Frame(name, data, width, height, payload))
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        for ((width, height) in listOf(640 to 480, 1280 to 720)) {
+            frames.add(Frame("blank ${width}x$height", ByteArray(width * height * 3 / 2) { 200.toByte() }, width, height, null))
+            frames.add(Frame("noise ${width}x$height", random.nextBytes(width * height * 3 / 2), width, height, null))
+        }
+        return frames
+    }
+
+    @Test
+    fun decodesTheCorpus() {
+        val reader = QrScanDecoder.newReader()
+        val frames = corpus()
+        val missed = frames.filter { frame ->
+            val text = QrScanDecoder.decodeText(reader, QrScanDecoder.centreSource(frame.data, frame.width, frame.height))
+            if (frame.expected == null) {
+                assertNull(frame.name, text)
+                false
+            } else {
+                text != frame.expected
+            }
+        }
+        val codes = frames.count { it.expected != null }
+        println("QrScanDecoder corpus: ${codes - missed.size}/$codes codes decoded, missed ${missed.map { it.name }}")
+        // Clean frames must always decode; noisy low-contrast ones mostly
+        assertEquals(emptyList<String>(), missed.filter { it.name.endsWith(" n0") }.map { it.name })
+        assertTrue("missed ${missed.size} of $codes", codes - missed.size >= codes * MIN_DECODE_RATE)
+    }
+
+    @Test
+    fun benchmarkDecodesPerSecond() {
+        val frames = corpus()
+        val reader = QrScanDecoder.newReader()
+        val unrestricted = MultiFormatReader()
+        repeat(2) {
+            frames.forEach { frame ->
+                QrScanDecoder.decodeText(reader, QrScanDecoder.centreSource(frame.data, frame.width, frame.height))
+            }
+        }
+
+        var start = System.nanoTime()
+        frames.forEach { frame ->
+            QrScanDecoder.decodeText(reader, QrScanDecoder.centreSource(frame.data, frame.width, frame.height))
+        }
+        val roiNanos = System.nanoTime() - start
+
+        // Baseline: the whole frame with every format enabled
+        start = System.nanoTime()
+        frames.forEach { frame ->
+            val source = PlanarYUVLuminanceSource(frame.data, frame.width, frame.height, 0, 0, frame.width, frame.height, false)
+            QrScanDecoder.decodeText(unrestricted, source)
+        }
+        val fullNanos = System.nanoTime() - start
+
+        val roiRate = frames.size * 1_000_000_000.0 / roiNanos
+        val fullRate = frames.size * 1_000_000_000.0 / fullNanos
+        println("QrScanDecoder ${frames.size} frames, one worker: %.0f decodes/s (centre region, QR only), %.0f decodes/s (full frame, all formats)"
+            .format(roiRate, fullRate))
+        assertTrue("%.0f decodes/s".format(roiRate), roiRate > 30)
+        assertTrue("centre region %.0f/s vs full frame %.0f/s".format(roiRate, fullRate), roiRate > fullRate)
+    }
+}
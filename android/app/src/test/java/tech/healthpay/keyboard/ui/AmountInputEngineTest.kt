@@ -0,0 +1,193 @@
+package tech.healthpay.keyboard.ui
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import tech.healthpay.keyboard.api.Money
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+class AmountInputEngineTest {
+
+    private fun AmountInputEngine.text() = render(StringBuilder()).toString()
+
+    /** Types [keys], with '<' standing for backspace */
+    private fun AmountInputEngine.keys(keys: String): AmountInputEngine {
+        for (c in keys) if (c == '<') backspace() else type(c)
+        return this
+    }
+
+    /** Replaces the whole field with [pasted], as a paste over a selection does */
+    private fun AmountInputEngine.paste(pasted: String): AmountInputEngine {
+        edit(text(), pasted, 0, text().length, pasted.length)
+        return this
+    }
+
+    @Test
+    fun groupsAsDigitsAreTyped() {
+        val engine = AmountInputEngine()
+        val shown = "1234567".map { engine.type(it); engine.text() }
+
+        assertEquals(listOf("1", "12", "123", "1,234", "12,345", "123,456", "1,234,567"), shown)
+        assertEquals(Money.ofMajor(1_234_567), engine.value)
+    }
+
+    @Test
+    fun leadingZeroIsReplaced() {
+        assertEquals("7", AmountInputEngine().keys("07").text())
+        assertEquals("0", AmountInputEngine().keys("000").text())
+        assertEquals("0.07", AmountInputEngine().keys("0.07").text())
+        assertEquals("10", AmountInputEngine().keys("010").text())
+        assertEquals(Money(7), AmountInputEngine().keys("0.07").value)
+    }
+
+    @Test
+    fun leadingDecimalReadsAsZero() {
+        val engine = AmountInputEngine().keys(".5")
+        assertEquals("0.5", engine.text())
+        assertEquals(Money(50), engine.value)
+
+        engine.keys("<")
+        assertEquals("0.", engine.text())
+        assertEquals(Money.ZERO, engine.value)
+        engine.keys("<<")
+        assertEquals("", engine.text())
+        assertNull(engine.value)
+    }
+
+    @Test
+    fun ignoresKeysThatCannotApply() {
+        val engine = AmountInputEngine(maxIntegerDigits = 4)
+        assertFalse(engine.type(','))
+        assertFalse(engine.type('x'))
+        "1234".forEach { assertTrue(engine.type(it)) }
+        assertFalse(engine.type('5'))
+        assertTrue(engine.type('.'))
+        assertFalse(engine.type('.'))
+        assertTrue(engine.type('9'))
+        assertTrue(engine.type('9'))
+        assertFalse(engine.type('9'))
+        assertEquals("1,234.99", engine.text())
+        assertFalse(AmountInputEngine().backspace())
+    }
+
+    @Test
+    fun backspaceAtTheEndStepsOverGrouping() {
+        val engine = AmountInputEngine().keys("1234")
+        // The field shows "1,234"; deleting the last character leaves "123"
+        engine.edit("1,234", "1,23", 4, 1, 0)
+        assertEquals("123", engine.text())
+
+        // An IME deleting ",234" in one go removes three digits, not four
+        engine.keys("4")
+        engine.edit("1,234", "1", 1, 4, 0)
+        assertEquals("1", engine.text())
+        assertEquals(Money.ofMajor(1), engine.value)
+    }
+
+    @Test
+    fun deletingASeparatorMidFieldChangesNothing() {
+        val engine = AmountInputEngine().keys("1234")
+        engine.edit("1,234", "1234", 1, 1, 0)
+        assertEquals("1,234", engine.text())
+    }
+
+    @Test
+    fun rendersInTheLastTypedDigitFamily() {
+        val arabic = AmountInputEngine().keys("١٢٣٤٫٥")
+        assertEquals("١٬٢٣٤٫٥", arabic.text())
+        assertEquals(Money(123_450), arabic.value)
+
+        assertEquals("۱۲٬۳۴۵", AmountInputEngine().keys("12۳۴۵").text())
+        assertEquals("1,234.5", AmountInputEngine().keys("١٢٣٤.5").text())
+        // The Latin decimal key works in an Arabic field and vice versa
+        assertEquals("٠٫٥", AmountInputEngine().keys(".٥").text())
+        assertEquals("0.5", AmountInputEngine().keys("٫5").text())
+    }
+
+    @Test
+    fun pasteReplaysTheNewText() {
+        val engine = AmountInputEngine().keys("99")
+        assertEquals("1,234.56", engine.paste("1,234.56").text())
+        assertEquals("12,345", engine.paste("1,2,3,4,5").text())
+        assertEquals("١٬٢٣٤", engine.paste("١٢٣٤").text())
+        assertEquals("12.34", engine.paste("EGP 12.345").text())
+        assertEquals("", engine.paste("abc").text())
+        assertNull(engine.value)
+
+        // Appending a paste at the end only types the new characters
+        engine.keys("12")
+        engine.edit("12", "12,500", 2, 0, 4)
+        assertEquals("12,500", engine.text())
+    }
+
+    @Test
+    fun setLoadsAnAmountAsTyped() {
+        val engine = AmountInputEngine()
+        engine.set(Money(123_450))
+        assertEquals("1,234.5", engine.text())
+        engine.set(Money(5))
+        assertEquals("0.05", engine.text())
+        engine.set(Money.ofMajor(1_000))
+        assertEquals("1,000", engine.text())
+        engine.keys("<")
+        assertEquals("100", engine.text())
+    }
+
+    @Test
+    fun agreesWithMoneyParseOnRandomKeystrokes() {
+        val random = Random(46)
+        val keys = "0123456789.٠١٢٣٤٥٦٧٨٩٫<<<"
+        repeat(5_000) {
+            val engine = AmountInputEngine()
+            repeat(random.nextInt(1, 20)) { engine.keys(keys[random.nextInt(keys.length)].toString()) }
+            val text = engine.text()
+            // A trailing separator is a state the field shows but parse rejects
+            val complete = if (text.endsWith('.') || text.endsWith('٫')) text.dropLast(1) else text
+            assertEquals(text, if (complete.isEmpty()) null else Money.parse(complete), engine.value)
+        }
+    }
+
+    @Test
+    fun benchmarkKeystrokes() {
+        val random = Random(4646)
+        val sequences = List(1_000) {
+            buildString {
+                repeat(random.nextInt(3, 9)) { append('0' + random.nextInt(10)) }
+                if (random.nextBoolean()) append('.').append('0' + random.nextInt(10)).append('0' + random.nextInt(10))
+                repeat(random.nextInt(0, 3)) { append('<') }
+            }
+        }
+        val engine = AmountInputEngine()
+        val out = StringBuilder(32)
+        var keystrokes = 0
+        fun pass() {
+            for (sequence in sequences) {
+                engine.clear()
+                for (c in sequence) {
+                    if (c == '<') engine.backspace() else engine.type(c)
+                    out.setLength(0)
+                    engine.render(out)
+                }
+            }
+        }
+        sequences.forEach { keystrokes += it.length }
+        repeat(50) { pass() } // warm-up
+
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+        val allocatedBefore = threads.getThreadAllocatedBytes(thread)
+        val start = System.nanoTime()
+        repeat(200) { pass() }
+        val elapsed = System.nanoTime() - start
+        val allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore
+
+        val calls = 200 * keystrokes
+        val nsPerKey = elapsed / calls
+        println("AmountInputEngine: $nsPerKey ns per keystroke with render, $allocated bytes allocated over $calls keys")
+        assertTrue("$nsPerKey ns per keystroke", nsPerKey < 20_000)
+        assertTrue("$allocated bytes allocated", allocated < calls)
+    }
+}
@@ -0,0 +1,131 @@
+package tech.healthpay.keyboard.ui
+
+import android.content.Context
+import android.content.res.Configuration
+import android.content.res.Resources
+import android.os.LocaleList
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+import tech.healthpay.keyboard.R
+import tech.healthpay.keyboard.api.Money
+import tech.healthpay.keyboard.api.Transaction
+import tech.healthpay.keyboard.data.TransactionStore
+import java.text.NumberFormat
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.TimeZone
+
+class TransactionDisplayMapperTest {
+
+    private var locale: Locale = Locale.US
+
+    private val context = mock(Context::class.java).also { context ->
+        val locales = mock(LocaleList::class.java)
+        doAnswer { locale }.`when`(locales)[0]
+        val configuration = mock(Configuration::class.java)
+        doReturn(locales).`when`(configuration).locales
+        val resources = mock(Resources::class.java)
+        doReturn(configuration).`when`(resources).configuration
+        doReturn(context).`when`(context).applicationContext
+        doReturn(resources).`when`(context).resources
+        doAnswer { if (locale.language == "ar") "هيلث باي" else "HealthPay" }
+            .`when`(context).getString(R.string.history_unknown_counterparty)
+    }
+
+    private val mapper = TransactionDisplayMapper(context)
+
+    private fun transaction(index: Int) = Transaction(
+        id = "tx$index",
+        type = if (index % 3 == 0) "credit" else "debit",
+        status = if (index % 7 == 0) "pending" else "completed",
+        amount = Money(1_000L + index * 37L % 10_000_000),
+        fee = Money.ZERO,
+        currency = "EGP",
+        counterpartyName = if (index % 50 == 0) "" else "Recipient ${index % 500}",
+        counterpartyMobile = "",
+        description = "",
+        referenceNumber = "",
+        createdAt = String.format(Locale.US, "2024-%02d-%02dT%02d:%02d:00Z", index % 12 + 1, index % 28 + 1, index % 24, index % 60),
+        counterpartyAvatar = ""
+    )
+
+    @Test
+    fun formatsForTheCurrentLocale() {
+        val tx = transaction(3).copy(amount = Money(12_345_678), createdAt = "2024-05-01T10:00:00Z")
+
+        val english = mapper.map(tx)
+        assertEquals("+EGP 123,456.78", english.formattedAmount)
+        assertEquals(TransactionStore.parseCreatedAt("2024-05-01T10:00:00Z"), english.createdAtMillis)
+        assertEquals("R", english.counterpartyInitial)
+        assertEquals(R.color.success, english.amountColor)
+
+        locale = Locale("ar", "EG")
+        val arabic = mapper.map(tx)
+        assertTrue(arabic.formattedAmount, arabic.formattedAmount.contains("١٢٣"))
+        assertEquals(english.createdAtMillis, arabic.createdAtMillis)
+        assertEquals("هيلث باي", mapper.map(transaction(50)).counterpartyName)
+    }
+
+    @Test
+    fun unparseableDateLeavesTheRowUndated() {
+        val display = mapper.map(transaction(1).copy(createdAt = "yesterday"))
+
+        assertEquals(0L, display.createdAtMillis)
+        assertEquals("", display.formattedDate)
+        assertEquals(R.color.warning, mapper.map(transaction(7)).statusColor)
+    }
+
+    @Test
+    fun benchmarkPrecompute100k() {
+        val transactions = List(ROWS) { transaction(it) }
+
+        // What binding did before: a fresh parser and formatters for every row
+        fun perRow(tx: Transaction, locale: Locale): String {
+            val iso = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US).apply { timeZone = TimeZone.getTimeZone("UTC") }
+            val date = iso.parse(tx.createdAt) ?: Date(0)
+            val amount = NumberFormat.getNumberInstance(locale).apply { minimumFractionDigits = 2 }
+                .format(tx.amount.toBigDecimal())
+            return amount + SimpleDateFormat("d MMM yyyy, HH:mm", locale).format(date)
+        }
+        // Warm-up: both paths in both locales, so neither run pays for the JIT
+        repeat(2) {
+            for (current in listOf(Locale.US, Locale("ar", "EG"))) {
+                locale = current
+                mapper.map(transactions.take(WARM_UP_ROWS))
+                transactions.take(WARM_UP_ROWS).forEach { perRow(it, current) }
+            }
+        }
+
+        val times = HashMap<String, Long>()
+        for (current in listOf(Locale.US, Locale("ar", "EG"))) {
+            locale = current
+            var start = System.nanoTime()
+            mapper.map(transactions)
+            times["mapper ${current.language}"] = System.nanoTime() - start
+
+            start = System.nanoTime()
+            transactions.forEach { perRow(it, current) }
+            times["per row ${current.language}"] = System.nanoTime() - start
+        }
+
+        fun micros(key: String) = times.getValue(key) / 1_000.0 / ROWS
+        println("TransactionDisplayMapper $ROWS rows: %.2f µs (en) / %.2f µs (ar) per row; fresh formatters per row %.2f µs (en) / %.2f µs (ar)"
+            .format(micros("mapper en"), micros("mapper ar"), micros("per row en"), micros("per row ar")))
+        // Once warm, the JDK caches enough formatter state that the per-row path
+        // is within noise of the mapper, so only the budget is asserted
+        for (language in listOf("en", "ar")) {
+            assertTrue("%.2f µs per row".format(micros("mapper $language")), micros("mapper $language") < MAX_MICROS_PER_ROW)
+        }
+    }
+
+    private companion object {
+        const val ROWS = 100_000
+        const val WARM_UP_ROWS = 20_000
+        const val MAX_MICROS_PER_ROW = 50.0
+    }
+}